@@ -14,10 +14,10 @@
 (ns sherpa.sherpa-client
   (:require [clojure.tools.logging :as log])
   (:import [java.net InetSocketAddress InetAddress]
-           [org.apache.avro.ipc SaslSocketTransceiver]
+           [org.apache.avro.ipc SaslSocketTransceiver NettyTransceiver]
            [org.apache.avro.ipc.specific SpecificRequestor]
            [sherpa.client QueryExecution]
-           [sherpa.protocol SherpaServer QueryRequest DataRequest]))
+           [sherpa.protocol SherpaServer SherpaServer$Callback QueryRequest DataRequest ResultType]))
 
 ;; The SparqlClient protocol 
 (defprotocol SparqlClient
@@ -28,7 +28,9 @@
       params - map of param names and values (keys are expected to be keywords)
       props - map of query properties like: timeout (keys are expected to be keywords)
     The return value is a map of info:
-      :results The result sequence
+      :results The result sequence; for CONSTRUCT and DESCRIBE queries each result has
+               :subject, :predicate and :object keys
+      :ask The answer to an ASK query, whose :results are empty
       :query-handle An opaque query handle that can be used to cancel the query")
   (cancel [client query-handle] "Cancel the query based on query-handle.")
   (close [client query-handle] "Close the query execution and release all resources.")
@@ -37,13 +39,20 @@
 (defn sherpa-client
   "Create a client that implements the SparqlClient protocol and talks using the Sherpa protocol to 
    a Sherpa server.  The connect-map should contain properties to specify which Sherpa server to 
-   connect to, such as :host and :port."
+   connect to, such as :host and :port.  Use :transport :nio to talk to a server started with
+   the :nio transport."
   [connect-map]
   (let [addr (InetSocketAddress. ^InetAddress (InetAddress/getByName (:host connect-map)) ^Integer (:port connect-map))
         _ (log/info "client connecting to " addr)
-        transceiver (SaslSocketTransceiver. addr)
+        transceiver (if (= :nio (:transport connect-map))
+                      (NettyTransceiver. addr)
+                      (SaslSocketTransceiver. addr))
         requestor (SpecificRequestor. SherpaServer transceiver)
-        query-api (SpecificRequestor/getClient SherpaServer requestor)]
+        ;; the callback interface lets queries pipeline data requests over netty
+        query-api (SpecificRequestor/getClient (if (instance? NettyTransceiver transceiver)
+                                                 SherpaServer$Callback
+                                                 SherpaServer)
+                                               requestor)]
     (reify SparqlClient
       (query [_ sparql params props]
         (let [execution (QueryExecution. query-api)
@@ -52,9 +61,14 @@
               str-props (zipmap (map (comp name first) props) (map second props))
               _ (.query execution sparql params str-props)
               data-iter (.iterator execution) 
-              tuple-generator (partial zipmap (map keyword (.getVars execution)))]
-          {:query-handle execution
-           :results (map tuple-generator (iterator-seq data-iter))}))
+              result-type (.getResultType execution)
+              tuple-generator (partial zipmap (if (= ResultType/Triples result-type)
+                                                [:subject :predicate :object]
+                                                (map keyword (.getVars execution))))]
+          (merge {:query-handle execution
+                  :results (map tuple-generator (iterator-seq data-iter))}
+                 (when (= ResultType/Boolean result-type)
+                   {:ask (.getAskResult execution)}))))
       (cancel [_ query-handle] (.cancel ^QueryExecution query-handle))
       (close [_ query-handle] (.close ^QueryExecution query-handle))
       (shutdown [_] (.close transceiver)))))
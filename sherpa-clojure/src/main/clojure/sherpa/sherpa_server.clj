@@ -18,12 +18,16 @@
            [org.apache.avro AvroRemoteException]
            [java.net InetAddress InetSocketAddress]
            [sherpa.protocol SherpaProtocol]
-           [sherpa.server MessageResponder ClojureResponder]))
+           [sherpa.client QueryExecution]
+           [sherpa.trace Span TraceSink]
+           [sherpa.server MessageResponder ClojureResponder NioSherpaServer]))
 
 (def PROTOCOL SherpaProtocol/PROTOCOL)
 
 (defprotocol SherpaListener
-  "Server-side listener on the sherpa protocol."
+  "Server-side listener on the sherpa protocol. A client with a deadline sends the
+   milliseconds it has left as the budgetMillis query property and as :budgetMillis
+   on each data request; a listener should not spend longer producing the answer."
   (query [listener query-req])
   (data [listener data-req])
   (cancel [listener cancel-req])
@@ -84,18 +88,105 @@
                                } PROTOCOL)]
     (AvroRemoteException. err-response)))
 
+(defn- cancel-response [query-id]
+  (AvroRemoteException.
+   (to-avro {:sherpa-type :ErrorResponse
+             :code {:sherpa-type :ReasonCode
+                    :symbol :Cancel}
+             :serverException {:message (str "Query " query-id " was cancelled")}}
+            PROTOCOL)))
+
+(def ^{:dynamic true
+       :doc "Atom holding the set of ids of cancelled queries on the current server."}
+  *cancelled-queries* nil)
+
+(defn cancelled?
+  "True if the client has cancelled the query with this id.  Listener calls that do
+   a lot of work for a query can check this periodically and stop early.  Only valid
+   on the thread the server invoked the listener on."
+  [query-id]
+  (boolean (and *cancelled-queries*
+                (contains? @*cancelled-queries* (str query-id)))))
+
+(defn- track-cancellation
+  "Keep the set of cancelled queries up to date.  Data requests for a cancelled
+   query are answered with a Cancel error without calling the listener."
+  [cancelled msg-name request rpc]
+  (let [query-id #(str (.get request "queryId"))]
+    (case msg-name
+      "data" (if (contains? @cancelled (query-id))
+               (throw (cancel-response (query-id)))
+               (rpc))
+      "cancel" (do (swap! cancelled conj (query-id))
+                   (rpc))
+      "close" (try (rpc)
+                   (finally (swap! cancelled disj (query-id))))
+      (rpc))))
+
+(defn- property
+  "Look up a query property; keys and values arrive as Avro Utf8."
+  [props k]
+  (some (fn [[pk pv]] (when (= k (str pk)) (str pv))) props))
+
+(defn- emit-span [^TraceSink sink trace-id msg-name start & attrs]
+  (try
+    (.emit sink (Span/ending trace-id (str Span/SERVER_PREFIX msg-name) start (object-array attrs)))
+    (catch Throwable t
+      (log/warn t "Trace sink failed"))))
+
+(defn- trace-rpc
+  "Run an rpc, emitting a span for it if the client sent a trace ID with its query.
+   Trace IDs arrive in the query properties and are remembered by query id until
+   the query is closed."
+  [sink trace-ids msg-name request rpc]
+  (let [query? (= "query" msg-name)
+        query-id (when-not query? (str (.get request "queryId")))
+        trace-id (when sink
+                   (if query?
+                     (property (.get request "properties") QueryExecution/TRACE_ID)
+                     (get @trace-ids query-id)))]
+    (if-not trace-id
+      (rpc)
+      (let [start (System/nanoTime)]
+        (try
+          (let [response (rpc)
+                query-id (or query-id (str (.get response "queryId")))]
+            (when query?
+              (swap! trace-ids assoc query-id trace-id))
+            (if (= "data" msg-name)
+              (emit-span sink trace-id msg-name start "queryId" query-id
+                         "startRow" (.get request "startRow") "rows" (count (.get response "data")))
+              (emit-span sink trace-id msg-name start "queryId" query-id))
+            response)
+          (catch Throwable t
+            (emit-span sink trace-id msg-name start "queryId" query-id "error" (.getName (class t)))
+            (throw t))
+          (finally
+            (when (= "close" msg-name)
+              (swap! trace-ids dissoc query-id))))))))
+
 (defn responder
-  "Adapt a SherpaListener into an Avro Responder."
-  [listener]
-  (ClojureResponder. PROTOCOL
-                     (reify MessageResponder
-                       (respond [this msg request]
-                         (try
-                           (let [msg-name (.getName msg)]
-                             (sherpa-rpc msg-name listener (.get request
-                                                                 (str msg-name "Request"))))
-                           (catch Throwable t
-                             (throw (error-response t))))))))
+  "Adapt a SherpaListener into an Avro Responder.  If a trace sink is given,
+   each rpc of a query whose client sent a trace ID is emitted to it as a span."
+  ([listener] (responder listener nil))
+  ([listener trace-sink]
+     (let [cancelled (atom #{})
+           trace-ids (atom {})]
+       (ClojureResponder. PROTOCOL
+                          (reify MessageResponder
+                            (respond [this msg request]
+                              (let [msg-name (.getName msg)
+                                    avro-request (.get request (str msg-name "Request"))]
+                                (binding [*cancelled-queries* cancelled]
+                                  (trace-rpc
+                                   trace-sink trace-ids msg-name avro-request
+                                   #(track-cancellation
+                                     cancelled msg-name avro-request
+                                     (fn []
+                                       (try
+                                         (sherpa-rpc msg-name listener avro-request)
+                                         (catch Throwable t
+                                           (throw (error-response t)))))))))))))))
 
 (defn run-sherpa
   "Run a sherpa server that directs calls to the listener, which should
@@ -105,15 +196,27 @@
    The following option keys are supported:
      :host the host name (default = \"localhost\")
      :port the listen port (default = DEFAULT-PORT = 41414), 0 to let the server pick the port
-     :join? block the caller (default = true)"
+     :join? block the caller (default = true)
+     :transport :socket for a thread-per-connection server (default) or :nio to
+                multiplex connections over a few selector threads; :nio clients
+                must connect with the Netty transceiver
+     :workers with :nio, the max number of concurrent listener calls
+              (default = NioSherpaServer/DEFAULT_WORKERS)
+     :trace-sink a sherpa.trace.TraceSink to emit a span to for each rpc of
+                 traced queries (default = no tracing)"
   [listener options]
   (let [host (if-let [host (:host options)]
                (InetAddress/getByName host)
                nil)
         port (or (:port options) DEFAULT-PORT)
         address (InetSocketAddress. host port)
-        responder (responder listener)
-        server (SaslSocketServer. responder address)]
+        responder (responder listener (:trace-sink options))
+        server (case (:transport options :socket)
+                 :socket (SaslSocketServer. responder address)
+                 :nio (NioSherpaServer. responder address
+                                        (int (or (:workers options) NioSherpaServer/DEFAULT_WORKERS)))
+                 (throw (IllegalArgumentException.
+                         (str "Unknown sherpa transport: " (:transport options)))))]
     (log/info "Starting sherpa server on " address)
     (.start server)
     (when (:join? options true)
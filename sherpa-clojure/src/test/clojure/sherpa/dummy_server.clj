@@ -71,3 +71,29 @@
     (cancel [server request] {:sherpa-type :CloseResponse :queryId (:queryId request)})
     (close [server request] {:sherpa-type :CloseResponse :queryId (:queryId request)})))
 
+(defn dummy-graph-server
+  "Implement a dummy Sherpa server that returns a fixed graph of size triples."
+  [triples]
+  (reify SherpaListener
+    (query [server request]
+      {:sherpa-type "QueryResponse" :queryId "1" :vars nil
+       :resultType {:sherpa-type :ResultType :symbol :Triples}})
+    (data [server request]
+      (let [response (data-call request triples)]
+        (if-let [rows (:data response)]
+          (assoc response :data (vec (for [[s o] rows] [s (iri "http://foobar.baz/p") o])))
+          response)))
+    (cancel [server request] {:sherpa-type :CloseResponse :queryId (:queryId request)})
+    (close [server request] {:sherpa-type :CloseResponse :queryId (:queryId request)})))
+
+(defn dummy-ask-server
+  "Implement a dummy Sherpa server that answers every query with answer."
+  [answer]
+  (reify SherpaListener
+    (query [server request]
+      {:sherpa-type "QueryResponse" :queryId "1" :vars nil
+       :resultType {:sherpa-type :ResultType :symbol :Boolean}
+       :askResult answer})
+    (data [server request] (throw (IllegalStateException. "No data for a boolean result")))
+    (cancel [server request] {:sherpa-type :CloseResponse :queryId (:queryId request)})
+    (close [server request] {:sherpa-type :CloseResponse :queryId (:queryId request)})))
@@ -2,7 +2,8 @@
   (:require [sherpa.sherpa-client :as client]
             [sherpa.sherpa-server :as server] 
             [sherpa.dummy-server :as dummy])
-  (:use [clojure.test]))
+  (:use [clojure.test])
+  (:import [spark.api.exception SparqlException]))
 
 (deftest test-client
   (let [server (server/run-sherpa (dummy/dummy-server 5) {:host "localhost" :port 0 :join? false})
@@ -21,6 +22,19 @@
        (client/shutdown client)
        (.close server)))))
 
+(deftest test-client-nio
+  (let [server (server/run-sherpa (dummy/dummy-server 25)
+                                  {:host "localhost" :port 0 :join? false :transport :nio :workers 2})
+        client (client/sherpa-client {:host "localhost" :port (.getPort server) :transport :nio})]
+    (try
+      (let [r (client/query client "SELECT goes here" {} {:batchSize "10"})
+            result (:results r)]
+        (is (= 25 (count result)))
+        (is (= #{:x :y} (into #{} (keys (first result))))))
+      (finally
+       (client/shutdown client)
+       (.close server)))))
+
 (deftest test-client-0-rows
   (let [server (server/run-sherpa (dummy/dummy-server 0) {:host "localhost" :port 0 :join? false})
         client (client/sherpa-client {:host "localhost" :port (.getPort server)})]
@@ -32,6 +46,30 @@
        (client/shutdown client)
        (.close server)))))
 
+(deftest test-client-graph
+  (let [server (server/run-sherpa (dummy/dummy-graph-server 25) {:host "localhost" :port 0 :join? false})
+        client (client/sherpa-client {:host "localhost" :port (.getPort server)})]
+    (try
+      (let [r (client/query client "CONSTRUCT goes here" {} {:batchSize "10"})
+            result (:results r)]
+        (is (= 25 (count result)))
+        (is (= #{:subject :predicate :object} (into #{} (keys (first result)))))
+        (is (= 25 (:object (last result)))))
+      (finally
+       (client/shutdown client)
+       (.close server)))))
+
+(deftest test-client-ask
+  (let [server (server/run-sherpa (dummy/dummy-ask-server true) {:host "localhost" :port 0 :join? false})
+        client (client/sherpa-client {:host "localhost" :port (.getPort server)})]
+    (try
+      (let [r (client/query client "ASK goes here" {} {})]
+        (is (true? (:ask r)))
+        (is (empty? (:results r))))
+      (finally
+       (client/shutdown client)
+       (.close server)))))
+
 (defn call-tracker-decorator [base-server]
   (let [counts {:query (ref 0)
                 :data (ref 0)
@@ -59,3 +97,18 @@
       (finally
        (client/shutdown client)
        (.close server-proc)))))
+
+(deftest test-client-cancel-stops-results
+  (let [{:keys (server counts)} (call-tracker-decorator (dummy/dummy-server 100))
+        server-proc (server/run-sherpa server {:host "localhost" :port 0 :join? false})
+        client (client/sherpa-client {:host "localhost" :port (.getPort server-proc)})]
+    (try
+      (let [r (client/query client "SELECT goes here" {} {:batchSize "10"})
+            result (:results r)]
+        (is (= 1 (:y (first result))))
+        (client/cancel client (:query-handle r))
+        (is (= 1 @(:cancel counts)))
+        (is (thrown? SparqlException (doall result))))
+      (finally
+       (client/shutdown client)
+       (.close server-proc)))))
@@ -2,9 +2,13 @@
   (:require [sherpa.sherpa-client :as cl])
   (:use [clojure.test]
         [sherpa.sherpa-server])
-  (:import [org.apache.avro.generic GenericRecord GenericEnumSymbol]
+  (:use [sherpa.avro-utils :only (to-avro)])
+  (:import [org.apache.avro.generic GenericRecord GenericEnumSymbol GenericData$Record]
            [org.apache.avro AvroRemoteException]
+           [org.apache.avro Protocol$Message]
            [sherpa.protocol ErrorResponse ReasonCode]
+           [sherpa.server ClojureResponder]
+           [sherpa.trace TraceSink]
            [spark.api.exception SparqlException]))
 
 (deftest test-error-response
@@ -60,4 +64,59 @@
     (is (= "java.lang.NullPointerException: abcdef"
            (.getMessage e2)))))
 
+;; Call the responder directly with a request map for msg-name.
+(defn- call-responder [^ClojureResponder resp msg-name req-map]
+  (let [^Protocol$Message msg (.get (.getMessages PROTOCOL) msg-name)
+        request (doto (GenericData$Record. (.getRequest msg))
+                  (.put (str msg-name "Request") (to-avro req-map PROTOCOL)))]
+    (.respond resp msg request)))
+
+(deftest test-cancellation
+  (let [seen (atom [])
+        listener (reify SherpaListener
+                   (data [_ request]
+                     (swap! seen conj (cancelled? (:queryId request)))
+                     {:queryId (:queryId request) :startRow 1 :more true :data []})
+                   (cancel [_ request] {:queryId (:queryId request)})
+                   (close [_ request] {:queryId (:queryId request)}))
+        resp (responder listener)
+        data-req {:sherpa-type :DataRequest :queryId "q1" :startRow (int 1) :maxSize (int 10)}]
+    (call-responder resp "data" data-req)
+    (is (= [false] @seen))
+    (call-responder resp "cancel" {:sherpa-type :CancelRequest :queryId "q1"})
+    (testing "data for a cancelled query is refused with a Cancel code"
+      (let [e (is (thrown? AvroRemoteException (call-responder resp "data" data-req)))]
+        (is (= "Cancel" (str (.get (.getValue e) "code"))))))
+    (is (= [false] @seen))
+    (testing "other queries are unaffected"
+      (call-responder resp "data" (assoc data-req :queryId "q2"))
+      (is (= [false false] @seen)))
+    (testing "closing forgets the cancellation"
+      (call-responder resp "close" {:sherpa-type :CloseRequest :queryId "q1"})
+      (call-responder resp "data" data-req)
+      (is (= [false false false] @seen)))))
+
+;; Check the spans emitted for a traced query and an untraced one.
+(deftest test-tracing
+  (let [spans (atom [])
+        sink (reify TraceSink (emit [_ span] (swap! spans conj span)))
+        listener (reify SherpaListener
+                   (query [_ request] {:queryId (str "q-" (:sparql request)) :vars ["x"]})
+                   (data [_ request]
+                     {:queryId (:queryId request) :startRow 1 :more false :data [["a"] ["b"]]})
+                   (close [_ request] {:queryId (:queryId request)}))
+        resp (responder listener sink)
+        run (fn [sparql props]
+              (call-responder resp "query" {:sherpa-type :QueryRequest :sparql sparql
+                                            :parameters {} :properties props})
+              (call-responder resp "data" {:sherpa-type :DataRequest :queryId (str "q-" sparql)
+                                           :startRow (int 1) :maxSize (int 10)})
+              (call-responder resp "close" {:sherpa-type :CloseRequest :queryId (str "q-" sparql)}))]
+    (run "traced" {"traceId" "t1"})
+    (run "untraced" {})
+    (is (= ["server.query" "server.data" "server.close"] (map #(.getName %) @spans)))
+    (is (every? #(= "t1" (.getTraceId %)) @spans))
+    (is (every? #(= "q-traced" (get (.getAttributes %) "queryId")) @spans))
+    (is (= "2" (get (.getAttributes (second @spans)) "rows")))))
+
 ;; (run-tests)
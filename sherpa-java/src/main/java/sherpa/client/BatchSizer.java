@@ -0,0 +1,164 @@
+/*
+ * Copyright 2011 Revelytix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sherpa.client;
+
+import java.util.List;
+
+import sherpa.protocol.BNode;
+import sherpa.protocol.IRI;
+import sherpa.protocol.PlainLiteral;
+import sherpa.protocol.TypedLiteral;
+
+/**
+ * Tunes the window size requested from the server for a single query. Each received window
+ * updates running estimates of the encoded bytes per row and the fetch time per row, and each
+ * window the reader finishes updates the drain time per row. The next window size is the
+ * largest that stays under both the target window bytes and the target latency, but never
+ * smaller than the number of rows the reader gets through during one round trip (as long as
+ * that still fits the byte target), so the reader is not left waiting.
+ * <p>
+ * Sizes move by at most a factor of two per window to damp oscillation.
+ */
+class BatchSizer {
+
+  static final int MIN_SIZE = 10;
+  static final int MAX_SIZE = 100000;
+
+  // Weight given to the newest sample in the running averages.
+  private static final double ALPHA = 0.3;
+
+  // Number of rows per window that are inspected to estimate the row size.
+  private static final int SAMPLE_ROWS = 16;
+
+  private final long targetWindowBytes;
+  private final long targetLatencyNanos;
+
+  // estimates, protected by "this" lock; NaN until the first sample
+  private int size;
+  private double bytesPerRow = Double.NaN;
+  private double fetchNanosPerRow = Double.NaN;
+  private double drainNanosPerRow = Double.NaN;
+  private double rttNanos = Double.NaN;
+
+  /**
+   * @param initialSize Window size to use until there are measurements
+   * @param targetWindowBytes Desired encoded size of a window
+   * @param targetLatencyMillis Desired time to fetch a window
+   */
+  BatchSizer(int initialSize, long targetWindowBytes, long targetLatencyMillis) {
+    this.size = clamp(initialSize, MIN_SIZE, MAX_SIZE);
+    this.targetWindowBytes = targetWindowBytes;
+    this.targetLatencyNanos = targetLatencyMillis * 1000000L;
+  }
+
+  /** @return The window size to request next */
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Record a window received from the server and recompute the window size.
+   * @param data The rows in the window
+   * @param elapsedNanos Time from sending the request to receiving the response
+   * @return The window size to request next
+   */
+  synchronized int windowReceived(List<List<Object>> data, long elapsedNanos) {
+    int rows = data.size();
+    if (rows > 0) {
+      bytesPerRow = average(bytesPerRow, estimateRowBytes(data));
+      fetchNanosPerRow = average(fetchNanosPerRow, (double)elapsedNanos / rows);
+      rttNanos = average(rttNanos, elapsedNanos);
+      resize();
+    }
+    return size;
+  }
+
+  /**
+   * Record the time the reader spent working through a window.
+   * @param rows Number of rows in the window
+   * @param elapsedNanos Time from the first to the last row of the window
+   */
+  synchronized void windowDrained(int rows, long elapsedNanos) {
+    if (rows > 0) {
+      drainNanosPerRow = average(drainNanosPerRow, (double)elapsedNanos / rows);
+    }
+  }
+
+  private void resize() {
+    double byBytes = targetWindowBytes / bytesPerRow;
+    double target = Math.min(byBytes, targetLatencyNanos / fetchNanosPerRow);
+    if (!Double.isNaN(drainNanosPerRow)) {
+      // Rows the reader would consume while waiting on one round trip.
+      double drainNeed = rttNanos / Math.max(drainNanosPerRow, 1.0);
+      target = Math.max(target, Math.min(drainNeed, byBytes));
+    }
+    int next = (int)Math.min(target, Integer.MAX_VALUE);
+    next = clamp(next, size / 2, size * 2);
+    size = clamp(next, MIN_SIZE, MAX_SIZE);
+  }
+
+  private static double average(double current, double sample) {
+    return Double.isNaN(current) ? sample : (ALPHA * sample) + ((1 - ALPHA) * current);
+  }
+
+  private static int clamp(int value, int min, int max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  /**
+   * Estimate the Avro-encoded size of the rows in a window from a sample of its rows.
+   * @param data Window rows, must not be empty
+   * @return Estimated bytes per row
+   */
+  static double estimateRowBytes(List<List<Object>> data) {
+    int rows = data.size();
+    int step = Math.max(1, rows / SAMPLE_ROWS);
+    long bytes = 0;
+    int sampled = 0;
+    for (int i = 0; i < rows; i += step) {
+      for (Object value : data.get(i)) {
+        bytes += estimateBytes(value);
+      }
+      sampled++;
+    }
+    return (double)bytes / sampled;
+  }
+
+  // Union branch index plus the encoded value; strings carry a length prefix.
+  private static int estimateBytes(Object value) {
+    if (value == null) {
+      return 1;
+    } else if (value instanceof CharSequence) {
+      return 2 + ((CharSequence)value).length();
+    } else if (value instanceof IRI) {
+      return 2 + ((IRI)value).iri.length();
+    } else if (value instanceof PlainLiteral) {
+      PlainLiteral lit = (PlainLiteral)value;
+      return 4 + lit.lexical.length() + (lit.language != null ? lit.language.length() : 0);
+    } else if (value instanceof TypedLiteral) {
+      TypedLiteral lit = (TypedLiteral)value;
+      return 3 + lit.lexical.length() + lit.datatype.length();
+    } else if (value instanceof BNode) {
+      return 2 + ((BNode)value).label.length();
+    } else if (value instanceof Boolean) {
+      return 2;
+    } else if (value instanceof Integer || value instanceof Float) {
+      return 5;
+    } else {
+      return 9;
+    }
+  }
+}
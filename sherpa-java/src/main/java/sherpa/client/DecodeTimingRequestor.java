@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011 Revelytix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sherpa.client;
+
+import java.io.IOException;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.ipc.Transceiver;
+import org.apache.avro.ipc.specific.SpecificRequestor;
+
+import sherpa.protocol.SherpaServer;
+
+/**
+ * Requestor that times the Avro decoding of each response. The time is left in a thread local,
+ * since the response is decoded on the thread that goes on to hand it to the caller or callback;
+ * {@link QueryExecution} picks it up with {@link #takeDecodeNanos()} when tracing.
+ */
+class DecodeTimingRequestor extends SpecificRequestor {
+
+  private static final ThreadLocal<long[]> lastDecode = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[] { -1 };
+    }
+  };
+
+  DecodeTimingRequestor(Transceiver transceiver) throws IOException {
+    super(SherpaServer.class, transceiver);
+  }
+
+  @Override
+  public Object readResponse(Schema writer, Schema reader, Decoder in) throws IOException {
+    long start = System.nanoTime();
+    Object response = super.readResponse(writer, reader, in);
+    lastDecode.get()[0] = System.nanoTime() - start;
+    return response;
+  }
+
+  /**
+   * Get the time taken to decode the last response on this thread, and forget it.
+   * @return The decode time in nanoseconds, or -1 if no response was decoded since the last call
+   */
+  static long takeDecodeNanos() {
+    long[] last = lastDecode.get();
+    long nanos = last[0];
+    last[0] = -1;
+    return nanos;
+  }
+}
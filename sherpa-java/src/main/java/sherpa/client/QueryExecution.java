@@ -23,11 +23,18 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executor;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.avro.AvroRemoteException;
+import org.apache.avro.ipc.CallFuture;
+import org.apache.avro.ipc.Callback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,13 +45,29 @@ import sherpa.protocol.DataResponse;
 import sherpa.protocol.ErrorResponse;
 import sherpa.protocol.QueryRequest;
 import sherpa.protocol.QueryResponse;
+import sherpa.protocol.ReasonCode;
+import sherpa.protocol.ResultType;
 import sherpa.protocol.ServerException;
 import sherpa.protocol.SherpaServer;
+import sherpa.trace.Span;
+import sherpa.trace.TraceSink;
+import spark.api.exception.EndpointException;
 import spark.api.exception.SparqlException;
+import spark.spi.util.Deadline;
 
 /**
  * Manages the state associated with cursoring through a single query. Each instance is designed for a single execution
  * and should not be reused.
+ * <p>
+ * Results are streamed from the server under credit-based flow control: the client holds a fixed number of credits
+ * (see {@link #STREAM_CREDITS}) and each credit is one window of results that is either requested from the server
+ * or received and waiting to be read. Whenever the reader moves on to a new window its credit is granted back and the
+ * next window is requested, so the server is kept busy without the client buffering more than it has allowed. When
+ * the server interface is a {@link SherpaServer.Callback} the window requests are pipelined on the connection;
+ * otherwise they are issued back-to-back from a background thread.
+ * <p>
+ * A query may be given a {@link Deadline}. The time left is sent to the server with the query (see {@link #BUDGET})
+ * and with every window request, and the client stops waiting for the query response or for a window once it passes.
  */
 public class QueryExecution implements Iterable<List<Object>> {
 
@@ -53,25 +76,80 @@ public class QueryExecution implements Iterable<List<Object>> {
   // Query properties
   public static final String BATCH_SIZE = "batchSize";
   public static final String TIMEOUT = "timeout";
+  public static final String STREAM_CREDITS = "streamCredits";
+  public static final String ADAPTIVE_BATCH_SIZE = "adaptiveBatchSize";
+  public static final String TARGET_WINDOW_BYTES = "targetWindowBytes";
+  public static final String TARGET_LATENCY = "targetLatency";
+  public static final String TRACE_ID = "traceId";
+  /** Milliseconds left before the client's deadline when the query was sent; absent without a deadline. */
+  public static final String BUDGET = "budgetMillis";
+  
+  /** Default number of windows that may be in flight or buffered ahead of the reader. */
+  public static final int DEFAULT_STREAM_CREDITS = 2;
+  
+  /** Default encoded size of a window when the batch size is adaptive. */
+  public static final long DEFAULT_TARGET_WINDOW_BYTES = 1024 * 1024;
+  
+  /** Default time in milliseconds to fetch a window when the batch size is adaptive. */
+  public static final long DEFAULT_TARGET_LATENCY = 200;
 
   // Resources
   private final SherpaServer server;
-  private final Executor executor = Executors.newFixedThreadPool(1, new ClientThreadFactory());
+  private final TraceSink traceSink; // null unless tracing
+  private final ExecutorService executor = Executors.newFixedThreadPool(1, new ClientThreadFactory());
 
   // query metadata - doesn't change after the query starts
   private CharSequence queryId;
+  private String traceId; // null unless tracing
   private List<String> vars;
+  private ResultType resultType = ResultType.Solutions;
+  private Boolean askResult; // only set for Boolean results
   private int maxBatchSize = 1000;
+  private Deadline deadline = Deadline.NONE;
+  private BatchSizer sizer; // null unless the batch size is adaptive
 
-  // query state as cursor evolves, protected by "this" lock
+  // query state as cursor evolves, only touched by the reading thread
   private int cursor = 0; // overall result set, 1-based
   private Window currentData = Window.EMPTY;
-
-  // coordination for next data between calling threads and background requester thread
-  private SignalSlot<Window> nextData = new SignalSlot<Window>();
+  private long windowStart; // nanoTime when the reader moved onto currentData
+
+  // hands windows from the requester thread to the reading thread, sized to the credits
+  private SpscRing<Window> nextData;
+
+  // flow control state, protected by creditLock
+  private final Object creditLock = new Object();
+  private int credits = DEFAULT_STREAM_CREDITS;
+  private int inFlight = 0;        // windows requested but not yet answered
+  private int buffered = 0;        // windows received but not yet read
+  private int nextRequestRow = 1;  // start row of the next window to request
+  private int nextExpectedRow = 1; // start row of the next window to hand to the reader
+  private boolean streamDone = false;
+  
+  // set by cancel() from any thread, checked by the reader once per window
+  private volatile boolean cancelled = false;
 
   public QueryExecution(SherpaServer clientInterface) {
+    this(clientInterface, null);
+  }
+
+  /**
+   * @param clientInterface The server to query
+   * @param traceSink Destination for the spans of the query, or null to not trace it
+   */
+  public QueryExecution(SherpaServer clientInterface, TraceSink traceSink) {
     this.server = clientInterface;
+    this.traceSink = traceSink;
+  }
+
+  /** Emit a span for a phase of this query that started at startNanos, if tracing. */
+  private void trace(String name, long startNanos, Object... attributes) {
+    if (traceSink != null) {
+      try {
+        traceSink.emit(Span.ending(traceId, name, startNanos, attributes));
+      } catch (RuntimeException e) {
+        logger.warn("Trace sink failed", e);
+      }
+    }
   }
 
   // don't do this at home, kids:
@@ -114,6 +192,9 @@ public class QueryExecution implements Iterable<List<Object>> {
     String causeMessage = "";
     if (e instanceof ErrorResponse) {
       ErrorResponse er = (ErrorResponse) e;
+      if (er.code == ReasonCode.Cancel) {
+        return new SparqlException("Query was cancelled", e);
+      }
       Exception cause = reconstruct(er.serverException);      
       if (cause != null) {
         if (cause.getMessage() != null) {
@@ -129,10 +210,50 @@ public class QueryExecution implements Iterable<List<Object>> {
 
   public void query(String command, Map<String, String> params,
       Map<String, String> props) {
+    query(command, params, props, Deadline.NONE);
+  }
+
+  /**
+   * Start the query, bounding the wait for its response and for each window of results by a deadline.
+   * @param deadline The time by which the query must be done, or {@link Deadline#NONE}
+   * @throws SparqlException If the deadline passes before the server responds
+   */
+  public void query(String command, Map<String, String> params,
+      Map<String, String> props, Deadline deadline) {
+    this.deadline = deadline;
+    deadline.check("sending the query");
 
     if (props != null && props.containsKey(BATCH_SIZE)) {
       this.maxBatchSize = Integer.parseInt(props.get(BATCH_SIZE));
     }
+    if (props != null && props.containsKey(STREAM_CREDITS)) {
+      this.credits = Integer.parseInt(props.get(STREAM_CREDITS));
+      if (credits <= 0) throw new SparqlException("Stream credits must be > 0: " + credits);
+    }
+    if (props != null && Boolean.parseBoolean(props.get(ADAPTIVE_BATCH_SIZE))) {
+      long targetBytes = props.containsKey(TARGET_WINDOW_BYTES) ?
+          Long.parseLong(props.get(TARGET_WINDOW_BYTES)) : DEFAULT_TARGET_WINDOW_BYTES;
+      long targetLatency = props.containsKey(TARGET_LATENCY) ?
+          Long.parseLong(props.get(TARGET_LATENCY)) : DEFAULT_TARGET_LATENCY;
+      this.sizer = new BatchSizer(maxBatchSize, targetBytes, targetLatency);
+      this.maxBatchSize = sizer.size();
+    }
+
+    // Windows are only added while holding a credit, so the ring never fills up.
+    this.nextData = new SpscRing<Window>(credits);
+
+    if (props != null && props.containsKey(TRACE_ID)) {
+      this.traceId = props.get(TRACE_ID);
+    } else if (traceSink != null) {
+      // Send the ID to the server, so that its spans can be matched up with ours.
+      this.traceId = Span.newTraceId();
+      props = (props != null) ? new HashMap<String,String>(props) : new HashMap<String,String>();
+      props.put(TRACE_ID, traceId);
+    }
+    if (deadline.isBounded()) {
+      props = (props != null) ? new HashMap<String,String>(props) : new HashMap<String,String>();
+      props.put(BUDGET, Long.toString(deadline.remainingMillis()));
+    }
 
     QueryRequest request = new QueryRequest();
     request.sparql = command;
@@ -140,59 +261,218 @@ public class QueryExecution implements Iterable<List<Object>> {
         : new HashMap<CharSequence, CharSequence>();
     request.properties = (props != null) ? sneakyCast(props)
         : new HashMap<CharSequence, CharSequence>();
+    long start = System.nanoTime();
     try {
       logger.debug("Client sending query request to server.");
-      QueryResponse response = server.query(request);
+      QueryResponse response = sendQuery(request);
       logger.debug("Client received query response from server.");
       queryId = response.queryId;
       vars = new ArrayList<String>();
-      for (CharSequence cs : response.vars) {
-        vars.add(cs.toString());
+      if (response.vars != null) {
+        for (CharSequence cs : response.vars) {
+          vars.add(cs.toString());
+        }
       }
+      if (response.resultType != null) {
+        resultType = response.resultType;
+      }
+      askResult = response.askResult;
+      trace(Span.CLIENT_QUERY, start, "queryId", queryId);
     } catch (AvroRemoteException e) {
+      trace(Span.CLIENT_QUERY, start, "error", e.getClass().getName());
       throw toSparqlException(e);
     }
-    scheduleMoreRequest(1);
+    if (resultType == ResultType.Boolean) {
+      // The answer came with the query response, there are no windows to stream.
+      if (askResult == null) throw new SparqlException("Server sent a boolean result without a value");
+      stopStream(null);
+      currentData = new Window(new ArrayList<List<Object>>(), false);
+    } else {
+      grantCredits();
+    }
   }
   
+  /** Send the query request, waiting no longer than the deadline for the response. */
+  private QueryResponse sendQuery(final QueryRequest request) throws AvroRemoteException {
+    if (!deadline.isBounded()) return server.query(request);
+    try {
+      if (server instanceof SherpaServer.Callback) {
+        CallFuture<QueryResponse> future = new CallFuture<QueryResponse>();
+        ((SherpaServer.Callback)server).query(request, future);
+        return future.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+      }
+      Future<QueryResponse> future = executor.submit(new Callable<QueryResponse>() {
+        public QueryResponse call() throws AvroRemoteException {
+          return server.query(request);
+        }
+      });
+      try {
+        return future.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+      } finally {
+        future.cancel(true);
+      }
+    } catch (TimeoutException e) {
+      throw new SparqlException("Deadline passed waiting for the query response", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SparqlException("Interrupted waiting for the query response", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof AvroRemoteException) throw (AvroRemoteException)cause;
+      if (cause instanceof IOException) throw new EndpointException("Error sending the query", cause);
+      throw SparqlException.convert("Error sending the query", cause);
+    } catch (AvroRemoteException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new EndpointException("Error sending the query", e);
+    }
+  }
+
   /**
-   * Send request for more data for this query.
-   * 
-   * NOTE: This method is always run in a background thread!!
+   * Request windows until all credits are in use. The windows are requested speculatively at
+   * maxBatchSize intervals; if the server answers with a short window, the windows already in
+   * flight past it are discarded when they arrive.
+   */
+  private void grantCredits() {
+    int available;
+    int firstRow;
+    int windowSize;
+    synchronized (creditLock) {
+      available = streamDone ? 0 : credits - inFlight - buffered;
+      if (available <= 0) return;
+      firstRow = nextRequestRow;
+      windowSize = maxBatchSize;
+      nextRequestRow += available * windowSize;
+      inFlight += available;
+    }
+    for (int i = 0; i < available; i++) {
+      requestWindow(firstRow + (i * windowSize), windowSize);
+    }
+  }
+
+  /**
+   * Send request for a window of data for this query. The response is delivered to
+   * {@link #windowReceived(int, int, long, DataResponse)} from a background thread.
    * 
    * @param startRow
    *          Start row needed in return batch
+   * @param maxSize
+   *          Number of rows requested
    */
-  private void asyncMoreRequest(int startRow) {
-    try {
-      DataRequest moreRequest = new DataRequest();
-      moreRequest.queryId = queryId;
-      moreRequest.startRow = startRow;
-      moreRequest.maxSize = maxBatchSize;
-      logger.debug("Client requesting {} .. {}", startRow, (startRow + maxBatchSize - 1));
-
-      DataResponse response = server.data(moreRequest);
-      logger.debug("Client got response {} .. {}, more={}",
-          new Object[] { response.startRow, (response.startRow + response.data.size() - 1), response.more });
-      nextData.add(new Window(response.data, response.more));
-    } catch (AvroRemoteException e) {
-      this.nextData.addError(toSparqlException(e));
-    } catch (Throwable t) {
-      this.nextData.addError(t);
+  private void requestWindow(final int startRow, final int maxSize) {
+    final DataRequest moreRequest = new DataRequest();
+    moreRequest.queryId = queryId;
+    moreRequest.startRow = startRow;
+    moreRequest.maxSize = maxSize;
+    if (deadline.isBounded()) {
+      moreRequest.budgetMillis = deadline.remainingMillis();
     }
-  }
+    logger.debug("Client requesting {} .. {}", startRow, (startRow + maxSize - 1));
+    final long sent = System.nanoTime();
 
-  private synchronized void scheduleMoreRequest(final int startRow) {
-    if (currentData.more) {
+    if (server instanceof SherpaServer.Callback) {
+      try {
+        ((SherpaServer.Callback)server).data(moreRequest, new Callback<DataResponse>() {
+          public void handleResult(DataResponse response) {
+            windowReceived(startRow, maxSize, sent, response);
+          }
+          public void handleError(Throwable error) {
+            windowFailed(startRow, sent, error);
+          }
+        });
+      } catch (Throwable t) {
+        windowFailed(startRow, sent, t);
+      }
+    } else {
       executor.execute(new Runnable() {
         public void run() {
-          asyncMoreRequest(startRow);
+          try {
+            windowReceived(startRow, maxSize, sent, server.data(moreRequest));
+          } catch (Throwable t) {
+            windowFailed(startRow, sent, t);
+          }
         }
       });
     }
   }
 
-  public synchronized boolean incrementCursor() throws SparqlException {
+  private void windowReceived(int startRow, int maxSize, long sent, DataResponse response) {
+    logger.debug("Client got response {} .. {}, more={}",
+        new Object[] { response.startRow, (response.startRow + response.data.size() - 1), response.more });
+    long elapsed = System.nanoTime() - sent;
+    if (traceSink != null) {
+      // Decoding happened on this thread just before the response was handed over.
+      long decodeNanos = DecodeTimingRequestor.takeDecodeNanos();
+      if (decodeNanos >= 0) {
+        trace(Span.CLIENT_DECODE, System.nanoTime() - decodeNanos, "startRow", startRow, "rows", response.data.size());
+      }
+      trace(Span.CLIENT_DATA, sent, "startRow", startRow, "rows", response.data.size(), "more", response.more);
+    }
+    synchronized (creditLock) {
+      inFlight--;
+      if (streamDone || startRow != nextExpectedRow) {
+        logger.debug("Client discarding stale window at {}", startRow);
+      } else {
+        int size = response.data.size();
+        buffered++;
+        nextExpectedRow += size;
+        if (!response.more) {
+          streamDone = true;
+        } else if (size != maxSize) {
+          // Server cut the window short, so re-request from where it stopped.
+          nextRequestRow = nextExpectedRow;
+        }
+        nextData.add(new Window(response.data, response.more));
+        if (sizer != null) {
+          maxBatchSize = sizer.windowReceived(response.data, elapsed);
+        }
+      }
+    }
+    grantCredits();
+  }
+
+  private void windowFailed(int startRow, long sent, Throwable t) {
+    trace(Span.CLIENT_DATA, sent, "startRow", startRow, "error", t.getClass().getName());
+    synchronized (creditLock) {
+      inFlight--;
+      if (streamDone || startRow != nextExpectedRow) {
+        // Speculative request past the end of the results or past a short window.
+        logger.debug("Client ignoring error for stale window at {}: {}", startRow, t.getMessage());
+        return;
+      }
+      streamDone = true;
+      nextData.addError((t instanceof AvroRemoteException) ? toSparqlException((AvroRemoteException)t) : t);
+    }
+  }
+
+  /** The reader has moved on to a new window; give its credit back. */
+  private void windowConsumed() {
+    windowStart = System.nanoTime();
+    synchronized (creditLock) {
+      buffered--;
+    }
+    grantCredits();
+  }
+
+  /**
+   * Stop requesting windows for this query. Windows still in flight are discarded when they arrive.
+   * @param reason If not null, wake up a blocked reader with this error
+   */
+  private void stopStream(Throwable reason) {
+    synchronized (creditLock) {
+      streamDone = true;
+      if (reason != null && nextData != null) {
+        nextData.addError(reason);
+      }
+    }
+  }
+
+  /**
+   * Move the cursor to the next row, waiting for data if needed. The cursor methods are
+   * not synchronized; they must be called from one thread at a time.
+   * @return true if the cursor is on a row, false if it moved past the last row
+   */
+  public boolean incrementCursor() throws SparqlException {
     // logger.trace("..incrementCursor(), cursor={}", cursor);
     try {
       while (true) {
@@ -201,12 +481,21 @@ public class QueryExecution implements Iterable<List<Object>> {
           cursor++;
           return true;
         } else {
+          if (cancelled) {
+            // Drop the prefetched windows rather than reading on.
+            if (nextData != null) nextData.clear();
+            currentData = Window.EMPTY;
+            throw new SparqlException("Query was cancelled");
+          }
+          if (sizer != null) {
+            sizer.windowDrained(currentData.data.size(), System.nanoTime() - windowStart);
+          }
           Window nextWindow = nextData.poll(); // non-blocking take, null if empty
           if (nextWindow != null) { // Switch to next batch
             // logger.trace("....switching to next batch, cursor={}, nextData size={}",
             // cursor, currentData.data.size());
             this.currentData = nextWindow;
-            scheduleMoreRequest(cursor + currentData.data.size() + 1);
+            windowConsumed();
 
           } else { // Don't have data
             if (!currentData.more) { // Because we're done
@@ -215,10 +504,14 @@ public class QueryExecution implements Iterable<List<Object>> {
               return false;
             } else { // Or we just haven't waited long enough for it
               // logger.trace("....no current data, no next data, but not done, just wait.");
-              currentData = nextData.take();
+              long waitStart = System.nanoTime();
+              Window window = nextData.poll(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+              if (window == null) expired();
+              currentData = window;
+              trace(Span.CLIENT_WAIT, waitStart, "row", cursor + 1);
               // logger.trace("....switching to next batch, cursor={}, nextData size={}",
               // cursor, currentData.data.size());
-              scheduleMoreRequest(cursor + currentData.data.size() + 1);
+              windowConsumed();
             }
           }
         }
@@ -230,11 +523,57 @@ public class QueryExecution implements Iterable<List<Object>> {
     }
   }
 
+  /** Give up on a query whose deadline passed while waiting for a window, and tell the server to stop. */
+  private void expired() throws SparqlException {
+    SparqlException e = new SparqlException("Deadline passed waiting for results");
+    stopStream(e);
+    currentData = Window.EMPTY;
+    // Don't hold up the reader; the connection may be busy with the window that was late.
+    final CancelRequest cancelRequest = new CancelRequest();
+    cancelRequest.queryId = queryId;
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          server.cancel(cancelRequest);
+        } catch (Exception ignored) {
+          logger.debug("Client could not cancel expired query {}", cancelRequest.queryId);
+        }
+      }
+    });
+    throw e;
+  }
+
   public List<String> getVars() {
     return this.vars;
   }
 
+  /**
+   * @return The kind of result the query produces. Rows of a {@link ResultType#Triples} result
+   *         hold the subject, predicate and object of each triple.
+   */
+  public ResultType getResultType() {
+    return this.resultType;
+  }
+
+  /**
+   * @return The answer to a query with a {@link ResultType#Boolean} result
+   * @throws SparqlException If the query has a different kind of result
+   */
+  public boolean getAskResult() {
+    if (resultType != ResultType.Boolean) {
+      throw new SparqlException("Query does not have a boolean result: " + resultType);
+    }
+    return this.askResult;
+  }
+
+  /**
+   * Cancel the query. Requests for further windows stop, windows in flight are dropped when they
+   * arrive, and the next attempt to move past the current window throws a {@link SparqlException}.
+   * The server is told to cancel the query. May be called from any thread.
+   */
   public void cancel() {
+    cancelled = true;
+    stopStream(new SparqlException("Query was cancelled"));
     CancelRequest cancelRequest = new CancelRequest();
     cancelRequest.queryId = queryId;
 
@@ -246,6 +585,7 @@ public class QueryExecution implements Iterable<List<Object>> {
   }
 
   public void close() {
+    stopStream(null);
     CloseRequest closeRequest = new CloseRequest();
     closeRequest.queryId = queryId;
 
@@ -256,19 +596,19 @@ public class QueryExecution implements Iterable<List<Object>> {
     }
   }
 
-  public synchronized List<Object> getRow() {
+  public List<Object> getRow() {
     return this.currentData.getData();
   }
 
-  public synchronized int getCursor() {
+  public int getCursor() {
     return this.cursor;
   }
 
-  public synchronized boolean isLast() {
+  public boolean isLast() {
     return currentData.isValid() && !currentData.hasNext();
   }
   
-  public synchronized boolean isAfterLast() {
+  public boolean isAfterLast() {
     return !(currentData.isValid() || currentData.hasNext());
   }
   
@@ -18,12 +18,16 @@ package sherpa.client;
 import java.util.HashMap;
 import java.util.Map;
 
+import sherpa.protocol.ResultType;
 import spark.api.Command;
 import spark.api.Connection;
 import spark.api.Result;
 import spark.api.Solutions;
 import spark.api.Triples;
+import spark.api.exception.SparqlException;
 import spark.spi.BaseCommand;
+import spark.spi.BooleanResultImpl;
+import spark.spi.util.Deadline;
 
 public class SHPCommand extends BaseCommand implements Command {
   
@@ -38,6 +42,41 @@ public class SHPCommand extends BaseCommand implements Command {
   public void setBatchSize(int batchSize) {
     props.put(QueryExecution.BATCH_SIZE, Integer.toString(batchSize));
   }
+
+  /**
+   * Let the client tune the batch size while the query runs, starting from the batch size
+   * set with {@link #setBatchSize(int)}. Each window aims to stay under both the target
+   * window bytes and the target latency.
+   * @param adaptive True to tune the batch size, false to keep it fixed
+   */
+  public void setAdaptiveBatchSize(boolean adaptive) {
+    props.put(QueryExecution.ADAPTIVE_BATCH_SIZE, Boolean.toString(adaptive));
+  }
+
+  /**
+   * Set the encoded size in bytes that an adaptive batch should aim for.
+   * @param bytes Target window size in bytes
+   */
+  public void setTargetWindowBytes(long bytes) {
+    props.put(QueryExecution.TARGET_WINDOW_BYTES, Long.toString(bytes));
+  }
+
+  /**
+   * Set the time in milliseconds that fetching an adaptive batch should aim for.
+   * @param millis Target latency in milliseconds
+   */
+  public void setTargetLatency(long millis) {
+    props.put(QueryExecution.TARGET_LATENCY, Long.toString(millis));
+  }
+  
+  /**
+   * Set the trace ID sent to the server with the query, to tie the query to a wider trace. A
+   * new ID is generated for traced queries if none is set.
+   * @param traceId The trace ID
+   */
+  public void setTraceId(String traceId) {
+    props.put(QueryExecution.TRACE_ID, traceId);
+  }
   
   @Override
   public void cancel() {
@@ -45,32 +84,60 @@ public class SHPCommand extends BaseCommand implements Command {
   }
 
   @Override
-  public Result execute() {    
-    // TODO Auto-generated method stub
-    return null;
+  public Result execute() {
+    start();
+    switch (query.getResultType()) {
+    case Boolean:
+      return new BooleanResultImpl(this, askResult());
+    case Triples:
+      return new SHPTriples(this, query);
+    default:
+      return new SHPSolutions(this, query);
+    }
   }
 
   @Override
   public Triples executeGraph() {
-    // TODO Auto-generated method stub
-    return null;
+    start();
+    if (query.getResultType() != ResultType.Triples) {
+      query.close();
+      throw new SparqlException("Query does not return triples: " + query.getResultType());
+    }
+    return new SHPTriples(this, query);
   }
 
   @Override
   public boolean executeAsk() {
-    // TODO Auto-generated method stub
-    return false;
+    start();
+    return askResult();
   }
 
   @Override
   public Solutions executeQuery() {
+    start();
+    if (query.getResultType() != ResultType.Solutions) {
+      query.close();
+      throw new SparqlException("Query does not return solutions: " + query.getResultType());
+    }
+    return new SHPSolutions(this, query);
+  }
+
+  /** Send the query to the server; the results are then streamed by the QueryExecution. */
+  private void start() {
     Map<String,String> params = new HashMap<String,String>();
 
     props.put(QueryExecution.TIMEOUT, Long.toString(getTimeout()));
 
-    query.query(getCommand(), params, props);
+    query.query(getCommand(), params, props, Deadline.forCommand(this));
+  }
 
-    return new SHPSolutions(this, query);
+  /** Read a boolean result; it has nothing left to stream, so the query is closed at once. */
+  private boolean askResult() {
+    try {
+      return query.getAskResult();
+    } finally {
+      query.close();
+    }
   }
 
 }
@@ -20,6 +20,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 
+import org.apache.avro.ipc.NettyTransceiver;
 import org.apache.avro.ipc.SaslSocketTransceiver;
 import org.apache.avro.ipc.Transceiver;
 import org.apache.avro.ipc.specific.SpecificRequestor;
@@ -54,19 +55,26 @@ public class SHPConnection extends BaseConnection implements Connection {
     }
 
     try {
-      transceiver = new SaslSocketTransceiver(address);
+      if (shpDS.getTransport() == SHPDataSource.Transport.NIO) {
+        transceiver = new NettyTransceiver(address);
+      } else {
+        transceiver = new SaslSocketTransceiver(address);
+      }
     } catch(IOException e) {
       throw new SparqlException("Socket error connecting client", e);
     }
     
     try {
-      requestor = new SpecificRequestor(SherpaServer.class, transceiver);
+      requestor = new DecodeTimingRequestor(transceiver);
     } catch (IOException e) {
       throw new SparqlException("Error creating client requestor", e);
     }
 
     try {
-      server = SpecificRequestor.getClient(SherpaServer.class, requestor);
+      // The callback interface lets queries pipeline their data requests on the connection.
+      server = (transceiver instanceof NettyTransceiver)
+          ? SpecificRequestor.getClient(SherpaServer.Callback.class, requestor)
+          : SpecificRequestor.getClient(SherpaServer.class, requestor);
     } catch (IOException e) {
       throw new SparqlException("Unable to create client data proxy.", e);
     }
@@ -75,7 +83,14 @@ public class SHPConnection extends BaseConnection implements Connection {
   
   @Override
   public Command createCommand(String commandString) {
-    return new SHPCommand(this, commandString, new QueryExecution(server));
+    return new SHPCommand(this, commandString,
+        new QueryExecution(server, ((SHPDataSource)getDataSource()).getTraceSink()));
+  }
+
+  @Override
+  public void close() throws IOException {
+    super.close();
+    transceiver.close();
   }
 
   @Override
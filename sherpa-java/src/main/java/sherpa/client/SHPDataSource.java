@@ -15,6 +15,7 @@
  */
 package sherpa.client;
 
+import sherpa.trace.TraceSink;
 import spark.api.Connection;
 import spark.api.Credentials;
 import spark.api.DataSource;
@@ -42,8 +43,18 @@ import spark.api.DataSource;
  */
 public class SHPDataSource implements DataSource {
 
+  /** Wire transport used to talk to the Sherpa server. */
+  public enum Transport {
+    /** Blocking socket transport; the server dedicates a thread to each connection. */
+    SOCKET,
+    /** Netty framed transport, for servers running on an NIO event loop. */
+    NIO
+  }
+
   private volatile String host;
   private volatile int port;
+  private volatile Transport transport = Transport.SOCKET;
+  private volatile TraceSink traceSink = null;
   
   /**
    * Construct a SHPDataSource with host name and port.
@@ -87,10 +98,43 @@ public class SHPDataSource implements DataSource {
     this.port = port;
   }
   
+  /**
+   * Get the wire transport
+   * @return The transport, {@link Transport#SOCKET} by default
+   */
+  public Transport getTransport() {
+    return this.transport;
+  }
+  
+  /**
+   * Set the wire transport; must match the transport the server was started with.
+   * @param transport The transport
+   */
+  public void setTransport(Transport transport) {
+    this.transport = transport;
+  }
+  
+  /**
+   * Get the sink that query spans are sent to
+   * @return The trace sink, or null if queries are not traced
+   */
+  public TraceSink getTraceSink() {
+    return this.traceSink;
+  }
+  
+  /**
+   * Trace the queries of connections created from now on. Each query gets a trace ID, which is
+   * also sent to the server, and its RPCs, waits and decoding are sent to the sink as spans.
+   * @param traceSink The trace sink, or null to stop tracing
+   */
+  public void setTraceSink(TraceSink traceSink) {
+    this.traceSink = traceSink;
+  }
+  
   /**
    * Validate whether the currently set data source parameters are valid.
    * 
-   * @throws IllegalArgumentException if host is null or port < 0
+   * @throws IllegalArgumentException if host or transport is null or port < 0
    */
   public void validate() throws IllegalArgumentException {
     if(host == null) {
@@ -99,6 +143,9 @@ public class SHPDataSource implements DataSource {
     if(port <= 0) {
       throw new IllegalArgumentException("Port must be > 0");
     }
+    if(transport == null) {
+      throw new IllegalArgumentException("Transport cannot be null");
+    }
   }
   
   @Override
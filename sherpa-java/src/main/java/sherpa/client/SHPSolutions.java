@@ -19,27 +19,33 @@ package sherpa.client;
  * Represents a Solutions implementation.
  */
 import java.io.IOException;
-import java.net.URI;
+import java.math.BigInteger;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.avro.util.Utf8;
 
 import sherpa.protocol.BNode;
 import sherpa.protocol.IRI;
 import sherpa.protocol.PlainLiteral;
 import sherpa.protocol.TypedLiteral;
 import spark.api.Solutions;
+import spark.api.exception.SparqlException;
 import spark.api.rdf.RDFNode;
 import spark.spi.Conversions;
 import spark.spi.StreamingSolutions;
-import spark.spi.rdf.BlankNodeImpl;
-import spark.spi.rdf.NamedNodeImpl;
-import spark.spi.rdf.PlainLiteralImpl;
-import spark.spi.rdf.TypedLiteralImpl;
+import spark.spi.rdf.RDFNodeFactory;
 
 public class SHPSolutions extends StreamingSolutions implements Solutions {
 
   private final QueryExecution query;
+  private final Map<String,Integer> varIndex;
   
   /**
    * Construct an SHPSolutions where 
@@ -50,6 +56,10 @@ public class SHPSolutions extends StreamingSolutions implements Solutions {
     super(command, query.getVars());
     if (vars == null) throw new IllegalStateException("SHPSolutions constructed with un-initialized QueryExecution");
     this.query = query;    
+    this.varIndex = new HashMap<String,Integer>();
+    for (int i = 0; i < vars.size(); i++) {
+      varIndex.put(vars.get(i), i);
+    }
   }
 
   @Override
@@ -58,32 +68,119 @@ public class SHPSolutions extends StreamingSolutions implements Solutions {
     if (query.incrementCursor()) rowData = query.getRow();
     if (rowData != null) {
       if (rowData.size() != vars.size()) throw new IllegalStateException("Mis-matched variable and data list");
-      Map<String, RDFNode> result = new HashMap<String, RDFNode>();
-      for (int i = 0; i < vars.size(); i++) {
-        result.put(vars.get(i), toNode(rowData.get(i)));
-      }
-      return result;
+      return new Row(rowData);
     }
     return null;
   }
 
+  /** @return The protocol value bound to the variable in the current row, or null. */
+  private Object rawValue(String variable) {
+    Integer i = varIndex.get(variable);
+    return (i != null && currentRow != null) ? ((Row)currentRow).data.get(i) : null;
+  }
+
+  @Override
+  public boolean isBound(String variable) {
+    return rawValue(variable) != null;
+  }
+
+  // The typed getters read protocol values directly: native cells are returned as they are and
+  // typed literals are parsed from their UTF-8 bytes, so these columns never need an RDFNode or
+  // an intermediate String.
+
+  @Override
+  public int getInt(String variable) throws SparqlException {
+    Object value = rawValue(variable);
+    if (value instanceof Integer) {
+      return (Integer)value;
+    } else if (value instanceof TypedLiteral) {
+      CharSequence lex = ((TypedLiteral)value).lexical;
+      if (lex instanceof Utf8) {
+        Utf8 u = (Utf8)lex;
+        return Conversions.toInteger(u.getBytes(), 0, u.getByteLength());
+      }
+      return Conversions.toInteger(lex);
+    }
+    return super.getInt(variable);
+  }
+
+  @Override
+  public long getLong(String variable) throws SparqlException {
+    Object value = rawValue(variable);
+    if (value instanceof Long) {
+      return (Long)value;
+    } else if (value instanceof TypedLiteral) {
+      CharSequence lex = ((TypedLiteral)value).lexical;
+      if (lex instanceof Utf8) {
+        Utf8 u = (Utf8)lex;
+        return Conversions.toLong(u.getBytes(), 0, u.getByteLength());
+      }
+      return Conversions.toLong(lex);
+    }
+    return super.getLong(variable);
+  }
+
+  @Override
+  public float getFloat(String variable) throws SparqlException {
+    Object value = rawValue(variable);
+    return (value instanceof Float) ? (Float)value : super.getFloat(variable);
+  }
+
+  @Override
+  public boolean getBoolean(String variable) throws SparqlException {
+    Object value = rawValue(variable);
+    return (value instanceof Boolean) ? (Boolean)value : super.getBoolean(variable);
+  }
+
+  @Override
+  public double getDouble(String variable) throws SparqlException {
+    Object value = rawValue(variable);
+    if (value instanceof Double) {
+      return (Double)value;
+    } else if (value instanceof TypedLiteral) {
+      CharSequence lex = ((TypedLiteral)value).lexical;
+      if (lex instanceof Utf8) {
+        Utf8 u = (Utf8)lex;
+        return Conversions.toDouble(u.getBytes(), 0, u.getByteLength());
+      }
+      return Conversions.toDouble(lex);
+    }
+    return super.getDouble(variable);
+  }
+
+  @Override
+  public BigInteger getInteger(String variable) throws SparqlException {
+    Object value = rawValue(variable);
+    if (value instanceof Integer || value instanceof Long) {
+      return BigInteger.valueOf(((Number)value).longValue());
+    } else if (value instanceof TypedLiteral) {
+      CharSequence lex = ((TypedLiteral)value).lexical;
+      if (lex instanceof Utf8) {
+        Utf8 u = (Utf8)lex;
+        return Conversions.toBigInteger(u.getBytes(), 0, u.getByteLength());
+      }
+      return Conversions.toBigInteger(lex);
+    }
+    return super.getInteger(variable);
+  }
+
   /** Convert a protocol data object to an RDFNode. */
-  private static RDFNode toNode(Object value) {
+  static RDFNode toNode(Object value) {
     if (value == null) {
       return null;
     } else if (value instanceof RDFNode) {
       return (RDFNode) value;
     } else if (value instanceof IRI) {
-      return new NamedNodeImpl(URI.create(((IRI)value).iri.toString()));
+      return RDFNodeFactory.namedNode(((IRI)value).iri.toString());
     } else if (value instanceof PlainLiteral) {
       PlainLiteral pl = (PlainLiteral)value;
       String lang = pl.language != null ? pl.language.toString() : null;
-      return new PlainLiteralImpl(pl.lexical.toString(), lang);
+      return RDFNodeFactory.plainLiteral(pl.lexical.toString(), lang);
     } else if (value instanceof TypedLiteral) {
       TypedLiteral tl = (TypedLiteral)value;
-      return new TypedLiteralImpl(tl.lexical.toString(), URI.create(tl.datatype.toString()));
+      return RDFNodeFactory.typedLiteral(tl.lexical.toString(), tl.datatype.toString());
     } else if (value instanceof BNode) {
-      return new BlankNodeImpl(((BNode)value).label.toString());
+      return RDFNodeFactory.blankNode(((BNode)value).label.toString());
     } else {
       // Sherpa passes strings as something other than java.lang.String, so convert.
       if (value instanceof CharSequence) {
@@ -95,6 +192,80 @@ public class SHPSolutions extends StreamingSolutions implements Solutions {
     }
   }
   
+  /**
+   * Solution backed by a row of protocol values; each value is converted to an RDFNode the
+   * first time it is looked up.
+   */
+  private class Row extends AbstractMap<String,RDFNode> {
+    final List<Object> data;
+    private final RDFNode[] nodes;
+    private final boolean[] converted;
+
+    Row(List<Object> data) {
+      this.data = data;
+      this.nodes = new RDFNode[data.size()];
+      this.converted = new boolean[data.size()];
+    }
+
+    RDFNode node(int i) {
+      if (!converted[i]) {
+        nodes[i] = toNode(data.get(i));
+        converted[i] = true;
+      }
+      return nodes[i];
+    }
+
+    @Override
+    public RDFNode get(Object key) {
+      Integer i = varIndex.get(key);
+      return (i != null) ? node(i) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return varIndex.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+      return nodes.length;
+    }
+
+    @Override
+    public Set<Map.Entry<String,RDFNode>> entrySet() {
+      return new AbstractSet<Map.Entry<String,RDFNode>>() {
+        @Override
+        public int size() {
+          return nodes.length;
+        }
+
+        @Override
+        public Iterator<Map.Entry<String,RDFNode>> iterator() {
+          return new Iterator<Map.Entry<String,RDFNode>>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+              return next < nodes.length;
+            }
+
+            @Override
+            public Map.Entry<String,RDFNode> next() {
+              if (next >= nodes.length) throw new NoSuchElementException();
+              int i = next++;
+              return new AbstractMap.SimpleImmutableEntry<String,RDFNode>(vars.get(i), node(i));
+            }
+
+            @Override
+            public void remove() {
+              throw new UnsupportedOperationException();
+            }
+          };
+        }
+      };
+    }
+  }
+
   @Override
   public boolean isLast() {
     return this.query.isLast();
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 Revelytix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sherpa.client;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import spark.api.Triples;
+import spark.api.exception.SparqlException;
+import spark.api.rdf.NamedNode;
+import spark.api.rdf.RDFNode;
+import spark.api.rdf.Resource;
+import spark.api.rdf.Triple;
+import spark.spi.BaseResults;
+import spark.spi.rdf.TripleImpl;
+
+/**
+ * Streaming {@link Triples} for a CONSTRUCT or DESCRIBE query, read through the same windowed
+ * prefetch as {@link SHPSolutions}. Each row sent by the server holds the subject, predicate and
+ * object of one triple.
+ */
+public class SHPTriples extends BaseResults implements Triples {
+
+  private static final int BEFORE_FIRST = 0;
+  private static final int FIRST = 1;
+
+  private final QueryExecution query;
+  private int cursor = BEFORE_FIRST;
+  private Triple current = null;
+
+  public SHPTriples(SHPCommand command, QueryExecution query) {
+    super(command);
+    this.query = query;
+  }
+
+  /** @return The next triple from the server, or null past the end of the results. */
+  private Triple fetchNext() {
+    if (!query.incrementCursor()) return null;
+    List<Object> row = query.getRow();
+    if (row.size() != 3) throw new SparqlException("Expected a triple but got a row of " + row.size() + " terms");
+    RDFNode s = SHPSolutions.toNode(row.get(0));
+    RDFNode p = SHPSolutions.toNode(row.get(1));
+    if (!(s instanceof Resource)) throw new SparqlException("Triple subject is not a resource: " + s);
+    if (!(p instanceof NamedNode)) throw new SparqlException("Triple predicate is not a named node: " + p);
+    return new TripleImpl((Resource)s, (NamedNode)p, SHPSolutions.toNode(row.get(2)));
+  }
+
+  @Override
+  public boolean next() {
+    // Stay just past the last triple rather than counting further calls.
+    if (isAfterLast()) return false;
+    current = fetchNext();
+    cursor++;
+    return current != null;
+  }
+
+  @Override
+  public int getRow() {
+    return cursor;
+  }
+
+  @Override
+  public Triple getResult() {
+    return current;
+  }
+
+  @Override
+  public Resource getSubject() {
+    return (current != null) ? current.getSubject() : null;
+  }
+
+  @Override
+  public NamedNode getPredicate() {
+    return (current != null) ? current.getPredicate() : null;
+  }
+
+  @Override
+  public RDFNode getObject() {
+    return (current != null) ? current.getObject() : null;
+  }
+
+  @Override
+  public boolean isBeforeFirst() {
+    return cursor == BEFORE_FIRST;
+  }
+
+  @Override
+  public boolean isFirst() {
+    return cursor == FIRST && current != null;
+  }
+
+  @Override
+  public boolean isLast() {
+    return query.isLast();
+  }
+
+  @Override
+  public boolean isAfterLast() {
+    return current == null && cursor > BEFORE_FIRST;
+  }
+
+  @Override
+  public Iterator<Triple> iterator() {
+    return new Iterator<Triple>() {
+      private boolean incremented = false;
+
+      @Override
+      public boolean hasNext() {
+        try {
+          return incremented ? current != null : SHPTriples.this.next();
+        } finally {
+          incremented = true;
+        }
+      }
+
+      @Override
+      public Triple next() {
+        try {
+          if (!incremented) SHPTriples.this.next();
+          return current;
+        } finally {
+          incremented = false;
+        }
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Cannot remove from a streaming iterator.");
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    super.close();
+    this.query.close();
+  }
+
+}
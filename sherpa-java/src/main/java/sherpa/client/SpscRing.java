@@ -0,0 +1,203 @@
+/*
+ * Copyright 2011 Revelytix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sherpa.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free FIFO for handing items from a single producer to a
+ * single consumer, with the ability of the producer to interrupt a
+ * waiting consumer with an error.
+ * <p>
+ * Producer methods ({@link #add(Object)}, {@link #addError(Throwable)})
+ * may be called from more than one thread only if those calls are
+ * serialized by the caller, e.g. under a common lock. The same holds for
+ * the consumer methods ({@link #poll()}, {@link #take()},
+ * {@link #poll(long, TimeUnit)}).
+ * <p>
+ * A blocked consumer spins briefly before parking, since the producer is
+ * usually close behind.
+ *
+ * @param <T> The type of item in the ring
+ */
+class SpscRing <T> {
+
+  // Busy and yielding spin iterations before a waiting consumer parks.
+  private static final int SPINS = 100;
+  private static final int YIELDS = 10;
+
+  private final AtomicReferenceArray<T> buffer;
+  private final int mask;
+
+  // Next index to read, only written by the consumer
+  private final AtomicLong head = new AtomicLong();
+  // Next index to write, only written by the producer
+  private final AtomicLong tail = new AtomicLong();
+
+  private volatile Throwable error;
+  private volatile Thread waiter;
+
+  /**
+   * @param capacity Minimum number of items the ring can hold; rounded up to a power of two.
+   */
+  public SpscRing(int capacity) {
+    if(capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be > 0: " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if(size < capacity) {
+      size <<= 1;
+    }
+    this.buffer = new AtomicReferenceArray<T>(size);
+    this.mask = size - 1;
+  }
+
+  /**
+   * Append data to the ring, behind any data that has not
+   * yet been retrieved.
+   *
+   * @param data Put the data into the ring. data should never be null.
+   * @throws IllegalStateException If the ring is full
+   */
+  public void add(T data) {
+    assert data != null;
+    long t = tail.get();
+    if(t - head.get() > mask) {
+      throw new IllegalStateException("Ring is full");
+    }
+    buffer.lazySet((int)t & mask, data);
+    tail.set(t + 1); // volatile write publishes the item before the waiter check
+    wakeWaiter();
+  }
+
+  /**
+   * Interrupt a waiting reader and put the ring into an error state.
+   * Data added before the error is still delivered first.
+   * @param t The error, should never be null
+   */
+  public void addError(Throwable t) {
+    assert t != null;
+    this.error = t;
+    wakeWaiter();
+  }
+
+  private void wakeWaiter() {
+    Thread w = waiter;
+    if(w != null) {
+      LockSupport.unpark(w);
+    }
+  }
+
+  /**
+   * Non-blocking read and remove.
+   * @return The data or null if none exists
+   * @throws Throwable If producer encountered an error
+   */
+  public T poll() throws Throwable {
+    long h = head.get();
+    if(h == tail.get()) {
+      // Check the error only once the data is drained
+      Throwable t = error;
+      if(t == null) {
+        return null;
+      }
+      // The producer may have added data just before the error; deliver it first
+      if(h == tail.get()) {
+        throw t;
+      }
+    }
+    int index = (int)h & mask;
+    T data = buffer.get(index);
+    buffer.lazySet(index, null);
+    head.lazySet(h + 1);
+    return data;
+  }
+
+  /**
+   * Discard all data in the ring without throwing a pending error.
+   * Consumer side only.
+   */
+  public void clear() {
+    long h = head.get();
+    long t = tail.get();
+    for(; h < t; h++) {
+      buffer.lazySet((int)h & mask, null);
+    }
+    head.lazySet(h);
+  }
+
+  /**
+   * Blocking read and remove. If the thread was interrupted by
+   * the producer due to an error, the producer's error will be thrown.
+   * @return The data, should never be null
+   * @throws Throwable If producer encountered an error
+   */
+  public T take() throws Throwable {
+    return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Blocking read and remove, giving up after a timeout. If the thread was
+   * interrupted by the producer due to an error, the producer's error will be thrown.
+   * @param timeout How long to wait; Long.MAX_VALUE nanoseconds waits forever
+   * @param unit The unit of the timeout
+   * @return The data, or null if none arrived before the timeout
+   * @throws Throwable If producer encountered an error
+   */
+  public T poll(long timeout, TimeUnit unit) throws Throwable {
+    long waitNanos = unit.toNanos(timeout);
+    boolean forever = (waitNanos == Long.MAX_VALUE);
+    long end = System.nanoTime() + waitNanos;
+    T data = poll();
+    for(int i = 0; data == null && i < SPINS + YIELDS; i++) {
+      if(i >= SPINS) {
+        Thread.yield();
+      }
+      data = poll();
+    }
+    if(data != null) {
+      return data;
+    }
+
+    boolean interrupted = false;
+    waiter = Thread.currentThread();
+    try {
+      // Re-check after publishing the waiter so a concurrent add can't be missed
+      while((data = poll()) == null) {
+        if(forever) {
+          LockSupport.park(this);
+        } else {
+          long left = end - System.nanoTime();
+          if(left <= 0) {
+            return null;
+          }
+          LockSupport.parkNanos(this, left);
+        }
+        // Keep waiting on interrupt, like a spurious wake-up, but restore the flag after
+        interrupted |= Thread.interrupted();
+      }
+      return data;
+    } finally {
+      waiter = null;
+      if(interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2011 Revelytix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sherpa.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.avro.Protocol;
+import org.apache.avro.ipc.NettyTransportCodec.NettyDataPack;
+import org.apache.avro.ipc.NettyTransportCodec.NettyFrameDecoder;
+import org.apache.avro.ipc.NettyTransportCodec.NettyFrameEncoder;
+import org.apache.avro.ipc.Responder;
+import org.apache.avro.ipc.Server;
+import org.apache.avro.ipc.Transceiver;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Event-loop based Avro server for the Sherpa protocol. Client sockets are multiplexed over a
+ * small number of NIO selector threads, so idle connections do not pin a thread each as they do
+ * with {@link org.apache.avro.ipc.SaslSocketServer}.</p>
+ *
+ * <p>Calls into the {@link Responder} are handed off to a bounded pool of worker threads, so a
+ * slow listener call never stalls the I/O of other connections. Calls from the same connection
+ * are executed in order. The wire format is the Avro Netty framing, so clients must connect
+ * with an {@link org.apache.avro.ipc.NettyTransceiver}.</p>
+ */
+public class NioSherpaServer implements Server {
+
+  private static final Logger logger = LoggerFactory.getLogger(NioSherpaServer.class);
+
+  /** Default number of worker threads used to call the responder. */
+  public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors() * 2;
+
+  private final Responder responder;
+  private final ChannelGroup allChannels = new DefaultChannelGroup("sherpa-nio-server");
+  private final ChannelFactory channelFactory;
+  private final OrderedMemoryAwareThreadPoolExecutor workers;
+  private final Channel serverChannel;
+  private final CountDownLatch closed = new CountDownLatch(1);
+
+  /**
+   * Bind a server to the address with the default number of workers.
+   * @param responder Responder to handle incoming calls
+   * @param address Listen address, port 0 to let the server pick the port
+   */
+  public NioSherpaServer(Responder responder, InetSocketAddress address) {
+    this(responder, address, DEFAULT_WORKERS);
+  }
+
+  /**
+   * Bind a server to the address.
+   * @param responder Responder to handle incoming calls
+   * @param address Listen address, port 0 to let the server pick the port
+   * @param workerCount Maximum number of concurrent calls into the responder
+   */
+  public NioSherpaServer(Responder responder, InetSocketAddress address, int workerCount) {
+    if (workerCount <= 0) throw new IllegalArgumentException("Worker count must be > 0: " + workerCount);
+    this.responder = responder;
+
+    // No per-channel or total memory limits, just a fixed number of threads.
+    this.workers = new OrderedMemoryAwareThreadPoolExecutor(workerCount, 0, 0,
+        60, TimeUnit.SECONDS, new WorkerThreadFactory());
+    final ExecutionHandler executionHandler = new ExecutionHandler(workers);
+
+    this.channelFactory = new NioServerSocketChannelFactory(
+        Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+    ServerBootstrap bootstrap = new ServerBootstrap(channelFactory);
+    bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        ChannelPipeline p = Channels.pipeline();
+        p.addLast("frameDecoder", new NettyFrameDecoder());
+        p.addLast("frameEncoder", new NettyFrameEncoder());
+        p.addLast("executor", executionHandler);
+        p.addLast("handler", new ResponderHandler());
+        return p;
+      }
+    });
+
+    serverChannel = bootstrap.bind(address);
+    allChannels.add(serverChannel);
+  }
+
+  @Override
+  public int getPort() {
+    return ((InetSocketAddress)serverChannel.getLocalAddress()).getPort();
+  }
+
+  @Override
+  public void start() {
+    // Already accepting connections once bound.
+  }
+
+  @Override
+  public void close() {
+    allChannels.close().awaitUninterruptibly();
+    channelFactory.releaseExternalResources();
+    workers.shutdownNow();
+    closed.countDown();
+  }
+
+  @Override
+  public void join() throws InterruptedException {
+    closed.await();
+  }
+
+  /** Per-connection handler; decoded frames arrive here on a worker thread. */
+  private class ResponderHandler extends SimpleChannelUpstreamHandler {
+
+    // Holds the handshake state for this connection.
+    private ConnectionState connection;
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+      allChannels.add(e.getChannel());
+      connection = new ConnectionState(e.getChannel());
+      super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+      connection.received((NettyDataPack)e.getMessage());
+      try {
+        List<ByteBuffer> res = responder.respond(connection.readBuffers(), connection);
+        // A null response means the handshake failed; the error has already been written.
+        if (res != null) connection.writeBuffers(res);
+      } catch (IOException ex) {
+        logger.warn("Unexpected error responding to Sherpa request", ex);
+      }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+      logger.warn("Unexpected exception from Sherpa connection, closing", e.getCause());
+      e.getChannel().close();
+    }
+  }
+
+  /**
+   * Server side of a connection. The responder keeps the negotiated remote protocol on the
+   * transceiver, and calls on a connection are answered one at a time, so the transceiver reads
+   * the request being answered and writes the response to it, with the serial the client matches
+   * responses by.
+   */
+  private static class ConnectionState extends Transceiver {
+    private final Channel channel;
+    private volatile Protocol remote;
+    private volatile NettyDataPack request;
+
+    ConnectionState(Channel channel) {
+      this.channel = channel;
+    }
+
+    /** Start answering a request. */
+    void received(NettyDataPack request) {
+      this.request = request;
+    }
+
+    @Override
+    public String getRemoteName() {
+      return channel.getRemoteAddress().toString();
+    }
+
+    @Override
+    public boolean isConnected() {
+      return remote != null;
+    }
+
+    @Override
+    public void setRemote(Protocol protocol) {
+      this.remote = protocol;
+    }
+
+    @Override
+    public Protocol getRemote() {
+      return remote;
+    }
+
+    /** @return the request being answered. */
+    @Override
+    public List<ByteBuffer> readBuffers() throws IOException {
+      NettyDataPack r = request;
+      if (r == null) throw new IOException("No request received on " + getRemoteName());
+      return r.getDatas();
+    }
+
+    /** Send the response to the request being answered. */
+    @Override
+    public void writeBuffers(List<ByteBuffer> buffers) throws IOException {
+      NettyDataPack r = request;
+      if (r == null) throw new IOException("No request to respond to on " + getRemoteName());
+      if (!channel.isConnected()) throw new IOException("Connection closed by " + getRemoteName());
+      channel.write(new NettyDataPack(r.getSerial(), buffers));
+    }
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "Sherpa server worker " + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
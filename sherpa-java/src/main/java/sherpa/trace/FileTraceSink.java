@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011 Revelytix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sherpa.trace;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends spans to a local file, one {@link Span#format() formatted} span per line. Meant for
+ * tests and for ad-hoc investigation of slow queries; {@link #read(File)} loads the spans back.
+ * Emitting a span only queues it; the queue is written out by a background thread every
+ * {@link #FLUSH_INTERVAL} milliseconds, and on {@link #flush()} and {@link #close()}. Spans
+ * emitted while {@link #MAX_PENDING} are already queued are dropped.
+ */
+public class FileTraceSink implements TraceSink, Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(FileTraceSink.class);
+  private static final String UTF8 = "UTF-8";
+
+  /** Time, in milliseconds, between writes of the queued spans. */
+  public static final long FLUSH_INTERVAL = 1000;
+  /** Most spans queued before further spans are dropped. */
+  public static final int MAX_PENDING = 100000;
+
+  private final File file;
+  private final Queue<Span> pending = new ConcurrentLinkedQueue<Span>();
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  private final AtomicInteger dropped = new AtomicInteger();
+  private final ScheduledExecutorService flusher;
+  private volatile boolean closed = false;
+  private Writer out; // protected by "this" lock
+
+  /**
+   * Open a sink, appending to the file if it exists.
+   * @param file The file to write spans to
+   * @throws IOException If the file can't be opened
+   */
+  public FileTraceSink(File file) throws IOException {
+    this.file = file;
+    this.out = new OutputStreamWriter(new FileOutputStream(file, true), UTF8);
+    this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Trace writer for " + FileTraceSink.this.file.getName());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        flush();
+      }
+    }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /** Queues the span to be written; never blocks. */
+  @Override
+  public void emit(Span span) {
+    if (closed) return;
+    if (pendingCount.incrementAndGet() > MAX_PENDING) {
+      pendingCount.decrementAndGet();
+      dropped.incrementAndGet();
+      return;
+    }
+    pending.add(span);
+  }
+
+  /** Write the queued spans to the file. */
+  public synchronized void flush() {
+    if (out == null) return;
+    try {
+      Span span;
+      while ((span = pending.poll()) != null) {
+        pendingCount.decrementAndGet();
+        out.write(span.format());
+        out.write('\n');
+      }
+      out.flush();
+    } catch (IOException e) {
+      logger.warn("Unable to write spans to " + file, e);
+    }
+    int d = dropped.getAndSet(0);
+    if (d > 0) logger.warn("Dropped {} spans for {}: too many waiting to be written", d, file);
+  }
+
+  /** Write the queued spans and close the file; spans emitted afterwards are ignored. */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    flusher.shutdown();
+    flush();
+    synchronized (this) {
+      if (out != null) {
+        out.close();
+        out = null;
+      }
+    }
+  }
+
+  /**
+   * Read the spans in a file written by this sink.
+   * @param file The file
+   * @return The spans, in the order they were written
+   * @throws IOException If the file can't be read
+   */
+  public static List<Span> read(File file) throws IOException {
+    List<Span> spans = new ArrayList<Span>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.length() > 0) spans.add(Span.parse(line));
+      }
+    } finally {
+      in.close();
+    }
+    return spans;
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2011 Revelytix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sherpa.trace;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A timed phase of a Sherpa query, such as one RPC or one wait for data. Spans that belong to the
+ * same query share a trace ID, which the client sends to the server in the query properties so
+ * that spans from both sides can be lined up.
+ */
+public final class Span {
+
+  /** Client: the query RPC, up to receiving the variables. */
+  public static final String CLIENT_QUERY = "client.query";
+  /** Client: one data RPC, from sending the request to handing the window to the reader. */
+  public static final String CLIENT_DATA = "client.data";
+  /** Client: Avro decoding of one data response, part of {@link #CLIENT_DATA}. */
+  public static final String CLIENT_DECODE = "client.decode";
+  /** Client: the reader waiting for a window that had not arrived yet. */
+  public static final String CLIENT_WAIT = "client.wait";
+  /** Server: prefix of the span for each RPC, followed by the message name. */
+  public static final String SERVER_PREFIX = "server.";
+
+  private static final String UTF8 = "UTF-8";
+
+  private final String traceId;
+  private final String name;
+  private final long startMillis;
+  private final long durationNanos;
+  private final Map<String,String> attributes;
+
+  /**
+   * @param traceId ID of the trace the span belongs to
+   * @param name Name of the phase, e.g. {@link #CLIENT_DATA}
+   * @param startMillis Wall clock time the phase started, in milliseconds since the epoch
+   * @param durationNanos Duration of the phase
+   * @param attributes Details of the phase, may be null
+   */
+  public Span(String traceId, String name, long startMillis, long durationNanos, Map<String,String> attributes) {
+    if (traceId == null || name == null) throw new NullPointerException("Spans need a trace ID and a name");
+    this.traceId = traceId;
+    this.name = name;
+    this.startMillis = startMillis;
+    this.durationNanos = durationNanos;
+    this.attributes = (attributes == null) ? Collections.<String,String>emptyMap() :
+      Collections.unmodifiableMap(new LinkedHashMap<String,String>(attributes));
+  }
+
+  /**
+   * Create a span for a phase that started at the given {@link System#nanoTime()} and has just
+   * ended.
+   * @param traceId ID of the trace the span belongs to
+   * @param name Name of the phase
+   * @param startNanos Value of {@link System#nanoTime()} when the phase started
+   * @param attributes Alternating attribute names and values
+   * @return The span
+   */
+  public static Span ending(String traceId, String name, long startNanos, Object... attributes) {
+    long duration = System.nanoTime() - startNanos;
+    Map<String,String> attrs = new LinkedHashMap<String,String>();
+    for (int i = 0; i + 1 < attributes.length; i += 2) {
+      attrs.put(String.valueOf(attributes[i]), String.valueOf(attributes[i + 1]));
+    }
+    return new Span(traceId, name, System.currentTimeMillis() - duration / 1000000, duration, attrs);
+  }
+
+  /** @return A new random trace ID. */
+  public static String newTraceId() {
+    return UUID.randomUUID().toString();
+  }
+
+  public String getTraceId() {
+    return traceId;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  public Map<String,String> getAttributes() {
+    return attributes;
+  }
+
+  /**
+   * Format the span as one line of tab-separated fields: trace ID, name, start, duration and
+   * URL-encoded attributes.
+   * @return The formatted span, without a line terminator
+   */
+  public String format() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(encode(traceId)).append('\t').append(encode(name)).append('\t');
+    sb.append(startMillis).append('\t').append(durationNanos).append('\t');
+    boolean first = true;
+    for (Map.Entry<String,String> e : attributes.entrySet()) {
+      if (!first) sb.append('&');
+      sb.append(encode(e.getKey())).append('=').append(encode(e.getValue()));
+      first = false;
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Parse a span written by {@link #format()}.
+   * @param line The formatted span
+   * @return The span
+   * @throws IllegalArgumentException If the line is not a formatted span
+   */
+  public static Span parse(String line) {
+    String[] fields = line.split("\t", -1);
+    if (fields.length != 5) throw new IllegalArgumentException("Not a span: " + line);
+    Map<String,String> attrs = new LinkedHashMap<String,String>();
+    if (fields[4].length() > 0) {
+      for (String pair : fields[4].split("&")) {
+        int eq = pair.indexOf('=');
+        if (eq < 0) throw new IllegalArgumentException("Bad span attribute: " + pair);
+        attrs.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+      }
+    }
+    try {
+      return new Span(decode(fields[0]), decode(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]), attrs);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Bad span time: " + line, e);
+    }
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, UTF8);
+    } catch (UnsupportedEncodingException e) {
+      throw new Error("JVM unable to handle UTF-8");
+    }
+  }
+
+  private static String decode(String s) {
+    try {
+      return URLDecoder.decode(s, UTF8);
+    } catch (UnsupportedEncodingException e) {
+      throw new Error("JVM unable to handle UTF-8");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return format();
+  }
+}
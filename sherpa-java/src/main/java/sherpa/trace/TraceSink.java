@@ -0,0 +1,30 @@
+/*
+ * Copyright 2011 Revelytix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sherpa.trace;
+
+/**
+ * Destination for the spans recorded by Sherpa clients and servers. Spans are emitted from the
+ * threads doing the work, often I/O threads, so implementations must be thread-safe and should
+ * not block.
+ */
+public interface TraceSink {
+
+  /**
+   * Record a finished span.
+   * @param span The span
+   */
+  void emit(Span span);
+}
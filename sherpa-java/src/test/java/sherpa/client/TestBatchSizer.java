@@ -0,0 +1,76 @@
+package sherpa.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import sherpa.protocol.IRI;
+
+public class TestBatchSizer {
+
+  private static final long MS = 1000000L;
+
+  private static List<List<Object>> rows(int count, int valueLength) {
+    char[] chars = new char[valueLength];
+    Arrays.fill(chars, 'x');
+    IRI iri = new IRI();
+    iri.iri = new String(chars);
+    List<List<Object>> data = new ArrayList<List<Object>>(count);
+    for (int i = 0; i < count; i++) {
+      data.add(Arrays.<Object>asList(iri, i));
+    }
+    return data;
+  }
+
+  @Test
+  public void testEstimateRowBytes() {
+    // IRI: 2 + 98 chars, int: 5
+    Assert.assertEquals(105.0, BatchSizer.estimateRowBytes(rows(50, 98)), 0.001);
+  }
+
+  @Test
+  public void testShrinksWideRows() {
+    BatchSizer sizer = new BatchSizer(1000, 1024 * 1024, 1000);
+    // ~10KB rows, so a 1MB window holds about 100 of them
+    Assert.assertEquals(500, sizer.windowReceived(rows(1000, 10000), 10 * MS));
+    Assert.assertEquals(250, sizer.windowReceived(rows(500, 10000), 10 * MS));
+    Assert.assertEquals(125, sizer.windowReceived(rows(250, 10000), 10 * MS));
+    int size = sizer.windowReceived(rows(125, 10000), 10 * MS);
+    Assert.assertTrue("size=" + size, size >= 100 && size < 125);
+  }
+
+  @Test
+  public void testGrowsSmallFastRows() {
+    BatchSizer sizer = new BatchSizer(100, 1024 * 1024, 1000);
+    Assert.assertEquals(200, sizer.windowReceived(rows(100, 10), 1 * MS));
+    Assert.assertEquals(400, sizer.windowReceived(rows(200, 10), 1 * MS));
+  }
+
+  @Test
+  public void testLatencyLimit() {
+    BatchSizer sizer = new BatchSizer(1000, 1024 * 1024, 100);
+    // 1ms per row against a 100ms target
+    Assert.assertEquals(500, sizer.windowReceived(rows(1000, 10), 1000 * MS));
+    int size = sizer.windowReceived(rows(500, 10), 500 * MS);
+    Assert.assertEquals(250, size);
+  }
+
+  @Test
+  public void testDrainRateKeepsReaderFed() {
+    BatchSizer sizer = new BatchSizer(100, 1024 * 1024, 10);
+    // Reader gets through a row every 10us, and a round trip takes 50ms, so
+    // the latency target alone would shrink the window.
+    sizer.windowDrained(100, 1 * MS);
+    Assert.assertEquals(200, sizer.windowReceived(rows(100, 10), 50 * MS));
+  }
+
+  @Test
+  public void testBounds() {
+    BatchSizer sizer = new BatchSizer(1, 1024, 1000);
+    Assert.assertEquals(BatchSizer.MIN_SIZE, sizer.size());
+    Assert.assertEquals(BatchSizer.MIN_SIZE, sizer.windowReceived(rows(10, 10000), 1 * MS));
+  }
+}
@@ -100,6 +100,115 @@ public class TestQueryManager {
     helpTestCursor(11, 5);
   }
   
+  @Test
+  public void testStreamCredits() {
+    for (int credits = 1; credits <= 4; credits++) {
+      DummyQueryResponder queryResponder = new DummyQueryResponder(23);
+      QueryExecution mgr = new QueryExecution(queryResponder);
+      Map<String,String> params = Collections.emptyMap();
+      Map<String,String> props = new HashMap<String,String>();
+      props.put(QueryExecution.BATCH_SIZE, "5");
+      props.put(QueryExecution.STREAM_CREDITS, Integer.toString(credits));
+      mgr.query("SELECT foo", params, props);
+
+      int counter = 0;
+      while (mgr.incrementCursor()) {
+        Assert.assertEquals(++counter, mgr.getRow().get(1));
+      }
+      Assert.assertEquals(23, counter);
+    }
+  }
+  
+  @Test
+  public void testStreamShortWindows() {
+    // Server never returns more than 3 rows, so speculative requests must be re-issued.
+    DummyQueryResponder queryResponder = new DummyQueryResponder(20) {
+      @Override
+      public DataResponse data(DataRequest req) throws AvroRemoteException, ErrorResponse {
+        req.maxSize = Math.min(req.maxSize, 3);
+        return super.data(req);
+      }
+    };
+    QueryExecution mgr = new QueryExecution(queryResponder);
+    Map<String,String> params = Collections.emptyMap();
+    Map<String,String> props = new HashMap<String,String>();
+    props.put(QueryExecution.BATCH_SIZE, "5");
+    props.put(QueryExecution.STREAM_CREDITS, "3");
+    mgr.query("SELECT foo", params, props);
+
+    int counter = 0;
+    while (mgr.incrementCursor()) {
+      Assert.assertEquals(++counter, mgr.getRow().get(1));
+    }
+    Assert.assertEquals(20, counter);
+  }
+  
+  @Test
+  public void testAdaptiveBatchSize() {
+    DummyQueryResponder queryResponder = new DummyQueryResponder(3000);
+    QueryExecution mgr = new QueryExecution(queryResponder);
+    Map<String,String> params = Collections.emptyMap();
+    Map<String,String> props = new HashMap<String,String>();
+    props.put(QueryExecution.BATCH_SIZE, "10");
+    props.put(QueryExecution.ADAPTIVE_BATCH_SIZE, "true");
+    mgr.query("SELECT foo", params, props);
+
+    int counter = 0;
+    while (mgr.incrementCursor()) {
+      Assert.assertEquals(++counter, mgr.getRow().get(1));
+    }
+    Assert.assertEquals(3000, counter);
+    // Small rows from an in-memory server, so the windows should have grown.
+    Assert.assertTrue(queryResponder.messages.size() < 300);
+  }
+  
+  @Test
+  public void testCancelDropsPrefetchedWindows() {
+    DummyQueryResponder queryResponder = new DummyQueryResponder(100);
+    QueryExecution mgr = new QueryExecution(queryResponder);
+    Map<String,String> params = Collections.emptyMap();
+    Map<String,String> props = new HashMap<String,String>();
+    props.put(QueryExecution.BATCH_SIZE, "10");
+    props.put(QueryExecution.STREAM_CREDITS, "4");
+    mgr.query("SELECT foo", params, props);
+
+    Assert.assertTrue(mgr.incrementCursor());
+    mgr.cancel();
+    Assert.assertTrue(queryResponder.messages.contains("Message=cancel queryId=1 "));
+
+    // The rest of the current window is still readable, but not the windows after it.
+    int counter = 1;
+    try {
+      while (mgr.incrementCursor()) counter++;
+      Assert.fail("Should have thrown on reaching the next window");
+    } catch (SparqlException e) {
+      Assert.assertEquals("Query was cancelled", e.getMessage());
+    }
+    Assert.assertEquals(10, counter);
+  }
+  
+  @Test
+  public void testCancelReasonFromServer() {
+    DummyQueryResponder queryResponder = new DummyQueryResponder(20) {
+      @Override
+      public DataResponse data(DataRequest req) throws AvroRemoteException, ErrorResponse {
+        ErrorResponse resp = new ErrorResponse();
+        resp.code = ReasonCode.Cancel;
+        throw resp;
+      }
+    };
+    QueryExecution mgr = new QueryExecution(queryResponder);
+    Map<String,String> empty = Collections.emptyMap();
+    mgr.query("SELECT foo", empty, empty);
+    try {
+      mgr.incrementCursor();
+      Assert.fail("Should have thrown a cancellation");
+    } catch (SparqlException e) {
+      Assert.assertEquals("Query was cancelled", e.getMessage());
+      Assert.assertEquals(ReasonCode.Cancel, ((ErrorResponse)e.getCause()).code);
+    }
+  }
+  
   @Test
   public void testExceptionOnQuery() {
     DummyQueryResponder queryResponder = new DummyQueryResponder(20) {
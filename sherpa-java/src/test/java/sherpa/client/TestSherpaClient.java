@@ -21,11 +21,13 @@ import static spark.spi.TestCursor.FIRST;
 import static spark.spi.TestCursor.LAST;
 import static spark.spi.TestCursor.NONE;
 
+import java.io.File;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -39,26 +41,39 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import sherpa.protocol.BNode;
+import sherpa.protocol.DataRequest;
+import sherpa.protocol.DataResponse;
 import sherpa.protocol.IRI;
 import sherpa.protocol.PlainLiteral;
 import sherpa.protocol.QueryRequest;
 import sherpa.protocol.QueryResponse;
+import sherpa.protocol.ResultType;
 import sherpa.protocol.TypedLiteral;
 import sherpa.server.DummyQueryResponder;
 import sherpa.server.DummySherpaServer;
+import sherpa.trace.FileTraceSink;
+import sherpa.trace.Span;
+import spark.api.BooleanResult;
 import spark.api.Command;
+import spark.api.Completion;
+import spark.api.Completions;
 import spark.api.Connection;
 import spark.api.DataSource;
+import spark.api.Result;
 import spark.api.Solutions;
+import spark.api.Triples;
 import spark.api.credentials.NoCredentials;
+import spark.api.exception.SparqlException;
 import spark.api.rdf.Literal;
 import spark.api.rdf.NamedNode;
 import spark.api.rdf.RDFNode;
+import spark.api.rdf.Triple;
 import spark.api.uris.XsdTypes;
 import spark.spi.TestCursor;
 import spark.spi.rdf.BlankNodeImpl;
 import spark.spi.rdf.NamedNodeImpl;
 import spark.spi.rdf.PlainLiteralImpl;
+import spark.spi.rdf.TripleImpl;
 import spark.spi.rdf.TypedLiteralImpl;
 import spark.spi.util.DateTime;
 
@@ -180,6 +195,151 @@ public class TestSherpaClient {
     helpTestQueryCursor(20, 10);
   }
 
+  @Test
+  public void testNioTransport() throws Exception {
+    DummySherpaServer server = new DummySherpaServer(new DummyQueryResponder(25), true);
+    try {
+      InetSocketAddress serverAddress = server.getAddress();
+      SHPDataSource ds = new SHPDataSource(serverAddress.getHostName(), serverAddress.getPort());
+      ds.setTransport(SHPDataSource.Transport.NIO);
+      Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+      Command command = conn.createCommand("SELECT ?x ?y WHERE { ... }");
+      ((SHPCommand) command).setBatchSize(10);
+      Solutions solutions = command.executeQuery();
+      int counter = 0;
+      while (solutions.next()) counter++;
+      Assert.assertEquals(25, counter);
+      solutions.close();
+      conn.close();
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test
+  public void testNioServerConnections() throws Exception {
+    // Each connection handshakes on its own, and their calls interleave on the server.
+    DummySherpaServer server = new DummySherpaServer(new DummyQueryResponder(25), true);
+    try {
+      InetSocketAddress serverAddress = server.getAddress();
+      List<Connection> conns = new ArrayList<Connection>();
+      List<Solutions> results = new ArrayList<Solutions>();
+      for (int i = 0; i < 3; i++) {
+        SHPDataSource ds = new SHPDataSource(serverAddress.getHostName(), serverAddress.getPort());
+        ds.setTransport(SHPDataSource.Transport.NIO);
+        Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+        Command command = conn.createCommand("SELECT ?x ?y WHERE { " + i + " }");
+        ((SHPCommand) command).setBatchSize(5);
+        conns.add(conn);
+        results.add(command.executeQuery());
+      }
+      int[] counters = new int[results.size()];
+      for (int row = 0; row < 25; row++) {
+        for (int i = 0; i < results.size(); i++) {
+          if (results.get(i).next()) counters[i]++;
+        }
+      }
+      for (int i = 0; i < results.size(); i++) {
+        Assert.assertFalse(results.get(i).next());
+        Assert.assertEquals(25, counters[i]);
+        results.get(i).close();
+        conns.get(i).close();
+      }
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test
+  public void testExecuteAll() throws Exception {
+    DummySherpaServer server = new DummySherpaServer(new DummyQueryResponder(25), true);
+    try {
+      InetSocketAddress serverAddress = server.getAddress();
+      SHPDataSource ds = new SHPDataSource(serverAddress.getHostName(), serverAddress.getPort());
+      ds.setTransport(SHPDataSource.Transport.NIO);
+      Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+      List<Command> commands = new ArrayList<Command>();
+      for (int i = 0; i < 5; i++) {
+        Command command = conn.createCommand("SELECT ?x ?y WHERE { " + i + " }");
+        ((SHPCommand) command).setBatchSize(10);
+        commands.add(command);
+      }
+      Completions completions = conn.executeAll(commands, 10000);
+      int done = 0;
+      for (Completion c : completions) {
+        Assert.assertTrue(commands.contains(c.getCommand()));
+        Solutions solutions = (Solutions)c.getResult();
+        int counter = 0;
+        while (solutions.next()) counter++;
+        Assert.assertEquals(25, counter);
+        solutions.close();
+        done++;
+      }
+      Assert.assertEquals(5, done);
+      conn.close();
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testTracing() throws Exception {
+    final List<Map<CharSequence,CharSequence>> props = new ArrayList<Map<CharSequence,CharSequence>>();
+    DummySherpaServer server = new DummySherpaServer(
+        new DummyQueryResponder(25) {
+          public QueryResponse query(QueryRequest query) throws AvroRemoteException {
+            props.add(query.properties);
+            return super.query(query);
+          }
+        });
+    File file = File.createTempFile("sherpa-trace", ".tsv");
+    FileTraceSink sink = new FileTraceSink(file);
+    try {
+      InetSocketAddress serverAddress = server.getAddress();
+      SHPDataSource ds = new SHPDataSource(serverAddress.getHostName(), serverAddress.getPort());
+      ds.setTraceSink(sink);
+      Command command = ds.getConnection(NoCredentials.INSTANCE).createCommand("SELECT ?x ?y WHERE { }");
+      ((SHPCommand)command).setBatchSize(10);
+      Solutions solutions = command.executeQuery();
+      int rows = 0;
+      while (solutions.next()) rows++;
+      Assert.assertEquals(25, rows);
+      sink.close();
+
+      String traceId = props.get(0).get(new Utf8(QueryExecution.TRACE_ID)).toString();
+      Map<String,Integer> counts = new HashMap<String,Integer>();
+      for (Span span : FileTraceSink.read(file)) {
+        Assert.assertEquals(traceId, span.getTraceId());
+        Assert.assertTrue(span.getDurationNanos() >= 0);
+        Integer n = counts.get(span.getName());
+        counts.put(span.getName(), (n == null) ? 1 : n + 1);
+      }
+      Assert.assertEquals(Integer.valueOf(1), counts.get(Span.CLIENT_QUERY));
+      Assert.assertTrue(counts.get(Span.CLIENT_DATA) >= 3);
+      // Speculative requests past the end fail without decoding a response.
+      Assert.assertTrue(counts.get(Span.CLIENT_DECODE) >= 3);
+      Assert.assertTrue(counts.get(Span.CLIENT_DECODE) <= counts.get(Span.CLIENT_DATA));
+    } finally {
+      sink.close();
+      file.delete();
+      server.shutdown();
+    }
+  }
+
+  @Test
+  public void testSpanFormat() {
+    Map<String,String> attrs = new HashMap<String,String>();
+    attrs.put("query", "SELECT *\tWHERE { ?s ?p \"a=b&c\" }");
+    Span span = new Span("t\t1", Span.CLIENT_WAIT, 1234L, 5678L, attrs);
+    Span copy = Span.parse(span.format());
+    Assert.assertEquals("t\t1", copy.getTraceId());
+    Assert.assertEquals(Span.CLIENT_WAIT, copy.getName());
+    Assert.assertEquals(1234L, copy.getStartMillis());
+    Assert.assertEquals(5678L, copy.getDurationNanos());
+    Assert.assertEquals(attrs, copy.getAttributes());
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void testTimeoutPassedDown() {
@@ -211,6 +371,60 @@ public class TestSherpaClient {
 
   }
   
+  @Test
+  public void testDeadline() throws Exception {
+    final List<Map<CharSequence,CharSequence>> props = new ArrayList<Map<CharSequence,CharSequence>>();
+    final List<Long> budgets = new ArrayList<Long>();
+    DummySherpaServer server = new DummySherpaServer(
+        new DummyQueryResponder(25) {
+          public QueryResponse query(QueryRequest query) throws AvroRemoteException {
+            props.add(query.properties);
+            return super.query(query);
+          }
+          public DataResponse data(DataRequest request) throws AvroRemoteException {
+            synchronized (budgets) {
+              budgets.add(request.budgetMillis);
+            }
+            if (request.startRow > 10) {
+              try {
+                Thread.sleep(1000);
+              } catch (InterruptedException e) {
+                throw new AvroRemoteException(e);
+              }
+            }
+            return super.data(request);
+          }
+        });
+    try {
+      InetSocketAddress serverAddress = server.getAddress();
+      DataSource ds = new SHPDataSource(serverAddress.getHostName(), serverAddress.getPort());
+      Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+      Command command = conn.createCommand("SELECT ?x ?y WHERE { ... }");
+      ((SHPCommand) command).setBatchSize(10);
+      command.setDeadline(System.currentTimeMillis() + 300);
+      long start = System.nanoTime();
+      Solutions solutions = command.executeQuery();
+      int counter = 0;
+      try {
+        while (solutions.next()) counter++;
+        Assert.fail("Should miss the deadline");
+      } catch (SparqlException e) {
+        Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Deadline passed"));
+      }
+      long elapsed = (System.nanoTime() - start) / 1000000;
+      Assert.assertTrue("" + elapsed, elapsed < 900);
+      Assert.assertEquals(10, counter);
+
+      long budget = Long.parseLong(props.get(0).get(new Utf8(QueryExecution.BUDGET)).toString());
+      Assert.assertTrue("" + budget, budget > 0 && budget <= 300);
+      synchronized (budgets) {
+        Assert.assertTrue(budgets.get(0) > 0 && budgets.get(0) <= 300);
+      }
+    } finally {
+      server.shutdown();
+    }
+  }
+
   @Test
   public void testData() {
     NamedNodeImpl uri1 = new NamedNodeImpl(URI.create("http://example.org/foo"));
@@ -301,6 +515,7 @@ public class TestSherpaClient {
       Assert.assertEquals(lit3, s.getBinding(var));
       Assert.assertEquals(lit3, s.getLiteral(var));
       Assert.assertEquals(d, s.getDateTime(var));
+      Assert.assertEquals(d.getTime(), s.getCalendar(var).getTimeInMillis());
       
       Assert.assertTrue(s.next());
       Assert.assertEquals(aInt, s.getBinding(var));
@@ -310,6 +525,8 @@ public class TestSherpaClient {
       Assert.assertTrue(s.next());
       Assert.assertEquals(aLong, s.getBinding(var));
       Assert.assertEquals(aLong, s.getLiteral(var));
+      Assert.assertEquals(Long.valueOf(aLong.getLexical()), ((spark.api.rdf.TypedLiteral)s.getLiteral(var)).getValue());
+      Assert.assertEquals(Long.parseLong(aLong.getLexical()), s.getLong(var));
       
       Assert.assertTrue(s.next());
       Assert.assertEquals(aBool, s.getBinding(var));
@@ -370,6 +587,91 @@ public class TestSherpaClient {
     helpTestIteratorCount(10, 5);
   }
   
+  /** Responder whose queries produce the given kind of result. */
+  private static DummyQueryResponder responder(List<List<Object>> data, final ResultType type, final Boolean ask) {
+    return new DummyQueryResponder(data) {
+      public QueryResponse query(QueryRequest query) throws AvroRemoteException {
+        QueryResponse response = super.query(query);
+        response.resultType = type;
+        response.askResult = ask;
+        return response;
+      }
+    };
+  }
+
+  @Test
+  public void testGraphQuery() throws Exception {
+    NamedNodeImpl s = new NamedNodeImpl(URI.create("http://example.org/s"));
+    NamedNodeImpl p = new NamedNodeImpl(URI.create("http://example.org/p"));
+    BlankNodeImpl b = new BlankNodeImpl("b0");
+    List<Object[]> rows = new ArrayList<Object[]>();
+    List<Triple> expected = new ArrayList<Triple>();
+    for (int i = 0; i < 25; i++) {
+      PlainLiteralImpl o = new PlainLiteralImpl("o" + i);
+      rows.add(new Object[] { (i % 2 == 0) ? iri(s) : bNode(b), iri(p), plainLit(o) });
+      expected.add(new TripleImpl((i % 2 == 0) ? s : b, p, o));
+    }
+    DummySherpaServer server = new DummySherpaServer(
+        responder(toList(rows.toArray(new Object[0][])), ResultType.Triples, null));
+    try {
+      InetSocketAddress serverAddress = server.getAddress();
+      DataSource ds = new SHPDataSource(serverAddress.getHostName(), serverAddress.getPort());
+      Command command = ds.getConnection(NoCredentials.INSTANCE).createCommand("CONSTRUCT { ?s ?p ?o } WHERE { }");
+      ((SHPCommand)command).setBatchSize(10);
+      Triples triples = command.executeGraph();
+      TestCursor.assertCursor(triples, BEFORE_FIRST);
+      Assert.assertTrue(triples.next());
+      Assert.assertEquals(s, triples.getSubject());
+      Assert.assertEquals(p, triples.getPredicate());
+      Assert.assertEquals(new PlainLiteralImpl("o0"), triples.getObject());
+      List<Triple> actual = new ArrayList<Triple>();
+      actual.add(triples.getResult());
+      for (Triple t : triples) {
+        actual.add(t);
+      }
+      Assert.assertEquals(expected, actual);
+      TestCursor.assertCursor(triples, AFTER_LAST);
+      // The cursor stays just past the last triple.
+      Assert.assertEquals(expected.size() + 1, triples.getRow());
+      Assert.assertFalse(triples.next());
+      Assert.assertEquals(expected.size() + 1, triples.getRow());
+      triples.close();
+
+      // execute() picks the result type from the server's response.
+      Result result = ds.getConnection(NoCredentials.INSTANCE).createCommand("DESCRIBE <http://example.org/s>").execute();
+      Assert.assertTrue(result instanceof Triples);
+      result.close();
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test
+  public void testAskQuery() throws Exception {
+    DummyQueryResponder responder = responder(new ArrayList<List<Object>>(), ResultType.Boolean, true);
+    DummySherpaServer server = new DummySherpaServer(responder);
+    try {
+      InetSocketAddress serverAddress = server.getAddress();
+      Connection conn = new SHPDataSource(serverAddress.getHostName(), serverAddress.getPort())
+          .getConnection(NoCredentials.INSTANCE);
+      Assert.assertTrue(conn.createCommand("ASK { }").executeAsk());
+      Result result = conn.createCommand("ASK { }").execute();
+      Assert.assertTrue(((BooleanResult)result).getResult());
+      // The answer comes with the query response, so no data is requested.
+      for (String message : responder.messages) {
+        Assert.assertFalse(message, message.contains("Message=data"));
+      }
+      try {
+        conn.createCommand("ASK { }").executeQuery();
+        Assert.fail("Should not read a boolean result as solutions");
+      } catch (SparqlException e) {
+        // expected
+      }
+    } finally {
+      server.shutdown();
+    }
+  }
+
   public static List<List<Object>> toList(Object[][] data) {
     List<List<Object>> list = new ArrayList<List<Object>>(data.length);
     for (Object[] row : data) {
@@ -0,0 +1,209 @@
+package sherpa.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class TestSpscRing {
+
+  @Test
+  public void testRepeatedNonBlockingUse() throws Throwable {
+    SpscRing<String> slot = new SpscRing<String>(4);
+    
+    // nothing here yet, but don't block
+    assertEquals(null, slot.poll());
+    
+    slot.add("abc");
+    assertEquals("abc", slot.poll());
+    assertEquals(null, slot.poll());
+    
+    slot.add("def");
+    assertEquals("def", slot.poll());
+    assertEquals(null, slot.poll());    
+  }
+  
+  @Test
+  public void testFifo() throws Throwable {
+    SpscRing<String> slot = new SpscRing<String>(4);
+    slot.add("abc");
+    slot.add("def");
+    slot.addError(new RuntimeException("foo"));
+    
+    // data added before the error is delivered first
+    assertEquals("abc", slot.poll());
+    assertEquals("def", slot.take());
+    try {
+      slot.poll();
+      fail("Should have thrown producer error");
+    } catch(RuntimeException e) {
+      assertEquals("foo", e.getMessage());
+    }
+  }
+  
+  @Test
+  public void testBounded() throws Throwable {
+    SpscRing<String> slot = new SpscRing<String>(3); // rounds up to 4
+    for (int i = 0; i < 4; i++) {
+      slot.add(Integer.toString(i));
+    }
+    try {
+      slot.add("full");
+      fail("Should have rejected add to a full ring");
+    } catch(IllegalStateException e) {
+      // expected
+    }
+    assertEquals("0", slot.poll());
+    slot.add("4");
+    for (int i = 1; i <= 4; i++) {
+      assertEquals(Integer.toString(i), slot.take());
+    }
+    assertEquals(null, slot.poll());
+  }
+  
+  @Test
+  public void testTimedPoll() throws Throwable {
+    SpscRing<String> slot = new SpscRing<String>(4);
+    long start = System.nanoTime();
+    assertEquals(null, slot.poll(50, TimeUnit.MILLISECONDS));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    slot.add("abc");
+    assertEquals("abc", slot.poll(50, TimeUnit.MILLISECONDS));
+  }
+  
+  @Test
+  public void testProducerConsumerThreads() throws Throwable {
+    final int count = 100000;
+    final SpscRing<Integer> slot = new SpscRing<Integer>(4);
+    final Semaphore credits = new Semaphore(4);
+
+    // PRODUCER
+    new Thread(new Runnable() {
+      public void run() {
+        try {
+          for (int i = 0; i < count; i++) {
+            credits.acquire();
+            slot.add(i);
+          }
+        } catch(InterruptedException e) {
+          slot.addError(e);
+        }
+      }
+    }).start();
+
+    for (int i = 0; i < count; i++) {
+      assertEquals(Integer.valueOf(i), slot.take());
+      credits.release();
+    }
+    assertEquals(null, slot.poll());
+  }
+  
+  @Test
+  public void testDataBeforeRacingError() throws Throwable {
+    for (int round = 0; round < 200; round++) {
+      final SpscRing<String> slot = new SpscRing<String>(4);
+      Thread producer = new Thread(new Runnable() {
+        public void run() {
+          slot.add("abc");
+          slot.addError(new RuntimeException("foo"));
+        }
+      });
+      producer.start();
+      String data = null;
+      try {
+        while (true) {
+          String d = slot.poll();
+          if (d != null) data = d;
+          else Thread.yield();
+        }
+      } catch(RuntimeException e) {
+        assertEquals("foo", e.getMessage());
+      }
+      // the data added before the error must not be lost
+      assertEquals("abc", data);
+      producer.join();
+    }
+  }
+  
+  @Test
+  public void testBlocking_produceBeforeConsume() throws Throwable {
+    final SpscRing<String> slot = new SpscRing<String>(4);    
+    slot.add("abc");
+    
+    assertEquals("abc", slot.take());
+    assertEquals(null, slot.poll());
+  }
+  
+  @Test
+  public void testBlocking_consumeBlockingOnProduce() throws Throwable {
+    final SpscRing<String> slot = new SpscRing<String>(4);
+    final CountDownLatch latchEnd = new CountDownLatch(1);    
+    final List<Object> results = new ArrayList<Object>();    
+
+    // CONSUMER
+    new Thread(new Runnable() {
+      public void run() {
+        try {
+          // Block for data
+          results.add(slot.take());
+        } catch(Throwable t) {
+          results.add(t);
+        }
+
+        // Notify main thread that we're done
+        latchEnd.countDown();        
+      }
+    }).start();
+
+    // Wait for consumer thread to start and block
+    Thread.sleep(500);
+
+    // Put data in the slot
+    slot.add("abc");
+
+    latchEnd.await();
+    assertEquals(1, results.size());
+    assertEquals("abc", results.get(0));
+  }
+  
+  @Test
+  public void testBlocking_interruptBlocking() throws Throwable {
+    final SpscRing<String> slot = new SpscRing<String>(4);
+    final CountDownLatch latchEnd = new CountDownLatch(1);    
+    final List<Object> results = new ArrayList<Object>();    
+
+    // CONSUMER
+    new Thread(new Runnable() {
+      public void run() {
+        // Block for data
+        try {
+          results.add(slot.take());
+        } catch(Throwable e) {
+          results.add(e);
+        }
+
+        // Notify main thread that we're done
+        latchEnd.countDown();        
+      }
+    }).start();
+
+    // Wait for consumer thread to start and block
+    Thread.sleep(500);
+
+    // Put data in the slot
+    RuntimeException err = new RuntimeException("foo");
+    slot.addError(err);
+
+    latchEnd.await();
+    assertEquals(1, results.size());
+    assertEquals(err, results.get(0));
+  }
+}
@@ -45,10 +45,15 @@ public class DummySherpaServer extends SpecificResponder {
   }
   
   public DummySherpaServer(SherpaServer responder) {
+    this(responder, false);
+  }
+  
+  public DummySherpaServer(SherpaServer responder, boolean nio) {
     super(SherpaServer.class, responder);
 
     try {
-      server = new SaslSocketServer(this, new InetSocketAddress((InetAddress)null, 0));
+      InetSocketAddress address = new InetSocketAddress((InetAddress)null, 0);
+      server = nio ? new NioSherpaServer(this, address) : new SaslSocketServer(this, address);
       server.start();
     } catch(IOException e) {
       throw new SparqlException("Error starting server.");
@@ -53,7 +53,8 @@ public interface Command extends Closeable {
   public static final long NO_TIMEOUT = 0L;
   
   /**
-   * Set the command timeout in seconds or {@link #NO_TIMEOUT} for none.
+   * Set the command timeout in seconds or {@link #NO_TIMEOUT} for none. The timeout bounds the
+   * whole of an execution, from the call that starts it to reading the last result.
    * @param seconds Timeout in seconds
    */
   void setTimeout(long seconds);
@@ -64,6 +65,25 @@ public interface Command extends Closeable {
    */
   long getTimeout();
   
+  /**
+   * Constant specifying no deadline, for use with {@link #setDeadline(long)}
+   */
+  public static final long NO_DEADLINE = 0L;
+  
+  /**
+   * Set a point in time by which executions of the command must be complete, including reading
+   * the results, or {@link #NO_DEADLINE} for none. If there is also a timeout, whichever comes
+   * first applies.
+   * @param millis Deadline in milliseconds since the epoch, as given by {@link System#currentTimeMillis()}
+   */
+  void setDeadline(long millis);
+  
+  /**
+   * Get the command deadline.
+   * @return Deadline in milliseconds since the epoch, or {@link #NO_DEADLINE}
+   */
+  long getDeadline();
+  
   /**
    * Cancel execution of this command.
    */
@@ -114,4 +134,9 @@ public interface Command extends Closeable {
    * @return The result of the ASK
    */
   boolean executeAsk();
+  
+  /**
+   * Execute a SPARQL UPDATE request, which may hold several operations separated by ';'.
+   */
+  void executeUpdate();
 }
\ No newline at end of file
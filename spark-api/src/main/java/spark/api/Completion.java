@@ -0,0 +1,39 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.api;
+
+import spark.api.exception.SparqlException;
+
+/**
+ * The outcome of one command run by {@link Connection#executeAll(java.util.List, long)}: either
+ * the command's result or the error it failed with.
+ */
+public interface Completion {
+
+  /**
+   * Get the command that completed.
+   * @return The command
+   */
+  Command getCommand();
+
+  /**
+   * Get the result of executing the command, as returned by {@link Command#execute()}.
+   * @return The result, which the caller must close
+   * @throws SparqlException If the command failed
+   */
+  Result getResult() throws SparqlException;
+
+}
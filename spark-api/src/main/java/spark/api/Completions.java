@@ -0,0 +1,47 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.api;
+
+import java.io.Closeable;
+
+import spark.api.exception.SparqlException;
+
+/**
+ * Commands running concurrently under {@link Connection#executeAll(java.util.List, long)}. The
+ * commands are handed back in the order they complete, so that the caller can start on the
+ * first results while the slower commands are still running. Iterating is the same as calling
+ * {@link #take()} until it returns null.
+ * <p>
+ * Closing the completions cancels any commands which are still running, and closes the results
+ * of commands which completed but were not taken.
+ */
+public interface Completions extends Iterable<Completion>, Closeable {
+
+  /**
+   * Wait for the next command to complete.
+   * @return The next completed command, or null if every command has been taken
+   * @throws SparqlException If the shared deadline passes first, in which case the commands that
+   *         are still running are cancelled
+   */
+  Completion take() throws SparqlException;
+
+  /**
+   * Get the number of commands which have not been taken yet.
+   * @return The number of commands still to take
+   */
+  int remaining();
+
+}
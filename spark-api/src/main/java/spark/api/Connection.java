@@ -16,6 +16,7 @@
 package spark.api;
 
 import java.io.Closeable;
+import java.util.List;
 
 /**
  * A connection to a SPARQL processor.  Connections can be used to 
@@ -48,4 +49,14 @@ public interface Connection extends Closeable {
    */
   Command createCommand(String commandString);
   
+  /**
+   * Execute several commands concurrently, each with {@link Command#execute()}. The commands share
+   * one deadline, which applies while executing any command whose own deadline is later; the
+   * command's own deadline is left as it was.
+   * @param commands Commands created on this connection
+   * @param timeoutMillis Time allowed for all of the commands, or {@link Command#NO_TIMEOUT}
+   * @return The commands in the order they complete
+   */
+  Completions executeAll(List<? extends Command> commands, long timeoutMillis);
+  
 }
\ No newline at end of file
@@ -17,6 +17,7 @@ package spark.api;
 
 import java.math.BigInteger;
 import java.net.URI;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -57,11 +58,13 @@ import spark.api.rdf.RDFNode;
  * <li>{@link #getURI(String)}</li>
  * <li>{@link #getString(String)}</li>
  * <li>{@link #getInt(String)}</li>
+ * <li>{@link #getLong(String)}</li>
  * <li>{@link #getBoolean(String)}</li>
  * <li>{@link #getFloat(String)}</li>
  * <li>{@link #getDouble(String)}</li>
  * <li>{@link #getInteger(String)}</li>
  * <li>{@link #getDateTime(String)}</li>
+ * <li>{@link #getCalendar(String)}</li>
  * </ul>
  */
 public interface Solutions extends CursoredResult<Map<String,RDFNode>> {
@@ -149,6 +152,15 @@ public interface Solutions extends CursoredResult<Map<String,RDFNode>> {
    */  
   int getInt(String variable) throws SparqlException;
   
+  /**
+   * Get the value of a variable as a long.  If the value is not
+   * an xsd:long typed literal, then a SparqlException is thrown.
+   * @param variable The variable name
+   * @return The long for this typed xsd:long literal
+   * @throws SparqlException If the value is not an xsd:long literal
+   */  
+  long getLong(String variable) throws SparqlException;
+  
   /**
    * Get the value of a variable as a boolean.  If the value is not
    * an xsd:boolean typed literal, then a SparqlException is thrown.
@@ -193,4 +205,15 @@ public interface Solutions extends CursoredResult<Map<String,RDFNode>> {
    * @throws SparqlException If the value is not an xsd:dateTime literal
    */  
   Date getDateTime(String variable) throws SparqlException;  
+
+  /**
+   * Get the value of a variable as a Calendar, keeping the timezone offset
+   * of the lexical value (a value without an offset gets the local timezone).
+   * If the value is not an xsd:dateTime typed literal, then a SparqlException
+   * is thrown.
+   * @param variable The variable name
+   * @return The Calendar for this typed xsd:dateTime literal
+   * @throws SparqlException If the value is not an xsd:dateTime literal
+   */  
+  Calendar getCalendar(String variable) throws SparqlException;
 }
\ No newline at end of file
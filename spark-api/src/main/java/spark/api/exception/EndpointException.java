@@ -0,0 +1,70 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.api.exception;
+
+/**
+ * An exception indicating that the endpoint could not be reached, or answered with an error
+ * status. Unlike other failures, such as a malformed query, a transient one may not happen on
+ * another attempt, or with another endpoint for the same data.
+ */
+public class EndpointException extends SparqlException {
+
+  private static final long serialVersionUID = 3364719802573417406L;
+
+  /** Status code of a failure to exchange a request and response with the endpoint. */
+  public static final int NO_STATUS = 0;
+
+  private static final int SERVER_ERROR_MIN = 500;
+  private static final int TOO_MANY_REQUESTS = 429;
+
+  private final int statusCode;
+
+  /**
+   * Construct an exception for an error status from the endpoint.
+   * @param message Message
+   * @param statusCode Status code of the response
+   */
+  public EndpointException(String message, int statusCode) {
+    super(message);
+    this.statusCode = statusCode;
+  }
+
+  /**
+   * Construct an exception for a failure to reach the endpoint.
+   * @param message Message
+   * @param throwable Chained throwable
+   */
+  public EndpointException(String message, Throwable throwable) {
+    super(message, throwable);
+    this.statusCode = NO_STATUS;
+  }
+
+  /**
+   * @return The status code of the response from the endpoint, or {@link #NO_STATUS} if there
+   *         was no response.
+   */
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  /**
+   * @return true if the endpoint could not be reached, was overloaded or failed internally, rather
+   *         than refusing the request itself.
+   */
+  public boolean isTransient() {
+    return statusCode == NO_STATUS || statusCode >= SERVER_ERROR_MIN || statusCode == TOO_MANY_REQUESTS;
+  }
+}
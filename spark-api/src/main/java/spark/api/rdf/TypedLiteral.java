@@ -30,4 +30,13 @@ public interface TypedLiteral extends Literal {
    * @return The XSD URI
    */
   public URI getDataType();
+
+  /**
+   * Get the native Java value of this typed literal, using the mapping from XSD data types to
+   * Java classes described by the SPI conversions. The value is decoded at most once and cached.
+   * @return The native value
+   * @throws IllegalArgumentException If the data type has no native mapping, or the lexical
+   * representation is not valid for the data type
+   */
+  public Object getValue();
 }
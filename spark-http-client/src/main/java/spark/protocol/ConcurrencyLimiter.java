@@ -0,0 +1,235 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+import spark.api.exception.SparqlException;
+
+/**
+ * <p>Adaptive limit on the number of requests a {@link ProtocolDataSource} sends to its endpoint
+ * at once, set with {@link ProtocolDataSource#setConcurrencyLimiter(ConcurrencyLimiter)}. The limit
+ * follows the latency of the requests: it grows while latency stays near its floor and shrinks as
+ * soon as requests queue up on the server, so that an overloaded endpoint keeps answering quickly
+ * instead of building a backlog. Two control laws are available:</p>
+ * <ul>
+ * <li>{@link Algorithm#AIMD} adds one to the limit for each request answered in time, and cuts it
+ * by the backoff ratio when a request fails or is slower than the tolerance allows;</li>
+ * <li>{@link Algorithm#GRADIENT} scales the limit by the ratio of the long-term average latency
+ * to the latest one, plus a small allowance for queueing.</li>
+ * </ul>
+ * 
+ * <p>A request over the limit waits up to the maximum wait for another to finish, then is
+ * rejected with a {@link SparqlException}; with no wait, it is rejected at once. A request is
+ * counted from the moment it is sent until its response headers arrive.</p>
+ */
+public class ConcurrencyLimiter {
+
+  /** How the limit reacts to latency. */
+  public enum Algorithm {
+    /** Additive increase, multiplicative decrease. */
+    AIMD,
+    /** Proportional to the change in latency. */
+    GRADIENT
+  }
+
+  /** Default limit before any latency has been measured. */
+  public static final int DEFAULT_INITIAL_LIMIT = 10;
+  /** Default lower bound on the limit. */
+  public static final int DEFAULT_MIN_LIMIT = 1;
+  /** Default upper bound on the limit. */
+  public static final int DEFAULT_MAX_LIMIT = 200;
+  /** Default factor applied to the limit by {@link Algorithm#AIMD} on overload. */
+  public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+  /** Default multiple of the latency floor that is still considered unloaded. */
+  public static final double DEFAULT_TOLERANCE = 2.0;
+
+  /** Weight of the newest sample in the long-term latency average. */
+  private static final double LONG_RTT_WEIGHT = 0.05;
+  /** Weight of each new limit computed by {@link Algorithm#GRADIENT}. */
+  private static final double SMOOTHING = 0.2;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private volatile Algorithm algorithm = Algorithm.GRADIENT;
+  private volatile long maxWait = 0;
+  private volatile double backoffRatio = DEFAULT_BACKOFF_RATIO;
+  private volatile double tolerance = DEFAULT_TOLERANCE;
+
+  // Protected by "this" lock.
+  private double limit;
+  private int inFlight = 0;
+  private double minRttNanos = 0.0;
+  private double longRttNanos = 0.0;
+  private long rejected = 0;
+
+  /** Create a limiter with the default bounds. */
+  public ConcurrencyLimiter() {
+    this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+  }
+
+  /**
+   * Create a limiter.
+   * @param initialLimit The limit until latency has been measured.
+   * @param minLimit The lowest the limit can go; at least 1.
+   * @param maxLimit The highest the limit can go.
+   */
+  public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+    if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+      throw new IllegalArgumentException("Limits must satisfy 1 <= min <= initial <= max: " +
+          minLimit + ", " + initialLimit + ", " + maxLimit);
+    }
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+  }
+
+  public Algorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  /** @param algorithm How the limit reacts to latency; {@link Algorithm#GRADIENT} by default. */
+  public void setAlgorithm(Algorithm algorithm) {
+    if (algorithm == null) throw new NullPointerException("Algorithm must not be null");
+    this.algorithm = algorithm;
+  }
+
+  public long getMaxWait() {
+    return maxWait;
+  }
+
+  /**
+   * @param millis The longest time, in milliseconds, that a request over the limit waits for
+   *        another to finish before it is rejected; 0 (the default) rejects it at once.
+   */
+  public void setMaxWait(long millis) {
+    if (millis < 0) throw new IllegalArgumentException("Maximum wait must be >= 0: " + millis);
+    this.maxWait = millis;
+  }
+
+  public double getBackoffRatio() {
+    return backoffRatio;
+  }
+
+  /** @param ratio The factor applied to the limit by {@link Algorithm#AIMD} on overload, between 0 and 1. */
+  public void setBackoffRatio(double ratio) {
+    if (ratio <= 0 || ratio >= 1) throw new IllegalArgumentException("Backoff ratio must be between 0 and 1: " + ratio);
+    this.backoffRatio = ratio;
+  }
+
+  public double getTolerance() {
+    return tolerance;
+  }
+
+  /** @param tolerance The multiple of the latency floor above which the endpoint is taken to be overloaded; at least 1. */
+  public void setTolerance(double tolerance) {
+    if (tolerance < 1) throw new IllegalArgumentException("Tolerance must be >= 1: " + tolerance);
+    this.tolerance = tolerance;
+  }
+
+  /** @return The current limit. */
+  public synchronized int getLimit() {
+    return (int)limit;
+  }
+
+  /** @return The number of requests currently counted against the limit. */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /** @return The number of requests rejected because the limit was reached. */
+  public synchronized long getRejectedCount() {
+    return rejected;
+  }
+
+  /** @return The lowest latency seen, in milliseconds, taken as the latency of an unloaded endpoint. */
+  public synchronized double getMinLatencyMillis() {
+    return minRttNanos / 1e6;
+  }
+
+  /**
+   * Take a place for a request, waiting up to the maximum wait if the limit is reached.
+   * @throws SparqlException If the limit is still reached after the wait.
+   */
+  void acquire() {
+    acquire(Long.MAX_VALUE);
+  }
+
+  /**
+   * Take a place for a request, waiting up to the maximum wait if the limit is reached, but no
+   * longer than the given time.
+   * @param waitMillis The most time the caller has to wait, e.g. the time left before its deadline.
+   * @throws SparqlException If the limit is still reached after the wait.
+   */
+  synchronized void acquire(long waitMillis) {
+    if (inFlight >= (int)limit) {
+      long wait = Math.min(maxWait, waitMillis);
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
+      try {
+        while (inFlight >= (int)limit && wait > 0) {
+          wait(wait);
+          wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SparqlException("Interrupted waiting to send request", e);
+      }
+      if (inFlight >= (int)limit) {
+        rejected++;
+        throw new SparqlException("Concurrency limit of " + (int)limit + " requests reached");
+      }
+    }
+    inFlight++;
+  }
+
+  /**
+   * Give back the place of a request that completed, adjusting the limit to its latency.
+   * @param rttNanos Time from sending the request to receiving the response headers.
+   * @param dropped true if the request failed in a way that suggests overload: an I/O error
+   *        such as a timeout, or a server error status.
+   */
+  synchronized void release(long rttNanos, boolean dropped) {
+    int load = inFlight;
+    inFlight--;
+    if (!dropped && rttNanos > 0) {
+      if (minRttNanos == 0.0 || rttNanos < minRttNanos) minRttNanos = rttNanos;
+      longRttNanos = (longRttNanos == 0.0) ? rttNanos : longRttNanos + LONG_RTT_WEIGHT * (rttNanos - longRttNanos);
+    }
+    double l = (algorithm == Algorithm.AIMD) ? aimd(rttNanos, dropped, load) : gradient(rttNanos, dropped, load);
+    limit = Math.max(minLimit, Math.min(maxLimit, l));
+    notifyAll();
+  }
+
+  /** Give back the place of a request that was cancelled, without using its latency. */
+  synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  private double aimd(long rtt, boolean dropped, int load) {
+    if (dropped || rtt > minRttNanos * tolerance) return limit * backoffRatio;
+    // Only grow when the limit is actually being used.
+    return (load * 2 >= limit) ? limit + 1 : limit;
+  }
+
+  private double gradient(long rtt, boolean dropped, int load) {
+    if (dropped) return limit * backoffRatio;
+    double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRttNanos / rtt));
+    double newLimit = limit * gradient + Math.sqrt(limit);
+    if (newLimit > limit && load * 2 < limit) return limit;
+    return limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+  }
+}
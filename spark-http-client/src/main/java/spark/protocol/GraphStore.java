@@ -0,0 +1,479 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import static org.apache.http.protocol.HTTP.UTF_8;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import spark.api.exception.SparqlException;
+import spark.api.rdf.BlankNode;
+import spark.api.rdf.RDFNode;
+import spark.api.rdf.Triple;
+
+/**
+ * <p>Client for loading triples into a store through the SPARQL 1.1 Graph Store HTTP Protocol.
+ * The triples are serialized as N-Triples or Turtle while the request is being sent, with
+ * chunked transfer encoding and optionally gzip, so nothing but the triples themselves is held
+ * in memory:</p>
+ * 
+ * <pre>
+ * GraphStore store = new GraphStore(connection, new URL("http://localhost:8080/data"));
+ * store.setParallelism(4);
+ * long loaded = store.post(URI.create("http://example.org/graph"), triples);
+ * </pre>
+ * 
+ * <p>The triples are split into partitions of {@link #getPartitionSize()} triples, each sent in
+ * its own request, up to {@link #getParallelism()} at once over the connection pool of the data
+ * source. A partition whose request fails with an I/O error or a server error is retried. Loading
+ * the same triples twice leaves the graph as it was, so a partition without blank nodes is safe to
+ * retry even if the store had already loaded it. Partitions that were loaded before a partition
+ * finally fails stay loaded.</p>
+ * 
+ * <p>Blank node labels are scoped to a single request by the protocol, so triples that share a
+ * blank node must fall in the same partition to still share it once loaded. A partition is
+ * extended past its size for as long as the next triple has a blank node of the partition, so
+ * triples that share a blank node are kept together as long as they are adjacent in the input;
+ * a triple with a blank node of an earlier partition fails the load before it is sent. For the
+ * same reason a partition with blank nodes that the store may have loaded would be duplicated by a
+ * retry, with fresh blank nodes; once its body has been sent, such a partition is not sent again
+ * when it is appended with POST, neither here nor by the transport.</p>
+ */
+public class GraphStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(GraphStore.class);
+
+  /** Serialization used for the request bodies. */
+  public enum Format {
+    /** N-Triples, one triple per line. */
+    NTRIPLES("application/n-triples"),
+    /** Turtle, with triples grouped by subject and predicate where they are consecutive. */
+    TURTLE("text/turtle");
+
+    private final String mediaType;
+    private Format(String mediaType) {
+      this.mediaType = mediaType;
+    }
+
+    /** @return the media type sent as the request content type. */
+    public String getMediaType() {
+      return mediaType;
+    }
+  }
+
+  /** Default number of triples per request. */
+  public static final int DEFAULT_PARTITION_SIZE = 100000;
+  /** Default number of times a failed partition is sent again. */
+  public static final int DEFAULT_MAX_RETRIES = 3;
+  /** Default time, in milliseconds, before the first retry; it doubles for each further retry. */
+  public static final long DEFAULT_RETRY_DELAY = 500;
+
+  private static final int SERVER_ERROR_MIN = 500;
+  private static final int SUCCESS_MIN = 200;
+  private static final int SUCCESS_MAX = 299;
+
+  private final ProtocolConnection connection;
+  private final URL url;
+
+  private volatile Format format = Format.NTRIPLES;
+  private volatile boolean gzip = false;
+  private volatile int partitionSize = DEFAULT_PARTITION_SIZE;
+  private volatile int parallelism = 1;
+  private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+  private volatile long retryDelay = DEFAULT_RETRY_DELAY;
+
+  /**
+   * Create a client for a graph store.
+   * @param connection A connection to the data source whose HTTP transport is used.
+   * @param url The URL of the graph store service, without the graph parameter.
+   */
+  public GraphStore(ProtocolConnection connection, URL url) {
+    this.connection = connection;
+    this.url = url;
+  }
+
+  /** @return the URL of the graph store service. */
+  public URL getUrl() {
+    return url;
+  }
+
+  public Format getFormat() {
+    return format;
+  }
+
+  /** @param format The serialization to send; {@link Format#NTRIPLES} by default. */
+  public void setFormat(Format format) {
+    if (format == null) throw new NullPointerException("Format must not be null");
+    this.format = format;
+  }
+
+  public boolean isGzip() {
+    return gzip;
+  }
+
+  /** @param gzip true to compress request bodies, for stores that accept <code>Content-Encoding: gzip</code>. */
+  public void setGzip(boolean gzip) {
+    this.gzip = gzip;
+  }
+
+  public int getPartitionSize() {
+    return partitionSize;
+  }
+
+  /** @param size The number of triples sent in each request, at least 1. */
+  public void setPartitionSize(int size) {
+    if (size < 1) throw new IllegalArgumentException("Partition size must be >= 1: " + size);
+    this.partitionSize = size;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * @param parallelism The number of requests sent at once, at least 1. More than the connection
+   *        pool size of the data source only makes requests wait for connections.
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be >= 1: " + parallelism);
+    this.parallelism = parallelism;
+  }
+
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /** @param maxRetries The number of times a failed partition is sent again before giving up. */
+  public void setMaxRetries(int maxRetries) {
+    if (maxRetries < 0) throw new IllegalArgumentException("Maximum retries must be >= 0: " + maxRetries);
+    this.maxRetries = maxRetries;
+  }
+
+  public long getRetryDelay() {
+    return retryDelay;
+  }
+
+  /** @param millis The time before the first retry of a partition; it doubles for each further retry. */
+  public void setRetryDelay(long millis) {
+    if (millis < 0) throw new IllegalArgumentException("Retry delay must be >= 0: " + millis);
+    this.retryDelay = millis;
+  }
+
+  /**
+   * Replace the contents of a graph. The first partition is sent with PUT, which replaces the
+   * graph, and the rest are appended with POST once it has succeeded; an empty iterable clears
+   * the graph.
+   * @param graph The graph, or null for the default graph.
+   * @param triples The triples to load.
+   * @return The number of triples loaded.
+   * @throws SparqlException If a partition could not be loaded.
+   */
+  public long put(URI graph, Iterable<? extends Triple> triples) {
+    return load(graph, triples, true);
+  }
+
+  /**
+   * Add triples to a graph, which is created if it doesn't exist.
+   * @param graph The graph, or null for the default graph.
+   * @param triples The triples to load.
+   * @return The number of triples loaded.
+   * @throws SparqlException If a partition could not be loaded.
+   */
+  public long post(URI graph, Iterable<? extends Triple> triples) {
+    return load(graph, triples, false);
+  }
+
+  private long load(URI graph, Iterable<? extends Triple> triples, boolean replace) {
+    String target = graphUrl(graph);
+    Partitioner it = new Partitioner(triples.iterator(), partitionSize);
+    long loaded = 0;
+
+    if (replace) {
+      List<Triple> first = it.next();
+      send(target, first, true);
+      loaded += first.size();
+      if (!it.hasNext()) return loaded;
+    }
+
+    int threads = parallelism;
+    if (threads == 1) {
+      while (it.hasNext()) {
+        List<Triple> partition = it.next();
+        send(target, partition, false);
+        loaded += partition.size();
+      }
+      return loaded;
+    }
+
+    // Keep at most one partition per thread in memory, beyond those being sent.
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    LinkedList<Future<Integer>> pending = new LinkedList<Future<Integer>>();
+    try {
+      while (it.hasNext()) {
+        if (pending.size() >= threads) loaded += await(pending.removeFirst());
+        final List<Triple> partition = it.next();
+        final String t = target;
+        pending.add(executor.submit(new Callable<Integer>() {
+          public Integer call() {
+            send(t, partition, false);
+            return partition.size();
+          }
+        }));
+      }
+      while (!pending.isEmpty()) loaded += await(pending.removeFirst());
+      return loaded;
+    } finally {
+      for (Future<Integer> f : pending) f.cancel(true);
+      executor.shutdownNow();
+    }
+  }
+
+  private static int await(Future<Integer> f) {
+    try {
+      return f.get();
+    } catch (ExecutionException e) {
+      throw SparqlException.convert("Error loading triples", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SparqlException("Interrupted loading triples", e);
+    }
+  }
+
+  /**
+   * Splits triples into partitions of at least the partition size, except for the last one, and
+   * more where needed to keep adjacent triples that share a blank node together.
+   */
+  private static class Partitioner {
+    private final Iterator<? extends Triple> it;
+    private final int size;
+    /** Labels of the blank nodes in the partitions returned so far. */
+    private final Set<String> done = new HashSet<String>();
+    /** The triple read past the end of the last partition, or null. */
+    private Triple pending = null;
+
+    Partitioner(Iterator<? extends Triple> it, int size) {
+      this.it = it;
+      this.size = size;
+    }
+
+    boolean hasNext() {
+      return pending != null || it.hasNext();
+    }
+
+    /**
+     * @return The next partition; empty if there are no triples left.
+     * @throws SparqlException If a triple has a blank node from an earlier partition.
+     */
+    List<Triple> next() {
+      List<Triple> partition = new ArrayList<Triple>(Math.min(size, 1024));
+      Set<String> labels = new HashSet<String>();
+      while (hasNext()) {
+        Triple t = (pending != null) ? pending : it.next();
+        pending = null;
+        if (partition.size() >= size && !shares(t.getSubject(), labels) && !shares(t.getObject(), labels)) {
+          pending = t;
+          break;
+        }
+        add(t.getSubject(), labels);
+        add(t.getObject(), labels);
+        partition.add(t);
+      }
+      done.addAll(labels);
+      return partition;
+    }
+
+    private static boolean shares(RDFNode n, Set<String> labels) {
+      return n instanceof BlankNode && labels.contains(((BlankNode)n).getLabel());
+    }
+
+    private void add(RDFNode n, Set<String> labels) {
+      if (!(n instanceof BlankNode)) return;
+      String label = ((BlankNode)n).getLabel();
+      if (done.contains(label)) {
+        throw new SparqlException("Blank node _:" + label + " is shared with triples of an earlier " +
+            "request; triples that share a blank node must be adjacent");
+      }
+      labels.add(label);
+    }
+  }
+
+  /** @return The URL of a graph under the graph store service. */
+  private String graphUrl(URI graph) {
+    String sep = (url.getQuery() == null) ? "?" : "&";
+    if (graph == null) return url + sep + "default";
+    try {
+      return url + sep + "graph=" + URLEncoder.encode(graph.toString(), UTF_8);
+    } catch (UnsupportedEncodingException e) {
+      throw new Error("JVM unable to handle UTF-8");
+    }
+  }
+
+  /** @return true if any triple in the partition has a blank node. */
+  private static boolean hasBlankNode(List<Triple> partition) {
+    for (Triple t : partition) {
+      if (t.getSubject() instanceof BlankNode || t.getObject() instanceof BlankNode) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Send one partition, retrying on I/O and server errors unless a retry could duplicate blank nodes.
+   * @param replace true to PUT, false to POST.
+   */
+  private void send(String target, List<Triple> partition, boolean replace) {
+    TripleEntity entity = new TripleEntity(partition, format, gzip);
+    // PUT replaces the graph, so only an appended partition can be loaded twice.
+    boolean blankPost = !replace && hasBlankNode(partition);
+    entity.once = blankPost;
+    int attempt = 0;
+    while (true) {
+      entity.sent = false;
+      HttpEntityEnclosingRequestBase req = replace ? new HttpPut(target) : new HttpPost(target);
+      req.setEntity(entity);
+      req.setHeader("Content-Type", entity.getContentType().getValue());
+      if (gzip) req.setHeader("Content-Encoding", "gzip");
+      long start = System.nanoTime();
+      int code = -1;
+      String error;
+      IOException cause = null;
+      try {
+        HttpResponse response = connection.getTransport().execute(req);
+        code = response.getStatusLine().getStatusCode();
+        error = response.getStatusLine().toString();
+        HttpEntity body = response.getEntity();
+        if (body != null) body.consumeContent();
+        if (code >= SUCCESS_MIN && code <= SUCCESS_MAX) {
+          logger.debug("Loaded {} triples into <{}> in {} ms",
+              new Object[] { partition.size(), target, (System.nanoTime() - start) / 1000000 });
+          return;
+        }
+      } catch (IOException e) {
+        error = e.toString();
+        cause = e;
+      }
+      boolean retryable = (cause != null || code >= SERVER_ERROR_MIN);
+      if (retryable && blankPost && entity.sent) {
+        // The store may have loaded the partition, and its blank nodes would be loaded again as new ones.
+        error += " (not retried, the partition has blank nodes)";
+        retryable = false;
+      }
+      if (!retryable || attempt >= maxRetries) {
+        throw new SparqlException("Unable to load " + partition.size() + " triples into <" + target + ">: " + error, cause);
+      }
+      long delay = retryDelay << attempt;
+      attempt++;
+      logger.warn("Retrying load of {} triples into <{}> in {} ms after error: {}",
+          new Object[] { partition.size(), target, delay, error });
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SparqlException("Interrupted loading triples", e);
+      }
+    }
+  }
+
+  /**
+   * Request body that serializes a partition of triples as it is written, so it can be sent
+   * again on retry.
+   */
+  private static class TripleEntity extends AbstractHttpEntity {
+    private final List<Triple> triples;
+    private final Format format;
+    private final boolean gzip;
+    /** Set once the body has started to be written for the current attempt. */
+    volatile boolean sent = false;
+
+    TripleEntity(List<Triple> triples, Format format, boolean gzip) {
+      this.triples = triples;
+      this.format = format;
+      this.gzip = gzip;
+      setContentType(format.getMediaType() + "; charset=UTF-8");
+      setChunked(true);
+    }
+
+    /** Set if the body must not be sent again once it has been sent. */
+    volatile boolean once = false;
+
+    /** Refused once sent if the body is only to be sent once, so the transport won't retry it either. */
+    @Override
+    public boolean isRepeatable() {
+      return !(once && sent);
+    }
+
+    @Override
+    public long getContentLength() {
+      return -1;
+    }
+
+    @Override
+    public boolean isStreaming() {
+      return false;
+    }
+
+    /** Only used if the client needs to buffer the body; the usual path is {@link #writeTo(OutputStream)}. */
+    @Override
+    public InputStream getContent() throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      writeTo(out);
+      return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      sent = true;
+      GZIPOutputStream zip = gzip ? new GZIPOutputStream(out, 8192) : null;
+      BufferedWriter w = new BufferedWriter(new OutputStreamWriter(gzip ? zip : out, UTF_8), 8192);
+      TripleWriter tw = new TripleWriter(w, format == Format.TURTLE);
+      for (Triple t : triples) tw.write(t);
+      tw.finish();
+      w.flush();
+      if (zip != null) zip.finish();
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Opt-in policy for hedging read-only queries on a {@link ProtocolDataSource}: when the
+ * response headers of a query have not arrived after a delay, the same request is sent again,
+ * to a replica of the endpoint if any were added or over another pooled connection otherwise.
+ * Whichever response arrives first is used, and the other request is aborted.</p>
+ * 
+ * <p>The delay is a percentile of the request times measured by the data source's
+ * {@link ProtocolMetrics}, so only the slowest requests are duplicated. No request is hedged
+ * until enough have been measured, and hedges are capped to a fraction of all requests so that
+ * a slow endpoint does not get twice the load.</p>
+ */
+public class HedgePolicy {
+
+  /** Default percentile of request times after which a request is hedged. */
+  public static final double DEFAULT_PERCENTILE = 95.0;
+  /** Default minimum hedge delay, in milliseconds. */
+  public static final long DEFAULT_MIN_DELAY = 10;
+  /** Default number of requests to measure before hedging. */
+  public static final int DEFAULT_MIN_SAMPLES = 20;
+  /** Default cap on hedged requests, as a fraction of all requests. */
+  public static final double DEFAULT_MAX_HEDGE_RATIO = 0.1;
+
+  private final double percentile;
+  private volatile long minDelay = DEFAULT_MIN_DELAY;
+  private volatile int minSamples = DEFAULT_MIN_SAMPLES;
+  private volatile double maxHedgeRatio = DEFAULT_MAX_HEDGE_RATIO;
+
+  private final List<URL> replicas = new CopyOnWriteArrayList<URL>();
+  private final AtomicInteger nextReplica = new AtomicInteger();
+
+  /** Hedge requests slower than the {@link #DEFAULT_PERCENTILE}th percentile. */
+  public HedgePolicy() {
+    this(DEFAULT_PERCENTILE);
+  }
+
+  /**
+   * Hedge requests slower than a percentile of the measured request times.
+   * @param percentile The percentile, between 0 and 100 exclusive.
+   */
+  public HedgePolicy(double percentile) {
+    if (percentile <= 0 || percentile >= 100) {
+      throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+    }
+    this.percentile = percentile;
+  }
+
+  public double getPercentile() {
+    return percentile;
+  }
+
+  public long getMinDelay() {
+    return minDelay;
+  }
+
+  /** @param millis The shortest time to wait before hedging, whatever the percentile. */
+  public void setMinDelay(long millis) {
+    if (millis < 0) throw new IllegalArgumentException("Minimum delay must be >= 0: " + millis);
+    this.minDelay = millis;
+  }
+
+  public int getMinSamples() {
+    return minSamples;
+  }
+
+  /** @param minSamples The number of requests to measure before the percentile is trusted. */
+  public void setMinSamples(int minSamples) {
+    if (minSamples < 0) throw new IllegalArgumentException("Minimum samples must be >= 0: " + minSamples);
+    this.minSamples = minSamples;
+  }
+
+  public double getMaxHedgeRatio() {
+    return maxHedgeRatio;
+  }
+
+  /** @param ratio The largest fraction of requests that may be hedged, between 0 and 1. */
+  public void setMaxHedgeRatio(double ratio) {
+    if (ratio < 0 || ratio > 1) throw new IllegalArgumentException("Hedge ratio must be between 0 and 1: " + ratio);
+    this.maxHedgeRatio = ratio;
+  }
+
+  /**
+   * Add a replica of the endpoint to send hedged requests to. Replicas are used in turn; with
+   * none, hedged requests go to the data source's own endpoint.
+   * @param url The SPARQL endpoint URL of the replica.
+   */
+  public void addReplica(URL url) {
+    replicas.add(url);
+  }
+
+  /** @return The replicas that hedged requests are sent to. */
+  public List<URL> getReplicas() {
+    return replicas;
+  }
+
+  /**
+   * Decide whether and when to hedge the next request.
+   * @param metrics The measurements of the data source.
+   * @return The delay in milliseconds, or -1 not to hedge.
+   */
+  long getDelay(ProtocolMetrics metrics) {
+    long requests = metrics.getRequestCount();
+    if (requests < minSamples || metrics.getHedgeCount() >= requests * maxHedgeRatio) return -1;
+    return Math.max(minDelay, (long)Math.ceil(metrics.requestPercentileMillis(percentile)));
+  }
+
+  /** @return The URL to send the next hedged request to. */
+  URL nextUrl(URL primary) {
+    List<URL> r = replicas;
+    if (r.isEmpty()) return primary;
+    return r.get((nextReplica.getAndIncrement() & Integer.MAX_VALUE) % r.size());
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * <p>Sends the HTTP requests of a {@link ProtocolDataSource}. {@link SparqlCall} builds each
+ * request and hands it to the transport of the data source, so the way connections are opened,
+ * shared and reused can be replaced without touching the SPARQL protocol code; for instance by a
+ * transport that multiplexes requests over a few HTTP/2 connections.</p>
+ * 
+ * <p>Implementations must be thread-safe. The entity of a returned response holds on to its
+ * connection until its content is consumed or closed, and a request must be abortable with
+ * {@link HttpUriRequest#abort()} from another thread while it executes, since that is how
+ * commands are cancelled. A request with a body must not be sent again once it has gone out,
+ * since the server may have acted on it; callers decide for themselves whether to retry.</p>
+ */
+public interface HttpTransport {
+
+  /** Creates the transport of a data source when its first connection is made. */
+  interface Factory {
+    /**
+     * @param source The data source; its pool size, acquire timeout and metrics are configured.
+     * @return A new transport for the data source.
+     */
+    HttpTransport createTransport(ProtocolDataSource source);
+  }
+
+  /**
+   * Execute a request.
+   * @param request The request, addressed to the endpoint or its cancel URL.
+   * @return The response, whatever its status.
+   * @throws IOException If the request could not be sent or the response could not be read.
+   */
+  HttpResponse execute(HttpUriRequest request) throws IOException;
+
+  /** Close all connections. Called when the data source is closed. */
+  void shutdown();
+}
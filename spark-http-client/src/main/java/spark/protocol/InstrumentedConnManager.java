@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Connection pool that keeps track of leased connections and waiting threads, and reports how
+ * long each connection took to acquire.
+ */
+class InstrumentedConnManager extends ThreadSafeClientConnManager {
+
+  private final ProtocolMetrics metrics;
+  private final int maxConnections;
+  private final Set<ManagedClientConnection> leased =
+      Collections.newSetFromMap(new ConcurrentHashMap<ManagedClientConnection,Boolean>());
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicLong opened = new AtomicLong();
+
+  InstrumentedConnManager(HttpParams params, SchemeRegistry schemes, int maxConnections, ProtocolMetrics metrics) {
+    super(params, schemes);
+    this.maxConnections = maxConnections;
+    this.metrics = metrics;
+  }
+
+  int getMaxConnections() {
+    return maxConnections;
+  }
+
+  int getLeased() {
+    return leased.size();
+  }
+
+  int getPending() {
+    return pending.get();
+  }
+
+  long getOpened() {
+    return opened.get();
+  }
+
+  int getAvailable() {
+    return Math.max(0, getConnectionsInPool() - leased.size());
+  }
+
+  @Override
+  public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+    final ClientConnectionRequest request = super.requestConnection(route, state);
+    return new ClientConnectionRequest() {
+      @Override
+      public ManagedClientConnection getConnection(long timeout, TimeUnit tunit)
+          throws InterruptedException, ConnectionPoolTimeoutException {
+        pending.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+          ManagedClientConnection conn = request.getConnection(timeout, tunit);
+          leased.add(conn);
+          // A connection that isn't open yet will be connected for this request.
+          if (!conn.isOpen()) opened.incrementAndGet();
+          metrics.connectionAcquired(System.nanoTime() - start);
+          return conn;
+        } finally {
+          pending.decrementAndGet();
+        }
+      }
+
+      @Override
+      public void abortRequest() {
+        request.abortRequest();
+      }
+    };
+  }
+
+  @Override
+  public void releaseConnection(ManagedClientConnection conn, long validDuration, TimeUnit timeUnit) {
+    leased.remove(conn);
+    super.releaseConnection(conn, validDuration, timeUnit);
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, in buckets of powers of two microseconds. Cheap enough to
+ * update on every request; percentiles are reported as the upper bound of their bucket.
+ */
+class LatencyHistogram {
+
+  private static final int BUCKETS = 40;
+  private static final double MICROS_PER_MILLI = 1000.0;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+
+  /** Record a duration. */
+  void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+    long micros = nanos / 1000;
+    int bucket = (micros == 0) ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    buckets.incrementAndGet(bucket);
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+  }
+
+  /** @return The number of durations recorded. */
+  long count() {
+    return count.get();
+  }
+
+  /** @return The sum of all durations recorded, in nanoseconds. */
+  long totalNanos() {
+    return totalNanos.get();
+  }
+
+  /** @return The mean duration in milliseconds, or 0 if nothing was recorded. */
+  double meanMillis() {
+    long n = count.get();
+    return (n == 0) ? 0.0 : totalNanos.get() / (n * 1000.0 * MICROS_PER_MILLI);
+  }
+
+  /**
+   * Estimate a percentile.
+   * @param p The percentile, between 0 and 100.
+   * @return The upper bound of the bucket holding the percentile, in milliseconds.
+   */
+  double percentileMillis(double p) {
+    long n = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) n += (snapshot[i] = buckets.get(i));
+    if (n == 0) return 0.0;
+    long rank = (long)Math.ceil(n * p / 100.0);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) return (1L << i) / MICROS_PER_MILLI;
+    }
+    return (1L << (BUCKETS - 1)) / MICROS_PER_MILLI;
+  }
+
+  /** Discard all recorded durations. */
+  void reset() {
+    for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+    count.set(0);
+    totalNanos.set(0);
+  }
+}
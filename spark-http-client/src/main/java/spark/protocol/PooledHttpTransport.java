@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * <p>The default {@link HttpTransport}: a pool of persistent HTTP/1.1 connections to the endpoint,
+ * sized by {@link ProtocolDataSource#setConnectionPoolSize(int)}. Concurrent commands share the
+ * pool, waiting up to the acquire timeout of the data source when all connections are busy.</p>
+ * 
+ * <p>Connections are kept open between requests for as long as the server allows, so a run of
+ * queries normally costs a single TCP (and TLS) handshake. Rather than checking every connection
+ * for staleness before each request, which costs a read with a timeout per request, connections
+ * are closed in passing before they have been idle for the idle timeout of the data source, and a
+ * request without a body on a connection that the server dropped is retried.</p>
+ * 
+ * <p>A request with a body (an update, a graph store upload, or a long query) is never sent twice:
+ * its connection is checked for staleness first, and if the connection fails after the request
+ * went out the error is reported rather than the request retried, since the server may already
+ * have acted on it.</p>
+ */
+public class PooledHttpTransport implements HttpTransport {
+
+  /** Creates a pooled transport with the idle timeout of the data source. */
+  public static final HttpTransport.Factory FACTORY = new HttpTransport.Factory() {
+    @Override
+    public HttpTransport createTransport(ProtocolDataSource source) {
+      return new PooledHttpTransport(source, source.getIdleTimeout() * 1000L);
+    }
+  };
+
+  /** Retries requests on a dropped connection, except for requests with a body that were sent. */
+  private static final HttpRequestRetryHandler RETRY_HANDLER = new DefaultHttpRequestRetryHandler() {
+    @Override
+    public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+      HttpRequest request = (HttpRequest)context.getAttribute(ExecutionContext.HTTP_REQUEST);
+      Boolean sent = (Boolean)context.getAttribute(ExecutionContext.HTTP_REQ_SENT);
+      if (request instanceof HttpEntityEnclosingRequest && sent != null && sent.booleanValue()) return false;
+      return super.retryRequest(exception, executionCount, context);
+    }
+  };
+
+  // HTTP/HTTPS scheme constants.
+  private static final String HTTP_SCHEME = "http";
+  private static final String HTTPS_SCHEME = "https";
+  private static final int HTTP_PORT = 80;
+  private static final int HTTPS_PORT = 443;
+
+  private final InstrumentedConnManager connManager;
+  private final DefaultHttpClient client;
+  private final ProtocolMetrics metrics;
+  private final long idleTimeout;
+  private final AtomicLong lastEviction = new AtomicLong(System.nanoTime());
+
+  /**
+   * Create a connection pool for a data source.
+   * @param source The data source.
+   * @param idleTimeout Time in milliseconds that an unused connection may be kept open; should be
+   *        shorter than the keep-alive timeout of the server.
+   */
+  public PooledHttpTransport(ProtocolDataSource source, long idleTimeout) {
+    this.idleTimeout = idleTimeout;
+    this.metrics = source.getMetrics();
+    int poolSize = source.getConnectionPoolSize();
+
+    HttpParams connMgrParams = new BasicHttpParams();
+    
+    SchemeRegistry schemeRegistry = new SchemeRegistry();
+    schemeRegistry.register(new Scheme(HTTP_SCHEME, PlainSocketFactory.getSocketFactory(), HTTP_PORT));
+    schemeRegistry.register(new Scheme(HTTPS_SCHEME, SSLSocketFactory.getSocketFactory(), HTTPS_PORT));
+    
+    // All connections will be to the same endpoint, so no need for per-route configuration.
+    // TODO See how this does in the presence of redirects.
+    ConnManagerParams.setMaxTotalConnections(connMgrParams, poolSize);
+    ConnManagerParams.setMaxConnectionsPerRoute(connMgrParams, new ConnPerRouteBean(poolSize));
+    
+    connManager = new InstrumentedConnManager(connMgrParams, schemeRegistry, poolSize, metrics);
+    metrics.setPool(connManager);
+    
+    HttpParams httpParams = new BasicHttpParams();
+    HttpProtocolParams.setUseExpectContinue(httpParams, false);
+    // Idle connections are evicted instead, see evictIdle().
+    HttpConnectionParams.setStaleCheckingEnabled(httpParams, false);
+    ConnManagerParams.setTimeout(httpParams, source.getAcquireTimeout() * 1000L);
+    client = new DefaultHttpClient(connManager, httpParams);
+    client.setHttpRequestRetryHandler(RETRY_HANDLER);
+  }
+
+  @Override
+  public HttpResponse execute(HttpUriRequest request) throws IOException {
+    evictIdle();
+    if (request instanceof HttpEntityEnclosingRequest) {
+      // Not retried once sent, so don't send it on a connection the server has already dropped.
+      HttpConnectionParams.setStaleCheckingEnabled(request.getParams(), true);
+    }
+    return client.execute(request);
+  }
+
+  /**
+   * Close connections idle for longer than half the idle timeout, at most once per half timeout,
+   * so that no connection is reused after being idle for the whole timeout.
+   */
+  private void evictIdle() {
+    long half = idleTimeout / 2;
+    long now = System.nanoTime();
+    long last = lastEviction.get();
+    if (now - last >= TimeUnit.MILLISECONDS.toNanos(half) && lastEviction.compareAndSet(last, now)) {
+      connManager.closeExpiredConnections();
+      connManager.closeIdleConnections(half, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    metrics.setPool(null);
+    connManager.shutdown();
+  }
+}
@@ -15,6 +15,11 @@
  */
 package spark.protocol;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -30,6 +35,7 @@ import spark.api.Triples;
 import spark.api.exception.SparqlException;
 import spark.protocol.parser.ResultFactory;
 import spark.spi.BaseCommand;
+import spark.spi.util.Deadline;
 
 /**
  * A SPARQL API Command for executing commands to the SPARQL endpoint.
@@ -64,9 +70,27 @@ public class ProtocolCommand extends BaseCommand {
   /** The request being executed for this command. */
   private HttpUriRequest request = null;
   
+  /** Client-assigned ID of the request being executed, or null if the endpoint doesn't use them. */
+  private String queryId = null;
+  
+  /** Duplicate of the request sent by a hedged execution, until one of the two has answered. */
+  private HttpUriRequest hedgeRequest = null;
+  
+  /** Client-assigned ID of the hedge request, or null if it did not go to this endpoint. */
+  private String hedgeQueryId = null;
+  
+  /** Aborts the executing request when its deadline passes, or null if it has none. */
+  private ScheduledFuture<?> expiry = null;
+  
+  /** Counts the requests set on this command, so that an expiry only cancels its own execution. */
+  private long execution = 0;
+  
   /** Media content type for content negotiation. */
   private String contentType = null;
   
+  /** Update operations batched for the next {@link #executeUpdate()}, protected by "this" lock. */
+  private List<String> updates = new ArrayList<String>();
+  
   /** Create a SPARQL protcol command to execute over the given connection. */
   ProtocolCommand(ProtocolConnection connection, String command) {
     super(connection, command);
@@ -107,37 +131,185 @@ public class ProtocolCommand extends BaseCommand {
     return (Solutions)execute(ResultType.SELECT);
   }
   
+  /**
+   * Adds an update operation to the batch sent by the next {@link #executeUpdate()}.
+   * @param operation A SPARQL UPDATE operation, such as <code>INSERT DATA { ... }</code>.
+   */
+  public synchronized void addUpdate(String operation) {
+    updates.add(operation);
+  }
+  
+  /** @return the update operations batched for the next {@link #executeUpdate()}. */
+  public synchronized List<String> getUpdates() {
+    return Collections.unmodifiableList(updates);
+  }
+  
+  /** Discards the batched update operations. */
+  public synchronized void clearUpdates() {
+    updates = new ArrayList<String>();
+  }
+  
+  /**
+   * Executes the command string as a SPARQL UPDATE request, followed by any operations added
+   * with {@link #addUpdate(String)}; a blank command string only sends the batch. Operations are
+   * sent together, up to {@link ProtocolDataSource#getUpdateBatchSize()} per request, in a body
+   * streamed to the update endpoint. The batch is cleared once sent. If a request fails, the
+   * requests before it have already been applied.
+   */
+  @Override
+  public void executeUpdate() {
+    List<String> ops;
+    synchronized (this) {
+      ops = new ArrayList<String>(updates.size() + 1);
+      String cmd = getCommand();
+      if (cmd != null && cmd.trim().length() > 0) ops.add(cmd);
+      ops.addAll(updates);
+      updates = new ArrayList<String>();
+    }
+    int batchSize = ((ProtocolDataSource)getConnection().getDataSource()).getUpdateBatchSize();
+    // One deadline for all of the batches.
+    Deadline deadline = Deadline.forCommand(this);
+    for (int i = 0; i < ops.size(); i += batchSize) {
+      try {
+        SparqlCall.executeUpdate(this, ops.subList(i, Math.min(ops.size(), i + batchSize)), deadline);
+      } finally {
+        release();
+      }
+    }
+  }
+  
   @Override
   public void cancel() {
+    String cancelId = null;
+    String hedgeCancelId = null;
     requestLock.lock();
     try {
-      if (request != null) request.abort();
+      if (request != null) {
+        request.abort();
+        cancelId = queryId;
+      }
+      if (hedgeRequest != null) {
+        hedgeRequest.abort();
+        hedgeCancelId = hedgeQueryId;
+      }
     } finally {
       requestLock.unlock();
     }
+    // Aborting only drops the connection; ask the server to stop working on the query too.
+    // Done outside the lock, after the abort has returned the connection to the pool.
+    if (cancelId != null) SparqlCall.cancelRequest(this, cancelId);
+    if (hedgeCancelId != null) SparqlCall.cancelRequest(this, hedgeCancelId);
   }
   
   /** Releases the currently executing request, freeing this command to be re-executed if desired. */
   public void release() {
     requestLock.lock();
     try {
+      if (expiry != null) {
+        ((ProtocolDataSource)getConnection().getDataSource()).cancelExpiry(expiry);
+      }
+      this.expiry = null;
       this.request = null;
+      this.queryId = null;
+      this.hedgeRequest = null;
+      this.hedgeQueryId = null;
     } finally {
       requestLock.unlock();
     }
   }
   
-  /** Sets the currently executing request. */
-  void setRequest(HttpUriRequest request) {
+  /**
+   * Sets the currently executing request.
+   * @param request The HTTP request.
+   * @param queryId The ID the request was tagged with for cancellation, or null.
+   * @param deadline When to cancel the request if it has not been released by then.
+   */
+  void setRequest(HttpUriRequest request, String queryId, Deadline deadline) {
     requestLock.lock();
     try {
       if (this.request != null) {
         throw new SparqlException("Command is already executing a request.");
       }
       this.request = request;
+      this.queryId = queryId;
+      final long current = ++execution;
+      if (deadline.isBounded()) {
+        final ProtocolDataSource ds = (ProtocolDataSource)getConnection().getDataSource();
+        expiry = ds.getTimer().schedule(new Runnable() {
+          public void run() {
+            // Cancelling may call the server, so keep it off the timer thread.
+            ds.getExecutor().execute(new Runnable() {
+              public void run() { expire(current); }
+            });
+          }
+        }, deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+      }
+    } finally {
+      requestLock.unlock();
+    }
+  }
+  
+  /**
+   * Cancels an execution whose deadline has passed, unless it has already been released. The
+   * request may have been replaced by the hedge that won, which is then the one cancelled.
+   * @param expired The execution, as counted by {@link #setRequest(HttpUriRequest, String, Deadline)}.
+   */
+  private void expire(long expired) {
+    requestLock.lock();
+    try {
+      if (request == null || execution != expired) return;
+    } finally {
+      requestLock.unlock();
+    }
+    logger.debug("Deadline passed, cancelling request");
+    cancel();
+  }
+  
+  /**
+   * Sets the duplicate of the executing request sent by a hedged execution.
+   * @param request The HTTP request.
+   * @param queryId The ID the request was tagged with for cancellation, or null.
+   * @return false if the command is no longer executing (it was cancelled), so the hedge must not be sent.
+   */
+  boolean setHedgeRequest(HttpUriRequest request, String queryId) {
+    requestLock.lock();
+    try {
+      if (this.request == null || this.request.isAborted()) return false;
+      this.hedgeRequest = request;
+      this.hedgeQueryId = queryId;
+      return true;
+    } finally {
+      requestLock.unlock();
+    }
+  }
+  
+  /**
+   * Ends the race of a hedged execution: the request that answered first becomes the executing
+   * request, and the other one is aborted.
+   * @param winner The request whose response is used.
+   */
+  void settleHedge(HttpUriRequest winner) {
+    HttpUriRequest loser;
+    String cancelId;
+    requestLock.lock();
+    try {
+      if (hedgeRequest == null) return;
+      if (winner == hedgeRequest) {
+        loser = request;
+        cancelId = queryId;
+        request = hedgeRequest;
+        queryId = hedgeQueryId;
+      } else {
+        loser = hedgeRequest;
+        cancelId = hedgeQueryId;
+      }
+      hedgeRequest = null;
+      hedgeQueryId = null;
     } finally {
       requestLock.unlock();
     }
+    loser.abort();
+    if (cancelId != null) SparqlCall.cancelRequest(this, cancelId);
   }
   
   /** Executes the request, and parses the response. */
@@ -159,11 +331,19 @@ public class ProtocolCommand extends BaseCommand {
       logRequest(cmdType, mimeType);
     }
     
+    Deadline deadline = Deadline.forCommand(this);
     try {
-      HttpResponse response = SparqlCall.executeRequest(this, mimeType);
-      return ResultFactory.getResult(this, response, cmdType);
+      // Only queries with a known result type are read-only, and so safe to hedge.
+      HttpResponse response = SparqlCall.executeRequest(this, mimeType, cmdType != null, deadline);
+      long start = System.nanoTime();
+      Result result = ResultFactory.getResult(this, response, cmdType);
+      ((ProtocolDataSource)getConnection().getDataSource()).getMetrics().resultParsed(System.nanoTime() - start);
+      // A boolean result is read in full, so the request is done with; streamed results release it when closed.
+      if (result instanceof BooleanResult) release();
+      return result;
     } catch (Throwable t) {
       release();
+      if (deadline.isExpired()) throw new SparqlException("Deadline passed while executing the command", t);
       throw SparqlException.convert("Error creating SPARQL result from server response", t);
     }
   }
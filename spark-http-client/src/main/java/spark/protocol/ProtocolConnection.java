@@ -15,6 +15,8 @@
  */
 package spark.protocol;
 
+import java.util.concurrent.Executor;
+
 import org.apache.http.client.HttpClient;
 
 import spark.api.Connection;
@@ -26,11 +28,11 @@ import spark.spi.BaseConnection;
  * <p>
  * A SPARQL API Connection connected to a SPARQL endpoint. Ideally we would like to maintain a
  * low-level HTTP connection in this class for re-use by all commands originating from this
- * connection. However, we've made the design decision to use the Apache {@link HttpClient}
- * for executing HTTP requests because of the long list of features which it automatically provides
- * (redirect handling, authentication, proxying, connection pooling, etc). The HttpClient gets an
- * HTTP connection from the pool for each request that is executed, and releases it when the 
- * request is complete.
+ * connection. However, we've made the design decision to use the Apache {@link HttpClient},
+ * behind a pluggable {@link HttpTransport}, for executing HTTP requests because of the long list
+ * of features which it automatically provides (redirect handling, authentication, proxying,
+ * connection pooling, etc). The transport gets an HTTP connection from the pool for each request
+ * that is executed, and releases it when the request is complete.
  * </p>
  * 
  * <p>
@@ -45,13 +47,13 @@ import spark.spi.BaseConnection;
  */
 public class ProtocolConnection extends BaseConnection implements Connection {
 
-  /** The HTTP client which is shared by all connections originating from the parent data source. */
-  private final HttpClient httpClient;
+  /** The HTTP transport which is shared by all connections originating from the parent data source. */
+  private final HttpTransport transport;
   
-  ProtocolConnection(ProtocolDataSource dataSource, HttpClient httpClient, Credentials creds) {
+  ProtocolConnection(ProtocolDataSource dataSource, HttpTransport transport, Credentials creds) {
     super(dataSource);
-    if (httpClient == null) throw new IllegalArgumentException("Missing HTTP client.");
-    this.httpClient = httpClient;
+    if (transport == null) throw new IllegalArgumentException("Missing HTTP transport.");
+    this.transport = transport;
     // TODO: something with creds
   }
   
@@ -66,8 +68,14 @@ public class ProtocolConnection extends BaseConnection implements Connection {
     return null;
   }
 
-  /** Gets the shared HTTP client backing this connection. */
-  HttpClient getHttpClient() {
-    return httpClient;
+  /** Runs executeAll commands on the threads shared by all connections of the data source. */
+  @Override
+  protected Executor getExecutor() {
+    return ((ProtocolDataSource)getDataSource()).getExecutor();
+  }
+
+  /** Gets the shared HTTP transport backing this connection. */
+  HttpTransport getTransport() {
+    return transport;
   }
 }
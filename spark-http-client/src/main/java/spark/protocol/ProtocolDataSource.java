@@ -17,20 +17,12 @@ package spark.protocol;
 
 import java.net.MalformedURLException;
 import java.net.URL;
-
-import org.apache.http.client.HttpClient;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import spark.api.Command;
 import spark.api.Credentials;
@@ -65,15 +57,23 @@ public class ProtocolDataSource implements DataSource {
   public static final int DEFAULT_POOL_SIZE = 10;
   /** Default acquire timeout for new ProtocolDataSource instances. */
   public static final int DEFAULT_ACQUIRE_TIMEOUT = NO_ACQUIRE_TIMEOUT;
+  /** Default idle timeout for new ProtocolDataSource instances; below the usual server keep-alive of 5 seconds. */
+  public static final int DEFAULT_IDLE_TIMEOUT = 4;
+  
+  /** Default longest URL, in characters, for which a query is sent by GET rather than POST. */
+  public static final int DEFAULT_MAX_GET_LENGTH = 1024;
+  
+  /** Default maximum number of update operations sent in one request. */
+  public static final int DEFAULT_UPDATE_BATCH_SIZE = 1000;
+  
+  /** Placeholder for the query ID in a cancel URL template. */
+  public static final String QUERY_ID_TOKEN = "{queryId}";
   
-  // HTTP/HTTPS scheme constants.
-  private static final String HTTP_SCHEME = "http";
-  private static final String HTTPS_SCHEME = "https";
-  private static final int HTTP_PORT = 80;
-  private static final int HTTPS_PORT = 443;
+  /** Thread-safe, re-usable HTTP transport passed to child connections. */
+  private HttpTransport transport = null;
   
-  /** Thread-safe, re-usable HTTP client passed to child connections. */
-  private HttpClient httpClient = null;
+  /** Creates the transport; must be set before the first connection is created. */
+  private HttpTransport.Factory transportFactory = PooledHttpTransport.FACTORY;
   
   /** Connection pool size; must be set before the first connection is created. */
   private int poolSize = DEFAULT_POOL_SIZE;
@@ -81,9 +81,54 @@ public class ProtocolDataSource implements DataSource {
   /** Connection pool acquire timeout; must be set before the first connection is created. */
   private int acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
   
+  /** Time unused connections are kept open; must be set before the first connection is created. */
+  private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+  
   /** The endpoint URL. */
   private final URL url;
   
+  /** The update endpoint URL, or null if it is the query endpoint. */
+  private volatile URL updateUrl = null;
+  
+  /** Maximum number of update operations per request. */
+  private volatile int updateBatchSize = DEFAULT_UPDATE_BATCH_SIZE;
+  
+  /** Longest URL for which queries are sent by GET. */
+  private volatile int maxGetLength = DEFAULT_MAX_GET_LENGTH;
+  
+  /** Whether POSTed queries are sent as the request body rather than form-encoded. */
+  private volatile boolean directPost = false;
+  
+  /** Request parameter used to send a client-assigned query ID, or null if not supported. */
+  private volatile String queryIdParameter = null;
+  
+  /** URL template used to cancel a query by ID, or null if not supported. */
+  private volatile String cancelUrlTemplate = null;
+  
+  /** Request parameter used to send the time left before a query's deadline, or null if not supported. */
+  private volatile String timeoutParameter = null;
+  
+  /** Policy for hedging slow read-only queries, or null not to hedge. */
+  private volatile HedgePolicy hedgePolicy = null;
+  
+  /** Adaptive limit on concurrent requests, or null for no limit beyond the pool size. */
+  private volatile ConcurrencyLimiter concurrencyLimiter = null;
+  
+  /** Sends the requests of hedged queries and runs executeAll commands; created on first use. */
+  private ExecutorService executor = null;
+  
+  /** Aborts requests whose command deadline has passed; created on first use. */
+  private ScheduledThreadPoolExecutor timer = null;
+  
+  /** Number of expiry tasks cancelled on the timer, to purge them from its queue now and then. */
+  private final AtomicInteger cancelledExpiries = new AtomicInteger();
+  
+  /** Cancelled expiry tasks purged from the timer queue at a time. */
+  private static final int PURGE_INTERVAL = 256;
+  
+  /** Pool and request measurements for this data source. */
+  private final ProtocolMetrics metrics = new ProtocolMetrics(this);
+  
   /**
    * Construct a ProtocolDataSource with a SPARQL endpoint URL as a string
    * @param url The url string
@@ -109,21 +154,65 @@ public class ProtocolDataSource implements DataSource {
     return this.url;
   }
   
+  /** @return the URL that updates are sent to: the update endpoint if one was set, otherwise the query endpoint. */
+  public URL getUpdateUrl() {
+    URL u = updateUrl;
+    return (u != null) ? u : url;
+  }
+
+  /**
+   * Sets the endpoint that SPARQL UPDATE requests are sent to, for servers that separate it from
+   * the query endpoint.
+   * @param updateUrl The update endpoint URL, or null to use the query endpoint.
+   */
+  public void setUpdateUrl(URL updateUrl) {
+    this.updateUrl = updateUrl;
+  }
+
+  /** @return the maximum number of update operations sent in one request. */
+  public int getUpdateBatchSize() {
+    return updateBatchSize;
+  }
+
+  /**
+   * Sets the maximum number of update operations that {@link ProtocolCommand#executeUpdate()}
+   * combines into one request; larger batches are split.
+   * @param size The number of operations, at least 1.
+   */
+  public void setUpdateBatchSize(int size) {
+    if (size < 1) throw new IllegalArgumentException("Update batch size must be >= 1: " + size);
+    this.updateBatchSize = size;
+  }
+
   @Override
   public ProtocolConnection getConnection(Credentials creds) {
-    return new ProtocolConnection(this, getClient(true), creds);
+    return new ProtocolConnection(this, getTransport(), creds);
   }
 
   @Override
   public void close() {
-    HttpClient client = null;
+    HttpTransport t = null;
     synchronized(this) {
-      client = httpClient;
-      httpClient = null;
+      t = transport;
+      transport = null;
+      if (executor != null) executor.shutdownNow();
+      executor = null;
+      if (timer != null) timer.shutdownNow();
+      timer = null;
     }
-    if (client != null) {
-      client.getConnectionManager().shutdown();
+    if (t != null) {
+      t.shutdown();
     }
+    metrics.unregisterMBean();
+  }
+
+  /**
+   * Gets the measurements for this data source: connection pool usage, request and parse times,
+   * and result volumes. Use {@link ProtocolMetrics#registerMBean()} to publish them over JMX.
+   * @return The metrics, which live as long as this data source.
+   */
+  public ProtocolMetrics getMetrics() {
+    return metrics;
   }
 
   /** @return the maximum size of the connection pool. */
@@ -136,7 +225,7 @@ public class ProtocolDataSource implements DataSource {
    * @param poolSize The maximum number of connections that can be in use at any one time for this data source.
    */
   public synchronized void setConnectionPoolSize(int poolSize) {
-    if (httpClient != null) {
+    if (transport != null) {
       throw new IllegalStateException("Cannot set the connection pool size after it is in use.");
     }
     this.poolSize = poolSize;
@@ -157,50 +246,232 @@ public class ProtocolDataSource implements DataSource {
    * <b>Note:</b> HTTP connections are not acquired from the pool until a command is executed.
    * Setting this parameter has no effect on the call to {@link #getConnection(Credentials)}; that
    * method always return immediately. Instead, setting this parameter affects calls to
-   * {@link Command#execute()}; the observed timeout on that method can be as large as the sum
-   * of this connection pool acquire timeout plus the value of {@link Command#getTimeout()}.
+   * {@link Command#execute()}. The wait for a connection counts against the timeout or deadline
+   * of the command, and never runs past it.
    * </p>
    * 
    * @param seconds The maximum amount of time, in seconds, that a command will wait for a connection
    *        to become available from the pool before giving up and throwing an exception.
    */
   public synchronized void setAcquireTimeout(int seconds) {
-    if (httpClient != null) {
+    if (transport != null) {
       throw new IllegalStateException("Cannot set the connection pool acquire timeout after it is in use.");
     }
     this.acquireTimeout = seconds;
   }
 
-  /** Gets the (re-usable) HTTP client backing this data source, creating it if necessary. */
-  private synchronized HttpClient getClient(boolean create) {
-    if (httpClient == null && create) {
-      httpClient = createPooledClient();
+  /** @return the time, in seconds, that an unused connection is kept open. */
+  public int getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Sets the time that an unused connection is kept open for the next command. This should be
+   * shorter than the keep-alive timeout of the server, so that connections are closed by the
+   * client before the server drops them.
+   * @param seconds The idle timeout in seconds; at least 1.
+   */
+  public synchronized void setIdleTimeout(int seconds) {
+    if (seconds < 1) throw new IllegalArgumentException("Idle timeout must be >= 1: " + seconds);
+    if (transport != null) {
+      throw new IllegalStateException("Cannot set the connection idle timeout after it is in use.");
+    }
+    this.idleTimeout = seconds;
+  }
+
+  /** @return the longest URL, in characters, for which a query is sent by GET. */
+  public int getMaxGetLength() {
+    return maxGetLength;
+  }
+
+  /**
+   * Sets the longest URL for which a query is sent by GET; longer queries are POSTed. Many
+   * servers and proxies refuse URLs longer than a few kilobytes.
+   * @param length The length in characters, including the endpoint URL and encoded parameters;
+   *        0 to POST every query.
+   */
+  public void setMaxGetLength(int length) {
+    if (length < 0) throw new IllegalArgumentException("Maximum GET length must be >= 0: " + length);
+    this.maxGetLength = length;
+  }
+
+  /** @return true if POSTed queries are sent as <code>application/sparql-query</code> bodies. */
+  public boolean isDirectPost() {
+    return directPost;
+  }
+
+  /**
+   * Sets how queries that are too long for GET are POSTed: either as form-encoded parameters,
+   * which every SPARQL endpoint accepts, or (SPARQL 1.1 only) as the unencoded query text with
+   * content type <code>application/sparql-query</code>, which is smaller and cheaper to produce.
+   * Either way the body is encoded as it is written to the connection.
+   * @param directPost true to send the query text as the body, false (the default) to form-encode it.
+   */
+  public void setDirectPost(boolean directPost) {
+    this.directPost = directPost;
+  }
+
+  /** @return the request parameter used to send the time left before a query's deadline, or null. */
+  public String getTimeoutParameter() {
+    return timeoutParameter;
+  }
+
+  /**
+   * Sets the name of the request parameter used to tell the endpoint how long it has to answer a
+   * query, for endpoints that take a timeout in milliseconds with each query (e.g.
+   * <code>timeout</code>). The value sent is the time left before the deadline of the command,
+   * see {@link Command#setTimeout(long)} and {@link Command#setDeadline(long)}; nothing is sent
+   * for commands without one.
+   * @param timeoutParameter The parameter name, or null to not send timeouts.
+   */
+  public void setTimeoutParameter(String timeoutParameter) {
+    this.timeoutParameter = timeoutParameter;
+  }
+
+  /** @return the request parameter used to send a client-assigned ID with each query, or null. */
+  public String getQueryIdParameter() {
+    return queryIdParameter;
+  }
+
+  /**
+   * Sets the name of the request parameter used to send a client-assigned ID with each query,
+   * for endpoints that let clients name their queries (e.g. <code>queryId</code>). The ID is
+   * used to cancel the query on the server, see {@link #setCancelUrlTemplate(String)}.
+   * @param queryIdParameter The parameter name, or null to not send query IDs.
+   */
+  public void setQueryIdParameter(String queryIdParameter) {
+    this.queryIdParameter = queryIdParameter;
+  }
+
+  /** @return the URL template used to cancel a query by ID, or null. */
+  public String getCancelUrlTemplate() {
+    return cancelUrlTemplate;
+  }
+
+  /**
+   * <p>
+   * Sets the URL used to cancel a running query on the server. The URL must contain
+   * {@link #QUERY_ID_TOKEN}, which is replaced by the query ID, e.g.
+   * <code>http://localhost:9999/sparql?cancelQuery&amp;queryId={queryId}</code>.
+   * </p>
+   * 
+   * <p>
+   * When both this and {@link #setQueryIdParameter(String)} are set, {@link Command#cancel()}
+   * sends a POST to this URL after aborting the HTTP request, so the server stops evaluating
+   * the query instead of just losing its client. Otherwise cancelling only aborts the request.
+   * </p>
+   * 
+   * @param cancelUrlTemplate The cancel URL template, or null to not cancel on the server.
+   */
+  public void setCancelUrlTemplate(String cancelUrlTemplate) {
+    if (cancelUrlTemplate != null && !cancelUrlTemplate.contains(QUERY_ID_TOKEN)) {
+      throw new IllegalArgumentException("Cancel URL template must contain " + QUERY_ID_TOKEN);
+    }
+    this.cancelUrlTemplate = cancelUrlTemplate;
+  }
+
+  /** @return the policy for hedging slow read-only queries, or null. */
+  public HedgePolicy getHedgePolicy() {
+    return hedgePolicy;
+  }
+
+  /**
+   * Sets the policy for hedging read-only queries: SELECT, ASK and graph queries whose response
+   * is slow are sent a second time, and the first response wins. Generic
+   * {@link Command#execute()} calls are never hedged, since they may update data.
+   * @param hedgePolicy The policy, or null (the default) not to hedge.
+   */
+  public void setHedgePolicy(HedgePolicy hedgePolicy) {
+    this.hedgePolicy = hedgePolicy;
+  }
+
+  /** @return the adaptive limit on concurrent requests, or null. */
+  public ConcurrencyLimiter getConcurrencyLimiter() {
+    return concurrencyLimiter;
+  }
+
+  /**
+   * Sets an adaptive limit on the number of requests sent to the endpoint at once. Unlike the
+   * connection pool size, the limit follows the latency of the endpoint, and requests over it are
+   * rejected quickly rather than queued until they time out. The limit should not be allowed to
+   * exceed the pool size, or requests will still queue for connections.
+   * @param limiter The limiter, or null (the default) for no limit beyond the pool size.
+   */
+  public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+    this.concurrencyLimiter = limiter;
+  }
+
+  /** @return the factory for the HTTP transport of this data source. */
+  public HttpTransport.Factory getTransportFactory() {
+    return transportFactory;
+  }
+
+  /**
+   * Sets the factory for the HTTP transport that sends the requests of this data source. The
+   * default is {@link PooledHttpTransport#FACTORY}.
+   * @param transportFactory The transport factory.
+   */
+  public synchronized void setTransportFactory(HttpTransport.Factory transportFactory) {
+    if (transport != null) {
+      throw new IllegalStateException("Cannot set the transport after it is in use.");
+    }
+    if (transportFactory == null) throw new NullPointerException("Transport factory must not be null.");
+    this.transportFactory = transportFactory;
+  }
+
+  /**
+   * Gets the threads that send hedged requests and run the commands of
+   * {@link ProtocolConnection#executeAll(java.util.List, long)}, creating them if necessary.
+   */
+  synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "SPARQL worker " + count.incrementAndGet() + " <" + url + ">");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return executor;
+  }
+
+  /** Gets the thread that aborts requests at their deadline, creating it if necessary. */
+  synchronized ScheduledThreadPoolExecutor getTimer() {
+    if (timer == null) {
+      timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "SPARQL deadline timer <" + url + ">");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return timer;
+  }
+
+  /**
+   * Cancels a task scheduled on the deadline timer. A cancelled task stays in the timer's queue
+   * until its delay runs out, so with long deadlines the queue is purged every so often.
+   */
+  void cancelExpiry(ScheduledFuture<?> expiry) {
+    if (expiry.cancel(false) && cancelledExpiries.incrementAndGet() % PURGE_INTERVAL == 0) {
+      ScheduledThreadPoolExecutor t;
+      synchronized (this) {
+        t = timer;
+      }
+      if (t != null) t.purge();
+    }
+  }
+
+  /** Gets the (re-usable) HTTP transport backing this data source, creating it if necessary. */
+  private synchronized HttpTransport getTransport() {
+    if (transport == null) {
+      transport = transportFactory.createTransport(this);
     }
-    return httpClient;
-  }
-  
-  /**
-   * Creates a new thread-safe HTTP connection pool for use with a data source.
-   * @param poolSize The size of the connection pool.
-   * @return A new connection pool with the given size.
-   */
-  private HttpClient createPooledClient() {
-    HttpParams connMgrParams = new BasicHttpParams();
-    
-    SchemeRegistry schemeRegistry = new SchemeRegistry();
-    schemeRegistry.register(new Scheme(HTTP_SCHEME, PlainSocketFactory.getSocketFactory(), HTTP_PORT));
-    schemeRegistry.register(new Scheme(HTTPS_SCHEME, SSLSocketFactory.getSocketFactory(), HTTPS_PORT));
-    
-    // All connections will be to the same endpoint, so no need for per-route configuration.
-    // TODO See how this does in the presence of redirects.
-    ConnManagerParams.setMaxTotalConnections(connMgrParams, poolSize);
-    ConnManagerParams.setMaxConnectionsPerRoute(connMgrParams, new ConnPerRouteBean(poolSize));
-    
-    ClientConnectionManager ccm = new ThreadSafeClientConnManager(connMgrParams, schemeRegistry);
-    
-    HttpParams httpParams = new BasicHttpParams();
-    HttpProtocolParams.setUseExpectContinue(httpParams, false);
-    ConnManagerParams.setTimeout(httpParams, acquireTimeout * 1000);
-    return new DefaultHttpClient(ccm, httpParams);
+    return transport;
   }
 }
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import spark.api.Command;
+import spark.api.exception.SparqlException;
+
+/**
+ * <p>Measurements for a single {@link ProtocolDataSource}: connection pool usage, request and
+ * parse times, response volume and the rate at which rows are delivered. Obtained from
+ * {@link ProtocolDataSource#getMetrics()}.</p>
+ * 
+ * <p>The measurements can be read directly, published over JMX with {@link #registerMBean()},
+ * or forwarded to another metrics system by adding a {@link ProtocolMetricsListener}.</p>
+ */
+public class ProtocolMetrics implements ProtocolMetricsMBean {
+
+  private static final Logger logger = LoggerFactory.getLogger(ProtocolMetrics.class);
+
+  /** JMX domain for registered data sources. */
+  public static final String JMX_DOMAIN = "spark.protocol";
+
+  private static final AtomicInteger nextId = new AtomicInteger();
+
+  private final ProtocolDataSource source;
+  private final List<ProtocolMetricsListener> listeners = new CopyOnWriteArrayList<ProtocolMetricsListener>();
+
+  private final LatencyHistogram acquireTimes = new LatencyHistogram();
+  private final LatencyHistogram requestTimes = new LatencyHistogram();
+  private final LatencyHistogram parseTimes = new LatencyHistogram();
+  private final LatencyHistogram updateTimes = new LatencyHistogram();
+  private final AtomicLong updateOperations = new AtomicLong();
+  private final AtomicLong failedUpdates = new AtomicLong();
+  private final AtomicLong failedRequests = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+  private final AtomicLong responseBytes = new AtomicLong();
+  private final AtomicLong rows = new AtomicLong();
+  private final AtomicLong rowNanos = new AtomicLong();
+
+  /** Pool of the data source; null until the first connection is made, and after closing. */
+  private volatile InstrumentedConnManager pool = null;
+
+  private ObjectName mbeanName = null;
+
+  ProtocolMetrics(ProtocolDataSource source) {
+    this.source = source;
+  }
+
+  /**
+   * Find the metrics of the data source that a command runs against.
+   * @param cmd The command, may be null.
+   * @return The metrics, or null if the command is not a SPARQL protocol command.
+   */
+  public static ProtocolMetrics forCommand(Command cmd) {
+    if (cmd instanceof ProtocolCommand) {
+      return ((ProtocolDataSource)cmd.getConnection().getDataSource()).getMetrics();
+    }
+    return null;
+  }
+
+  /** @param listener A listener to receive every measurement from now on. */
+  public void addListener(ProtocolMetricsListener listener) {
+    listeners.add(listener);
+  }
+
+  /** @param listener A listener to stop sending measurements to. */
+  public void removeListener(ProtocolMetricsListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Register these metrics with the platform MBean server, under the {@link #JMX_DOMAIN} domain
+   * with the endpoint URL in the name. The MBean is unregistered when the data source is closed.
+   * @return The name of the MBean.
+   * @throws SparqlException If the MBean could not be registered.
+   */
+  public synchronized ObjectName registerMBean() {
+    if (mbeanName == null) {
+      try {
+        ObjectName name = new ObjectName(JMX_DOMAIN + ":type=ProtocolDataSource,url=" +
+            ObjectName.quote(source.getUrl().toString()) + ",id=" + nextId.incrementAndGet());
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        mbeanName = name;
+      } catch (JMException e) {
+        throw new SparqlException("Unable to register metrics MBean for " + source.getUrl(), e);
+      }
+    }
+    return mbeanName;
+  }
+
+  /** Remove the MBean registered by {@link #registerMBean()}, if any. */
+  public synchronized void unregisterMBean() {
+    if (mbeanName != null) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+        if (server.isRegistered(mbeanName)) server.unregisterMBean(mbeanName);
+      } catch (JMException e) {
+        logger.warn("Unable to unregister metrics MBean " + mbeanName, e);
+      }
+      mbeanName = null;
+    }
+  }
+
+  void setPool(InstrumentedConnManager pool) {
+    this.pool = pool;
+  }
+
+  void connectionAcquired(long waitNanos) {
+    acquireTimes.record(waitNanos);
+    for (ProtocolMetricsListener l : listeners) l.connectionAcquired(source, waitNanos);
+  }
+
+  void requestExecuted(long nanos, boolean success) {
+    requestTimes.record(nanos);
+    if (!success) failedRequests.incrementAndGet();
+    for (ProtocolMetricsListener l : listeners) l.requestExecuted(source, nanos, success);
+  }
+
+  void updateExecuted(int operations, long nanos, boolean success) {
+    updateTimes.record(nanos);
+    updateOperations.addAndGet(operations);
+    if (!success) failedUpdates.incrementAndGet();
+    for (ProtocolMetricsListener l : listeners) l.updateExecuted(source, operations, nanos, success);
+  }
+
+  void requestHedged() {
+    hedges.incrementAndGet();
+  }
+
+  void hedgeWon() {
+    hedgeWins.incrementAndGet();
+  }
+
+  /** @return A percentile of the request time in milliseconds, for {@link HedgePolicy}. */
+  double requestPercentileMillis(double p) {
+    return requestTimes.percentileMillis(p);
+  }
+
+  void resultParsed(long nanos) {
+    parseTimes.record(nanos);
+    for (ProtocolMetricsListener l : listeners) l.resultParsed(source, nanos);
+  }
+
+  /**
+   * Record that a response body was closed. Called by the result parsers.
+   * @param bytes The number of bytes read from the body.
+   */
+  public void responseRead(long bytes) {
+    responseBytes.addAndGet(bytes);
+    for (ProtocolMetricsListener l : listeners) l.responseRead(source, bytes);
+  }
+
+  /**
+   * Record that rows of a SELECT result were delivered. Called by the result parsers.
+   * @param count The number of rows.
+   * @param nanos The time taken to deliver them.
+   */
+  public void rowsRead(long count, long nanos) {
+    rows.addAndGet(count);
+    rowNanos.addAndGet(nanos);
+    for (ProtocolMetricsListener l : listeners) l.rowsRead(source, count, nanos);
+  }
+
+  @Override
+  public String getUrl() {
+    return source.getUrl().toString();
+  }
+
+  @Override
+  public int getMaxConnections() {
+    InstrumentedConnManager p = pool;
+    return (p != null) ? p.getMaxConnections() : source.getConnectionPoolSize();
+  }
+
+  @Override
+  public int getLeasedConnections() {
+    InstrumentedConnManager p = pool;
+    return (p != null) ? p.getLeased() : 0;
+  }
+
+  @Override
+  public int getAvailableConnections() {
+    InstrumentedConnManager p = pool;
+    return (p != null) ? p.getAvailable() : 0;
+  }
+
+  @Override
+  public int getPendingConnections() {
+    InstrumentedConnManager p = pool;
+    return (p != null) ? p.getPending() : 0;
+  }
+
+  @Override
+  public long getConnectionsOpened() {
+    InstrumentedConnManager p = pool;
+    return (p != null) ? p.getOpened() : 0;
+  }
+
+  @Override
+  public long getAcquireCount() {
+    return acquireTimes.count();
+  }
+
+  @Override
+  public double getAcquireWaitMeanMillis() {
+    return acquireTimes.meanMillis();
+  }
+
+  @Override
+  public double getAcquireWait99thMillis() {
+    return acquireTimes.percentileMillis(99);
+  }
+
+  @Override
+  public int getConcurrencyLimit() {
+    ConcurrencyLimiter l = source.getConcurrencyLimiter();
+    return (l != null) ? l.getLimit() : getMaxConnections();
+  }
+
+  @Override
+  public long getRejectedRequestCount() {
+    ConcurrencyLimiter l = source.getConcurrencyLimiter();
+    return (l != null) ? l.getRejectedCount() : 0;
+  }
+
+  @Override
+  public long getRequestCount() {
+    return requestTimes.count();
+  }
+
+  @Override
+  public long getFailedRequestCount() {
+    return failedRequests.get();
+  }
+
+  @Override
+  public double getRequestMeanMillis() {
+    return requestTimes.meanMillis();
+  }
+
+  @Override
+  public double getRequest50thMillis() {
+    return requestTimes.percentileMillis(50);
+  }
+
+  @Override
+  public double getRequest99thMillis() {
+    return requestTimes.percentileMillis(99);
+  }
+
+  @Override
+  public long getUpdateCount() {
+    return updateTimes.count();
+  }
+
+  @Override
+  public long getUpdateOperationCount() {
+    return updateOperations.get();
+  }
+
+  @Override
+  public long getFailedUpdateCount() {
+    return failedUpdates.get();
+  }
+
+  @Override
+  public double getUpdateMeanMillis() {
+    return updateTimes.meanMillis();
+  }
+
+  @Override
+  public double getUpdate99thMillis() {
+    return updateTimes.percentileMillis(99);
+  }
+
+  @Override
+  public double getParseMeanMillis() {
+    return parseTimes.meanMillis();
+  }
+
+  @Override
+  public double getParse99thMillis() {
+    return parseTimes.percentileMillis(99);
+  }
+
+  @Override
+  public long getHedgeCount() {
+    return hedges.get();
+  }
+
+  @Override
+  public long getHedgeWinCount() {
+    return hedgeWins.get();
+  }
+
+  @Override
+  public long getResponseBytes() {
+    return responseBytes.get();
+  }
+
+  @Override
+  public long getRowsRead() {
+    return rows.get();
+  }
+
+  @Override
+  public double getRowsPerSecond() {
+    long nanos = rowNanos.get();
+    return (nanos == 0) ? 0.0 : rows.get() * 1e9 / nanos;
+  }
+
+  @Override
+  public void reset() {
+    acquireTimes.reset();
+    requestTimes.reset();
+    parseTimes.reset();
+    updateTimes.reset();
+    updateOperations.set(0);
+    failedUpdates.set(0);
+    failedRequests.set(0);
+    hedges.set(0);
+    hedgeWins.set(0);
+    responseBytes.set(0);
+    rows.set(0);
+    rowNanos.set(0);
+  }
+}
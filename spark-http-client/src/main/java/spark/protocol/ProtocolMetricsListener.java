@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+/**
+ * Receives timing and volume measurements from a {@link ProtocolDataSource}, for feeding into an
+ * external metrics system. Register with {@link ProtocolMetrics#addListener(ProtocolMetricsListener)}.
+ * Methods are called on the thread doing the work, so implementations must be thread-safe and
+ * should return quickly.
+ */
+public interface ProtocolMetricsListener {
+
+  /**
+   * A connection was taken from the pool.
+   * @param source The data source owning the pool.
+   * @param waitNanos Time spent waiting for the connection.
+   */
+  void connectionAcquired(ProtocolDataSource source, long waitNanos);
+
+  /**
+   * An HTTP request to the endpoint completed, up to receiving the response headers.
+   * @param source The data source the request was sent through.
+   * @param nanos Time taken to execute the request.
+   * @param success false if the request failed or the server returned an error status.
+   */
+  void requestExecuted(ProtocolDataSource source, long nanos, boolean success);
+
+  /**
+   * A SPARQL UPDATE request to the endpoint completed.
+   * @param source The data source the request was sent through.
+   * @param operations Number of update operations in the request.
+   * @param nanos Time taken to execute the request.
+   * @param success false if the request failed or the server returned an error status.
+   */
+  void updateExecuted(ProtocolDataSource source, int operations, long nanos, boolean success);
+
+  /**
+   * A result was created from a server response. For SELECT queries this covers the header and
+   * first row only, since the remaining rows are parsed as they are read.
+   * @param source The data source the response came from.
+   * @param nanos Time taken to create the result.
+   */
+  void resultParsed(ProtocolDataSource source, long nanos);
+
+  /**
+   * The body of a server response was closed.
+   * @param source The data source the response came from.
+   * @param bytes Number of bytes read from the response body.
+   */
+  void responseRead(ProtocolDataSource source, long bytes);
+
+  /**
+   * Rows of a SELECT result were delivered, either because the results were exhausted or because
+   * they were closed.
+   * @param source The data source the results came from.
+   * @param rows Number of rows read.
+   * @param nanos Time between creating the results and reaching the end or closing them.
+   */
+  void rowsRead(ProtocolDataSource source, long rows, long nanos);
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+/**
+ * JMX management interface for the metrics of a {@link ProtocolDataSource}. Times are in
+ * milliseconds; percentiles are estimated from power-of-two buckets, so they are upper bounds
+ * accurate to within a factor of two.
+ */
+public interface ProtocolMetricsMBean {
+
+  /** @return The URL of the endpoint. */
+  String getUrl();
+
+  /** @return The maximum number of pooled connections. */
+  int getMaxConnections();
+
+  /** @return The number of connections currently in use. */
+  int getLeasedConnections();
+
+  /** @return The number of open connections in the pool that are not in use. */
+  int getAvailableConnections();
+
+  /** @return The number of threads waiting for a connection. */
+  int getPendingConnections();
+
+  /** @return The number of new connections made to the endpoint; the rest of the acquired connections were reused. */
+  long getConnectionsOpened();
+
+  /** @return The number of connections taken from the pool. */
+  long getAcquireCount();
+
+  /** @return The mean time spent waiting for a connection. */
+  double getAcquireWaitMeanMillis();
+
+  /** @return The 99th percentile of the time spent waiting for a connection. */
+  double getAcquireWait99thMillis();
+
+  /** @return The current adaptive concurrency limit, or the pool size if there is no limiter. */
+  int getConcurrencyLimit();
+
+  /** @return The number of requests rejected by the adaptive concurrency limit. */
+  long getRejectedRequestCount();
+
+  /** @return The number of requests sent to the endpoint. */
+  long getRequestCount();
+
+  /** @return The number of requests that failed or returned an error status. */
+  long getFailedRequestCount();
+
+  /** @return The mean request time. */
+  double getRequestMeanMillis();
+
+  /** @return The median request time. */
+  double getRequest50thMillis();
+
+  /** @return The 99th percentile of the request time. */
+  double getRequest99thMillis();
+
+  /** @return The number of update requests sent to the endpoint. */
+  long getUpdateCount();
+
+  /** @return The number of update operations sent, over all update requests. */
+  long getUpdateOperationCount();
+
+  /** @return The number of update requests that failed or returned an error status. */
+  long getFailedUpdateCount();
+
+  /** @return The mean update request time. */
+  double getUpdateMeanMillis();
+
+  /** @return The 99th percentile of the update request time. */
+  double getUpdate99thMillis();
+
+  /** @return The mean time taken to create a result from a response. */
+  double getParseMeanMillis();
+
+  /** @return The 99th percentile of the time taken to create a result from a response. */
+  double getParse99thMillis();
+
+  /** @return The number of requests duplicated because their response was slow. */
+  long getHedgeCount();
+
+  /** @return The number of hedged requests whose duplicate answered first. */
+  long getHedgeWinCount();
+
+  /** @return The total number of response bytes read. */
+  long getResponseBytes();
+
+  /** @return The total number of SELECT rows read. */
+  long getRowsRead();
+
+  /** @return The rate at which SELECT rows have been delivered, over all results read so far. */
+  double getRowsPerSecond();
+
+  /** Clear all counters and timings. The pool gauges are not affected. */
+  void reset();
+}
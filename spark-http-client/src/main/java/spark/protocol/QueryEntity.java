@@ -0,0 +1,247 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * <p>Request body for a query or update sent by POST, encoded straight from the query string
+ * onto the connection instead of being built in memory first. Either form-encoded parameters
+ * (<code>application/x-www-form-urlencoded</code>) or, per SPARQL 1.1, the query text itself
+ * (<code>application/sparql-query</code>) or a sequence of update operations
+ * (<code>application/sparql-update</code>).</p>
+ * 
+ * <p>The exact length is computed up front by a pass over the characters, so the request can
+ * still carry a Content-Length header. The body can be written any number of times, so the
+ * request may be retried.</p>
+ */
+class QueryEntity extends AbstractHttpEntity {
+
+  /** Content type of a form-encoded body. */
+  static final String FORM_ENCODED = "application/x-www-form-urlencoded";
+  /** Content type of a body holding the query text, in UTF-8. */
+  static final String SPARQL_QUERY = "application/sparql-query";
+  /** Content type of a body holding update operations, in UTF-8. */
+  static final String SPARQL_UPDATE = "application/sparql-update";
+
+  /** Separator between update operations, on its own line so a trailing comment can't swallow it. */
+  private static final String UPDATE_SEPARATOR = "\n;\n";
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+  /** Pieces of the body, written in turn: raw ASCII text at even indexes, text to encode at odd ones. */
+  private final String[] parts;
+  private final boolean form;
+  private final long length;
+
+  /**
+   * Create a form-encoded body of parameters.
+   * @param params Parameter names and values, alternating; names are ASCII.
+   */
+  static QueryEntity form(String... params) {
+    String[] parts = new String[params.length];
+    for (int i = 0; i < params.length; i += 2) {
+      parts[i] = (i == 0 ? "" : "&") + params[i] + "=";
+      parts[i + 1] = params[i + 1];
+    }
+    return new QueryEntity(parts, true, FORM_ENCODED);
+  }
+
+  /** Create a body holding the query text. */
+  static QueryEntity direct(String query) {
+    return new QueryEntity(new String[] { "", query }, false, SPARQL_QUERY + "; charset=UTF-8");
+  }
+
+  /** Create a body holding update operations, which are separated by ';'. */
+  static QueryEntity update(List<String> operations) {
+    String[] parts = new String[operations.size() * 2];
+    for (int i = 0; i < operations.size(); i++) {
+      parts[i * 2] = (i == 0) ? "" : UPDATE_SEPARATOR;
+      parts[i * 2 + 1] = operations.get(i);
+    }
+    return new QueryEntity(parts, false, SPARQL_UPDATE + "; charset=UTF-8");
+  }
+
+  private QueryEntity(String[] parts, boolean form, String contentType) {
+    this.parts = parts;
+    this.form = form;
+    long len = 0;
+    for (int i = 0; i < parts.length; i++) {
+      len += (i % 2 == 0) ? parts[i].length() : (form ? encodedLength(parts[i]) : utf8Length(parts[i]));
+    }
+    this.length = len;
+    setContentType(contentType);
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public long getContentLength() {
+    return length;
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return false;
+  }
+
+  /** Only used if the client needs to buffer the body; the usual path is {@link #writeTo(OutputStream)}. */
+  @Override
+  public InputStream getContent() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream((int)Math.min(length, Integer.MAX_VALUE));
+    writeTo(out);
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    byte[] buf = new byte[BUFFER_SIZE];
+    int pos = 0;
+    for (int p = 0; p < parts.length; p++) {
+      String s = parts[p];
+      boolean raw = (p % 2 == 0);
+      int n = s.length();
+      for (int i = 0; i < n; i++) {
+        // Room for the longest encoding of one code point: 4 bytes, 12 when percent-encoded.
+        if (pos > BUFFER_SIZE - 12) {
+          out.write(buf, 0, pos);
+          pos = 0;
+        }
+        char c = s.charAt(i);
+        if (raw) {
+          buf[pos++] = (byte)c;
+        } else if (c < 0x80) {
+          if (!form || unreserved(c)) {
+            buf[pos++] = (byte)c;
+          } else if (c == ' ') {
+            buf[pos++] = '+';
+          } else {
+            pos = escape(buf, pos, c);
+          }
+        } else {
+          int cp = c;
+          if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+            cp = Character.toCodePoint(c, s.charAt(++i));
+          } else if (isSurrogate(c)) {
+            cp = '?';
+          }
+          pos = utf8(buf, pos, cp);
+        }
+      }
+    }
+    out.write(buf, 0, pos);
+    out.flush();
+  }
+
+  /** Write the UTF-8 bytes of a non-ASCII code point, percent-encoded for a form. */
+  private int utf8(byte[] buf, int pos, int cp) {
+    if (cp < 0x80) {
+      return form ? escape(buf, pos, cp) : put(buf, pos, cp);
+    } else if (cp < 0x800) {
+      pos = byteOut(buf, pos, 0xC0 | (cp >> 6));
+    } else if (cp < 0x10000) {
+      pos = byteOut(buf, pos, 0xE0 | (cp >> 12));
+      pos = byteOut(buf, pos, 0x80 | ((cp >> 6) & 0x3F));
+    } else {
+      pos = byteOut(buf, pos, 0xF0 | (cp >> 18));
+      pos = byteOut(buf, pos, 0x80 | ((cp >> 12) & 0x3F));
+      pos = byteOut(buf, pos, 0x80 | ((cp >> 6) & 0x3F));
+    }
+    return byteOut(buf, pos, 0x80 | (cp & 0x3F));
+  }
+
+  private int byteOut(byte[] buf, int pos, int b) {
+    return form ? escape(buf, pos, b) : put(buf, pos, b);
+  }
+
+  private static int put(byte[] buf, int pos, int b) {
+    buf[pos++] = (byte)b;
+    return pos;
+  }
+
+  private static int escape(byte[] buf, int pos, int b) {
+    buf[pos++] = '%';
+    buf[pos++] = HEX[(b >> 4) & 0xF];
+    buf[pos++] = HEX[b & 0xF];
+    return pos;
+  }
+
+  /** An unpaired surrogate is sent as '?', as the JDK encoders do. */
+  private static boolean isSurrogate(char c) {
+    return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+  }
+
+  /** Characters left as they are by form encoding, as for {@link java.net.URLEncoder}. */
+  private static boolean unreserved(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+        c == '.' || c == '-' || c == '*' || c == '_';
+  }
+
+  /** @return The number of bytes in the UTF-8 encoding of a string. */
+  static long utf8Length(CharSequence s) {
+    long len = 0;
+    int n = s.length();
+    for (int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        len++;
+      } else if (c < 0x800) {
+        len += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+        len += 4;
+        i++;
+      } else if (isSurrogate(c)) {
+        len++;
+      } else {
+        len += 3;
+      }
+    }
+    return len;
+  }
+
+  /** @return The length of a string once form-encoded as UTF-8, without encoding it. */
+  static long encodedLength(CharSequence s) {
+    long len = 0;
+    int n = s.length();
+    for (int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        len += (unreserved(c) || c == ' ') ? 1 : 3;
+      } else if (c < 0x800) {
+        len += 6;
+      } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+        len += 12;
+        i++;
+      } else if (isSurrogate(c)) {
+        len += 3;
+      } else {
+        len += 9;
+      }
+    }
+    return len;
+  }
+}
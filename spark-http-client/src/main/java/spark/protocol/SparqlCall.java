@@ -20,12 +20,24 @@ import static org.apache.http.protocol.HTTP.UTF_8;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
@@ -33,15 +45,16 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import spark.api.Command;
+import spark.api.exception.EndpointException;
 import spark.api.exception.SparqlException;
+import spark.spi.util.Deadline;
 
 /**
  * This class provides a single method for executing a SPARQL HTTP query request and returning the
@@ -59,18 +72,16 @@ public class SparqlCall {
   private static final int REDIRECT_MIN = 300;
   @SuppressWarnings("unused")
   private static final int REDIRECT_MAX = 399;
+  private static final int TOO_MANY_REQUESTS = 429;
+  private static final int SERVER_ERROR_MIN = 500;
 
-  /** The maximum length of a GET request */
-  private static final int QUERY_LIMIT = 1024;
+  /** Name of the query parameter. */
+  private static final String QUERY_PARAM = "query";
 
-  /** Method name for HTTP POST. */
-  private static final String POST = "POST";
   /** Accept header for content negotiation. */
   private static final String ACCEPT = "Accept";
   /** Content-Type header for content negotiation. */
   private static final String CONTENT_TYPE = "Content-Type";
-  /** Content-Type value to use for URL-encoded query params included in the POST request body. */
-  private static final String FORM_ENCODED = "application/x-www-form-urlencoded";
   
   /** URL-encode a string as UTF-8, catching any thrown UnsupportedEncodingException. */
   private static final String encode(String s) {
@@ -127,60 +138,323 @@ public class SparqlCall {
   /**
    * Executes a SPARQL HTTP protocol request for the given command, and returns the response.
    * @param command The SPARQL protocol command.
+   * @param mimeType The content type to ask for, or null.
+   * @param readOnly Whether the command is known not to update data, so it may be hedged.
+   * @param deadline When the command must be complete by; every wait of the request is bounded by it.
    * @return The HTTP response.
    */
-  static HttpResponse executeRequest(ProtocolCommand command, String mimeType) {
-    HttpClient client = ((ProtocolConnection)command.getConnection()).getHttpClient();
-    URL url = ((ProtocolDataSource)command.getConnection().getDataSource()).getUrl();
-    HttpUriRequest req;
-
+  static HttpResponse executeRequest(ProtocolCommand command, String mimeType, boolean readOnly, Deadline deadline) {
+    HttpTransport client = ((ProtocolConnection)command.getConnection()).getTransport();
+    ProtocolDataSource ds = (ProtocolDataSource)command.getConnection().getDataSource();
+    
+    HedgePolicy hedge = readOnly ? ds.getHedgePolicy() : null;
+    long hedgeDelay = (hedge != null) ? hedge.getDelay(ds.getMetrics()) : -1;
+    
+    deadline.check("sending the request");
+    String queryId = newQueryId(ds);
+    HttpUriRequest req = buildRequest(command, ds.getUrl(), mimeType, queryId, deadline);
+    
+    // There's a small chance the request could be aborted before it's even executed, we'll have to live with that.
+    command.setRequest(req, queryId, deadline);
+    
+    //dump(client, req);
+    if (hedgeDelay < 0) return send(client, ds, req, 0, deadline);
+    return sendHedged(command, client, ds, req, mimeType, hedge, hedgeDelay, deadline);
+  }
+  
+  /**
+   * Sends a request, and if its response headers have not arrived after a delay sends a duplicate
+   * of it; the first successful response is returned and the other request aborted.
+   */
+  private static HttpResponse sendHedged(ProtocolCommand command, final HttpTransport client,
+      final ProtocolDataSource ds, final HttpUriRequest req, String mimeType, HedgePolicy hedge, long delay,
+      final Deadline deadline) {
+    CompletionService<HttpResponse> cs = new ExecutorCompletionService<HttpResponse>(ds.getExecutor());
+    Future<HttpResponse> first = cs.submit(new Callable<HttpResponse>() {
+      public HttpResponse call() { return send(client, ds, req, 0, deadline); }
+    });
     try {
-      String params = "query=" + encode(command.getCommand());
-      String u = url.toString() + "?" + params;
-      if (u.length() > QUERY_LIMIT) {
-        // POST connection
+      Future<HttpResponse> done = cs.poll(delay, TimeUnit.MILLISECONDS);
+      int pending = 1;
+      final HttpUriRequest dup;
+      if (done == null) {
+        URL url = hedge.nextUrl(ds.getUrl());
+        // Only requests to this endpoint can be cancelled through its cancel URL.
+        String hedgeId = url.equals(ds.getUrl()) ? newQueryId(ds) : null;
+        dup = buildRequest(command, url, mimeType, hedgeId, deadline);
+        if (command.setHedgeRequest(dup, hedgeId)) {
+          ds.getMetrics().requestHedged();
+          logger.debug("Hedging slow request to <{}> after {} ms", ds.getUrl(), delay);
+          cs.submit(new Callable<HttpResponse>() {
+            public HttpResponse call() { return send(client, ds, dup, 0, deadline); }
+          });
+          pending++;
+        }
+        done = cs.take();
+      } else {
+        dup = null;
+      }
+      while (true) {
+        pending--;
         try {
+          HttpResponse response = done.get();
+          if (dup != null) {
+            HttpUriRequest winner = (done == first) ? req : dup;
+            command.settleHedge(winner);
+            if (winner == dup) ds.getMetrics().hedgeWon();
+          }
+          return response;
+        } catch (ExecutionException e) {
+          if (pending == 0) throw SparqlException.convert("Error executing request", e.getCause());
+          done = cs.take();
+        }
+      }
+    } catch (InterruptedException e) {
+      command.cancel();
+      Thread.currentThread().interrupt();
+      throw new SparqlException("Interrupted waiting for a response", e);
+    }
+  }
+  
+  /** @return A new ID to tag a query with, or null if the data source does not use them. */
+  private static String newQueryId(ProtocolDataSource ds) {
+    return (ds.getQueryIdParameter() != null) ? UUID.randomUUID().toString() : null;
+  }
+  
+  /**
+   * Builds the request for a command.
+   * @param command The SPARQL protocol command.
+   * @param url The endpoint to send it to.
+   * @param mimeType The content type to ask for, or null.
+   * @param queryId The ID to tag the query with so that it can be cancelled on the server, or null.
+   * @param deadline When the command must be complete by.
+   */
+  private static HttpUriRequest buildRequest(ProtocolCommand command, URL url, String mimeType, String queryId,
+      Deadline deadline) {
+    ProtocolDataSource ds = (ProtocolDataSource)command.getConnection().getDataSource();
+    String query = command.getCommand();
+    List<String> params = extraParams(ds, queryId, deadline);
+    String extra = urlParams(params);
+    
+    // Work out the length of the GET URL without building it, since large queries will be POSTed.
+    long getLength = url.toString().length() + QUERY_PARAM.length() + 1 + QueryEntity.encodedLength(query);
+    if (extra != null) getLength += extra.length() + 1;
+    
+    HttpUriRequest req;
+    if (getLength <= ds.getMaxGetLength()) {
+      // GET connection
+      String u = url.toString() + "?" + QUERY_PARAM + "=" + encode(query);
+      if (extra != null) u += "&" + extra;
+      req = new HttpGet(u);
+    } else {
+      // POST connection, encoding the query as it is written to the connection.
+      try {
+        if (ds.isDirectPost()) {
+          // The body is the query itself, so the other parameters have to go in the URL.
+          req = new HttpPost((extra != null) ? new URI(url + "?" + extra) : url.toURI());
+          ((HttpPost)req).setEntity(QueryEntity.direct(query));
+        } else {
           req = new HttpPost(url.toURI());
-        } catch (URISyntaxException e) {
-          throw new SparqlException("Endpoint <" + url + "> not in an acceptable format", e);
+          params.add(0, QUERY_PARAM);
+          params.add(1, query);
+          ((HttpPost)req).setEntity(QueryEntity.form(params.toArray(new String[params.size()])));
         }
-        ((HttpPost) req).setEntity((HttpEntity) new StringEntity(params));
-      } else {
-        // GET connection
-        req = new HttpGet(u);
+      } catch (URISyntaxException e) {
+        throw new SparqlException("Endpoint <" + url + "> not in an acceptable format", e);
       }
+    }
 
-      if (command.getTimeout() != Command.NO_TIMEOUT) {
-        HttpParams reqParams = new BasicHttpParams();
-        HttpConnectionParams.setSoTimeout(reqParams, (int) (command.getTimeout() * 1000));
-        req.setParams(reqParams);
+    applyDeadline(req, ds, deadline);
+    
+    // Add Accept and Content-Type (for POST'ed queries) headers to the request.
+    addHeaders(req, mimeType);
+    return req;
+  }
+  
+  /**
+   * @return The names and values, alternating, of the request parameters other than the query:
+   *         the query ID and the time left before the deadline, if the data source sends them.
+   */
+  private static List<String> extraParams(ProtocolDataSource ds, String queryId, Deadline deadline) {
+    List<String> params = new ArrayList<String>(6);
+    if (queryId != null) {
+      params.add(ds.getQueryIdParameter());
+      params.add(queryId);
+    }
+    String timeoutParam = ds.getTimeoutParameter();
+    if (timeoutParam != null && deadline.isBounded()) {
+      params.add(timeoutParam);
+      params.add(Long.toString(deadline.remainingMillis()));
+    }
+    return params;
+  }
+  
+  /** @return The parameters URL-encoded for a query string, or null if there are none. */
+  private static String urlParams(List<String> params) {
+    if (params.isEmpty()) return null;
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < params.size(); i += 2) {
+      if (i > 0) sb.append('&');
+      sb.append(encode(params.get(i))).append('=').append(encode(params.get(i + 1)));
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * Bounds each wait of a request by the time left before its deadline: for a connection from the
+   * pool, for the connection to the endpoint to be made, and for each read from the endpoint.
+   */
+  private static void applyDeadline(HttpUriRequest req, ProtocolDataSource ds, Deadline deadline) {
+    if (deadline.isBounded()) {
+      // A timeout of 0 would mean no timeout at all.
+      int millis = (int)Math.max(Math.min(deadline.remainingMillis(), Integer.MAX_VALUE), 1);
+      long acquire = ds.getAcquireTimeout() * 1000L;
+      HttpParams reqParams = new BasicHttpParams();
+      HttpConnectionParams.setSoTimeout(reqParams, millis);
+      HttpConnectionParams.setConnectionTimeout(reqParams, millis);
+      ConnManagerParams.setTimeout(reqParams,
+          (acquire == ProtocolDataSource.NO_ACQUIRE_TIMEOUT) ? millis : Math.min(acquire, millis));
+      req.setParams(reqParams);
+    }
+  }
+  
+  /**
+   * Executes a SPARQL UPDATE request holding some operations, sent as an
+   * <code>application/sparql-update</code> body to the update endpoint of the data source.
+   * @param command The SPARQL protocol command.
+   * @param operations The update operations.
+   * @param deadline When all of the command's requests must be complete by.
+   */
+  static void executeUpdate(ProtocolCommand command, List<String> operations, Deadline deadline) {
+    HttpTransport client = ((ProtocolConnection)command.getConnection()).getTransport();
+    ProtocolDataSource ds = (ProtocolDataSource)command.getConnection().getDataSource();
+    URL url = ds.getUpdateUrl();
+    
+    deadline.check("sending the update");
+    String queryId = newQueryId(ds);
+    String extra = urlParams(extraParams(ds, queryId, deadline));
+    HttpPost req;
+    try {
+      req = new HttpPost((extra != null) ? new URI(url + "?" + extra) : url.toURI());
+    } catch (URISyntaxException e) {
+      throw new SparqlException("Endpoint <" + url + "> not in an acceptable format", e);
+    }
+    req.setEntity(QueryEntity.update(operations));
+    applyDeadline(req, ds, deadline);
+    addHeaders(req, null);
+    
+    command.setRequest(req, queryId, deadline);
+    HttpResponse response = send(client, ds, req, operations.size(), deadline);
+    try {
+      // The body is at most a status message.
+      HttpEntity entity = response.getEntity();
+      if (entity != null) entity.consumeContent();
+    } catch (IOException e) {
+      throw new SparqlException("Error reading update response", e);
+    }
+  }
+  
+  /**
+   * Executes a request and checks the status of its response.
+   * @param updateOperations The number of update operations in the request, or 0 for a query.
+   * @param deadline Bounds the wait for a place under the concurrency limit.
+   * @return The response, if successful.
+   */
+  private static HttpResponse send(HttpTransport client, ProtocolDataSource ds, HttpUriRequest req,
+      int updateOperations, Deadline deadline) {
+    ConcurrencyLimiter limiter = ds.getConcurrencyLimiter();
+    if (limiter != null) limiter.acquire(deadline.remainingMillis());
+    long start = System.nanoTime();
+    try {
+      HttpResponse response;
+      try {
+        response = client.execute(req);
+      } catch (IOException e) {
+        // The loser of a hedged execution is aborted on purpose, it didn't fail.
+        if (req.isAborted()) {
+          if (limiter != null) limiter.release();
+        } else {
+          long nanos = System.nanoTime() - start;
+          executed(ds, updateOperations, nanos, false);
+          if (limiter != null) limiter.release(nanos, true);
+        }
+        limiter = null;
+        throw e;
       }
-      
-      // Add Accept and Content-Type (for POST'ed queries) headers to the request.
-      addHeaders(req, mimeType);
-      
-      // There's a small chance the request could be aborted before it's even executed, we'll have to live with that.
-      command.setRequest(req);
-      
-      //dump(client, req);
-      HttpResponse response = client.execute(req);
+      long nanos = System.nanoTime() - start;
       StatusLine status = response.getStatusLine();
       int code = status.getStatusCode();
+      boolean success = code >= SUCCESS_MIN && code <= SUCCESS_MAX;
+      executed(ds, updateOperations, nanos, success);
+      if (limiter != null) limiter.release(nanos, code >= SERVER_ERROR_MIN || code == TOO_MANY_REQUESTS);
+      limiter = null;
       
       // TODO the client doesn't handle redirects for posts; should we do that here?
 
-      if (code >= SUCCESS_MIN && code <= SUCCESS_MAX) {
+      if (success) {
         return response;
       } else {
-        throw new SparqlException("Unexpected status code in server response: " +
-            status.getReasonPhrase() + "(" + code + ")");
+        throw new EndpointException("Unexpected status code in server response: " +
+            status.getReasonPhrase() + "(" + code + ")", code);
       }
-    } catch (UnsupportedEncodingException e) {
-      throw new SparqlException("Unabled to encode data", e);
     } catch (ClientProtocolException cpe) {
-      throw new SparqlException("Error in protocol", cpe);
+      throw new EndpointException("Error in protocol", cpe);
     } catch (IOException e) {
-      throw new SparqlException(e);
+      // An aborted request was cancelled or expired, the endpoint did not fail.
+      if (req.isAborted()) throw new SparqlException(e);
+      throw new EndpointException(e.toString(), e);
+    } finally {
+      // Anything else thrown before the response is not the endpoint's doing.
+      if (limiter != null) limiter.release();
+    }
+  }
+  
+  /** Record the time taken by a query or update request. */
+  private static void executed(ProtocolDataSource ds, int updateOperations, long nanos, boolean success) {
+    if (updateOperations > 0) {
+      ds.getMetrics().updateExecuted(updateOperations, nanos, success);
+    } else {
+      ds.getMetrics().requestExecuted(nanos, success);
+    }
+  }
+  
+  /**
+   * Asks the server to stop evaluating a query, if the data source has a cancel URL. This is
+   * best effort: failures are logged rather than thrown, since the local request has already
+   * been aborted. The cancel request is sent on the data source executor, so the caller does not
+   * wait for a pooled connection when the pool is saturated.
+   * @param command The SPARQL protocol command being cancelled.
+   * @param queryId The ID the query was tagged with.
+   */
+  static void cancelRequest(final ProtocolCommand command, final String queryId) {
+    ProtocolDataSource ds = (ProtocolDataSource)command.getConnection().getDataSource();
+    final String template = ds.getCancelUrlTemplate();
+    if (template == null) return;
+    try {
+      ds.getExecutor().execute(new Runnable() {
+        public void run() { sendCancel(command, template, queryId); }
+      });
+    } catch (RejectedExecutionException e) {
+      logger.debug("Data source closed, not cancelling query {} on the server", queryId);
+    }
+  }
+  
+  /** Sends the request to cancel a query on the server, logging any failure. */
+  private static void sendCancel(ProtocolCommand command, String template, String queryId) {
+    HttpTransport client = ((ProtocolConnection)command.getConnection()).getTransport();
+    String u = template.replace(ProtocolDataSource.QUERY_ID_TOKEN, encode(queryId));
+    try {
+      HttpResponse response = client.execute(new HttpPost(u));
+      HttpEntity entity = response.getEntity();
+      if (entity != null) entity.consumeContent();
+      int code = response.getStatusLine().getStatusCode();
+      if (code < SUCCESS_MIN || code > SUCCESS_MAX) {
+        logger.warn("Server refused to cancel query {}: {}", queryId, response.getStatusLine());
+      } else {
+        logger.debug("Cancelled query {} on the server", queryId);
+      }
+    } catch (Exception e) {
+      logger.warn("Unable to cancel query " + queryId + " on the server", e);
     }
   }
   
@@ -189,8 +463,11 @@ public class SparqlCall {
    * @param req The request to set the headers on.
    */
   static void addHeaders(HttpUriRequest req, String mimeType) {
-    if (POST.equalsIgnoreCase(req.getMethod())) {
-      req.addHeader(CONTENT_TYPE, FORM_ENCODED);
+    if (req instanceof HttpEntityEnclosingRequest) {
+      HttpEntity entity = ((HttpEntityEnclosingRequest)req).getEntity();
+      if (entity != null && entity.getContentType() != null) {
+        req.setHeader(CONTENT_TYPE, entity.getContentType().getValue());
+      }
     }
     if (mimeType != null) req.setHeader(ACCEPT, mimeType);
   }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import spark.api.rdf.BlankNode;
+import spark.api.rdf.NamedNode;
+import spark.api.rdf.PlainLiteral;
+import spark.api.rdf.RDFNode;
+import spark.api.rdf.Triple;
+import spark.api.rdf.TypedLiteral;
+import spark.api.uris.RdfTypes;
+
+/**
+ * Writes triples as N-Triples, or as Turtle where consecutive triples that share a subject
+ * (and predicate) are grouped. Non-ASCII characters are written as they are, so the output
+ * must be encoded as UTF-8.
+ */
+class TripleWriter {
+
+  private final Writer out;
+  private final boolean turtle;
+  private RDFNode lastSubject = null;
+  private RDFNode lastPredicate = null;
+
+  /**
+   * @param out Where to write.
+   * @param turtle true to write Turtle, false for N-Triples.
+   */
+  TripleWriter(Writer out, boolean turtle) {
+    this.out = out;
+    this.turtle = turtle;
+  }
+
+  void write(Triple t) throws IOException {
+    if (turtle && lastSubject != null && lastSubject.equals(t.getSubject())) {
+      if (lastPredicate.equals(t.getPredicate())) {
+        out.write(" ,\n        ");
+      } else {
+        out.write(" ;\n    ");
+        writePredicate(t.getPredicate());
+        out.write(' ');
+      }
+    } else {
+      if (lastSubject != null) out.write(" .\n");
+      writeNode(t.getSubject());
+      out.write(' ');
+      writePredicate(t.getPredicate());
+      out.write(' ');
+    }
+    writeNode(t.getObject());
+    if (turtle) {
+      lastSubject = t.getSubject();
+      lastPredicate = t.getPredicate();
+    } else {
+      out.write(" .\n");
+    }
+  }
+
+  /** End the last statement. */
+  void finish() throws IOException {
+    if (lastSubject != null) out.write(" .\n");
+    lastSubject = null;
+    lastPredicate = null;
+  }
+
+  private void writePredicate(NamedNode p) throws IOException {
+    if (turtle && RdfTypes.RDF_TYPE.equals(p.getURI())) {
+      out.write('a');
+    } else {
+      writeNode(p);
+    }
+  }
+
+  private void writeNode(RDFNode n) throws IOException {
+    if (n instanceof NamedNode) {
+      out.write('<');
+      writeIri(((NamedNode)n).getURI().toString());
+      out.write('>');
+    } else if (n instanceof BlankNode) {
+      out.write("_:");
+      out.write(((BlankNode)n).getLabel());
+    } else if (n instanceof TypedLiteral) {
+      writeString(((TypedLiteral)n).getLexical());
+      out.write("^^<");
+      writeIri(((TypedLiteral)n).getDataType().toString());
+      out.write('>');
+    } else if (n instanceof PlainLiteral) {
+      writeString(((PlainLiteral)n).getLexical());
+      String lang = ((PlainLiteral)n).getLanguage();
+      if (lang != null && lang.length() > 0) {
+        out.write('@');
+        out.write(lang);
+      }
+    } else {
+      throw new IllegalArgumentException("Unable to serialize RDF node: " + n);
+    }
+  }
+
+  private void writeIri(String iri) throws IOException {
+    for (int i = 0; i < iri.length(); i++) {
+      char c = iri.charAt(i);
+      if (c <= 0x20 || c == '<' || c == '>' || c == '"' || c == '{' || c == '}' ||
+          c == '|' || c == '^' || c == '`' || c == '\\') {
+        writeUnicodeEscape(c);
+      } else {
+        out.write(c);
+      }
+    }
+  }
+
+  private void writeString(String s) throws IOException {
+    out.write('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '"': out.write("\\\""); break;
+      case '\\': out.write("\\\\"); break;
+      case '\n': out.write("\\n"); break;
+      case '\r': out.write("\\r"); break;
+      case '\t': out.write("\\t"); break;
+      default:
+        if (c < 0x20 || c == 0x7F) {
+          writeUnicodeEscape(c);
+        } else {
+          out.write(c);
+        }
+      }
+    }
+    out.write('"');
+  }
+
+  private void writeUnicodeEscape(char c) throws IOException {
+    String hex = Integer.toHexString(c).toUpperCase();
+    out.write("\\u");
+    for (int i = hex.length(); i < 4; i++) out.write('0');
+    out.write(hex);
+  }
+}
@@ -33,8 +33,10 @@ import org.slf4j.LoggerFactory;
 
 import spark.api.Command;
 import spark.api.Result;
+import spark.api.exception.EndpointException;
 import spark.api.exception.SparqlException;
 import spark.protocol.ProtocolCommand.ResultType;
+import spark.protocol.ProtocolMetrics;
 
 /**
  * Factory for creating SPARQL {@link Result} objects from SPARQL HTTP Protocol responses.
@@ -218,9 +220,12 @@ public class ResultFactory {
     
     Result result = null;
     try {
-      result = parser.parse(cmd, entity.getContent(), expectedType);
+      InputStream content = entity.getContent();
+      ProtocolMetrics metrics = ProtocolMetrics.forCommand(cmd);
+      if (metrics != null) content = new MeteredInputStream(content, metrics);
+      result = parser.parse(cmd, content, expectedType);
     } catch (IOException e) {
-      throw new SparqlException("Error reading response from server", e);
+      throw new EndpointException("Error reading response from server", e);
     }
     
     if (result == null) {
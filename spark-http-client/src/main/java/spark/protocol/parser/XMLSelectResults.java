@@ -24,7 +24,6 @@ import static spark.protocol.parser.XMLResultsParser.Element.RESULTS;
 
 import java.io.IOException;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -38,13 +37,11 @@ import spark.api.Solutions;
 import spark.api.exception.SparqlException;
 import spark.api.rdf.RDFNode;
 import spark.protocol.ProtocolCommand;
+import spark.protocol.ProtocolMetrics;
 import spark.protocol.ProtocolResult;
 import spark.protocol.parser.XMLResultsParser.Element;
 import spark.spi.StreamingSolutions;
-import spark.spi.rdf.BlankNodeImpl;
-import spark.spi.rdf.NamedNodeImpl;
-import spark.spi.rdf.PlainLiteralImpl;
-import spark.spi.rdf.TypedLiteralImpl;
+import spark.spi.rdf.RDFNodeFactory;
 
 /**
  * Parses an XML stream for SPARQL results, returning them as solution mappings.
@@ -75,6 +72,12 @@ public class XMLSelectResults extends StreamingSolutions implements Solutions, P
   // Maintain a one-row lookahead to support isLast()
   private Map<String,RDFNode> nextRow;
   
+  /** Metrics of the data source the results came from, or null. */
+  private final ProtocolMetrics metrics;
+  private final long startNanos = System.nanoTime();
+  private long rowCount = 0;
+  private boolean reported = false;
+  
   /**
    * Creates a results object from an already opened reader that has had the header parsed to determine
    * that this contains a SPARQL XML result set.
@@ -86,6 +89,7 @@ public class XMLSelectResults extends StreamingSolutions implements Solutions, P
     super(cmd, columns);
     this.reader = reader;
     this.metadata = Collections.unmodifiableList(metadata);
+    this.metrics = ProtocolMetrics.forCommand(cmd);
     this.nextRow = readNext();
   }
 
@@ -97,6 +101,7 @@ public class XMLSelectResults extends StreamingSolutions implements Solutions, P
   @Override
   public void close() throws SparqlException, IOException {
     super.close();
+    reportRows();
     try {
       reader.close();
     } catch (XMLStreamException e) {
@@ -138,6 +143,7 @@ public class XMLSelectResults extends StreamingSolutions implements Solutions, P
       if (eventType == END_ELEMENT) {
         // already read the final result, so clean up and return nothing
         if (nameIs(RESULTS)) {
+          reportRows();
           cleanup();
           return null;
         }
@@ -158,9 +164,14 @@ public class XMLSelectResults extends StreamingSolutions implements Solutions, P
 
       // a non- <binding> was read, so it should have been a </result>
       testClose(eventType, RESULT, "Single Result not closed correctly");
+      rowCount++;
       return result;
     } catch (XMLStreamException e) {
       throw new SparqlException("Error reading from XML stream", e);
+    } catch (RuntimeException e) {
+      // Some StAX readers defer I/O errors, such as an aborted connection, to an unchecked wrapper.
+      if (e.getCause() instanceof XMLStreamException) throw new SparqlException("Error reading from XML stream", e.getCause());
+      throw e;
     }
   }
 
@@ -178,22 +189,21 @@ public class XMLSelectResults extends StreamingSolutions implements Solutions, P
       switch (elt) {
       case URI:
         if (reader.next() != CHARACTERS) throw new SparqlException("Unexpected data in URI binding");
-        return new NamedNodeImpl(new URI(reader.getText()));
+        return RDFNodeFactory.namedNode(reader.getText());
       case BNODE:
         if (reader.next() != CHARACTERS) throw new SparqlException("Unexpected data in BNode binding");
-        return new BlankNodeImpl(reader.getText());
+        return RDFNodeFactory.blankNode(reader.getText());
       case LITERAL:
         String dt = reader.getAttributeValue(null, DATATYPE);
-        URI datatype = (dt == null) ? null : new URI(dt);
+        URI datatype = (dt == null) ? null : RDFNodeFactory.uri(dt);
         String lang = reader.getAttributeValue(XML_NS, LANG);
         if (reader.next() != CHARACTERS) throw new SparqlException("Unexpected data in Literal binding");
         String lex = reader.getText();
-        return (datatype != null) ? new TypedLiteralImpl(lex, datatype) : new PlainLiteralImpl(lex, lang);
+        return (datatype != null) ? RDFNodeFactory.typedLiteral(lex, datatype) : RDFNodeFactory.plainLiteral(lex, lang);
       default:
         throw new SparqlException("Unexpected binding value: " + reader.getLocalName());
       }
-    } catch (URISyntaxException e) {
-      e.printStackTrace();
+    } catch (IllegalArgumentException e) {
       throw new SparqlException("Bad URI in binding: " + e.getMessage());
     } catch (Throwable t) {
       t.printStackTrace();
@@ -203,6 +213,14 @@ public class XMLSelectResults extends StreamingSolutions implements Solutions, P
     }
   }
 
+  /** Report the rows delivered so far to the data source metrics, once. */
+  private void reportRows() {
+    if (metrics != null && !reported) {
+      reported = true;
+      metrics.rowsRead(rowCount, System.nanoTime() - startNanos);
+    }
+  }
+
   /**
    * Steps over the end of the XML. Invalid data will not cause an exception to be thrown, but the
    * error will be recorded.
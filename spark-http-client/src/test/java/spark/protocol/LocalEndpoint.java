@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal HTTP endpoint on localhost for exercising the protocol client in tests. Every request
+ * is recorded and then passed to a {@link Handler} to produce the response.
+ */
+public class LocalEndpoint {
+
+  /** A SELECT result with one row binding <code>x</code>. */
+  public static final String SINGLE_RESULT =
+    "<?xml version=\"1.0\"?>\n" +
+    "<sparql xmlns=\"http://www.w3.org/2005/sparql-results#\">\n" +
+    "  <head><variable name=\"x\"/></head>\n" +
+    "  <results><result><binding name=\"x\"><literal>1</literal></binding></result></results>\n" +
+    "</sparql>\n";
+
+  /** A recorded request. */
+  public static class Request {
+    public final String method;
+    public final String path;
+    /** The raw (still URL-encoded) query string, or null. */
+    public final String query;
+    public final String contentType;
+    public final byte[] body;
+
+    Request(String method, String path, String query, String contentType, byte[] body) {
+      this.method = method;
+      this.path = path;
+      this.query = query;
+      this.contentType = contentType;
+      this.body = body;
+    }
+
+    /** @return the request body decoded as UTF-8. */
+    public String bodyString() {
+      try {
+        return new String(body, "UTF-8");
+      } catch (IOException e) {
+        throw new Error(e);
+      }
+    }
+  }
+
+  /** Produces the response for a request. */
+  public interface Handler {
+    void handle(Request request, HttpExchange exchange) throws IOException;
+  }
+
+  /** Handler that answers every request with {@link #SINGLE_RESULT}. */
+  public static final Handler SINGLE_RESULT_HANDLER = new Handler() {
+    public void handle(Request request, HttpExchange exchange) throws IOException {
+      respond(exchange, 200, "application/sparql-results+xml", SINGLE_RESULT);
+    }
+  };
+
+  private final HttpServer server;
+  private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+  private volatile Handler handler;
+
+  /** Start an endpoint on an ephemeral port. */
+  public LocalEndpoint(Handler handler) throws IOException {
+    this.handler = handler;
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        Request req = new Request(exchange.getRequestMethod(), exchange.getRequestURI().getPath(),
+            exchange.getRequestURI().getRawQuery(), exchange.getRequestHeaders().getFirst("Content-Type"),
+            readFully(exchange.getRequestBody()));
+        requests.add(req);
+        try {
+          LocalEndpoint.this.handler.handle(req, exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.start();
+  }
+
+  /** @return the URL of the SPARQL endpoint, with path <code>/sparql</code>. */
+  public URL getUrl() {
+    try {
+      return new URL("http://localhost:" + server.getAddress().getPort() + "/sparql");
+    } catch (MalformedURLException e) {
+      throw new Error(e);
+    }
+  }
+
+  public void setHandler(Handler handler) {
+    this.handler = handler;
+  }
+
+  /** @return a snapshot of the requests received so far. */
+  public List<Request> getRequests() {
+    synchronized (requests) {
+      return new ArrayList<Request>(requests);
+    }
+  }
+
+  public void stop() {
+    server.stop(0);
+  }
+
+  /** Write a complete response with the given status and UTF-8 body. */
+  public static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+    byte[] bytes = body.getBytes("UTF-8");
+    if (contentType != null) exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+    if (bytes.length > 0) {
+      OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) > 0) {
+      out.write(buf, 0, n);
+    }
+    return out.toByteArray();
+  }
+}
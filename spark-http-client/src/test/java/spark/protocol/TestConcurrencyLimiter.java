@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import spark.api.Command;
+import spark.api.Connection;
+import spark.api.credentials.NoCredentials;
+import spark.api.exception.SparqlException;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Test cases for the adaptive concurrency limit.
+ */
+public class TestConcurrencyLimiter extends TestCase {
+
+  private static final long MS = 1000000L;
+
+  public void testAimd() {
+    ConcurrencyLimiter l = new ConcurrencyLimiter(4, 1, 10);
+    l.setAlgorithm(ConcurrencyLimiter.Algorithm.AIMD);
+    // Fast requests at full use grow the limit by one each.
+    for (int i = 0; i < 4; i++) l.acquire();
+    for (int i = 0; i < 4; i++) l.release(10 * MS, false);
+    assertTrue(l.getLimit() > 4);
+    assertEquals(0, l.getInFlight());
+    // Slow and failed requests shrink it.
+    int before = l.getLimit();
+    l.acquire();
+    l.release(100 * MS, false);
+    l.acquire();
+    l.release(10 * MS, true);
+    assertTrue(l.getLimit() < before);
+    // Never below the minimum.
+    for (int i = 0; i < 100; i++) {
+      l.acquire();
+      l.release(0, true);
+    }
+    assertEquals(1, l.getLimit());
+    assertEquals(10.0, l.getMinLatencyMillis(), 0.001);
+  }
+
+  public void testGradient() {
+    ConcurrencyLimiter l = new ConcurrencyLimiter(20, 1, 100);
+    for (int i = 0; i < 50; i++) {
+      for (int j = 0; j < 20; j++) l.acquire();
+      for (int j = 0; j < 20; j++) l.release(10 * MS, false);
+    }
+    int steady = l.getLimit();
+    assertTrue(steady >= 20);
+    // Latency rising well above its average pulls the limit down.
+    for (int i = 0; i < 20; i++) {
+      l.acquire();
+      l.release(200 * MS, false);
+    }
+    assertTrue(l.getLimit() < steady);
+  }
+
+  public void testRejectAndWait() throws Exception {
+    final ConcurrencyLimiter l = new ConcurrencyLimiter(1, 1, 1);
+    l.acquire();
+    try {
+      l.acquire();
+      fail("Should reject over the limit");
+    } catch (SparqlException e) {
+      // expected
+    }
+    assertEquals(1, l.getRejectedCount());
+
+    l.setMaxWait(5000);
+    new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          // release now
+        }
+        l.release();
+      }
+    }.start();
+    long start = System.nanoTime();
+    l.acquire();
+    assertTrue(System.nanoTime() - start < 5000 * MS);
+    assertEquals(1, l.getInFlight());
+    assertEquals(1, l.getRejectedCount());
+  }
+
+  public void testDataSource() throws Exception {
+    final CountDownLatch received = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    LocalEndpoint endpoint = new LocalEndpoint(new LocalEndpoint.Handler() {
+      public void handle(LocalEndpoint.Request request, HttpExchange exchange) throws IOException {
+        if (request.query.contains("slow")) {
+          received.countDown();
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            // respond anyway
+          }
+        }
+        LocalEndpoint.respond(exchange, 200, "application/sparql-results+xml", LocalEndpoint.SINGLE_RESULT);
+      }
+    });
+    ProtocolDataSource ds = new ProtocolDataSource(endpoint.getUrl());
+    ds.setConcurrencyLimiter(new ConcurrencyLimiter(1, 1, 1));
+    try {
+      Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+      conn.createCommand("SELECT * WHERE { ?s ?p ?o }").executeQuery().close();
+      assertEquals(0, ds.getConcurrencyLimiter().getInFlight());
+
+      final Command slow = conn.createCommand("SELECT * WHERE { ?s ?p ?slow }");
+      Thread t = new Thread() {
+        public void run() {
+          slow.executeQuery();
+        }
+      };
+      t.start();
+      assertTrue(received.await(5, TimeUnit.SECONDS));
+      try {
+        conn.createCommand("SELECT * WHERE { ?s ?p ?o }").executeQuery();
+        fail("Should reject over the limit");
+      } catch (SparqlException e) {
+        // expected
+      }
+      assertEquals(1, ds.getMetrics().getRejectedRequestCount());
+      assertEquals(1, ds.getMetrics().getConcurrencyLimit());
+      release.countDown();
+      t.join();
+      assertEquals(0, ds.getConcurrencyLimiter().getInFlight());
+    } finally {
+      release.countDown();
+      ds.close();
+      endpoint.stop();
+    }
+  }
+}
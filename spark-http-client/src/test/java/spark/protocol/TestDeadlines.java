@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import spark.api.Command;
+import spark.api.Solutions;
+import spark.api.credentials.NoCredentials;
+import spark.api.exception.SparqlException;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Test cases for command deadlines bounding the whole of an execution.
+ */
+public class TestDeadlines extends TestCase {
+
+  private static final Pattern TIMEOUT = Pattern.compile("timeout=(\\d+)");
+
+  private LocalEndpoint endpoint;
+  private ProtocolDataSource ds;
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @Override
+  protected void setUp() throws Exception {
+    endpoint = new LocalEndpoint(LocalEndpoint.SINGLE_RESULT_HANDLER);
+    ds = new ProtocolDataSource(endpoint.getUrl());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    release.countDown();
+    ds.close();
+    endpoint.stop();
+  }
+
+  private Command command(long deadlineMillis) {
+    Command cmd = ds.getConnection(NoCredentials.INSTANCE).createCommand("SELECT * WHERE { ?s ?p ?o }");
+    if (deadlineMillis > 0) cmd.setDeadline(System.currentTimeMillis() + deadlineMillis);
+    return cmd;
+  }
+
+  /** Execute a query and read all of its results, returning the time taken in milliseconds. */
+  private long readAll(Command cmd) throws Exception {
+    long start = System.nanoTime();
+    Solutions s = cmd.executeQuery();
+    try {
+      while (s.next());
+    } finally {
+      s.close();
+    }
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  public void testTimeoutParameter() throws Exception {
+    ds.setTimeoutParameter("timeout");
+    readAll(command(5000));
+    readAll(command(0));
+    Matcher m = TIMEOUT.matcher(endpoint.getRequests().get(0).query);
+    assertTrue(m.find());
+    long budget = Long.parseLong(m.group(1));
+    assertTrue("" + budget, budget > 0 && budget <= 5000);
+    // Nothing to send without a deadline.
+    assertFalse(TIMEOUT.matcher(endpoint.getRequests().get(1).query).find());
+  }
+
+  public void testSlowResponse() throws Exception {
+    endpoint.setHandler(new LocalEndpoint.Handler() {
+      public void handle(LocalEndpoint.Request request, HttpExchange exchange) throws IOException {
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          // respond anyway
+        }
+        LocalEndpoint.respond(exchange, 200, "application/sparql-results+xml", LocalEndpoint.SINGLE_RESULT);
+      }
+    });
+    long start = System.nanoTime();
+    try {
+      readAll(command(300));
+      fail("Should miss the deadline");
+    } catch (SparqlException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Deadline passed"));
+    }
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 3000);
+  }
+
+  public void testTricklingBody() throws Exception {
+    // Each read gets a byte well within the socket timeout, so only the deadline stops the query.
+    endpoint.setHandler(new LocalEndpoint.Handler() {
+      public void handle(LocalEndpoint.Request request, HttpExchange exchange) throws IOException {
+        String head = LocalEndpoint.SINGLE_RESULT.substring(0, LocalEndpoint.SINGLE_RESULT.indexOf("</results>"));
+        exchange.getResponseHeaders().set("Content-Type", "application/sparql-results+xml");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        try {
+          out.write(head.getBytes("UTF-8"));
+          out.flush();
+          while (!release.await(50, TimeUnit.MILLISECONDS)) {
+            out.write(' ');
+            out.flush();
+          }
+        } catch (InterruptedException e) {
+          // done
+        } catch (IOException e) {
+          // client went away
+        }
+        exchange.close();
+      }
+    });
+    long start = System.nanoTime();
+    try {
+      readAll(command(500));
+      fail("Should miss the deadline");
+    } catch (SparqlException e) {
+      // expected
+    }
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue("" + elapsed, elapsed >= 400 && elapsed < 3000);
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+import spark.api.credentials.NoCredentials;
+import spark.api.exception.SparqlException;
+import spark.api.rdf.Triple;
+import spark.api.uris.RdfTypes;
+import spark.api.uris.XsdTypes;
+import spark.spi.rdf.BlankNodeImpl;
+import spark.spi.rdf.NamedNodeImpl;
+import spark.spi.rdf.PlainLiteralImpl;
+import spark.spi.rdf.TripleImpl;
+import spark.spi.rdf.TypedLiteralImpl;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Test cases for loading triples through the graph store protocol.
+ */
+public class TestGraphStore extends TestCase {
+
+  private static final URI GRAPH = URI.create("http://example.org/graph");
+
+  private LocalEndpoint endpoint;
+  private ProtocolDataSource ds;
+  private GraphStore store;
+
+  @Override
+  protected void setUp() throws Exception {
+    endpoint = new LocalEndpoint(new LocalEndpoint.Handler() {
+      public void handle(LocalEndpoint.Request request, HttpExchange exchange) throws IOException {
+        LocalEndpoint.respond(exchange, 204, null, "");
+      }
+    });
+    ds = new ProtocolDataSource(endpoint.getUrl());
+    store = new GraphStore(ds.getConnection(NoCredentials.INSTANCE),
+        new URL(endpoint.getUrl().toString().replace("/sparql", "/data")));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ds.close();
+    endpoint.stop();
+  }
+
+  private static NamedNodeImpl iri(String s) {
+    return new NamedNodeImpl(URI.create("http://example.org/" + s));
+  }
+
+  private static List<Triple> triples(int n) {
+    List<Triple> triples = new ArrayList<Triple>();
+    for (int i = 0; i < n; i++) {
+      triples.add(new TripleImpl(iri("s" + i), iri("p"), new TypedLiteralImpl(Integer.toString(i), XsdTypes.INT)));
+    }
+    return triples;
+  }
+
+  private static int lines(String body) {
+    int n = 0;
+    for (String line : body.split("\n")) {
+      if (line.trim().length() > 0) n++;
+    }
+    return n;
+  }
+
+  public void testPost() throws Exception {
+    store.setPartitionSize(2);
+    assertEquals(5, store.post(GRAPH, triples(5)));
+    List<LocalEndpoint.Request> requests = endpoint.getRequests();
+    assertEquals(3, requests.size());
+    int total = 0;
+    for (LocalEndpoint.Request r : requests) {
+      assertEquals("POST", r.method);
+      assertEquals("/data", r.path);
+      assertEquals("graph=http%3A%2F%2Fexample.org%2Fgraph", r.query);
+      assertEquals("application/n-triples; charset=UTF-8", r.contentType);
+      total += lines(r.bodyString());
+    }
+    assertEquals(5, total);
+    assertEquals("<http://example.org/s0> <http://example.org/p> \"0\"^^<" + XsdTypes.INT + "> .\n" +
+        "<http://example.org/s1> <http://example.org/p> \"1\"^^<" + XsdTypes.INT + "> .\n", requests.get(0).bodyString());
+  }
+
+  public void testParallelPut() throws Exception {
+    store.setPartitionSize(3);
+    store.setParallelism(3);
+    assertEquals(100, store.put(null, triples(100)));
+    List<LocalEndpoint.Request> requests = endpoint.getRequests();
+    assertEquals(34, requests.size());
+    assertEquals("PUT", requests.get(0).method);
+    assertEquals("default", requests.get(0).query);
+    int total = 0;
+    for (LocalEndpoint.Request r : requests) {
+      if (r != requests.get(0)) assertEquals("POST", r.method);
+      total += lines(r.bodyString());
+    }
+    assertEquals(100, total);
+  }
+
+  public void testPutEmpty() throws Exception {
+    assertEquals(0, store.put(GRAPH, new ArrayList<Triple>()));
+    assertEquals(1, endpoint.getRequests().size());
+    assertEquals("PUT", endpoint.getRequests().get(0).method);
+    assertEquals(0, endpoint.getRequests().get(0).body.length);
+  }
+
+  public void testGzip() throws Exception {
+    store.setGzip(true);
+    store.post(GRAPH, triples(1000));
+    byte[] body = endpoint.getRequests().get(0).body;
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+    assertEquals(1000, lines(out.toString("UTF-8")));
+    assertTrue(body.length < out.size());
+  }
+
+  public void testRetry() throws Exception {
+    final AtomicInteger failures = new AtomicInteger(2);
+    endpoint.setHandler(new LocalEndpoint.Handler() {
+      public void handle(LocalEndpoint.Request request, HttpExchange exchange) throws IOException {
+        LocalEndpoint.respond(exchange, failures.getAndDecrement() > 0 ? 503 : 204, null, "");
+      }
+    });
+    store.setRetryDelay(1);
+    assertEquals(3, store.post(GRAPH, triples(3)));
+    assertEquals(3, endpoint.getRequests().size());
+    assertEquals(endpoint.getRequests().get(0).bodyString(), endpoint.getRequests().get(2).bodyString());
+  }
+
+  public void testBlankNodesNotRetried() throws Exception {
+    final AtomicInteger failures = new AtomicInteger(1);
+    endpoint.setHandler(new LocalEndpoint.Handler() {
+      public void handle(LocalEndpoint.Request request, HttpExchange exchange) throws IOException {
+        LocalEndpoint.respond(exchange, failures.getAndDecrement() > 0 ? 503 : 204, null, "");
+      }
+    });
+    store.setRetryDelay(1);
+    List<Triple> triples = triples(2);
+    triples.add(new TripleImpl(new BlankNodeImpl("b0"), iri("p"), iri("o")));
+    try {
+      store.post(GRAPH, triples);
+      fail("Should not retry a partition with blank nodes");
+    } catch (SparqlException e) {
+      // expected
+    }
+    assertEquals(1, endpoint.getRequests().size());
+    // Replacing the graph can be done again safely.
+    failures.set(1);
+    assertEquals(3, store.put(GRAPH, triples));
+    assertEquals(3, endpoint.getRequests().size());
+  }
+
+  public void testBlankNodesNotResentOnDrop() throws Exception {
+    // Read the body, then drop the connection without a response.
+    endpoint.setHandler(new LocalEndpoint.Handler() {
+      public void handle(LocalEndpoint.Request request, HttpExchange exchange) {
+      }
+    });
+    store.setRetryDelay(1);
+    List<Triple> triples = triples(2);
+    triples.add(new TripleImpl(new BlankNodeImpl("b0"), iri("p"), iri("o")));
+    try {
+      store.post(GRAPH, triples);
+      fail("Should not send a partition with blank nodes again");
+    } catch (SparqlException e) {
+      // expected
+    }
+    assertEquals(1, endpoint.getRequests().size());
+    assertEquals(3, lines(endpoint.getRequests().get(0).bodyString()));
+  }
+
+  public void testBlankNodesKeptTogether() throws Exception {
+    store.setPartitionSize(2);
+    BlankNodeImpl b = new BlankNodeImpl("b0");
+    List<Triple> triples = triples(1);
+    triples.add(new TripleImpl(b, iri("p"), iri("o")));
+    triples.add(new TripleImpl(b, iri("q"), iri("o")));
+    triples.add(new TripleImpl(iri("s"), iri("p"), b));
+    triples.add(new TripleImpl(iri("s"), iri("q"), iri("o")));
+    assertEquals(5, store.post(GRAPH, triples));
+    List<LocalEndpoint.Request> requests = endpoint.getRequests();
+    assertEquals(2, requests.size());
+    assertEquals(4, lines(requests.get(0).bodyString()));
+    assertEquals(1, lines(requests.get(1).bodyString()));
+  }
+
+  public void testBlankNodeAcrossPartitions() throws Exception {
+    store.setPartitionSize(1);
+    BlankNodeImpl b = new BlankNodeImpl("b0");
+    List<Triple> triples = new ArrayList<Triple>();
+    triples.add(new TripleImpl(b, iri("p"), iri("o")));
+    triples.add(new TripleImpl(iri("s"), iri("p"), iri("o")));
+    triples.add(new TripleImpl(iri("s"), iri("q"), b));
+    try {
+      store.post(GRAPH, triples);
+      fail("Should not split triples that share a blank node across requests");
+    } catch (SparqlException e) {
+      assertTrue(e.getMessage().contains("_:b0"));
+    }
+    assertEquals(2, endpoint.getRequests().size());
+  }
+
+  public void testClientErrorNotRetried() throws Exception {
+    endpoint.setHandler(new LocalEndpoint.Handler() {
+      public void handle(LocalEndpoint.Request request, HttpExchange exchange) throws IOException {
+        LocalEndpoint.respond(exchange, 400, "text/plain", "bad data");
+      }
+    });
+    try {
+      store.post(GRAPH, triples(3));
+      fail("Should fail on client error");
+    } catch (SparqlException e) {
+      // expected
+    }
+    assertEquals(1, endpoint.getRequests().size());
+  }
+
+  public void testTurtle() throws Exception {
+    StringWriter out = new StringWriter();
+    TripleWriter w = new TripleWriter(out, true);
+    BlankNodeImpl b = new BlankNodeImpl("b0");
+    for (Triple t : Arrays.asList(
+        new TripleImpl(b, new NamedNodeImpl(RdfTypes.RDF_TYPE), iri("Thing")),
+        new TripleImpl(b, iri("name"), new PlainLiteralImpl("chat", "fr")),
+        new TripleImpl(b, iri("name"), new PlainLiteralImpl("say \"hi\"\n\\")),
+        new TripleImpl(iri("s"), iri("p"), b))) {
+      w.write(t);
+    }
+    w.finish();
+    assertEquals("_:b0 a <http://example.org/Thing> ;\n" +
+        "    <http://example.org/name> \"chat\"@fr ,\n" +
+        "        \"say \\\"hi\\\"\\n\\\\\" .\n" +
+        "<http://example.org/s> <http://example.org/p> _:b0 .\n", out.toString());
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import spark.api.Command;
+import spark.api.Connection;
+import spark.api.Solutions;
+import spark.api.credentials.NoCredentials;
+import spark.api.exception.SparqlException;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Test cases for hedging slow queries.
+ */
+public class TestHedging extends TestCase {
+
+  private static final String QUERY = "SELECT * WHERE { ?s ?p ?o }";
+
+  private LocalEndpoint endpoint;
+  private LocalEndpoint replica;
+  private ProtocolDataSource ds;
+
+  /** Number of queries to hold before answering; the rest are answered immediately. */
+  private final AtomicInteger stalls = new AtomicInteger();
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @Override
+  protected void setUp() throws Exception {
+    LocalEndpoint.Handler handler = new LocalEndpoint.Handler() {
+      public void handle(LocalEndpoint.Request request, HttpExchange exchange) throws IOException {
+        if (request.path.endsWith("/cancel")) {
+          LocalEndpoint.respond(exchange, 200, "text/plain", "");
+          return;
+        }
+        if (stalls.getAndDecrement() > 0) {
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            // respond anyway
+          }
+        }
+        LocalEndpoint.respond(exchange, 200, "application/sparql-results+xml", LocalEndpoint.SINGLE_RESULT);
+      }
+    };
+    endpoint = new LocalEndpoint(handler);
+    replica = new LocalEndpoint(LocalEndpoint.SINGLE_RESULT_HANDLER);
+    ds = new ProtocolDataSource(endpoint.getUrl());
+    HedgePolicy policy = new HedgePolicy(50);
+    policy.setMinSamples(5);
+    policy.setMinDelay(20);
+    policy.setMaxHedgeRatio(1.0);
+    ds.setHedgePolicy(policy);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    release.countDown();
+    ds.close();
+    endpoint.stop();
+    replica.stop();
+  }
+
+  /** Run a query and check its result, returning the time it took in milliseconds. */
+  private static long query(Command cmd) throws IOException {
+    long start = System.nanoTime();
+    Solutions s = cmd.executeQuery();
+    assertTrue(s.next());
+    assertEquals("1", s.getLiteral("x").getLexical());
+    assertFalse(s.next());
+    s.close();
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  private void warmUp(Connection conn) throws IOException {
+    for (int i = 0; i < 5; i++) query(conn.createCommand(QUERY));
+    assertEquals(0, ds.getMetrics().getHedgeCount());
+  }
+
+  public void testHedgeToSameEndpoint() throws Exception {
+    Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+    warmUp(conn);
+    int before = endpoint.getRequests().size();
+    stalls.set(1);
+    long time = query(conn.createCommand(QUERY));
+    assertTrue("took " + time + "ms", time < 5000);
+    assertEquals(1, ds.getMetrics().getHedgeCount());
+    assertEquals(1, ds.getMetrics().getHedgeWinCount());
+    assertEquals(before + 2, endpoint.getRequests().size());
+    // The aborted request is not counted as a failure.
+    assertEquals(0, ds.getMetrics().getFailedRequestCount());
+  }
+
+  public void testHedgeToReplica() throws Exception {
+    ds.getHedgePolicy().addReplica(replica.getUrl());
+    Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+    warmUp(conn);
+    stalls.set(1);
+    long time = query(conn.createCommand(QUERY));
+    assertTrue("took " + time + "ms", time < 5000);
+    assertEquals(1, replica.getRequests().size());
+    assertEquals(1, ds.getMetrics().getHedgeWinCount());
+  }
+
+  public void testDeadlineAfterHedgeWins() throws Exception {
+    // The replica answers the hedge at once, but then trickles the body so each read succeeds.
+    replica.setHandler(new LocalEndpoint.Handler() {
+      public void handle(LocalEndpoint.Request request, HttpExchange exchange) throws IOException {
+        String head = LocalEndpoint.SINGLE_RESULT.substring(0, LocalEndpoint.SINGLE_RESULT.indexOf("</results>"));
+        exchange.getResponseHeaders().set("Content-Type", "application/sparql-results+xml");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        try {
+          out.write(head.getBytes("UTF-8"));
+          out.flush();
+          for (int i = 0; i < 100 && !release.await(50, TimeUnit.MILLISECONDS); i++) {
+            out.write(' ');
+            out.flush();
+          }
+        } catch (InterruptedException e) {
+          // done
+        } catch (IOException e) {
+          // client went away
+        }
+        exchange.close();
+      }
+    });
+    ds.getHedgePolicy().addReplica(replica.getUrl());
+    Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+    warmUp(conn);
+    stalls.set(1);
+    Command cmd = conn.createCommand(QUERY);
+    cmd.setDeadline(System.currentTimeMillis() + 1000);
+    long start = System.nanoTime();
+    try {
+      Solutions s = cmd.executeQuery();
+      while (s.next());
+      fail("Should miss the deadline");
+    } catch (SparqlException e) {
+      // expected
+    }
+    long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertEquals(1, ds.getMetrics().getHedgeWinCount());
+    assertTrue("took " + time + "ms", time >= 900 && time < 3000);
+  }
+
+  public void testLoserCancelledOnServer() throws Exception {
+    ds.setQueryIdParameter("queryId");
+    ds.setCancelUrlTemplate(endpoint.getUrl().toString().replace("/sparql", "/cancel") + "?queryId=" +
+        ProtocolDataSource.QUERY_ID_TOKEN);
+    Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+    warmUp(conn);
+    stalls.set(1);
+    query(conn.createCommand(QUERY));
+    LocalEndpoint.Request stalled = endpoint.getRequests().get(5);
+    String cancel = null;
+    // The cancel request is sent in the background.
+    for (int i = 0; i < 100 && cancel == null; i++) {
+      for (LocalEndpoint.Request r : endpoint.getRequests()) {
+        if (r.path.endsWith("/cancel")) cancel = r.query;
+      }
+      if (cancel == null) Thread.sleep(50);
+    }
+    assertNotNull("loser was not cancelled on the server", cancel);
+    assertTrue(stalled.query.contains(cancel));
+  }
+
+  public void testNoHedgeWithoutSamples() throws Exception {
+    ds.getHedgePolicy().setMinSamples(100);
+    Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+    warmUp(conn);
+    stalls.set(1);
+    new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          // release now
+        }
+        release.countDown();
+      }
+    }.start();
+    long time = query(conn.createCommand(QUERY));
+    assertTrue("took " + time + "ms", time >= 150);
+    assertEquals(0, ds.getMetrics().getHedgeCount());
+  }
+
+  public void testUpdatesNotHedged() throws Exception {
+    Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+    warmUp(conn);
+    int before = endpoint.getRequests().size();
+    stalls.set(1);
+    new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          // release now
+        }
+        release.countDown();
+      }
+    }.start();
+    conn.createCommand(QUERY).execute().close();
+    assertEquals(0, ds.getMetrics().getHedgeCount());
+    assertEquals(before + 1, endpoint.getRequests().size());
+  }
+}
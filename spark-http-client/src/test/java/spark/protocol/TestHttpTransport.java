@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+
+import junit.framework.TestCase;
+import spark.api.Connection;
+import spark.api.Solutions;
+import spark.api.credentials.NoCredentials;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Test cases for the pluggable HTTP transport.
+ */
+public class TestHttpTransport extends TestCase {
+
+  private LocalEndpoint endpoint;
+
+  @Override
+  protected void setUp() throws Exception {
+    endpoint = new LocalEndpoint(LocalEndpoint.SINGLE_RESULT_HANDLER);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    endpoint.stop();
+  }
+
+  /** Drops the connection after reading the request, without a response. */
+  private static final LocalEndpoint.Handler DROP_HANDLER = new LocalEndpoint.Handler() {
+    public void handle(LocalEndpoint.Request request, HttpExchange exchange) {
+    }
+  };
+
+  private static void query(Connection conn) throws IOException {
+    Solutions s = conn.createCommand("SELECT * WHERE { ?s ?p ?o }").executeQuery();
+    assertTrue(s.next());
+    assertFalse(s.next());
+    s.close();
+  }
+
+  public void testConnectionReuse() throws Exception {
+    ProtocolDataSource ds = new ProtocolDataSource(endpoint.getUrl());
+    try {
+      Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+      for (int i = 0; i < 5; i++) query(conn);
+      assertEquals(5, ds.getMetrics().getAcquireCount());
+      assertEquals(1, ds.getMetrics().getConnectionsOpened());
+      assertEquals(1, ds.getMetrics().getAvailableConnections());
+    } finally {
+      ds.close();
+    }
+  }
+
+  public void testCustomTransport() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    final AtomicInteger shutdowns = new AtomicInteger();
+    ProtocolDataSource ds = new ProtocolDataSource(endpoint.getUrl());
+    ds.setTransportFactory(new HttpTransport.Factory() {
+      public HttpTransport createTransport(ProtocolDataSource source) {
+        final HttpTransport pooled = PooledHttpTransport.FACTORY.createTransport(source);
+        return new HttpTransport() {
+          public HttpResponse execute(HttpUriRequest request) throws IOException {
+            requests.incrementAndGet();
+            return pooled.execute(request);
+          }
+          public void shutdown() {
+            shutdowns.incrementAndGet();
+            pooled.shutdown();
+          }
+        };
+      }
+    });
+    try {
+      query(ds.getConnection(NoCredentials.INSTANCE));
+      query(ds.getConnection(NoCredentials.INSTANCE));
+      assertEquals(2, requests.get());
+      try {
+        ds.setTransportFactory(PooledHttpTransport.FACTORY);
+        fail("Should not change the transport once in use");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+    } finally {
+      ds.close();
+    }
+    assertEquals(1, shutdowns.get());
+  }
+
+  public void testPostNotResent() throws Exception {
+    endpoint.setHandler(DROP_HANDLER);
+    ProtocolDataSource ds = new ProtocolDataSource(endpoint.getUrl());
+    HttpTransport transport = PooledHttpTransport.FACTORY.createTransport(ds);
+    try {
+      HttpPost post = new HttpPost(endpoint.getUrl().toString());
+      post.setEntity(new StringEntity("INSERT DATA { <a> <b> _:c }", "UTF-8"));
+      try {
+        transport.execute(post);
+        fail("Should report the dropped connection");
+      } catch (IOException e) {
+        // expected
+      }
+      assertEquals(1, endpoint.getRequests().size());
+      assertEquals("INSERT DATA { <a> <b> _:c }", endpoint.getRequests().get(0).bodyString());
+
+      // Without a body the request is safe to send again.
+      try {
+        transport.execute(new HttpGet(endpoint.getUrl().toString()));
+        fail("Should report the dropped connection");
+      } catch (IOException e) {
+        // expected
+      }
+      assertTrue(endpoint.getRequests().size() > 2);
+    } finally {
+      transport.shutdown();
+      ds.close();
+    }
+  }
+
+  public void testIdleTimeout() throws Exception {
+    ProtocolDataSource ds = new ProtocolDataSource(endpoint.getUrl());
+    try {
+      assertEquals(ProtocolDataSource.DEFAULT_IDLE_TIMEOUT, ds.getIdleTimeout());
+      ds.setIdleTimeout(1);
+      Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+      query(conn);
+      Thread.sleep(1100);
+      query(conn);
+      assertEquals(2, ds.getMetrics().getConnectionsOpened());
+      try {
+        ds.setIdleTimeout(2);
+        fail("Should not change the idle timeout once in use");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+    } finally {
+      ds.close();
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import spark.api.Command;
+import spark.api.Completions;
+import spark.api.Connection;
+import spark.api.credentials.NoCredentials;
+import spark.api.exception.SparqlException;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Test cases for cancelling protocol commands.
+ */
+public class TestProtocolCancel extends TestCase {
+
+  private static final Pattern QUERY_ID = Pattern.compile("queryId=([^&]+)");
+
+  private LocalEndpoint endpoint;
+  private final CountDownLatch queryReceived = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @Override
+  protected void setUp() throws Exception {
+    endpoint = new LocalEndpoint(new LocalEndpoint.Handler() {
+      public void handle(LocalEndpoint.Request request, HttpExchange exchange) throws IOException {
+        if (request.query != null && request.query.startsWith("cancelQuery")) {
+          LocalEndpoint.respond(exchange, 200, "text/plain", "");
+        } else {
+          // Hold the query until the test is done with it.
+          queryReceived.countDown();
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            // respond anyway
+          }
+          LocalEndpoint.respond(exchange, 200, "application/sparql-results+xml", LocalEndpoint.SINGLE_RESULT);
+        }
+      }
+    });
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    release.countDown();
+    endpoint.stop();
+  }
+
+  private static String queryId(String query) {
+    Matcher m = QUERY_ID.matcher(query);
+    return m.find() ? m.group(1) : null;
+  }
+
+  private Throwable cancelRunningQuery(ProtocolDataSource ds) throws Exception {
+    final Command cmd = ds.getConnection(NoCredentials.INSTANCE).createCommand("SELECT * WHERE { ?s ?p ?o }");
+    final Throwable[] error = new Throwable[1];
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          cmd.executeQuery().close();
+        } catch (Throwable e) {
+          error[0] = e;
+        }
+      }
+    };
+    t.start();
+    assertTrue(queryReceived.await(10, TimeUnit.SECONDS));
+    cmd.cancel();
+    t.join(10000);
+    assertFalse(t.isAlive());
+    return error[0];
+  }
+
+  public void testCancelById() throws Exception {
+    ProtocolDataSource ds = new ProtocolDataSource(endpoint.getUrl());
+    ds.setQueryIdParameter("queryId");
+    ds.setCancelUrlTemplate(endpoint.getUrl() + "?cancelQuery&queryId=" + ProtocolDataSource.QUERY_ID_TOKEN);
+    try {
+      assertTrue(cancelRunningQuery(ds) instanceof SparqlException);
+
+      // The cancel request is sent in the background.
+      for (int i = 0; i < 100 && endpoint.getRequests().size() < 2; i++) Thread.sleep(50);
+      List<LocalEndpoint.Request> requests = endpoint.getRequests();
+      assertEquals(2, requests.size());
+      String id = queryId(requests.get(0).query);
+      assertNotNull(id);
+      assertEquals("POST", requests.get(1).method);
+      assertEquals(id, queryId(requests.get(1).query));
+    } finally {
+      ds.close();
+    }
+  }
+
+  public void testCancelWithoutId() throws Exception {
+    ProtocolDataSource ds = new ProtocolDataSource(endpoint.getUrl());
+    try {
+      assertTrue(cancelRunningQuery(ds) instanceof SparqlException);
+
+      // Only the aborted query, no cancel request.
+      List<LocalEndpoint.Request> requests = endpoint.getRequests();
+      assertEquals(1, requests.size());
+      assertNull(queryId(requests.get(0).query));
+    } finally {
+      ds.close();
+    }
+  }
+
+  public void testExecuteAllDeadline() throws Exception {
+    ProtocolDataSource ds = new ProtocolDataSource(endpoint.getUrl());
+    try {
+      Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+      Completions completions = conn.executeAll(Arrays.asList(
+          conn.createCommand("SELECT * WHERE { ?s ?p ?o }"),
+          conn.createCommand("SELECT * WHERE { ?o ?p ?s }")), 300);
+      assertTrue(queryReceived.await(10, TimeUnit.SECONDS));
+      long start = System.nanoTime();
+      try {
+        completions.take();
+        fail("Held queries should miss the deadline");
+      } catch (SparqlException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("2 of 2"));
+      }
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+      assertEquals(0, completions.remaining());
+    } finally {
+      ds.close();
+    }
+  }
+
+  public void testInvalidTemplate() throws Exception {
+    ProtocolDataSource ds = new ProtocolDataSource(endpoint.getUrl());
+    try {
+      ds.setCancelUrlTemplate("http://localhost/cancel");
+      fail("Template without a query ID should be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+import spark.api.Command;
+import spark.api.Solutions;
+import spark.api.credentials.NoCredentials;
+import spark.api.exception.SparqlException;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Test cases for data source metrics.
+ */
+public class TestProtocolMetrics extends TestCase {
+
+  private LocalEndpoint endpoint;
+
+  @Override
+  protected void setUp() throws Exception {
+    endpoint = new LocalEndpoint(LocalEndpoint.SINGLE_RESULT_HANDLER);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    endpoint.stop();
+  }
+
+  /** Records the calls it receives. */
+  private static class RecordingListener implements ProtocolMetricsListener {
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    long rows = -1;
+    long bytes = -1;
+    public void connectionAcquired(ProtocolDataSource source, long waitNanos) { events.add("acquire"); }
+    public void requestExecuted(ProtocolDataSource source, long nanos, boolean success) { events.add("request:" + success); }
+    public void updateExecuted(ProtocolDataSource source, int operations, long nanos, boolean success) { events.add("update:" + operations); }
+    public void resultParsed(ProtocolDataSource source, long nanos) { events.add("parse"); }
+    public void responseRead(ProtocolDataSource source, long bytes) { events.add("response"); this.bytes = bytes; }
+    public void rowsRead(ProtocolDataSource source, long rows, long nanos) { events.add("rows"); this.rows = rows; }
+  }
+
+  public void testQueryMetrics() throws Exception {
+    ProtocolDataSource ds = new ProtocolDataSource(endpoint.getUrl());
+    RecordingListener listener = new RecordingListener();
+    ProtocolMetrics metrics = ds.getMetrics();
+    metrics.addListener(listener);
+    try {
+      assertEquals(ProtocolDataSource.DEFAULT_POOL_SIZE, metrics.getMaxConnections());
+      Command cmd = ds.getConnection(NoCredentials.INSTANCE).createCommand("SELECT * WHERE { ?s ?p ?o }");
+      Solutions s = cmd.executeQuery();
+      assertEquals(1, metrics.getLeasedConnections());
+      assertTrue(s.next());
+      assertFalse(s.next());
+      s.close();
+
+      assertEquals(1, metrics.getAcquireCount());
+      assertEquals(1, metrics.getRequestCount());
+      assertEquals(0, metrics.getFailedRequestCount());
+      assertTrue(metrics.getRequest99thMillis() >= metrics.getRequest50thMillis());
+      assertTrue(metrics.getRequest99thMillis() > 0);
+      assertEquals(1, metrics.getRowsRead());
+      assertTrue(metrics.getRowsPerSecond() > 0);
+      assertEquals(LocalEndpoint.SINGLE_RESULT.getBytes("UTF-8").length, metrics.getResponseBytes());
+      assertEquals(0, metrics.getPendingConnections());
+
+      assertEquals(1, listener.rows);
+      assertEquals(metrics.getResponseBytes(), listener.bytes);
+      assertEquals("acquire", listener.events.get(0));
+      assertEquals("request:true", listener.events.get(1));
+      assertTrue(listener.events.contains("parse"));
+
+      metrics.reset();
+      assertEquals(0, metrics.getRequestCount());
+      assertEquals(0.0, metrics.getRowsPerSecond());
+    } finally {
+      ds.close();
+    }
+  }
+
+  public void testFailedRequest() throws Exception {
+    endpoint.setHandler(new LocalEndpoint.Handler() {
+      public void handle(LocalEndpoint.Request request, HttpExchange exchange) throws IOException {
+        LocalEndpoint.respond(exchange, 500, "text/plain", "broken");
+      }
+    });
+    ProtocolDataSource ds = new ProtocolDataSource(endpoint.getUrl());
+    try {
+      ds.getConnection(NoCredentials.INSTANCE).createCommand("SELECT * WHERE { ?s ?p ?o }").executeQuery();
+      fail("Should fail on server error");
+    } catch (SparqlException e) {
+      assertEquals(1, ds.getMetrics().getRequestCount());
+      assertEquals(1, ds.getMetrics().getFailedRequestCount());
+    } finally {
+      ds.close();
+    }
+  }
+
+  public void testUpdateMetrics() throws Exception {
+    ProtocolDataSource ds = new ProtocolDataSource(endpoint.getUrl());
+    RecordingListener listener = new RecordingListener();
+    ProtocolMetrics metrics = ds.getMetrics();
+    metrics.addListener(listener);
+    try {
+      ProtocolCommand cmd = ds.getConnection(NoCredentials.INSTANCE).createCommand("INSERT DATA { <a> <b> <c> }");
+      cmd.addUpdate("DELETE DATA { <a> <b> <d> }");
+      cmd.executeUpdate();
+      assertEquals(1, metrics.getUpdateCount());
+      assertEquals(2, metrics.getUpdateOperationCount());
+      assertEquals(0, metrics.getFailedUpdateCount());
+      assertTrue(metrics.getUpdate99thMillis() > 0);
+      // Updates don't count as queries.
+      assertEquals(0, metrics.getRequestCount());
+      assertTrue(listener.events.contains("update:2"));
+    } finally {
+      ds.close();
+    }
+  }
+
+  public void testMBean() throws Exception {
+    ProtocolDataSource ds = new ProtocolDataSource(endpoint.getUrl());
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = ds.getMetrics().registerMBean();
+    assertSame(name, ds.getMetrics().registerMBean());
+    try {
+      assertTrue(server.isRegistered(name));
+      assertEquals(endpoint.getUrl().toString(), server.getAttribute(name, "Url"));
+      assertEquals(0L, server.getAttribute(name, "RequestCount"));
+    } finally {
+      ds.close();
+    }
+    assertFalse(server.isRegistered(name));
+  }
+}
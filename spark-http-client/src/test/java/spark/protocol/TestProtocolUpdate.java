@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+import junit.framework.TestCase;
+import spark.api.credentials.NoCredentials;
+import spark.api.exception.SparqlException;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Test cases for SPARQL UPDATE requests.
+ */
+public class TestProtocolUpdate extends TestCase {
+
+  private LocalEndpoint endpoint;
+  private ProtocolDataSource ds;
+
+  @Override
+  protected void setUp() throws Exception {
+    endpoint = new LocalEndpoint(new LocalEndpoint.Handler() {
+      public void handle(LocalEndpoint.Request request, HttpExchange exchange) throws IOException {
+        LocalEndpoint.respond(exchange, 200, "text/plain", "OK");
+      }
+    });
+    ds = new ProtocolDataSource(endpoint.getUrl());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ds.close();
+    endpoint.stop();
+  }
+
+  public void testSingleUpdate() throws Exception {
+    String update = "INSERT DATA { <http://example.org/s> <http://example.org/p> \"caf\u00e9\" }";
+    ds.getConnection(NoCredentials.INSTANCE).createCommand(update).executeUpdate();
+    List<LocalEndpoint.Request> requests = endpoint.getRequests();
+    assertEquals(1, requests.size());
+    assertEquals("POST", requests.get(0).method);
+    assertEquals(QueryEntity.SPARQL_UPDATE + "; charset=UTF-8", requests.get(0).contentType);
+    assertEquals(update, requests.get(0).bodyString());
+  }
+
+  public void testBatch() throws Exception {
+    ds.setUpdateBatchSize(2);
+    ProtocolCommand cmd = ds.getConnection(NoCredentials.INSTANCE).createCommand("");
+    for (int i = 0; i < 5; i++) {
+      cmd.addUpdate("INSERT DATA { <http://example.org/s> <http://example.org/p> " + i + " }" + (i == 0 ? " # first" : ""));
+    }
+    assertEquals(5, cmd.getUpdates().size());
+    cmd.executeUpdate();
+    assertTrue(cmd.getUpdates().isEmpty());
+
+    List<LocalEndpoint.Request> requests = endpoint.getRequests();
+    assertEquals(3, requests.size());
+    // A comment ending an operation must not hide the separator.
+    assertEquals("INSERT DATA { <http://example.org/s> <http://example.org/p> 0 } # first\n;\n" +
+        "INSERT DATA { <http://example.org/s> <http://example.org/p> 1 }", requests.get(0).bodyString());
+    assertEquals("INSERT DATA { <http://example.org/s> <http://example.org/p> 4 }", requests.get(2).bodyString());
+    assertEquals(3, ds.getMetrics().getUpdateCount());
+    assertEquals(5, ds.getMetrics().getUpdateOperationCount());
+
+    // Nothing to send.
+    cmd.executeUpdate();
+    assertEquals(3, endpoint.getRequests().size());
+  }
+
+  public void testUpdateUrl() throws Exception {
+    ds.setUpdateUrl(new URL(endpoint.getUrl().toString().replace("/sparql", "/update")));
+    ds.setQueryIdParameter("queryId");
+    ds.getConnection(NoCredentials.INSTANCE).createCommand("CLEAR ALL").executeUpdate();
+    LocalEndpoint.Request req = endpoint.getRequests().get(0);
+    assertEquals("/update", req.path);
+    assertTrue(req.query.startsWith("queryId="));
+    assertEquals("CLEAR ALL", req.bodyString());
+  }
+
+  public void testFailedUpdate() throws Exception {
+    endpoint.setHandler(new LocalEndpoint.Handler() {
+      public void handle(LocalEndpoint.Request request, HttpExchange exchange) throws IOException {
+        LocalEndpoint.respond(exchange, 400, "text/plain", "bad update");
+      }
+    });
+    try {
+      ds.getConnection(NoCredentials.INSTANCE).createCommand("NOT AN UPDATE").executeUpdate();
+      fail("Should fail on error status");
+    } catch (SparqlException e) {
+      // expected
+    }
+    assertEquals(1, ds.getMetrics().getFailedUpdateCount());
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import spark.api.Connection;
+import spark.api.Solutions;
+import spark.api.credentials.NoCredentials;
+
+/**
+ * Test cases for choosing between GET and POST, and for encoding POSTed queries.
+ */
+public class TestQueryEncoding extends TestCase {
+
+  private static final String[] SAMPLES = {
+    "",
+    "SELECT * WHERE { ?s ?p ?o }",
+    "SELECT ?x WHERE { ?x <http://example.org/p> \"caf\u00e9 \u65e5\u672c & 100% = +\" }",
+    "emoji \ud83d\ude00 and lone \ud83d surrogate",
+  };
+
+  private static byte[] write(QueryEntity entity) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+    return out.toByteArray();
+  }
+
+  /** A query with a big VALUES block, longer than the write buffer. */
+  private static String bigQuery() {
+    StringBuilder sb = new StringBuilder("SELECT ?x WHERE { VALUES ?x {");
+    for (int i = 0; i < 5000; i++) sb.append(" \"v\u00e9").append(i).append('"');
+    return sb.append(" } }").toString();
+  }
+
+  public void testFormEncoding() throws Exception {
+    List<String> samples = Arrays.asList(SAMPLES);
+    for (String q : samples) {
+      String expected = "query=" + URLEncoder.encode(q, "UTF-8") + "&queryId=a-b";
+      QueryEntity entity = QueryEntity.form("query", q, "queryId", "a-b");
+      assertEquals(expected, new String(write(entity), "US-ASCII"));
+      assertEquals(expected.length(), entity.getContentLength());
+      assertEquals(QueryEntity.FORM_ENCODED, entity.getContentType().getValue());
+    }
+    String big = bigQuery();
+    QueryEntity entity = QueryEntity.form("query", big);
+    byte[] body = write(entity);
+    assertEquals(body.length, entity.getContentLength());
+    assertEquals("query=" + URLEncoder.encode(big, "UTF-8"), new String(body, "US-ASCII"));
+  }
+
+  public void testDirectEncoding() throws Exception {
+    for (String q : Arrays.asList(SAMPLES)) {
+      QueryEntity entity = QueryEntity.direct(q);
+      assertTrue(Arrays.equals(q.getBytes("UTF-8"), write(entity)));
+      assertEquals(q.getBytes("UTF-8").length, entity.getContentLength());
+      // Repeatable, so requests can be retried.
+      assertTrue(Arrays.equals(q.getBytes("UTF-8"), write(entity)));
+    }
+    String big = bigQuery();
+    assertTrue(Arrays.equals(big.getBytes("UTF-8"), write(QueryEntity.direct(big))));
+  }
+
+  public void testGetOrPost() throws Exception {
+    LocalEndpoint endpoint = new LocalEndpoint(LocalEndpoint.SINGLE_RESULT_HANDLER);
+    ProtocolDataSource ds = new ProtocolDataSource(endpoint.getUrl());
+    try {
+      Connection conn = ds.getConnection(NoCredentials.INSTANCE);
+      String small = SAMPLES[2];
+      String big = bigQuery();
+      query(conn, small);
+      query(conn, big);
+      ds.setDirectPost(true);
+      ds.setQueryIdParameter("queryId");
+      query(conn, big);
+      ds.setMaxGetLength(0);
+      ds.setDirectPost(false);
+      query(conn, small);
+
+      List<LocalEndpoint.Request> requests = endpoint.getRequests();
+      assertEquals(4, requests.size());
+
+      LocalEndpoint.Request get = requests.get(0);
+      assertEquals("GET", get.method);
+      assertEquals(small, URLDecoder.decode(get.query.substring("query=".length()), "UTF-8"));
+
+      LocalEndpoint.Request form = requests.get(1);
+      assertEquals("POST", form.method);
+      assertEquals(QueryEntity.FORM_ENCODED, form.contentType);
+      assertEquals(big, URLDecoder.decode(form.bodyString().substring("query=".length()), "UTF-8"));
+
+      LocalEndpoint.Request direct = requests.get(2);
+      assertEquals("POST", direct.method);
+      assertTrue(direct.contentType.startsWith(QueryEntity.SPARQL_QUERY));
+      assertEquals(big, direct.bodyString());
+      assertTrue(direct.query.startsWith("queryId="));
+
+      LocalEndpoint.Request forced = requests.get(3);
+      assertEquals("POST", forced.method);
+      assertTrue(forced.bodyString().startsWith("query="));
+      assertTrue(forced.bodyString().contains("&queryId="));
+    } finally {
+      ds.close();
+      endpoint.stop();
+    }
+  }
+
+  private static void query(Connection conn, String query) throws Exception {
+    Solutions s = conn.createCommand(query).executeQuery();
+    assertTrue(s.next());
+    s.close();
+  }
+}
@@ -26,7 +26,7 @@ import spark.api.rdf.RDFNode;
 /**
  * Base implementation for implementors of {@link Command}.  This class manages the 
  * Connection that created the Command, the command string, a closed flag, a timeout,
- * and the binding list.
+ * a deadline, and the binding list.
  */
 public abstract class BaseCommand implements Command {
 
@@ -37,6 +37,7 @@ public abstract class BaseCommand implements Command {
   // volatile
   private volatile boolean closed = false;
   private volatile long timeout = NO_TIMEOUT;
+  private volatile long deadline = NO_DEADLINE;
   
   // mutable, protected by "this" lock 
   private List<Map<String, RDFNode>> bindings;
@@ -87,6 +88,12 @@ public abstract class BaseCommand implements Command {
     return this.closed;
   }
 
+  /** Updates are not supported unless overridden. */
+  @Override
+  public void executeUpdate() {
+    throw new UnsupportedOperationException("Updates are not supported by " + getClass().getName());
+  }
+
   @Override
   public long getTimeout() {
     return this.timeout;
@@ -100,4 +107,17 @@ public abstract class BaseCommand implements Command {
     this.timeout = seconds;
   }
 
+  @Override
+  public long getDeadline() {
+    return this.deadline;
+  }
+
+  @Override
+  public void setDeadline(long millis) {
+    if(millis < 0) {
+      throw new IllegalArgumentException("Deadline must be >= 0: " + millis);
+    }
+    this.deadline = millis;
+  }
+
 }
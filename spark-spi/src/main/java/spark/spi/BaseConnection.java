@@ -16,18 +16,29 @@
 package spark.spi;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import spark.api.Command;
+import spark.api.Completions;
 import spark.api.Connection;
 import spark.api.DataSource;
 
 /**
- * Base class for implementors of {@link Connection}.  This class manages a source DataSource
- * and a closed flag. 
+ * Base class for implementors of {@link Connection}.  This class manages a source DataSource,
+ * a closed flag, and the threads that run {@link #executeAll(List, long)}.
  */
 public abstract class BaseConnection implements Connection {
 
   private final DataSource dataSource;
   private volatile boolean closed = false;
+  
+  /** Runs the commands of executeAll; created on first use. */
+  private ExecutorService executor = null;
 
   /**
    * Construct a BaseConnection with the source dataSource.
@@ -47,9 +58,41 @@ public abstract class BaseConnection implements Connection {
     return closed;
   }
 
+  @Override
+  public Completions executeAll(List<? extends Command> commands, long timeoutMillis) {
+    for (Command c : commands) {
+      if (c.getConnection() != this) throw new IllegalArgumentException("Command was created on another connection.");
+    }
+    return new FanOutCompletions(commands, timeoutMillis, getExecutor());
+  }
+
+  /**
+   * Gets the threads that run the commands of {@link #executeAll(List, long)}. By default each
+   * connection has its own threads; subclasses may share threads across connections instead.
+   * @return An executor that can run all the commands of a call at once
+   */
+  protected synchronized Executor getExecutor() {
+    if (executor == null) {
+      executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "SPARQL command " + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return executor;
+  }
+
   @Override
   public void close() throws IOException {
     this.closed = true;
+    synchronized (this) {
+      if (executor != null) executor.shutdownNow();
+      executor = null;
+    }
   }
 
 }
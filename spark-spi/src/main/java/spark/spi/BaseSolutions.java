@@ -17,6 +17,7 @@ package spark.spi;
 
 import java.math.BigInteger;
 import java.net.URI;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -28,6 +29,14 @@ import spark.api.rdf.BlankNode;
 import spark.api.rdf.Literal;
 import spark.api.rdf.NamedNode;
 import spark.api.rdf.RDFNode;
+import spark.api.rdf.TypedLiteral;
+import spark.api.uris.XsdTypes;
+import spark.spi.rdf.BooleanLiteral;
+import spark.spi.rdf.DoubleLiteral;
+import spark.spi.rdf.FloatLiteral;
+import spark.spi.rdf.IntLiteral;
+import spark.spi.rdf.LongLiteral;
+import spark.spi.util.DateTime;
 
 /**
  * @author Alex Hall
@@ -101,34 +110,77 @@ public abstract class BaseSolutions extends BaseResults implements Solutions {
     }
   }
 
+  /**
+   * Literals of the requested datatype carry a cached native value; the getters below only
+   * convert from the lexical form for other literals.
+   * @return The native value if the literal has the given datatype, otherwise null.
+   */
+  private static Object cachedValue(Literal lit, URI dataType) {
+    if (lit instanceof TypedLiteral && dataType.equals(((TypedLiteral)lit).getDataType())) {
+      return ((TypedLiteral)lit).getValue();
+    }
+    return null;
+  }
+
   @Override
   public Date getDateTime(String variable) throws SparqlException {
-    return Conversions.toDateTime(getLiteral(variable).getLexical());
+    Literal lit = getLiteral(variable);
+    Object value = cachedValue(lit, XsdTypes.DATE_TIME);
+    return (value != null) ? (Date)value : Conversions.toDateTime(lit.getLexical());
+  }
+
+  @Override
+  public Calendar getCalendar(String variable) throws SparqlException {
+    return DateTime.parseCalendar(getLiteral(variable).getLexical());
   }
 
   @Override
   public BigInteger getInteger(String variable) throws SparqlException {
-    return Conversions.toBigInteger(getLiteral(variable).getLexical());
+    Literal lit = getLiteral(variable);
+    if (lit instanceof IntLiteral) return BigInteger.valueOf(((IntLiteral)lit).intValue());
+    if (lit instanceof LongLiteral) return BigInteger.valueOf(((LongLiteral)lit).longValue());
+    Object value = cachedValue(lit, XsdTypes.INTEGER);
+    return (value != null) ? (BigInteger)value : Conversions.toBigInteger(lit.getLexical());
   }
 
   @Override
   public boolean getBoolean(String variable) throws SparqlException {
-    return Conversions.toBoolean(getLiteral(variable).getLexical());
+    Literal lit = getLiteral(variable);
+    if (lit instanceof BooleanLiteral) return ((BooleanLiteral)lit).booleanValue();
+    Object value = cachedValue(lit, XsdTypes.BOOLEAN);
+    return (value != null) ? (Boolean)value : Conversions.toBoolean(lit.getLexical());
   }
 
   @Override
   public double getDouble(String variable) throws SparqlException {
-    return Conversions.toDouble(getLiteral(variable).getLexical());
+    Literal lit = getLiteral(variable);
+    if (lit instanceof DoubleLiteral) return ((DoubleLiteral)lit).doubleValue();
+    Object value = cachedValue(lit, XsdTypes.DOUBLE);
+    return (value != null) ? (Double)value : Conversions.toDouble(lit.getLexical());
   }
 
   @Override
   public float getFloat(String variable) throws SparqlException {
-    return Conversions.toFloat(getLiteral(variable).getLexical());
+    Literal lit = getLiteral(variable);
+    if (lit instanceof FloatLiteral) return ((FloatLiteral)lit).floatValue();
+    Object value = cachedValue(lit, XsdTypes.FLOAT);
+    return (value != null) ? (Float)value : Conversions.toFloat(lit.getLexical());
   }
 
   @Override
   public int getInt(String variable) throws SparqlException {
-    return Conversions.toInteger(getLiteral(variable).getLexical());
+    Literal lit = getLiteral(variable);
+    if (lit instanceof IntLiteral) return ((IntLiteral)lit).intValue();
+    Object value = cachedValue(lit, XsdTypes.INT);
+    return (value != null) ? (Integer)value : Conversions.toInteger(lit.getLexical());
+  }
+
+  @Override
+  public long getLong(String variable) throws SparqlException {
+    Literal lit = getLiteral(variable);
+    if (lit instanceof LongLiteral) return ((LongLiteral)lit).longValue();
+    Object value = cachedValue(lit, XsdTypes.LONG);
+    return (value != null) ? (Long)value : Conversions.toLong(lit.getLexical());
   }
 
   @Override
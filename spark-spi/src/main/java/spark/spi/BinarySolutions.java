@@ -0,0 +1,209 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import spark.api.Command;
+import spark.api.exception.SparqlException;
+import spark.api.rdf.RDFNode;
+
+/**
+ * <p>Reads solutions from a file written by {@link BinarySolutionsWriter}. The file is memory
+ * mapped and scanned one block at a time: the terms of a block are decoded once into the
+ * dictionary, and rows are then built from the column IDs directly out of the mapping, so
+ * reloading archived results does not re-parse any lexical forms seen before. The dictionary is
+ * bounded by the writer (see {@link BinarySolutionsWriter#DEFAULT_MAX_TERMS}), and is dropped here
+ * whenever the file starts a new one.</p>
+ * 
+ * <p>Files are mapped in windows of up to {@link #WINDOW_SIZE} bytes, so files of any size can be
+ * read.</p>
+ */
+public class BinarySolutions extends StreamingSolutions {
+
+  /** Bytes that start every binary solutions file. */
+  static final byte[] MAGIC = { 'S', 'P', 'K', 'B' };
+
+  /** Version of the format written by this release. */
+  public static final int VERSION = 1;
+
+  /** Largest region of the file mapped at once. */
+  static final long WINDOW_SIZE = 1L << 30;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long fileSize;
+
+  // Decoded terms, indexed by ID; ID 0 is unbound.
+  private final List<RDFNode> terms = new ArrayList<RDFNode>(Arrays.asList((RDFNode)null));
+
+  private ByteBuffer window;
+  private long windowStart;
+  private long blockStart;
+  private int blockRows = 0;
+  private int blockRow = 0;
+  private final ByteBuffer[] columns;
+
+  private BinarySolutions(Command command, List<String> vars, RandomAccessFile file, long dataStart) throws IOException {
+    super(command, vars);
+    this.file = file;
+    this.channel = file.getChannel();
+    this.fileSize = channel.size();
+    this.columns = new ByteBuffer[vars.size()];
+    this.blockStart = dataStart;
+  }
+
+  /**
+   * Open a binary solutions file.
+   * @param file The file
+   * @return Solutions positioned before the first row
+   * @throws SparqlException If the file could not be read or is not in a supported format
+   */
+  public static BinarySolutions open(File file) throws SparqlException {
+    return open(null, file);
+  }
+
+  /**
+   * Open a binary solutions file.
+   * @param command The command the solutions are reported as coming from, may be null
+   * @param file The file
+   * @return Solutions positioned before the first row
+   * @throws SparqlException If the file could not be read or is not in a supported format
+   */
+  public static BinarySolutions open(Command command, File file) throws SparqlException {
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "r");
+      long size = raf.length();
+      ByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, WINDOW_SIZE));
+      byte[] magic = new byte[MAGIC.length];
+      if (header.remaining() < MAGIC.length + 1) throw new SparqlException("Not a binary solutions file: " + file);
+      header.get(magic);
+      if (!Arrays.equals(magic, MAGIC)) throw new SparqlException("Not a binary solutions file: " + file);
+      int version = header.get();
+      if (version != VERSION) throw new SparqlException("Unsupported binary solutions version " + version + " in " + file);
+      int varCount = TermCodec.readVarInt(header);
+      List<String> vars = new ArrayList<String>(varCount);
+      for (int i = 0; i < varCount; i++) vars.add(TermCodec.readString(header));
+      BinarySolutions result = new BinarySolutions(command, vars, raf, header.position());
+      raf = null;
+      return result;
+    } catch (IOException e) {
+      throw new SparqlException("Unable to read binary solutions from " + file, e);
+    } catch (RuntimeException e) {
+      if (e instanceof SparqlException) throw e;
+      throw new SparqlException("Corrupt binary solutions file " + file, e);
+    } finally {
+      if (raf != null) {
+        try { raf.close(); } catch (IOException e) { /* already failing */ }
+      }
+    }
+  }
+
+  /** Get a buffer over the given region of the file, positioned at its start. */
+  private ByteBuffer region(long start, int length) throws IOException {
+    if (window == null || start < windowStart || start + length > windowStart + window.capacity()) {
+      long size = Math.max(length, Math.min(WINDOW_SIZE, fileSize - start));
+      if (start + size > fileSize) throw new SparqlException("Truncated binary solutions file");
+      window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+      windowStart = start;
+    }
+    ByteBuffer b = window.duplicate();
+    b.position((int)(start - windowStart));
+    b.limit(b.position() + length);
+    return b;
+  }
+
+  /** @return The length of the block at blockStart, 0 at the end of the file. */
+  private int blockLength() throws IOException {
+    return region(blockStart, 4).getInt();
+  }
+
+  /** Read the block at blockStart. @return false at the end of the file */
+  private boolean readBlock() throws IOException {
+    int length = blockLength();
+    if (length == 0) return false;
+    ByteBuffer block = region(blockStart + 4, length);
+    blockRows = TermCodec.readVarInt(block);
+    blockRow = 0;
+    int newTerms = TermCodec.readVarInt(block);
+    // The low bit marks a block that starts a new dictionary.
+    if ((newTerms & 1) != 0) terms.subList(1, terms.size()).clear();
+    newTerms >>>= 1;
+    for (int i = 0; i < newTerms; i++) terms.add(TermCodec.read(block));
+    for (int c = 0; c < columns.length; c++) {
+      int len = TermCodec.readVarInt(block);
+      ByteBuffer col = block.slice();
+      col.limit(len);
+      columns[c] = col;
+      block.position(block.position() + len);
+    }
+    blockStart += 4 + length;
+    return true;
+  }
+
+  @Override
+  protected Map<String, RDFNode> fetchNext() {
+    if (isClosed()) throw new SparqlException("Solutions are closed");
+    try {
+      while (blockRow == blockRows) {
+        if (!readBlock()) {
+          blockRows = blockRow = 0;
+          return null;
+        }
+      }
+      Map<String,RDFNode> row = new HashMap<String,RDFNode>();
+      for (int c = 0; c < columns.length; c++) {
+        RDFNode node = terms.get(TermCodec.readVarInt(columns[c]));
+        if (node != null) row.put(vars.get(c), node);
+      }
+      blockRow++;
+      return row;
+    } catch (IOException e) {
+      throw new SparqlException("Unable to read binary solutions", e);
+    } catch (RuntimeException e) {
+      if (e instanceof SparqlException) throw e;
+      throw new SparqlException("Corrupt binary solutions file", e);
+    }
+  }
+
+  @Override
+  public boolean isLast() {
+    if (currentRow == null || blockRow < blockRows) return false;
+    try {
+      return blockLength() == 0;
+    } catch (IOException e) {
+      throw new SparqlException("Unable to read binary solutions", e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    super.close();
+    window = null;
+    Arrays.fill(columns, null);
+    file.close();
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import spark.api.Solutions;
+import spark.api.rdf.RDFNode;
+
+/**
+ * <p>Writes solutions to a stream in the binary format read by {@link BinarySolutions}. Rows are
+ * buffered into blocks of {@link #BLOCK_ROWS}; each block carries the terms first seen in it,
+ * followed by one column of varint term IDs per variable. Only one block is held in memory, plus
+ * the dictionary of terms written so far.</p>
+ * 
+ * <p>The dictionary is bounded so that results with many distinct terms can still be streamed:
+ * once it holds {@link #DEFAULT_MAX_TERMS} terms (or the limit given to the constructor), the next
+ * block starts a new dictionary, and terms from before are written again when they reappear.</p>
+ * 
+ * <p>The format is:</p>
+ * <pre>
+ *   file   := magic:"SPKB" version:byte varCount:varint varName:string* block* end
+ *   block  := length:int rows:varint terms:varint term* column*
+ *   column := length:varint termId:varint*
+ *   end    := length:int(0)
+ * </pre>
+ * <p>Ints are big-endian, strings are a varint byte length followed by UTF-8, and terms are
+ * encoded as by the spill files of {@link ScrollableSolutions}. The terms field of a block is the
+ * number of terms it carries shifted left by one, with the low bit set if the block starts a new
+ * dictionary. Term IDs start at 1 and increase in the order the terms appear in the dictionary;
+ * ID 0 is an unbound value.</p>
+ */
+public class BinarySolutionsWriter implements Closeable {
+
+  /** Number of rows in each block. */
+  public static final int BLOCK_ROWS = 4096;
+
+  /** Default number of terms the dictionary may hold before it is started again. */
+  public static final int DEFAULT_MAX_TERMS = 1 << 18;
+
+  private final OutputStream out;
+  private final List<String> vars;
+  private final int maxTerms;
+  private TermDictionary dictionary = new TermDictionary();
+  private boolean resetDictionary = false;
+  private final int[][] columns;
+  private final TermCodec.Output block = new TermCodec.Output();
+  private final TermCodec.Output column = new TermCodec.Output();
+  private int rows = 0;
+  private int writtenTerms = 0;
+  private long total = 0;
+  private boolean closed = false;
+
+  /**
+   * Start writing solutions, writing the file header immediately.
+   * @param out Destination stream; closed when this writer is closed
+   * @param vars Variables of the solutions
+   * @throws IOException If the header could not be written
+   */
+  public BinarySolutionsWriter(OutputStream out, List<String> vars) throws IOException {
+    this(out, vars, DEFAULT_MAX_TERMS);
+  }
+
+  /**
+   * Start writing solutions, writing the file header immediately.
+   * @param out Destination stream; closed when this writer is closed
+   * @param vars Variables of the solutions
+   * @param maxTerms Number of terms the dictionary may hold before it is started again
+   * @throws IOException If the header could not be written
+   */
+  public BinarySolutionsWriter(OutputStream out, List<String> vars, int maxTerms) throws IOException {
+    if (maxTerms <= 0) throw new IllegalArgumentException("Maximum terms must be > 0: " + maxTerms);
+    this.out = out;
+    this.maxTerms = maxTerms;
+    this.vars = vars;
+    this.columns = new int[vars.size()][BLOCK_ROWS];
+
+    TermCodec.Output header = new TermCodec.Output();
+    header.writeBytes(BinarySolutions.MAGIC, 0, BinarySolutions.MAGIC.length);
+    header.writeByte(BinarySolutions.VERSION);
+    header.writeVarInt(vars.size());
+    for (String var : vars) header.writeString(var);
+    out.write(header.bytes(), 0, header.size());
+  }
+
+  /**
+   * Write all the remaining rows of some solutions, then close this writer. The solutions are
+   * not closed.
+   * @param solutions Solutions with the same variables as this writer
+   * @return The number of rows written by this writer
+   * @throws IOException If the rows could not be written
+   */
+  public long writeAll(Solutions solutions) throws IOException {
+    try {
+      while (solutions.next()) write(solutions.getResult());
+    } finally {
+      close();
+    }
+    return total;
+  }
+
+  /**
+   * Add a row.
+   * @param row Bindings of the row; variables that are not in the map are unbound
+   * @throws IOException If a full block could not be written
+   */
+  public void write(Map<String,RDFNode> row) throws IOException {
+    if (closed) throw new IOException("Writer is closed");
+    if (rows == 0 && dictionary.size() >= maxTerms) {
+      dictionary = new TermDictionary();
+      writtenTerms = 0;
+      resetDictionary = true;
+    }
+    for (int c = 0; c < columns.length; c++) {
+      columns[c][rows] = dictionary.id(row.get(vars.get(c)));
+    }
+    total++;
+    if (++rows == BLOCK_ROWS) flushBlock();
+  }
+
+  /** @return The number of rows written so far. */
+  public long getRowCount() {
+    return total;
+  }
+
+  private void flushBlock() throws IOException {
+    if (rows == 0) return;
+    block.reset();
+    block.writeInt(0); // length, filled in below
+    block.writeVarInt(rows);
+    int terms = dictionary.size();
+    block.writeVarInt(((terms - writtenTerms) << 1) | (resetDictionary ? 1 : 0));
+    resetDictionary = false;
+    while (writtenTerms < terms) {
+      TermCodec.write(block, dictionary.term(++writtenTerms));
+    }
+    for (int[] ids : columns) {
+      column.reset();
+      for (int r = 0; r < rows; r++) column.writeVarInt(ids[r]);
+      block.writeVarInt(column.size());
+      block.writeBytes(column.bytes(), 0, column.size());
+    }
+    int length = block.size() - 4;
+    byte[] b = block.bytes();
+    for (int i = 0; i < 4; i++) b[i] = (byte)(length >>> (24 - 8 * i));
+    out.write(b, 0, block.size());
+    rows = 0;
+  }
+
+  /** Write any buffered rows and the end of the file, then close the stream. */
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    try {
+      flushBlock();
+      out.write(new byte[4]);
+      out.flush();
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import spark.api.Solutions;
+import spark.api.exception.SparqlException;
+import spark.api.rdf.RDFNode;
+
+/**
+ * <p>Fully materialized {@link Solutions} with a compact memory layout, for caching large results.
+ * Each variable is stored as a column of term IDs in direct (off-heap) buffers, and the terms
+ * themselves are held once in a {@link TermDictionary}. A row therefore costs four bytes per
+ * variable outside the Java heap, where {@link SolutionSet} needs a map and its entries on the heap.</p>
+ * 
+ * <p>The solutions are read from another {@link Solutions} when constructed. Afterwards they
+ * support random access to any row with {@link #absolute(int)} and {@link #getResult(int)}.
+ * Rows returned by {@link #getResult()} are read-only views which look up terms as they are
+ * accessed.</p>
+ * 
+ * <p>Columns are allocated in fixed-size chunks as rows arrive, so growing only copies data while
+ * the first chunk is filling up: it starts small and doubles up to the full chunk size, so that a
+ * small result does not pin a full chunk of direct memory per variable. Direct buffers are
+ * released by the garbage collector once these solutions are closed or unreachable.</p>
+ */
+public class ColumnarSolutions extends BaseSolutions implements Solutions {
+
+  /** Number of rows in each column chunk. */
+  static final int CHUNK_ROWS = 1 << 16;
+  private static final int CHUNK_SHIFT = 16;
+  private static final int CHUNK_MASK = CHUNK_ROWS - 1;
+  /** Number of rows the first chunk is allocated with. */
+  static final int FIRST_CHUNK_ROWS = 64;
+
+  private static final int BEFORE_FIRST = -1;
+  private static final int FIRST = 0;
+
+  private final TermDictionary dictionary;
+  private final Map<String,Integer> columns;
+  // chunks.get(c)[v] holds rows [c * CHUNK_ROWS, (c + 1) * CHUNK_ROWS) of variable v
+  private List<IntBuffer[]> chunks = new ArrayList<IntBuffer[]>();
+  private final int size;
+  private int cursor = BEFORE_FIRST;
+
+  /**
+   * Read all solutions from the source into columns, with a dictionary of their own.
+   * The source is left positioned after its last row, and is not closed.
+   * @param source The solutions to read
+   */
+  public ColumnarSolutions(Solutions source) {
+    this(source, new TermDictionary());
+  }
+
+  /**
+   * Read all solutions from the source into columns, adding their terms to the given dictionary.
+   * The source is left positioned after its last row, and is not closed.
+   * @param source The solutions to read
+   * @param dictionary Dictionary of terms, may be shared with other solutions
+   */
+  public ColumnarSolutions(Solutions source, TermDictionary dictionary) {
+    super(source.getCommand(), source.getVariables());
+    this.dictionary = dictionary;
+    this.columns = new HashMap<String,Integer>();
+    for (int v = 0; v < vars.size(); v++) {
+      columns.put(vars.get(v), v);
+    }
+
+    int rows = 0;
+    int capacity = 0; // rows in the last chunk
+    while (source.next()) {
+      int offset = rows & CHUNK_MASK;
+      if (offset == 0) {
+        capacity = (rows == 0) ? FIRST_CHUNK_ROWS : CHUNK_ROWS;
+        chunks.add(allocateChunk(capacity));
+      } else if (offset == capacity) {
+        capacity = Math.min(capacity * 2, CHUNK_ROWS);
+        chunks.set(chunks.size() - 1, growChunk(chunks.get(chunks.size() - 1), capacity));
+      }
+      IntBuffer[] chunk = chunks.get(chunks.size() - 1);
+      Map<String,RDFNode> row = source.getResult();
+      for (int v = 0; v < chunk.length; v++) {
+        chunk[v].put(offset, dictionary.id(row.get(vars.get(v))));
+      }
+      if (++rows < 0) throw new SparqlException("Too many solutions to materialize");
+    }
+    this.size = rows;
+  }
+
+  private IntBuffer[] allocateChunk(int rows) {
+    IntBuffer[] chunk = new IntBuffer[vars.size()];
+    for (int v = 0; v < chunk.length; v++) {
+      chunk[v] = ByteBuffer.allocateDirect(rows * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+    return chunk;
+  }
+
+  /** Copy a chunk into a larger one. */
+  private IntBuffer[] growChunk(IntBuffer[] chunk, int rows) {
+    IntBuffer[] grown = allocateChunk(rows);
+    for (int v = 0; v < chunk.length; v++) {
+      IntBuffer old = chunk[v].duplicate();
+      old.clear();
+      grown[v].put(old);
+    }
+    return grown;
+  }
+
+  /** @return The dictionary holding the terms of these solutions. */
+  public TermDictionary getDictionary() {
+    return dictionary;
+  }
+
+  /** @return The number of rows. */
+  public int size() {
+    return size;
+  }
+
+  /** Term ID of the variable in column v of the given zero-based row. */
+  private int termId(int row, int v) {
+    List<IntBuffer[]> c = chunks;
+    if (c == null) throw new SparqlException("Solutions are closed");
+    return c.get(row >>> CHUNK_SHIFT)[v].get(row & CHUNK_MASK);
+  }
+
+  /**
+   * Get a row by position.
+   * @param row The row number, starting from 1 as for {@link #getRow()}
+   * @return A read-only view of the row
+   * @throws IndexOutOfBoundsException If there is no such row
+   */
+  public Map<String,RDFNode> getResult(int row) {
+    if (row < 1 || row > size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+    return new Row(row - 1);
+  }
+
+  /**
+   * Move the cursor to the given row. Moving to row 0 positions the cursor before the first row,
+   * and any row past the end positions it after the last row.
+   * @param row The row number, starting from 1 as for {@link #getRow()}
+   * @return true if the cursor is on a row
+   */
+  public boolean absolute(int row) {
+    cursor = Math.max(BEFORE_FIRST, Math.min(row, size + 1) - 1);
+    return cursor > BEFORE_FIRST && cursor < size;
+  }
+
+  @Override
+  public Map<String, RDFNode> getResult() {
+    return (cursor > BEFORE_FIRST && cursor < size) ? new Row(cursor) : null;
+  }
+
+  @Override
+  public RDFNode getBinding(String variable) {
+    Integer v = columns.get(variable);
+    return (v != null && cursor > BEFORE_FIRST && cursor < size) ? dictionary.term(termId(cursor, v)) : null;
+  }
+
+  @Override
+  public boolean isBound(String variable) {
+    Integer v = columns.get(variable);
+    return v != null && cursor > BEFORE_FIRST && cursor < size && termId(cursor, v) != TermDictionary.UNBOUND;
+  }
+
+  @Override
+  public boolean isAfterLast() {
+    return cursor >= size;
+  }
+
+  @Override
+  public boolean isBeforeFirst() {
+    return cursor == BEFORE_FIRST;
+  }
+
+  @Override
+  public boolean isFirst() {
+    return cursor == FIRST && size > 0;
+  }
+
+  @Override
+  public boolean isLast() {
+    return size > 0 && cursor == (size - 1);
+  }
+
+  @Override
+  public boolean next() {
+    if (cursor < size) cursor++;
+    return cursor < size;
+  }
+
+  @Override
+  public int getRow() {
+    return cursor + 1;
+  }
+
+  @Override
+  public Iterator<Map<String, RDFNode>> iterator() {
+    return new Iterator<Map<String,RDFNode>>() {
+      private int iterCursor = 0;
+
+      @Override
+      public boolean hasNext() {
+        return iterCursor < size;
+      }
+
+      @Override
+      public Map<String,RDFNode> next() {
+        if (iterCursor >= size) throw new NoSuchElementException();
+        return new Row(iterCursor++);
+      }
+
+      @Override
+      public void remove() {
+        throw new SparqlException("remove not supported on Solutions");
+      }
+    };
+  }
+
+  /** Drops the columns so their memory can be reclaimed. */
+  @Override
+  public void close() throws IOException {
+    super.close();
+    chunks = null;
+  }
+
+  /** Read-only view of one row, looking up terms in the dictionary as they are accessed. */
+  private class Row extends AbstractMap<String,RDFNode> {
+    private final int row;
+
+    Row(int row) {
+      this.row = row;
+    }
+
+    @Override
+    public RDFNode get(Object key) {
+      Integer v = columns.get(key);
+      return (v != null) ? dictionary.term(termId(row, v)) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      Integer v = columns.get(key);
+      return v != null && termId(row, v) != TermDictionary.UNBOUND;
+    }
+
+    @Override
+    public Set<Map.Entry<String,RDFNode>> entrySet() {
+      // Like a map built from the source, only bound variables have entries.
+      Set<Map.Entry<String,RDFNode>> entries = new LinkedHashSet<Map.Entry<String,RDFNode>>();
+      for (int v = 0; v < vars.size(); v++) {
+        int id = termId(row, v);
+        if (id != TermDictionary.UNBOUND) {
+          entries.add(new AbstractMap.SimpleImmutableEntry<String,RDFNode>(vars.get(v), dictionary.term(id)));
+        }
+      }
+      return Collections.unmodifiableSet(entries);
+    }
+  }
+}
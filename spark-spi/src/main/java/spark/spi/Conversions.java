@@ -25,7 +25,12 @@ import java.util.Map;
 import spark.api.rdf.Literal;
 import spark.api.rdf.TypedLiteral;
 import spark.api.uris.XsdTypes;
-import spark.spi.rdf.TypedLiteralImpl;
+import spark.spi.rdf.BooleanLiteral;
+import spark.spi.rdf.DoubleLiteral;
+import spark.spi.rdf.FloatLiteral;
+import spark.spi.rdf.IntLiteral;
+import spark.spi.rdf.LongLiteral;
+import spark.spi.rdf.RDFNodeFactory;
 import spark.spi.util.DateTime;
 
 /**
@@ -77,8 +82,8 @@ public final class Conversions {
       classConversions.put(c, this);
     }
     /** @return an RDF literal with the appropriate datatype URI and lexical form computed from the given object. */
-    final TypedLiteral literal(Object data) {
-      return new TypedLiteralImpl(lexical(clazz.cast(data)), typeUri);
+    TypedLiteral literal(Object data) {
+      return RDFNodeFactory.typedLiteral(lexical(clazz.cast(data)), typeUri, data);
     }
     /** @return a native Java object translated from the given lexical string. */
     abstract T data(String s);
@@ -105,6 +110,9 @@ public final class Conversions {
     Integer data(String s) {
       return toInteger(s);
     }
+    TypedLiteral literal(Object data) {
+      return new IntLiteral((Integer)data);
+    }
   };
   
   /** xsd:long conversion */
@@ -112,6 +120,9 @@ public final class Conversions {
     Long data(String s) {
       return toLong(s);
     }
+    TypedLiteral literal(Object data) {
+      return new LongLiteral((Long)data);
+    }
   };
   
   /** xsd:integer conversion */
@@ -127,6 +138,9 @@ public final class Conversions {
     Boolean data(String s) {
       return toBoolean(s);
     }
+    TypedLiteral literal(Object data) {
+      return new BooleanLiteral((Boolean)data);
+    }
   };
   
   /** xsd:float conversion */
@@ -134,6 +148,9 @@ public final class Conversions {
     Float data(String s) {
       return toFloat(s);
     }
+    TypedLiteral literal(Object data) {
+      return new FloatLiteral((Float)data);
+    }
   };
   
   /** xsd:double conversion */
@@ -141,6 +158,9 @@ public final class Conversions {
     Double data(String s) {
       return toDouble(s);
     }
+    TypedLiteral literal(Object data) {
+      return new DoubleLiteral((Double)data);
+    }
   };
   
   /** xsd:decimal conversion */
@@ -178,7 +198,38 @@ public final class Conversions {
    * @return Converted value
    */
   public static BigInteger toBigInteger(String lexicalBigInteger) {
-    return new BigInteger(lexicalBigInteger);
+    return toBigInteger((CharSequence)lexicalBigInteger);
+  }
+
+  /**
+   * Convert from lexical to BigInteger (xsd:integer)
+   * @param lexicalBigInteger Lexical representation
+   * @return Converted value
+   */
+  public static BigInteger toBigInteger(CharSequence lexicalBigInteger) {
+    return parseBigInteger(lexicalBigInteger, 0, lexicalBigInteger.length());
+  }
+
+  /**
+   * Convert from lexical to BigInteger (xsd:integer)
+   * @param buf Buffer holding the lexical representation
+   * @param offset Start of the lexical representation in the buffer
+   * @param length Length of the lexical representation
+   * @return Converted value
+   */
+  public static BigInteger toBigInteger(char[] buf, int offset, int length) {
+    return parseBigInteger(buf, offset, length);
+  }
+
+  /**
+   * Convert from lexical to BigInteger (xsd:integer)
+   * @param buf Buffer holding the UTF-8 encoded lexical representation
+   * @param offset Start of the lexical representation in the buffer
+   * @param length Length in bytes of the lexical representation
+   * @return Converted value
+   */
+  public static BigInteger toBigInteger(byte[] buf, int offset, int length) {
+    return parseBigInteger(buf, offset, length);
   }
   
   /**
@@ -205,7 +256,38 @@ public final class Conversions {
    * @return Converted value
    */
   public static int toInteger(String lexicalInteger) {
-    return Integer.parseInt(lexicalInteger);
+    return toInteger((CharSequence)lexicalInteger);
+  }
+
+  /**
+   * Convert from lexical to int (xsd:int)
+   * @param lexicalInteger Lexical representation
+   * @return Converted value
+   */
+  public static int toInteger(CharSequence lexicalInteger) {
+    return parseInt(lexicalInteger, 0, lexicalInteger.length());
+  }
+
+  /**
+   * Convert from lexical to int (xsd:int)
+   * @param buf Buffer holding the lexical representation
+   * @param offset Start of the lexical representation in the buffer
+   * @param length Length of the lexical representation
+   * @return Converted value
+   */
+  public static int toInteger(char[] buf, int offset, int length) {
+    return parseInt(buf, offset, length);
+  }
+
+  /**
+   * Convert from lexical to int (xsd:int)
+   * @param buf Buffer holding the UTF-8 encoded lexical representation
+   * @param offset Start of the lexical representation in the buffer
+   * @param length Length in bytes of the lexical representation
+   * @return Converted value
+   */
+  public static int toInteger(byte[] buf, int offset, int length) {
+    return parseInt(buf, offset, length);
   }
   
   /**
@@ -214,7 +296,38 @@ public final class Conversions {
    * @return Converted value
    */
   public static long toLong(String lexicalLong) {
-    return Long.parseLong(lexicalLong);
+    return toLong((CharSequence)lexicalLong);
+  }
+
+  /**
+   * Convert from lexical to long (xsd:long)
+   * @param lexicalLong Lexical representation
+   * @return Converted value
+   */
+  public static long toLong(CharSequence lexicalLong) {
+    return parseLong(lexicalLong, 0, lexicalLong.length());
+  }
+
+  /**
+   * Convert from lexical to long (xsd:long)
+   * @param buf Buffer holding the lexical representation
+   * @param offset Start of the lexical representation in the buffer
+   * @param length Length of the lexical representation
+   * @return Converted value
+   */
+  public static long toLong(char[] buf, int offset, int length) {
+    return parseLong(buf, offset, length);
+  }
+
+  /**
+   * Convert from lexical to long (xsd:long)
+   * @param buf Buffer holding the UTF-8 encoded lexical representation
+   * @param offset Start of the lexical representation in the buffer
+   * @param length Length in bytes of the lexical representation
+   * @return Converted value
+   */
+  public static long toLong(byte[] buf, int offset, int length) {
+    return parseLong(buf, offset, length);
   }
   
   /**
@@ -241,7 +354,38 @@ public final class Conversions {
    * @return Converted value
    */
   public static double toDouble(String lexicalDouble) {
-    return Double.parseDouble(lexicalDouble);
+    return toDouble((CharSequence)lexicalDouble);
+  }
+
+  /**
+   * Convert from lexical to double (xsd:double)
+   * @param lexicalDouble Lexical representation
+   * @return Converted value
+   */
+  public static double toDouble(CharSequence lexicalDouble) {
+    return parseDouble(lexicalDouble, 0, lexicalDouble.length());
+  }
+
+  /**
+   * Convert from lexical to double (xsd:double)
+   * @param buf Buffer holding the lexical representation
+   * @param offset Start of the lexical representation in the buffer
+   * @param length Length of the lexical representation
+   * @return Converted value
+   */
+  public static double toDouble(char[] buf, int offset, int length) {
+    return parseDouble(buf, offset, length);
+  }
+
+  /**
+   * Convert from lexical to double (xsd:double)
+   * @param buf Buffer holding the UTF-8 encoded lexical representation
+   * @param offset Start of the lexical representation in the buffer
+   * @param length Length in bytes of the lexical representation
+   * @return Converted value
+   */
+  public static double toDouble(byte[] buf, int offset, int length) {
+    return parseDouble(buf, offset, length);
   }
   
   /**
@@ -282,9 +426,21 @@ public final class Conversions {
    */
   public static Object toData(TypedLiteral lit) {
     if (lit == null) throw new IllegalArgumentException("Can't convert null literal");
-    Conversion<?> c = uriConversions.get(lit.getDataType());
-    if (c == null) throw new IllegalArgumentException("Don't know how to convert literal of type " + lit.getDataType());
-    return c.data(lit.getLexical());
+    return lit.getValue();
+  }
+
+  /**
+   * Convert from a lexical value and XSD datatype to native Java object. Literal implementations
+   * use this to decode their value; other callers should use {@link #toData(TypedLiteral)}, which
+   * benefits from the literal's cached value.
+   * @param lexical Lexical representation
+   * @param dataType XSD datatype URI
+   * @return Java object converted from the lexical value based on the mappings specified by the datatype URI.
+   */
+  public static Object toValue(String lexical, URI dataType) {
+    Conversion<?> c = uriConversions.get(dataType);
+    if (c == null) throw new IllegalArgumentException("Don't know how to convert literal of type " + dataType);
+    return c.data(lexical);
   }
   
   /**
@@ -293,7 +449,7 @@ public final class Conversions {
    * @return Converted literal
    */
   public static TypedLiteral toLiteral(byte b) {
-    return new TypedLiteralImpl(Byte.toString(b), BYTE.typeUri);
+    return RDFNodeFactory.typedLiteral(Byte.toString(b), BYTE.typeUri);
   }
   
   /**
@@ -302,7 +458,7 @@ public final class Conversions {
    * @return Converted literal
    */
   public static TypedLiteral toLiteral(short s) {
-    return new TypedLiteralImpl(Short.toString(s), SHORT.typeUri);
+    return RDFNodeFactory.typedLiteral(Short.toString(s), SHORT.typeUri);
   }
 
   /**
@@ -311,7 +467,7 @@ public final class Conversions {
    * @return Converted literal
    */
   public static TypedLiteral toLiteral(int i) {
-    return new TypedLiteralImpl(Integer.toString(i), INT.typeUri);
+    return new IntLiteral(i);
   }
   
   /**
@@ -320,7 +476,7 @@ public final class Conversions {
    * @return Converted literal
    */
   public static TypedLiteral toLiteral(long l) {
-    return new TypedLiteralImpl(Long.toString(l), LONG.typeUri);
+    return new LongLiteral(l);
   }
   
   /**
@@ -329,7 +485,7 @@ public final class Conversions {
    * @return Converted literal
    */
   public static TypedLiteral toLiteral(boolean b) {
-    return new TypedLiteralImpl(Boolean.toString(b), BOOLEAN.typeUri);
+    return new BooleanLiteral(b);
   }
   
   /**
@@ -338,7 +494,7 @@ public final class Conversions {
    * @return Converted literal
    */
   public static TypedLiteral toLiteral(float f) {
-    return new TypedLiteralImpl(Float.toString(f), FLOAT.typeUri);
+    return new FloatLiteral(f);
   }
   
   /**
@@ -347,7 +503,7 @@ public final class Conversions {
    * @return Converted literal
    */
   public static TypedLiteral toLiteral(double d) {
-    return new TypedLiteralImpl(Double.toString(d), DOUBLE.typeUri);
+    return new DoubleLiteral(d);
   }
   
   /**
@@ -363,6 +519,198 @@ public final class Conversions {
     // Omitting the datatype would imply a type of xsd:string, so use xsd:anySimpleType instead.
     // The use of xsd:anySimpleType prevents round-tripping; in the future we could possibly
     // serialize this as a byte array and use xsd:hexBinary or xsd:base64Binary.
-    return new TypedLiteralImpl(value.toString(), XsdTypes.ANY_SIMPLE_TYPE);
+    return RDFNodeFactory.typedLiteral(value.toString(), XsdTypes.ANY_SIMPLE_TYPE);
+  }
+
+  // Numeric parsing straight from a CharSequence, char[] or UTF-8 byte[], so callers holding a
+  // buffer never need to build a String. Sources are passed as Object and read through charAt(),
+  // which keeps a single implementation for all three without allocating a wrapper.
+
+  /** Powers of ten that are exactly representable as doubles. */
+  private static final double[] EXACT_POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+    1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  /** Largest mantissa for which mantissa * 10^e is exact when 10^e is exact. */
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+  /** Read a character from one of the supported source types. */
+  private static char charAt(Object src, int i) {
+    if (src instanceof byte[]) return (char)(((byte[])src)[i] & 0xff);
+    if (src instanceof char[]) return ((char[])src)[i];
+    return ((CharSequence)src).charAt(i);
+  }
+
+  /** XSD numeric types collapse whitespace, so leading and trailing whitespace is ignored. */
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+  }
+
+  private static NumberFormatException invalid(Object src, int offset, int length) {
+    return new NumberFormatException("For input string: \"" + substring(src, offset, length) + "\"");
+  }
+
+  /** Materialize a range of a source; only used on error and slow paths. */
+  private static String substring(Object src, int offset, int length) {
+    if (src instanceof char[]) return new String((char[])src, offset, length);
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = offset; i < offset + length; i++) sb.append(charAt(src, i));
+    return sb.toString();
+  }
+
+  private static int parseInt(Object src, int offset, int length) {
+    long l = parseLong(src, offset, length);
+    if (l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) throw invalid(src, offset, length);
+    return (int)l;
+  }
+
+  private static long parseLong(Object src, int offset, int length) {
+    int end = offset + length;
+    int i = offset;
+    while (i < end && isWhitespace(charAt(src, i))) i++;
+    while (end > i && isWhitespace(charAt(src, end - 1))) end--;
+    if (i == end) throw invalid(src, offset, length);
+
+    boolean negative = false;
+    char c = charAt(src, i);
+    if (c == '-' || c == '+') {
+      negative = (c == '-');
+      if (++i == end) throw invalid(src, offset, length);
+    }
+    // Accumulate negatively so that Long.MIN_VALUE can be parsed.
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long multmin = limit / 10;
+    long result = 0;
+    for (; i < end; i++) {
+      int digit = charAt(src, i) - '0';
+      if (digit < 0 || digit > 9 || result < multmin) throw invalid(src, offset, length);
+      result *= 10;
+      if (result < limit + digit) throw invalid(src, offset, length);
+      result -= digit;
+    }
+    return negative ? result : -result;
+  }
+
+  private static BigInteger parseBigInteger(Object src, int offset, int length) {
+    int end = offset + length;
+    int i = offset;
+    while (i < end && isWhitespace(charAt(src, i))) i++;
+    while (end > i && isWhitespace(charAt(src, end - 1))) end--;
+    // Anything that fits in a long avoids the string-based constructor.
+    if (end - i <= 18) return BigInteger.valueOf(parseLong(src, i, end - i));
+
+    int start = i;
+    char c = charAt(src, i);
+    if (c == '+') start = ++i;
+    else if (c == '-') i++;
+    if (i == end) throw invalid(src, offset, length);
+    for (; i < end; i++) {
+      c = charAt(src, i);
+      if (c < '0' || c > '9') throw invalid(src, offset, length);
+    }
+    return new BigInteger(substring(src, start, end - start));
+  }
+
+  /**
+   * Parse the xsd:double lexical space: a decimal with optional exponent, INF, -INF or NaN.
+   * Values whose significant digits (at most 18 are read) form an integer no larger than 2^53,
+   * with a decimal exponent within 22, are computed exactly from the digits; anything else is
+   * validated here and then handed to {@link Double#parseDouble}.
+   */
+  private static double parseDouble(Object src, int offset, int length) {
+    int end = offset + length;
+    int i = offset;
+    while (i < end && isWhitespace(charAt(src, i))) i++;
+    while (end > i && isWhitespace(charAt(src, end - 1))) end--;
+    if (i == end) throw invalid(src, offset, length);
+    int start = i;
+
+    boolean negative = false;
+    char c = charAt(src, i);
+    if (c == '-' || c == '+') {
+      negative = (c == '-');
+      if (++i == end) throw invalid(src, offset, length);
+    }
+    if (!isDigit(charAt(src, i)) && charAt(src, i) != '.') {
+      // Java's own spelling of infinity is accepted as well, since Double.toString produces it.
+      if (matches(src, i, end, "INF") || matches(src, i, end, "Infinity")) {
+        return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+      }
+      if (i == start && matches(src, i, end, "NaN")) return Double.NaN;
+      throw invalid(src, offset, length);
+    }
+
+    long mantissa = 0;
+    int digits = 0;       // significant digits accumulated into the mantissa
+    int scale = 0;        // decimal exponent adjustment from the position of the point
+    boolean anyDigits = false;
+    boolean exact = true;
+    for (; i < end && isDigit(c = charAt(src, i)); i++) {
+      anyDigits = true;
+      if (mantissa == 0 && c == '0') continue;
+      if (digits < 18) {
+        mantissa = mantissa * 10 + (c - '0');
+        digits++;
+      } else {
+        exact = false;
+        scale++;
+      }
+    }
+    if (i < end && charAt(src, i) == '.') {
+      for (i++; i < end && isDigit(c = charAt(src, i)); i++) {
+        anyDigits = true;
+        if (mantissa == 0 && c == '0') {
+          scale--;
+        } else if (digits < 18) {
+          mantissa = mantissa * 10 + (c - '0');
+          digits++;
+          scale--;
+        } else if (c != '0') {
+          exact = false;
+        }
+      }
+    }
+    if (!anyDigits) throw invalid(src, offset, length);
+
+    int exponent = 0;
+    if (i < end && ((c = charAt(src, i)) == 'e' || c == 'E')) {
+      if (++i == end) throw invalid(src, offset, length);
+      boolean negativeExp = false;
+      c = charAt(src, i);
+      if (c == '-' || c == '+') {
+        negativeExp = (c == '-');
+        if (++i == end) throw invalid(src, offset, length);
+      }
+      for (; i < end && isDigit(c = charAt(src, i)); i++) {
+        // Clamp; anything this large is zero or infinite and goes to the slow path anyway.
+        if (exponent < 100000) exponent = exponent * 10 + (c - '0');
+      }
+      if (!isDigit(charAt(src, i - 1))) throw invalid(src, offset, length);
+      if (negativeExp) exponent = -exponent;
+    }
+    if (i != end) throw invalid(src, offset, length);
+
+    if (mantissa == 0) return negative ? -0.0 : 0.0;
+    int e = exponent + scale;
+    if (exact && mantissa <= MAX_EXACT_MANTISSA && e >= -22 && e <= 22) {
+      double d = (double)mantissa;
+      d = (e < 0) ? d / EXACT_POWERS_OF_TEN[-e] : d * EXACT_POWERS_OF_TEN[e];
+      return negative ? -d : d;
+    }
+    return Double.parseDouble(substring(src, start, end - start));
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /** @return true if the source range is exactly the given ASCII text. */
+  private static boolean matches(Object src, int start, int end, String text) {
+    if (end - start != text.length()) return false;
+    for (int i = 0; i < text.length(); i++) {
+      if (charAt(src, start + i) != text.charAt(i)) return false;
+    }
+    return true;
   }
 }
\ No newline at end of file
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import spark.api.Command;
+import spark.api.Completion;
+import spark.api.Completions;
+import spark.api.Result;
+import spark.api.exception.SparqlException;
+import spark.spi.util.Deadline;
+
+/**
+ * Runs a list of commands on an executor and hands them back as they complete, all under one
+ * deadline. The deadline applies to each command while it executes, so that the command gives up
+ * on its execution no later than the caller does.
+ */
+public class FanOutCompletions implements Completions {
+
+  private final CompletionService<Result> service;
+  private final Map<Future<Result>,Run> running = new ConcurrentHashMap<Future<Result>,Run>();
+  private final Deadline deadline;
+  private final long deadlineMillis;
+  private final int total;
+  private int remaining;
+
+  /**
+   * Start the commands.
+   * @param commands The commands to execute
+   * @param timeoutMillis Time allowed for all of the commands, or {@link Command#NO_TIMEOUT}
+   * @param executor Runs the commands; it should be able to run all of them at once
+   */
+  public FanOutCompletions(List<? extends Command> commands, long timeoutMillis, Executor executor) {
+    if (timeoutMillis < 0) throw new IllegalArgumentException("Timeout must be >= 0: " + timeoutMillis);
+    this.deadline = (timeoutMillis != Command.NO_TIMEOUT) ? Deadline.after(timeoutMillis) : Deadline.NONE;
+    this.deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+    this.service = new ExecutorCompletionService<Result>(executor);
+    this.total = commands.size();
+    this.remaining = total;
+    for (Command c : commands) {
+      Run run = new Run(c);
+      running.put(service.submit(run), run);
+    }
+  }
+
+  @Override
+  public Completion take() throws SparqlException {
+    if (remaining == 0) return null;
+    Future<Result> f;
+    try {
+      if (deadline.isBounded()) {
+        f = service.poll(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+      } else {
+        f = service.take();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SparqlException("Interrupted waiting for commands to complete", e);
+    }
+    if (f == null) {
+      int outstanding = remaining;
+      remaining = 0;
+      cancelRunning();
+      throw new SparqlException("Timed out with " + outstanding + " of " + total + " commands still running");
+    }
+    remaining--;
+    return new Done(running.remove(f).command, f);
+  }
+
+  @Override
+  public int remaining() {
+    return remaining;
+  }
+
+  @Override
+  public Iterator<Completion> iterator() {
+    return new Iterator<Completion>() {
+      private Completion next = null;
+
+      @Override
+      public boolean hasNext() {
+        if (next == null) next = take();
+        return next != null;
+      }
+
+      @Override
+      public Completion next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Completion c = next;
+        next = null;
+        return c;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Cannot remove from completions.");
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    remaining = 0;
+    cancelRunning();
+  }
+
+  /**
+   * Cancel the commands not taken yet; results that slipped in are closed. Commands can't always
+   * be stopped, so any that finish later close their own results.
+   */
+  private void cancelRunning() {
+    for (Map.Entry<Future<Result>,Run> e : running.entrySet()) {
+      Future<Result> f = e.getKey();
+      Run run = e.getValue();
+      if (f.cancel(true)) {
+        try {
+          run.command.cancel();
+        } catch (RuntimeException ex) {
+          // Best effort, the command may not have reached the server yet.
+        }
+      }
+      // Completed or not, the run holds any result until it is taken.
+      run.abandon();
+      running.remove(f);
+    }
+  }
+
+  private static void closeQuietly(Result r) {
+    try {
+      r.close();
+    } catch (IOException e) {
+      // Nobody is left to report it to.
+    }
+  }
+
+  /**
+   * Executes one command, unless the deadline passed while it was waiting to start. The shared
+   * deadline only applies to this execution; the command's own deadline is restored afterwards.
+   * The result is kept until it is taken, since a future cancelled between the end of the call
+   * and the hand-off to the future drops it.
+   */
+  private class Run implements Callable<Result> {
+    final Command command;
+
+    // Protected by "this" lock.
+    private Result result = null;
+    private boolean abandoned = false;
+
+    Run(Command command) {
+      this.command = command;
+    }
+
+    /** Close the result, now or as soon as the command returns it. */
+    void abandon() {
+      Result r;
+      synchronized (this) {
+        abandoned = true;
+        r = result;
+        result = null;
+      }
+      if (r != null) closeQuietly(r);
+    }
+
+    @Override
+    public Result call() throws Exception {
+      deadline.check("the command started");
+      long own = command.getDeadline();
+      boolean shared = deadline.isBounded() && (own == Command.NO_DEADLINE || own > deadlineMillis);
+      if (shared) command.setDeadline(deadlineMillis);
+      Result r;
+      try {
+        r = command.execute();
+      } finally {
+        if (shared) command.setDeadline(own);
+      }
+      if (r == null) return null;
+      synchronized (this) {
+        if (!abandoned) {
+          result = r;
+          return r;
+        }
+      }
+      // Nobody is left to take the result.
+      closeQuietly(r);
+      return null;
+    }
+  }
+
+  /** A command that has finished, successfully or not. */
+  private static class Done implements Completion {
+    private final Command command;
+    private final Future<Result> future;
+
+    Done(Command command, Future<Result> future) {
+      this.command = command;
+      this.future = future;
+    }
+
+    @Override
+    public Command getCommand() {
+      return command;
+    }
+
+    @Override
+    public Result getResult() throws SparqlException {
+      try {
+        return future.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof SparqlException) throw (SparqlException)cause;
+        throw new SparqlException("Command failed: " + cause.getMessage(), cause);
+      } catch (CancellationException e) {
+        throw new SparqlException("Command was cancelled", e);
+      } catch (InterruptedException e) {
+        // The future is already done, so this cannot happen.
+        Thread.currentThread().interrupt();
+        throw new SparqlException("Interrupted", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import spark.api.Solutions;
+import spark.api.exception.SparqlException;
+import spark.api.rdf.RDFNode;
+
+/**
+ * <p>Scrollable view of a streaming {@link Solutions}. Rows are read from the source only as the
+ * cursor reaches them, and are remembered so that the cursor can move backwards with
+ * {@link #previous()}, jump with {@link #absolute(int)}, and the results can be iterated any
+ * number of times.</p>
+ * 
+ * <p>The first rows, up to a configurable limit, are kept on the heap. Rows past that limit are
+ * spilled to a memory-mapped temporary file in a compact binary encoding, so paging through a
+ * huge result only needs heap space for the rows being looked at. The file is deleted when these
+ * solutions are closed, which also closes the source.</p>
+ */
+public class ScrollableSolutions extends BaseSolutions implements Solutions {
+
+  /** Default number of rows kept on the heap before spilling to disk. */
+  public static final int DEFAULT_MEMORY_ROWS = 10000;
+
+  private static final int BEFORE_FIRST = -1;
+
+  private final Solutions source;
+  private final int memoryRows;
+  private final List<Map<String,RDFNode>> memory = new ArrayList<Map<String,RDFNode>>();
+  private SpillFile spill = null;
+  private int count = 0;
+  private boolean exhausted = false;
+
+  // Zero-based; equal to count when after the last row.
+  private int cursor = BEFORE_FIRST;
+
+  /**
+   * Wrap solutions, keeping up to {@link #DEFAULT_MEMORY_ROWS} rows on the heap.
+   * @param source Solutions to scroll over, positioned before the first row
+   */
+  public ScrollableSolutions(Solutions source) {
+    this(source, DEFAULT_MEMORY_ROWS);
+  }
+
+  /**
+   * Wrap solutions.
+   * @param source Solutions to scroll over, positioned before the first row
+   * @param memoryRows Number of rows to keep on the heap before spilling to disk
+   */
+  public ScrollableSolutions(Solutions source, int memoryRows) {
+    super(source.getCommand(), source.getVariables());
+    if (memoryRows < 0) throw new IllegalArgumentException("Memory rows must be >= 0: " + memoryRows);
+    this.source = source;
+    this.memoryRows = memoryRows;
+  }
+
+  /**
+   * Read from the source until the given number of rows are available, or it runs out.
+   * @return true if that many rows are available
+   */
+  private boolean fetchTo(int rows) {
+    while (count < rows && !exhausted) {
+      if (!source.next()) {
+        exhausted = true;
+        break;
+      }
+      Map<String,RDFNode> row = source.getResult();
+      if (count < memoryRows) {
+        memory.add(row);
+      } else {
+        try {
+          if (spill == null) spill = new SpillFile(vars);
+          spill.append(row);
+        } catch (IOException e) {
+          throw new SparqlException("Unable to spill solutions to disk", e);
+        }
+      }
+      count++;
+    }
+    return count >= rows;
+  }
+
+  /** Get a zero-based row that has already been fetched. */
+  private Map<String,RDFNode> row(int index) {
+    return (index < memoryRows) ? memory.get(index) : spill.get(index - memoryRows);
+  }
+
+  private boolean onRow() {
+    return cursor > BEFORE_FIRST && cursor < count;
+  }
+
+  /**
+   * Move the cursor to the given row. Positive numbers count from the first row, which is 1, and
+   * negative numbers count back from the last row, which is -1 (this reads the whole source).
+   * Moving to row 0, or before the first row, positions the cursor before the first row; moving
+   * past the last row positions it after the last row.
+   * @param row The row number
+   * @return true if the cursor is on a row
+   */
+  public boolean absolute(int row) {
+    if (row < 0) {
+      fetchTo(Integer.MAX_VALUE);
+      row = Math.max(0, count + 1 + row);
+    }
+    if (row == 0) {
+      cursor = BEFORE_FIRST;
+      return false;
+    }
+    if (fetchTo(row)) {
+      cursor = row - 1;
+      return true;
+    }
+    cursor = count;
+    return false;
+  }
+
+  /**
+   * Move the cursor to the previous row.
+   * @return true if the cursor is on a row, false if it moved before the first row
+   */
+  public boolean previous() {
+    if (cursor > BEFORE_FIRST) cursor--;
+    return cursor > BEFORE_FIRST;
+  }
+
+  /** Move the cursor before the first row, so that {@link #next()} reads the results again. */
+  public void beforeFirst() {
+    cursor = BEFORE_FIRST;
+  }
+
+  @Override
+  public boolean next() {
+    if (fetchTo(cursor + 2)) {
+      cursor++;
+      return true;
+    }
+    cursor = count;
+    return false;
+  }
+
+  @Override
+  public Map<String, RDFNode> getResult() {
+    return onRow() ? row(cursor) : null;
+  }
+
+  @Override
+  public int getRow() {
+    return cursor + 1;
+  }
+
+  @Override
+  public boolean isBeforeFirst() {
+    return cursor == BEFORE_FIRST;
+  }
+
+  @Override
+  public boolean isFirst() {
+    return cursor == 0 && onRow();
+  }
+
+  @Override
+  public boolean isLast() {
+    return onRow() && !fetchTo(cursor + 2);
+  }
+
+  @Override
+  public boolean isAfterLast() {
+    return cursor > BEFORE_FIRST && !fetchTo(cursor + 1);
+  }
+
+  /** Iterates over all rows from the first, independently of the cursor. */
+  @Override
+  public Iterator<Map<String, RDFNode>> iterator() {
+    return new Iterator<Map<String,RDFNode>>() {
+      private int iterCursor = 0;
+
+      @Override
+      public boolean hasNext() {
+        return fetchTo(iterCursor + 1);
+      }
+
+      @Override
+      public Map<String,RDFNode> next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return row(iterCursor++);
+      }
+
+      @Override
+      public void remove() {
+        throw new SparqlException("remove not supported on Solutions");
+      }
+    };
+  }
+
+  /** Closes the source and deletes any spill file. */
+  @Override
+  public void close() throws IOException {
+    super.close();
+    memory.clear();
+    try {
+      source.close();
+    } finally {
+      if (spill != null) spill.close();
+    }
+  }
+}
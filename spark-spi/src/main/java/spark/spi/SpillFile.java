@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import spark.api.rdf.RDFNode;
+
+/**
+ * Append-only store of solution rows in a memory-mapped temporary file. Rows are encoded with
+ * {@link TermCodec} into mapped segments of the file; a row never spans two segments, so it can be
+ * decoded straight from the mapping. The position of each row is kept in an off-heap index, so
+ * rows can be read back in any order. The file is deleted when the store is closed.
+ */
+final class SpillFile implements Closeable {
+
+  /** Size of each mapped segment; larger rows get a segment of their own. */
+  static final int SEGMENT_SIZE = 16 << 20;
+
+  private static final int INDEX_SHIFT = 16;
+  private static final int INDEX_ROWS = 1 << INDEX_SHIFT;
+  private static final int INDEX_MASK = INDEX_ROWS - 1;
+
+  private final List<String> vars;
+  private final File file;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+
+  private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+  private MappedByteBuffer current;
+  private long mapped = 0;
+
+  // Row positions, as segment number in the high int and offset in the low int.
+  private final List<LongBuffer> index = new ArrayList<LongBuffer>();
+  private int rows = 0;
+
+  private final TermCodec.Output out = new TermCodec.Output();
+
+  /**
+   * Create an empty store in a new temporary file.
+   * @param vars Variables of the rows, in the order they are encoded
+   * @throws IOException If the file could not be created
+   */
+  SpillFile(List<String> vars) throws IOException {
+    this.vars = vars;
+    this.file = File.createTempFile("spark-solutions", ".spill");
+    try {
+      this.raf = new RandomAccessFile(file, "rw");
+    } catch (IOException e) {
+      file.delete();
+      throw e;
+    }
+    this.channel = raf.getChannel();
+  }
+
+  /** @return The number of rows in the store. */
+  int size() {
+    return rows;
+  }
+
+  /**
+   * Add a row to the end of the store.
+   * @param row Bindings of the row; variables without a binding are stored as unbound
+   * @throws IOException If the file could not be extended
+   */
+  void append(Map<String,RDFNode> row) throws IOException {
+    out.reset();
+    for (String var : vars) {
+      TermCodec.write(out, row.get(var));
+    }
+    int len = out.size();
+    if (current == null || current.remaining() < len) {
+      int segmentSize = Math.max(SEGMENT_SIZE, len);
+      current = channel.map(FileChannel.MapMode.READ_WRITE, mapped, segmentSize);
+      mapped += segmentSize;
+      segments.add(current);
+    }
+    long pos = ((long)(segments.size() - 1) << 32) | current.position();
+    current.put(out.bytes(), 0, len);
+
+    int slot = rows & INDEX_MASK;
+    if (slot == 0) index.add(ByteBuffer.allocateDirect(INDEX_ROWS * 8).asLongBuffer());
+    index.get(index.size() - 1).put(slot, pos);
+    rows++;
+  }
+
+  /**
+   * Read a row back from the store.
+   * @param row Zero-based row number
+   * @return The bound variables of the row
+   */
+  Map<String,RDFNode> get(int row) {
+    if (row < 0 || row >= rows) throw new IndexOutOfBoundsException("Row " + row + " of " + rows);
+    long pos = index.get(row >>> INDEX_SHIFT).get(row & INDEX_MASK);
+    ByteBuffer in = segments.get((int)(pos >>> 32)).duplicate();
+    in.position((int)pos);
+    Map<String,RDFNode> result = new HashMap<String,RDFNode>();
+    for (String var : vars) {
+      RDFNode node = TermCodec.read(in);
+      if (node != null) result.put(var, node);
+    }
+    return result;
+  }
+
+  /** Release the mappings and delete the file. */
+  @Override
+  public void close() throws IOException {
+    segments.clear();
+    index.clear();
+    current = null;
+    try {
+      channel.close();
+      raf.close();
+    } finally {
+      // Some platforms refuse while the mapping is still live; deleteOnExit is the fallback.
+      // It is only used then, since each registered path is held until the JVM exits.
+      if (!file.delete()) file.deleteOnExit();
+    }
+  }
+}
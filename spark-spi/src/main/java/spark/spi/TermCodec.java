@@ -0,0 +1,217 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import spark.api.rdf.BlankNode;
+import spark.api.rdf.NamedNode;
+import spark.api.rdf.PlainLiteral;
+import spark.api.rdf.RDFNode;
+import spark.api.rdf.TypedLiteral;
+import spark.spi.rdf.BooleanLiteral;
+import spark.spi.rdf.DoubleLiteral;
+import spark.spi.rdf.FloatLiteral;
+import spark.spi.rdf.IntLiteral;
+import spark.spi.rdf.LongLiteral;
+import spark.spi.rdf.RDFNodeFactory;
+
+/**
+ * Compact binary encoding of RDF terms. Each term is a tag byte followed by its fields; strings
+ * are a varint byte length followed by UTF-8, and primitive-backed literals are stored as their
+ * primitive value. Decoded IRIs and datatypes go through {@link RDFNodeFactory}, so repeated
+ * values share instances.
+ */
+final class TermCodec {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  static final byte UNBOUND = 0;
+  static final byte IRI = 1;
+  static final byte BNODE = 2;
+  static final byte PLAIN = 3;
+  static final byte PLAIN_LANG = 4;
+  static final byte TYPED = 5;
+  static final byte INT = 6;
+  static final byte LONG = 7;
+  static final byte FLOAT = 8;
+  static final byte DOUBLE = 9;
+  static final byte TRUE = 10;
+  static final byte FALSE = 11;
+
+  private TermCodec() {}
+
+  /** Growable byte buffer that terms are encoded into. */
+  static final class Output {
+    private byte[] buf = new byte[256];
+    private int pos;
+
+    /** @return The encoded bytes; valid up to {@link #size()}. */
+    byte[] bytes() { return buf; }
+
+    /** @return The number of bytes written. */
+    int size() { return pos; }
+
+    /** Discard the contents. */
+    void reset() { pos = 0; }
+
+    private void ensure(int n) {
+      if (pos + n > buf.length) {
+        byte[] grown = new byte[Math.max(buf.length * 2, pos + n)];
+        System.arraycopy(buf, 0, grown, 0, pos);
+        buf = grown;
+      }
+    }
+
+    void writeByte(int b) {
+      ensure(1);
+      buf[pos++] = (byte)b;
+    }
+
+    void writeInt(int v) {
+      ensure(4);
+      for (int shift = 24; shift >= 0; shift -= 8) buf[pos++] = (byte)(v >>> shift);
+    }
+
+    void writeLong(long v) {
+      writeInt((int)(v >>> 32));
+      writeInt((int)v);
+    }
+
+    void writeVarInt(int v) {
+      ensure(5);
+      while ((v & ~0x7f) != 0) {
+        buf[pos++] = (byte)((v & 0x7f) | 0x80);
+        v >>>= 7;
+      }
+      buf[pos++] = (byte)v;
+    }
+
+    void writeBytes(byte[] b, int off, int len) {
+      ensure(len);
+      System.arraycopy(b, off, buf, pos, len);
+      pos += len;
+    }
+
+    void writeString(String s) {
+      byte[] b = s.getBytes(UTF8);
+      writeVarInt(b.length);
+      writeBytes(b, 0, b.length);
+    }
+  }
+
+  /**
+   * Append the encoding of a term.
+   * @param out Destination
+   * @param node The term, or null for an unbound value
+   */
+  static void write(Output out, RDFNode node) {
+    if (node == null) {
+      out.writeByte(UNBOUND);
+    } else if (node instanceof IntLiteral) {
+      out.writeByte(INT);
+      out.writeInt(((IntLiteral)node).intValue());
+    } else if (node instanceof LongLiteral) {
+      out.writeByte(LONG);
+      out.writeLong(((LongLiteral)node).longValue());
+    } else if (node instanceof FloatLiteral) {
+      out.writeByte(FLOAT);
+      out.writeInt(Float.floatToRawIntBits(((FloatLiteral)node).floatValue()));
+    } else if (node instanceof DoubleLiteral) {
+      out.writeByte(DOUBLE);
+      out.writeLong(Double.doubleToRawLongBits(((DoubleLiteral)node).doubleValue()));
+    } else if (node instanceof BooleanLiteral) {
+      out.writeByte(((BooleanLiteral)node).booleanValue() ? TRUE : FALSE);
+    } else if (node instanceof NamedNode) {
+      out.writeByte(IRI);
+      out.writeString(((NamedNode)node).getURI().toString());
+    } else if (node instanceof BlankNode) {
+      out.writeByte(BNODE);
+      out.writeString(((BlankNode)node).getLabel());
+    } else if (node instanceof TypedLiteral) {
+      TypedLiteral lit = (TypedLiteral)node;
+      out.writeByte(TYPED);
+      out.writeString(lit.getLexical());
+      out.writeString(lit.getDataType().toString());
+    } else if (node instanceof PlainLiteral) {
+      PlainLiteral lit = (PlainLiteral)node;
+      if (lit.getLanguage() != null) {
+        out.writeByte(PLAIN_LANG);
+        out.writeString(lit.getLexical());
+        out.writeString(lit.getLanguage());
+      } else {
+        out.writeByte(PLAIN);
+        out.writeString(lit.getLexical());
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown RDF term type: " + node.getClass().getName());
+    }
+  }
+
+  /**
+   * Decode a term at the buffer's position, advancing the position past it.
+   * @param in Source buffer, in big-endian order
+   * @return The term, or null for an unbound value
+   */
+  static RDFNode read(ByteBuffer in) {
+    byte tag = in.get();
+    switch (tag) {
+    case UNBOUND: return null;
+    case INT: return new IntLiteral(in.getInt());
+    case LONG: return new LongLiteral(in.getLong());
+    case FLOAT: return new FloatLiteral(Float.intBitsToFloat(in.getInt()));
+    case DOUBLE: return new DoubleLiteral(Double.longBitsToDouble(in.getLong()));
+    case TRUE: return new BooleanLiteral(true);
+    case FALSE: return new BooleanLiteral(false);
+    case IRI: return RDFNodeFactory.namedNode(readString(in));
+    case BNODE: return RDFNodeFactory.blankNode(readString(in));
+    case PLAIN: return RDFNodeFactory.plainLiteral(readString(in), null);
+    case PLAIN_LANG:
+      String lex = readString(in);
+      return RDFNodeFactory.plainLiteral(lex, readString(in));
+    case TYPED:
+      String lexical = readString(in);
+      return RDFNodeFactory.typedLiteral(lexical, readString(in));
+    default:
+      throw new IllegalStateException("Corrupt term encoding, unknown tag " + tag);
+    }
+  }
+
+  /** Decode an unsigned varint written by {@link Output#writeVarInt(int)}. */
+  static int readVarInt(ByteBuffer in) {
+    int v = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = in.get();
+      v |= (b & 0x7f) << shift;
+      if (b >= 0) return v;
+      if (shift > 28) throw new IllegalStateException("Corrupt term encoding, varint too long");
+    }
+  }
+
+  /** Decode a string written by {@link Output#writeString(String)}. */
+  static String readString(ByteBuffer in) {
+    int len = readVarInt(in);
+    if (in.hasArray()) {
+      String s = new String(in.array(), in.arrayOffset() + in.position(), len, UTF8);
+      in.position(in.position() + len);
+      return s;
+    }
+    byte[] b = new byte[len];
+    in.get(b);
+    return new String(b, UTF8);
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import spark.api.rdf.RDFNode;
+
+/**
+ * <p>Assigns compact integer IDs to RDF terms, so that result sets can store a row as a few ints
+ * rather than a map of node objects. Each distinct term is held once, however many rows or result
+ * sets refer to it; a dictionary may be shared by several {@link ColumnarSolutions}.</p>
+ * 
+ * <p>ID 0 is reserved for an unbound value. IDs are never reused, so a dictionary only grows.
+ * Looking up a term by ID does not lock; adding terms is synchronized.</p>
+ */
+public class TermDictionary {
+
+  /** ID used for an unbound variable. */
+  public static final int UNBOUND = 0;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final Map<RDFNode,Integer> ids = new HashMap<RDFNode,Integer>();
+
+  // Terms indexed by ID; only replaced with a larger copy under the lock.
+  private volatile RDFNode[] terms = new RDFNode[INITIAL_CAPACITY];
+  private volatile int size = 1;
+
+  /**
+   * Get the ID of a term, adding it to the dictionary if necessary.
+   * @param term The term, or null for an unbound value
+   * @return The ID of the term
+   */
+  public synchronized int id(RDFNode term) {
+    if (term == null) return UNBOUND;
+    Integer id = ids.get(term);
+    if (id == null) {
+      RDFNode[] t = terms;
+      if (size == t.length) {
+        RDFNode[] grown = new RDFNode[t.length * 2];
+        System.arraycopy(t, 0, grown, 0, t.length);
+        terms = t = grown;
+      }
+      t[size] = term;
+      id = size;
+      ids.put(term, id);
+      size = size + 1; // publishes the new term to readers
+    }
+    return id;
+  }
+
+  /**
+   * Get the term with the given ID.
+   * @param id An ID returned by {@link #id(RDFNode)}
+   * @return The term, or null for {@link #UNBOUND}
+   * @throws IllegalArgumentException If the ID was never assigned
+   */
+  public RDFNode term(int id) {
+    if (id < 0 || id >= size) throw new IllegalArgumentException("Unknown term ID: " + id);
+    return terms[id];
+  }
+
+  /** @return The number of distinct terms in the dictionary. */
+  public int size() {
+    return size - 1;
+  }
+}
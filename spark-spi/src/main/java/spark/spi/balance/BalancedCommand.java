@@ -0,0 +1,316 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi.balance;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import spark.api.Command;
+import spark.api.Result;
+import spark.api.Solutions;
+import spark.api.Triples;
+import spark.api.exception.EndpointException;
+import spark.api.exception.SparqlException;
+import spark.api.rdf.RDFNode;
+import spark.spi.BaseCommand;
+
+/**
+ * Command on a {@link BalancedConnection}. Each execution is delegated to a command on the
+ * replica chosen by the data source; the results returned belong to that command.
+ * Read queries that fail are retried once on another replica, and may be hedged.
+ * Generic {@link #execute()} calls and updates are neither retried nor hedged, since they may
+ * update data. Only transient {@link EndpointException}s count against a replica or lead to a
+ * retry; any other failure, such as a malformed query, would fail the same way everywhere.
+ */
+public class BalancedCommand extends BaseCommand {
+
+  /** Commands on the replicas this command has been routed to; protected by "this" lock. */
+  private final Map<Replica,Command> commands = new HashMap<Replica,Command>();
+
+  /** Executions of the current run, to be cancelled along with this command. */
+  private final List<Attempt<?>> attempts = new CopyOnWriteArrayList<Attempt<?>>();
+
+  private volatile boolean cancelled = false;
+
+  BalancedCommand(BalancedConnection connection, String command) {
+    super(connection, command);
+  }
+
+  @Override
+  public BalancedConnection getConnection() {
+    return (BalancedConnection)super.getConnection();
+  }
+
+  @Override
+  public Result execute() {
+    return run(new Execution<Result>() {
+      public Result execute(Command cmd) { return cmd.execute(); }
+    }, false);
+  }
+
+  @Override
+  public Solutions executeQuery() {
+    return run(new Execution<Solutions>() {
+      public Solutions execute(Command cmd) { return cmd.executeQuery(); }
+    }, true);
+  }
+
+  @Override
+  public Triples executeGraph() {
+    return run(new Execution<Triples>() {
+      public Triples execute(Command cmd) { return cmd.executeGraph(); }
+    }, true);
+  }
+
+  @Override
+  public boolean executeAsk() {
+    return run(new Execution<Boolean>() {
+      public Boolean execute(Command cmd) { return cmd.executeAsk(); }
+    }, true);
+  }
+
+  @Override
+  public void executeUpdate() {
+    run(new Execution<Void>() {
+      public Void execute(Command cmd) {
+        cmd.executeUpdate();
+        return null;
+      }
+    }, false);
+  }
+
+  @Override
+  public void cancel() {
+    cancelled = true;
+    for (Attempt<?> a : attempts) a.cancel();
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    synchronized (this) {
+      for (Command c : commands.values()) {
+        try {
+          c.close();
+        } catch (IOException e) {
+          // Command.close() is not declared to throw, so neither is this; keep closing the others.
+        }
+      }
+      commands.clear();
+    }
+  }
+
+  /** The command to run on a replica, with the current timeout and bindings of this one. */
+  private synchronized Command command(Replica replica) {
+    if (isClosed()) throw new SparqlException("Command is closed");
+    Command cmd = commands.get(replica);
+    if (cmd == null || cmd.isClosed()) {
+      cmd = getConnection().createCommand(replica, getCommand());
+      commands.put(replica, cmd);
+    }
+    cmd.setTimeout(getTimeout());
+    cmd.setDeadline(getDeadline());
+    cmd.clearBindings();
+    for (Map<String,RDFNode> binding : getBindings()) cmd.addParameterBindings(binding);
+    return cmd;
+  }
+
+  /** Run an execution, hedging and retrying it on another replica if it is a read. */
+  private <T> T run(Execution<T> exec, boolean read) {
+    if (isClosed()) throw new SparqlException("Command is closed");
+    cancelled = false;
+    attempts.clear();
+    BalancedDataSource ds = getConnection().getDataSource();
+    if (!read) return attempt(exec, ds.choose(null)).call();
+
+    long hedgeDelay = ds.getHedgeDelay();
+    if (hedgeDelay != BalancedDataSource.NO_HEDGING && ds.getReplicas().size() > 1) {
+      return hedge(exec, ds, hedgeDelay);
+    }
+    Attempt<T> first = attempt(exec, ds.choose(null));
+    try {
+      return first.call();
+    } catch (RuntimeException e) {
+      if (cancelled || ds.getReplicas().size() == 1 || !isReplicaFailure(e)) throw e;
+      return attempt(exec, ds.choose(first.replica)).call();
+    }
+  }
+
+  /**
+   * Run a read on one replica, and on a second one if the first has not answered within the
+   * hedge delay or has failed. The first successful answer is returned; the other execution
+   * is cancelled and its results closed.
+   */
+  private <T> T hedge(Execution<T> exec, BalancedDataSource ds, long hedgeDelay) {
+    CompletionService<T> cs = new ExecutorCompletionService<T>(ds.getExecutor());
+    Attempt<T> first = attempt(exec, ds.choose(null));
+    Attempt<T> second = null;
+    Future<T> firstFuture = cs.submit(first);
+    try {
+      Future<T> done = cs.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+      if (done == null || failedOnReplica(done)) {
+        second = attempt(exec, ds.choose(first.replica));
+        cs.submit(second);
+      }
+      if (done == null) done = cs.take();
+      int pending = (second == null) ? 0 : 1;
+      while (true) {
+        try {
+          T result = done.get();
+          Attempt<T> loser = (done == firstFuture) ? second : first;
+          if (loser != null) loser.abandon();
+          return result;
+        } catch (ExecutionException e) {
+          if (cancelled || pending == 0 || !isReplicaFailure(e.getCause())) {
+            Attempt<T> other = (done == firstFuture) ? second : first;
+            if (pending > 0 && other != null) other.abandon();
+            throw SparqlException.convert("Error executing query", e.getCause());
+          }
+          pending--;
+          done = cs.take();
+        }
+      }
+    } catch (InterruptedException e) {
+      first.abandon();
+      if (second != null) second.abandon();
+      Thread.currentThread().interrupt();
+      throw new SparqlException("Interrupted waiting for query results", e);
+    }
+  }
+
+  /** @return true if the execution has failed in a way another replica may not. */
+  private static boolean failedOnReplica(Future<?> f) throws InterruptedException {
+    try {
+      f.get();
+      return false;
+    } catch (ExecutionException e) {
+      return isReplicaFailure(e.getCause());
+    }
+  }
+
+  /** @return true if the replica, rather than the command, is at fault. */
+  static boolean isReplicaFailure(Throwable t) {
+    return t instanceof EndpointException && ((EndpointException)t).isTransient();
+  }
+
+  private <T> Attempt<T> attempt(Execution<T> exec, Replica replica) {
+    Attempt<T> a = new Attempt<T>(exec, replica);
+    attempts.add(a);
+    return a;
+  }
+
+  /** One of the command's execute methods. */
+  private interface Execution<T> {
+    T execute(Command cmd);
+  }
+
+  /** An execution on a single replica, which records its outcome in the replica statistics. */
+  private class Attempt<T> implements Callable<T> {
+    final Execution<T> exec;
+    final Replica replica;
+
+    // Protected by "this" lock.
+    private Command cmd = null;
+    private T result = null;
+    private boolean abandoned = false;
+
+    Attempt(Execution<T> exec, Replica replica) {
+      this.exec = exec;
+      this.replica = replica;
+    }
+
+    @Override
+    public T call() {
+      Command c;
+      synchronized (this) {
+        if (abandoned) throw new SparqlException("Execution cancelled");
+        c = cmd = command(replica);
+      }
+      BalancedDataSource ds = getConnection().getDataSource();
+      replica.started();
+      long start = System.nanoTime();
+      try {
+        T r = exec.execute(c);
+        replica.succeeded(System.nanoTime() - start);
+        synchronized (this) {
+          if (!abandoned) {
+            result = r;
+            return r;
+          }
+        }
+        discard(r);
+        return null;
+      } catch (RuntimeException e) {
+        if (!isAbandoned() && isReplicaFailure(e)) ds.failed(replica);
+        throw e;
+      } finally {
+        replica.finished();
+      }
+    }
+
+    synchronized boolean isAbandoned() {
+      return abandoned;
+    }
+
+    /** Cancel the execution if it is running, or close its results if it has finished. */
+    void abandon() {
+      Command c;
+      T r;
+      synchronized (this) {
+        if (abandoned) return;
+        abandoned = true;
+        c = cmd;
+        r = result;
+        result = null;
+      }
+      if (r != null) {
+        discard(r);
+      } else if (c != null) {
+        c.cancel();
+      }
+    }
+
+    /** Cancel the execution if it is still running. */
+    void cancel() {
+      Command c;
+      synchronized (this) {
+        if (result != null) return;
+        abandoned = true;
+        c = cmd;
+      }
+      if (c != null) c.cancel();
+    }
+
+    private void discard(T r) {
+      if (r instanceof Result) {
+        try {
+          ((Result)r).close();
+        } catch (IOException e) {
+          // Nobody is left to report it to.
+        }
+      }
+    }
+  }
+}
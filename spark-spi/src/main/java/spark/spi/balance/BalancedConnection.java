@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi.balance;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import spark.api.Command;
+import spark.api.Connection;
+import spark.api.Credentials;
+import spark.api.ServiceDescription;
+import spark.api.exception.SparqlException;
+import spark.spi.BaseConnection;
+
+/**
+ * Connection to a {@link BalancedDataSource}. A connection to each replica is opened the first
+ * time a command is routed to it, and closed along with this connection.
+ */
+public class BalancedConnection extends BaseConnection {
+
+  private final Credentials creds;
+
+  // Protected by "this" lock.
+  private final Map<Replica,Connection> connections = new LinkedHashMap<Replica,Connection>();
+
+  BalancedConnection(BalancedDataSource dataSource, Credentials creds) {
+    super(dataSource);
+    this.creds = creds;
+  }
+
+  @Override
+  public BalancedDataSource getDataSource() {
+    return (BalancedDataSource)super.getDataSource();
+  }
+
+  /** Describes the first replica that will take a connection. */
+  @Override
+  public ServiceDescription getDescription() {
+    Replica r = getDataSource().choose(null);
+    return connection(r).getDescription();
+  }
+
+  @Override
+  public Command createCommand(String commandString) {
+    if (isClosed()) throw new SparqlException("Connection is closed");
+    return new BalancedCommand(this, commandString);
+  }
+
+  /** Create a command on one replica. */
+  Command createCommand(Replica replica, String commandString) {
+    return connection(replica).createCommand(commandString);
+  }
+
+  /** The connection to a replica, opening it if needed. */
+  synchronized Connection connection(Replica replica) {
+    if (isClosed()) throw new SparqlException("Connection is closed");
+    Connection c = connections.get(replica);
+    if (c == null || c.isClosed()) {
+      c = replica.getDataSource().getConnection(creds);
+      connections.put(replica, c);
+    }
+    return c;
+  }
+
+  @Override
+  public void close() throws IOException {
+    super.close();
+    IOException error = null;
+    synchronized (this) {
+      for (Connection c : connections.values()) {
+        try {
+          c.close();
+        } catch (IOException e) {
+          if (error == null) error = e;
+        }
+      }
+      connections.clear();
+    }
+    if (error != null) throw error;
+  }
+}
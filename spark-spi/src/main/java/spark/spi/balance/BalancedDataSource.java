@@ -0,0 +1,217 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi.balance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import spark.api.Connection;
+import spark.api.Credentials;
+import spark.api.DataSource;
+
+/**
+ * <p>A data source that spreads commands over several replicas of the same endpoint, such as a
+ * set of {@code ProtocolDataSource} or {@code SHPDataSource} instances. Each execution of a
+ * command is routed to one replica according to a {@link Policy}:</p>
+ * <ul>
+ * <li>{@link Policy#LEAST_OUTSTANDING} picks the replica with the fewest executions in progress;</li>
+ * <li>{@link Policy#LATENCY_EWMA} weighs that count by a moving average of each replica's latency,
+ *     so slow replicas get less work even when they are not yet backed up.</li>
+ * </ul>
+ * 
+ * <p>Failures are detected passively: a replica whose executions fail a number of times in a row
+ * is ejected for a while, and read queries that fail are retried once on another replica. Read
+ * queries can also be hedged: if a replica has not answered within the hedge delay, the query is
+ * sent to a second replica and the first answer wins.</p>
+ * 
+ * <p>Latency is measured up to the return of the execute method, i.e. until the first results
+ * are available; streaming the rest of the results is not counted.</p>
+ */
+public class BalancedDataSource implements DataSource {
+
+  /** How to choose the replica for an execution. */
+  public enum Policy {
+    /** The replica with the fewest executions in progress. */
+    LEAST_OUTSTANDING,
+    /** The replica with the lowest latency average weighted by executions in progress. */
+    LATENCY_EWMA
+  }
+
+  /** Value to use with {@link #setHedgeDelay(long)} to turn hedging off. */
+  public static final long NO_HEDGING = 0;
+
+  /** Default number of consecutive failures that eject a replica. */
+  public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+  /** Default time in milliseconds that a replica stays ejected. */
+  public static final long DEFAULT_EJECTION_TIME = 30000;
+
+  private final List<Replica> replicas;
+  private final AtomicInteger rotation = new AtomicInteger();
+
+  private volatile Policy policy = Policy.LATENCY_EWMA;
+  private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+  private volatile long ejectionTime = DEFAULT_EJECTION_TIME;
+  private volatile long hedgeDelay = NO_HEDGING;
+
+  /** Runs hedged executions; created on first use. */
+  private ExecutorService executor = null;
+
+  /**
+   * Balance over some replicas.
+   * @param replicas Data sources for the replicas; at least one.
+   */
+  public BalancedDataSource(DataSource... replicas) {
+    this(Arrays.asList(replicas));
+  }
+
+  /**
+   * Balance over some replicas.
+   * @param replicas Data sources for the replicas; at least one.
+   */
+  public BalancedDataSource(List<? extends DataSource> replicas) {
+    if (replicas.isEmpty()) throw new IllegalArgumentException("At least one replica is required");
+    List<Replica> r = new ArrayList<Replica>(replicas.size());
+    for (DataSource ds : replicas) r.add(new Replica(ds));
+    this.replicas = Collections.unmodifiableList(r);
+  }
+
+  /** @return The replicas and their statistics. */
+  public List<Replica> getReplicas() {
+    return replicas;
+  }
+
+  public Policy getPolicy() {
+    return policy;
+  }
+
+  /** @param policy How to choose the replica for each execution; {@link Policy#LATENCY_EWMA} by default. */
+  public void setPolicy(Policy policy) {
+    if (policy == null) throw new NullPointerException("Policy must not be null");
+    this.policy = policy;
+  }
+
+  public int getFailureThreshold() {
+    return failureThreshold;
+  }
+
+  /** @param failureThreshold Number of failures in a row that eject a replica. */
+  public void setFailureThreshold(int failureThreshold) {
+    if (failureThreshold <= 0) throw new IllegalArgumentException("Failure threshold must be > 0: " + failureThreshold);
+    this.failureThreshold = failureThreshold;
+  }
+
+  public long getEjectionTime() {
+    return ejectionTime;
+  }
+
+  /** @param millis Time in milliseconds that an ejected replica is left alone. */
+  public void setEjectionTime(long millis) {
+    if (millis < 0) throw new IllegalArgumentException("Ejection time must be >= 0: " + millis);
+    this.ejectionTime = millis;
+  }
+
+  public long getHedgeDelay() {
+    return hedgeDelay;
+  }
+
+  /**
+   * Hedge read queries: when a replica has not answered a query within this delay, send it to
+   * a second replica as well, use the first answer and cancel the other execution.
+   * @param millis The delay in milliseconds, or {@link #NO_HEDGING}.
+   */
+  public void setHedgeDelay(long millis) {
+    if (millis < 0) throw new IllegalArgumentException("Hedge delay must be >= 0: " + millis);
+    this.hedgeDelay = millis;
+  }
+
+  @Override
+  public Connection getConnection(Credentials creds) {
+    return new BalancedConnection(this, creds);
+  }
+
+  /** Closes all the replicas, throwing the first error once they have all been tried. */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (executor != null) executor.shutdownNow();
+      executor = null;
+    }
+    RuntimeException error = null;
+    for (Replica r : replicas) {
+      try {
+        r.getDataSource().close();
+      } catch (RuntimeException e) {
+        if (error == null) error = e;
+      }
+    }
+    if (error != null) throw error;
+  }
+
+  /**
+   * Choose the replica for an execution. Healthy replicas are preferred; when none is left, the
+   * one whose ejection ends first is used rather than failing outright.
+   * @param exclude A replica not to use unless it is the only one, or null.
+   */
+  Replica choose(Replica exclude) {
+    Policy p = policy;
+    int n = replicas.size();
+    int start = (rotation.getAndIncrement() & Integer.MAX_VALUE) % n;
+    Replica best = null;
+    double bestCost = Double.MAX_VALUE;
+    Replica fallback = null;
+    for (int i = 0; i < n; i++) {
+      Replica r = replicas.get((start + i) % n);
+      if (r == exclude) continue;
+      if (r.isHealthy()) {
+        double cost = r.cost(p);
+        if (cost < bestCost) {
+          best = r;
+          bestCost = cost;
+        }
+      } else if (fallback == null || r.getEjectedUntil() - fallback.getEjectedUntil() < 0) {
+        fallback = r;
+      }
+    }
+    if (best != null) return best;
+    return (fallback != null) ? fallback : exclude;
+  }
+
+  /** Record a failed execution on a replica. */
+  void failed(Replica r) {
+    r.failed(failureThreshold, ejectionTime);
+  }
+
+  synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Balanced data source hedge " + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return executor;
+  }
+}
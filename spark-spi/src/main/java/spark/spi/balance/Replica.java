@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi.balance;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import spark.api.DataSource;
+
+/**
+ * One of the data sources behind a {@link BalancedDataSource}, with the statistics used to route
+ * commands to it: the number of executions in progress, a moving average of their latency, and
+ * the passive health state built from recent failures.
+ */
+public class Replica {
+
+  /** Weight of the newest sample in the latency moving average. */
+  static final double EWMA_WEIGHT = 0.2;
+
+  private final DataSource dataSource;
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private final AtomicInteger failures = new AtomicInteger();
+
+  // Written under the lock, read without it.
+  private volatile double latencyNanos = 0.0;
+  private volatile long ejectedUntil = 0;
+  private volatile boolean ejected = false;
+
+  Replica(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  /** @return The wrapped data source. */
+  public DataSource getDataSource() {
+    return dataSource;
+  }
+
+  /** @return The number of executions on this replica that have not returned yet. */
+  public int getOutstanding() {
+    return outstanding.get();
+  }
+
+  /** @return The moving average of the time executions took to return, in milliseconds. */
+  public double getLatencyMillis() {
+    return latencyNanos / 1e6;
+  }
+
+  /** @return The number of executions that failed since the last one that succeeded. */
+  public int getConsecutiveFailures() {
+    return failures.get();
+  }
+
+  /** @return false while the replica is ejected after repeated failures. */
+  public boolean isHealthy() {
+    return !ejected || System.nanoTime() - ejectedUntil >= 0;
+  }
+
+  /** Nanosecond time at which an ejected replica may be tried again. */
+  long getEjectedUntil() {
+    return ejectedUntil;
+  }
+
+  /** Cost of sending one more execution here; lower is better. */
+  double cost(BalancedDataSource.Policy policy) {
+    int n = outstanding.get();
+    return (policy == BalancedDataSource.Policy.LEAST_OUTSTANDING) ? n : (latencyNanos + 1.0) * (n + 1);
+  }
+
+  void started() {
+    outstanding.incrementAndGet();
+  }
+
+  void finished() {
+    outstanding.decrementAndGet();
+  }
+
+  synchronized void succeeded(long nanos) {
+    failures.set(0);
+    ejected = false;
+    latencyNanos = (latencyNanos == 0.0) ? nanos : latencyNanos + EWMA_WEIGHT * (nanos - latencyNanos);
+  }
+
+  /**
+   * Record a failed execution, ejecting the replica if it has failed too often in a row.
+   * @return true if this failure ejected the replica
+   */
+  synchronized boolean failed(int threshold, long ejectionMillis) {
+    if (failures.incrementAndGet() >= threshold) {
+      failures.set(0);
+      ejected = true;
+      ejectedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return "Replica[" + dataSource + ", outstanding=" + getOutstanding() + ", latency=" + getLatencyMillis() +
+        "ms" + (isHealthy() ? "" : ", ejected") + "]";
+  }
+}
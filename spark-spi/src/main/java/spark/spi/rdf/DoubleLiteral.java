@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi.rdf;
+
+import spark.api.uris.XsdTypes;
+
+/**
+ * Typed literal of type <tt>xsd:double</tt> backed by a <tt>double</tt>.
+ */
+public final class DoubleLiteral extends NativeLiteral {
+
+  private final double value;
+
+  /**
+   * @param value The literal value
+   */
+  public DoubleLiteral(double value) {
+    super(XsdTypes.DOUBLE);
+    this.value = value;
+  }
+
+  /** @return The literal value */
+  public double doubleValue() {
+    return value;
+  }
+
+  @Override
+  protected Object box() {
+    return Double.valueOf(value);
+  }
+
+  @Override
+  protected String format() {
+    return Double.toString(value);
+  }
+
+  @Override
+  protected boolean sameValue(NativeLiteral other) {
+    return Double.doubleToLongBits(value) == Double.doubleToLongBits(((DoubleLiteral)other).value);
+  }
+}
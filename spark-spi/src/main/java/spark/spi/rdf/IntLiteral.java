@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi.rdf;
+
+import spark.api.uris.XsdTypes;
+
+/**
+ * Typed literal of type <tt>xsd:int</tt> backed by a <tt>int</tt>.
+ */
+public final class IntLiteral extends NativeLiteral {
+
+  private final int value;
+
+  /**
+   * @param value The literal value
+   */
+  public IntLiteral(int value) {
+    super(XsdTypes.INT);
+    this.value = value;
+  }
+
+  /** @return The literal value */
+  public int intValue() {
+    return value;
+  }
+
+  @Override
+  protected Object box() {
+    return Integer.valueOf(value);
+  }
+
+  @Override
+  protected String format() {
+    return Integer.toString(value);
+  }
+
+  @Override
+  protected boolean sameValue(NativeLiteral other) {
+    return value == ((IntLiteral)other).value;
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi.rdf;
+
+/**
+ * Bounded, lock-free intern cache. Entries live in a fixed-size direct-mapped table indexed by
+ * the hash of the key, so a lookup is a single array read and a new entry simply replaces
+ * whatever was in its slot. Concurrent writers may overwrite each other's entries, which only
+ * costs a later miss; entries are immutable, so readers always see a consistent key and value.
+ *
+ * @param <V> The type of interned values
+ */
+class InternCache<V> {
+
+  private static final class Entry<V> {
+    final String key;
+    final V value;
+
+    Entry(String key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  private final Entry<V>[] table;
+  private final int mask;
+
+  /**
+   * @param capacity Maximum number of entries, rounded up to a power of two
+   */
+  InternCache(int capacity) {
+    if (capacity <= 0) throw new IllegalArgumentException("Capacity must be > 0: " + capacity);
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) size <<= 1;
+    @SuppressWarnings("unchecked")
+    Entry<V>[] t = (Entry<V>[])new Entry<?>[size];
+    this.table = t;
+    this.mask = size - 1;
+  }
+
+  /** @return the cached value for the key, or null */
+  V get(String key) {
+    Entry<V> e = table[index(key)];
+    return (e != null && e.key.equals(key)) ? e.value : null;
+  }
+
+  /** Cache a value for the key, evicting whatever shared its slot. */
+  void put(String key, V value) {
+    table[index(key)] = new Entry<V>(key, value);
+  }
+
+  private int index(String key) {
+    int h = key.hashCode();
+    // Spread the high bits down, since the table is indexed by the low bits.
+    h ^= (h >>> 16);
+    return h & mask;
+  }
+}
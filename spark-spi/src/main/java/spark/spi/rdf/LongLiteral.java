@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi.rdf;
+
+import spark.api.uris.XsdTypes;
+
+/**
+ * Typed literal of type <tt>xsd:long</tt> backed by a <tt>long</tt>.
+ */
+public final class LongLiteral extends NativeLiteral {
+
+  private final long value;
+
+  /**
+   * @param value The literal value
+   */
+  public LongLiteral(long value) {
+    super(XsdTypes.LONG);
+    this.value = value;
+  }
+
+  /** @return The literal value */
+  public long longValue() {
+    return value;
+  }
+
+  @Override
+  protected Object box() {
+    return Long.valueOf(value);
+  }
+
+  @Override
+  protected String format() {
+    return Long.toString(value);
+  }
+
+  @Override
+  protected boolean sameValue(NativeLiteral other) {
+    return value == ((LongLiteral)other).value;
+  }
+}
@@ -27,6 +27,7 @@ import spark.api.rdf.NamedNode;
 public class NamedNodeImpl implements NamedNode {
 
   private final URI uri;
+  private final int hash;
   
   /**
    * Construct a new NamedNodeImpl with a URI.
@@ -37,6 +38,7 @@ public class NamedNodeImpl implements NamedNode {
       throw new NullPointerException();
     }
     this.uri = uri;
+    this.hash = uri.hashCode();
   }
   
   @Override
@@ -46,14 +48,17 @@ public class NamedNodeImpl implements NamedNode {
 
   @Override
   public int hashCode() {
-    return uri.hashCode();
+    return hash;
   }
 
   @Override
   public boolean equals(Object obj) {
     if (this == obj)
       return true;
-    if (obj instanceof NamedNode) {
+    if (obj instanceof NamedNodeImpl) {
+      NamedNodeImpl other = (NamedNodeImpl)obj;
+      return hash == other.hash && this.uri.equals(other.uri);
+    } else if (obj instanceof NamedNode) {
       return this.uri.equals(((NamedNode)obj).getURI());
     } else {
       return false;
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi.rdf;
+
+import java.net.URI;
+
+import spark.api.rdf.TypedLiteral;
+
+/**
+ * Base class for typed literals backed by a native Java primitive rather than a lexical string.
+ * The lexical representation is only formatted if something asks for it, so results that are
+ * consumed through the typed accessors never create a string. Instances are equal to any
+ * {@link TypedLiteral} with the same datatype and lexical representation.
+ */
+public abstract class NativeLiteral implements TypedLiteral {
+
+  private final URI dataType;
+  private volatile String lexical;
+  private volatile Object boxed;
+
+  /**
+   * @param dataType XSD data type of the literal
+   */
+  protected NativeLiteral(URI dataType) {
+    this.dataType = dataType;
+  }
+
+  /** @return The lexical representation of the native value. */
+  protected abstract String format();
+
+  /** @return A new boxed copy of the native value. */
+  protected abstract Object box();
+
+  /**
+   * Compare native values with another literal of the same class.
+   * @param other Literal of the same class as this one
+   * @return true if the native values are equal
+   */
+  protected abstract boolean sameValue(NativeLiteral other);
+
+  @Override
+  public URI getDataType() {
+    return dataType;
+  }
+
+  /** The value is boxed on first use and cached, like the decoded value of a lexical literal. */
+  @Override
+  public final Object getValue() {
+    Object v = boxed;
+    if (v == null) {
+      // Racing threads box equal values, so there is no need to lock.
+      boxed = v = box();
+    }
+    return v;
+  }
+
+  @Override
+  public String getLexical() {
+    String s = lexical;
+    if (s == null) {
+      lexical = s = format();
+    }
+    return s;
+  }
+
+  // Must agree with TypedLiteralImpl, so computed from the lexical form.
+  @Override
+  public int hashCode() {
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + dataType.hashCode();
+    result = prime * result + getLexical().hashCode();
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (obj.getClass() == getClass())
+      return sameValue((NativeLiteral)obj);
+    if (!(obj instanceof TypedLiteral))
+      return false;
+    TypedLiteral other = (TypedLiteral)obj;
+    return dataType.equals(other.getDataType()) && getLexical().equals(other.getLexical());
+  }
+
+  @Override
+  public String toString() {
+    return "\"" + getLexical() + "\"^^<" + dataType.toString() + ">";
+  }
+}
@@ -26,6 +26,7 @@ public class PlainLiteralImpl implements PlainLiteral {
 
   private final String lexical;
   private final String language;
+  private final int hash;
 
   /**
    * Construct a PlainLiteralImpl with a lexical representation and an optional language tag
@@ -39,6 +40,7 @@ public class PlainLiteralImpl implements PlainLiteral {
     }
     this.lexical = lexical;
     this.language = language;
+    this.hash = computeHash();
   }
   
   /**
@@ -62,6 +64,10 @@ public class PlainLiteralImpl implements PlainLiteral {
   
   @Override
   public int hashCode() {
+    return hash;
+  }
+
+  private int computeHash() {
     final int prime = 31;
     int result = 1;
     result = prime * result + ((language == null) ? 0 : language.hashCode());
@@ -77,6 +83,8 @@ public class PlainLiteralImpl implements PlainLiteral {
       return false;
     if (!(obj instanceof PlainLiteral))
       return false;
+    if (obj instanceof PlainLiteralImpl && ((PlainLiteralImpl)obj).hash != hash)
+      return false;
     PlainLiteral other = (PlainLiteral) obj;
     if (language == null) {
       if (other.getLanguage() != null)
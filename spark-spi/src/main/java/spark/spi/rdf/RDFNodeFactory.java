@@ -0,0 +1,202 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi.rdf;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import spark.api.rdf.BlankNode;
+import spark.api.rdf.NamedNode;
+import spark.api.rdf.PlainLiteral;
+import spark.api.rdf.TypedLiteral;
+import spark.api.uris.RdfTypes;
+import spark.api.uris.RdfsTypes;
+import spark.api.uris.XsdTypes;
+
+/**
+ * <p>
+ * Creates RDF terms for result parsers. IRIs and datatype URIs recur constantly in query results,
+ * so they are canonicalized: the URI constants in {@link XsdTypes}, {@link RdfTypes} and
+ * {@link RdfsTypes} (and named nodes for them) are always returned as the same instances, and
+ * other IRIs are interned in a bounded cache of {@link #CACHE_SIZE} entries. Repeated IRIs then
+ * share one object, which cuts heap use and lets <code>equals</code> succeed on identity.
+ * </p>
+ * 
+ * <p>
+ * Interning is an optimization only; terms from this factory are equal to, and have the same hash
+ * codes as, terms constructed directly.
+ * </p>
+ */
+public final class RDFNodeFactory {
+
+  /** Number of entries in the IRI intern cache. */
+  public static final int CACHE_SIZE = 4096;
+
+  /** Constant URIs by their string form; never evicted. */
+  private static final Map<String,URI> CONSTANT_URIS;
+  /** Named nodes for the constant URIs. */
+  private static final Map<String,NamedNodeImpl> CONSTANT_NODES;
+
+  static {
+    Map<String,URI> uris = new HashMap<String,URI>();
+    addConstants(uris, XsdTypes.class);
+    addConstants(uris, RdfTypes.class);
+    addConstants(uris, RdfsTypes.class);
+    Map<String,NamedNodeImpl> nodes = new HashMap<String,NamedNodeImpl>();
+    for (Map.Entry<String,URI> e : uris.entrySet()) {
+      nodes.put(e.getKey(), new NamedNodeImpl(e.getValue()));
+    }
+    CONSTANT_URIS = Collections.unmodifiableMap(uris);
+    CONSTANT_NODES = Collections.unmodifiableMap(nodes);
+  }
+
+  private static final InternCache<URI> uriCache = new InternCache<URI>(CACHE_SIZE);
+  private static final InternCache<NamedNodeImpl> nodeCache = new InternCache<NamedNodeImpl>(CACHE_SIZE);
+
+  private RDFNodeFactory() {}
+
+  /** Register all public static URI fields of a constants interface. */
+  private static void addConstants(Map<String,URI> uris, Class<?> constants) {
+    for (Field f : constants.getFields()) {
+      if (Modifier.isStatic(f.getModifiers()) && f.getType() == URI.class) {
+        try {
+          URI u = (URI)f.get(null);
+          uris.put(u.toString(), u);
+        } catch (IllegalAccessException e) {
+          throw new Error("Public constant not accessible: " + f, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the canonical URI for a string.
+   * @param uri The URI string
+   * @return The URI, shared with other callers where possible
+   * @throws IllegalArgumentException If the string is not a valid URI
+   */
+  public static URI uri(String uri) {
+    URI u = CONSTANT_URIS.get(uri);
+    if (u == null) {
+      u = uriCache.get(uri);
+      if (u == null) {
+        u = URI.create(uri);
+        uriCache.put(uri, u);
+      }
+    }
+    return u;
+  }
+
+  /**
+   * Get the canonical instance of a URI.
+   * @param uri The URI
+   * @return An equal URI, shared with other callers where possible
+   */
+  public static URI uri(URI uri) {
+    String s = uri.toString();
+    URI u = CONSTANT_URIS.get(s);
+    if (u == null) {
+      u = uriCache.get(s);
+      if (u == null) {
+        u = uri;
+        uriCache.put(s, u);
+      }
+    }
+    return u;
+  }
+
+  /**
+   * Get a named node for an IRI.
+   * @param uri The IRI string
+   * @return The named node, shared with other callers where possible
+   * @throws IllegalArgumentException If the string is not a valid URI
+   */
+  public static NamedNode namedNode(String uri) {
+    NamedNodeImpl n = CONSTANT_NODES.get(uri);
+    if (n == null) {
+      n = nodeCache.get(uri);
+      if (n == null) {
+        n = new NamedNodeImpl(uri(uri));
+        nodeCache.put(uri, n);
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Get a named node for an IRI.
+   * @param uri The IRI
+   * @return The named node, shared with other callers where possible
+   */
+  public static NamedNode namedNode(URI uri) {
+    return namedNode(uri.toString());
+  }
+
+  /**
+   * Create a typed literal, sharing the datatype URI.
+   * @param lexical Lexical representation
+   * @param dataType Datatype URI string
+   * @return The literal
+   * @throws IllegalArgumentException If the datatype is not a valid URI
+   */
+  public static TypedLiteral typedLiteral(String lexical, String dataType) {
+    return new TypedLiteralImpl(lexical, uri(dataType));
+  }
+
+  /**
+   * Create a typed literal, sharing the datatype URI.
+   * @param lexical Lexical representation
+   * @param dataType Datatype URI
+   * @return The literal
+   */
+  public static TypedLiteral typedLiteral(String lexical, URI dataType) {
+    return new TypedLiteralImpl(lexical, uri(dataType));
+  }
+
+  /**
+   * Create a typed literal for a native value, sharing the datatype URI.
+   * @param lexical Lexical representation
+   * @param dataType Datatype URI
+   * @param value Native value, which the literal returns without decoding the lexical form
+   * @return The literal
+   */
+  public static TypedLiteral typedLiteral(String lexical, URI dataType, Object value) {
+    return new TypedLiteralImpl(lexical, uri(dataType), value);
+  }
+
+  /**
+   * Create a plain literal.
+   * @param lexical Lexical representation
+   * @param language Language tag, may be null
+   * @return The literal
+   */
+  public static PlainLiteral plainLiteral(String lexical, String language) {
+    return new PlainLiteralImpl(lexical, language);
+  }
+
+  /**
+   * Create a blank node. Labels are only meaningful within one result, so these are not interned.
+   * @param label The blank node label
+   * @return The blank node
+   */
+  public static BlankNode blankNode(String label) {
+    return new BlankNodeImpl(label);
+  }
+}
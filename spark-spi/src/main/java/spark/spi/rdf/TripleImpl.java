@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi.rdf;
+
+import spark.api.rdf.NamedNode;
+import spark.api.rdf.RDFNode;
+import spark.api.rdf.Resource;
+import spark.api.rdf.Triple;
+
+/**
+ * Basic implementation of {@link Triple}.
+ * 
+ * toString as:  <s> <p> "o" .
+ */
+public class TripleImpl implements Triple {
+
+  private final Resource subject;
+  private final NamedNode predicate;
+  private final RDFNode object;
+
+  /**
+   * Construct a triple, all parts required.
+   * @param subject The subject
+   * @param predicate The predicate
+   * @param object The object
+   * @throws NullPointerException If parameters are null
+   */
+  public TripleImpl(Resource subject, NamedNode predicate, RDFNode object) {
+    if (subject == null || predicate == null || object == null) {
+      throw new NullPointerException("Triples must have a non-null subject, predicate and object.");
+    }
+    this.subject = subject;
+    this.predicate = predicate;
+    this.object = object;
+  }
+
+  @Override
+  public Resource getSubject() {
+    return subject;
+  }
+
+  @Override
+  public NamedNode getPredicate() {
+    return predicate;
+  }
+
+  @Override
+  public RDFNode getObject() {
+    return object;
+  }
+
+  @Override
+  public int hashCode() {
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + subject.hashCode();
+    result = prime * result + predicate.hashCode();
+    result = prime * result + object.hashCode();
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (!(obj instanceof Triple))
+      return false;
+    Triple other = (Triple) obj;
+    return subject.equals(other.getSubject()) && predicate.equals(other.getPredicate()) &&
+        object.equals(other.getObject());
+  }
+
+  @Override
+  public String toString() {
+    return subject + " " + predicate + " " + object + " .";
+  }
+}
@@ -16,8 +16,10 @@
 package spark.spi.rdf;
 
 import java.net.URI;
+import java.util.Date;
 
 import spark.api.rdf.TypedLiteral;
+import spark.spi.Conversions;
 
 /**
  * Basic implementation of {@link TypedLiteral}.
@@ -28,6 +30,9 @@ public class TypedLiteralImpl implements TypedLiteral {
 
   private final String lexical;
   private final URI dataType;
+  private final int hash;
+  /** Native value, decoded from the lexical form on first use. */
+  private volatile Object value;
   
   /**
    * Construct a TypedLiteralImpl with a lexical representation and dataType, 
@@ -46,6 +51,20 @@ public class TypedLiteralImpl implements TypedLiteral {
 
     this.lexical = lexical;
     this.dataType = dataType;
+    this.hash = computeHash();
+  }
+
+  /**
+   * Construct a TypedLiteralImpl for a native value which is already known, so that
+   * {@link #getValue()} never has to decode the lexical representation.
+   * @param lexical Lexical representation, must be non-null
+   * @param dataType XSD data type, must be non-null
+   * @param value Native value corresponding to the lexical representation
+   * @throws NullPointerException If parameters are null
+   */
+  public TypedLiteralImpl(String lexical, URI dataType, Object value) {
+    this(lexical, dataType);
+    this.value = (value instanceof Date) ? ((Date)value).clone() : value;
   }
   
   @Override
@@ -58,8 +77,23 @@ public class TypedLiteralImpl implements TypedLiteral {
     return this.lexical;
   }
 
+  @Override
+  public Object getValue() {
+    Object v = value;
+    if (v == null) {
+      // Racing threads decode the same value, so there is no need to lock.
+      value = v = Conversions.toValue(lexical, dataType);
+    }
+    // Dates are mutable, don't let callers modify the cached one.
+    return (v instanceof Date) ? ((Date)v).clone() : v;
+  }
+
   @Override
   public int hashCode() {
+    return hash;
+  }
+
+  private int computeHash() {
     final int prime = 31;
     int result = 1;
     result = prime * result + ((dataType == null) ? 0 : dataType.hashCode());
@@ -75,6 +109,8 @@ public class TypedLiteralImpl implements TypedLiteral {
       return false;
     if (!(obj instanceof TypedLiteral))
       return false;
+    if (obj instanceof TypedLiteralImpl && ((TypedLiteralImpl)obj).hash != hash)
+      return false;
     TypedLiteral other = (TypedLiteral) obj;
     if (dataType == null) {
       if (other.getDataType() != null)
@@ -15,7 +15,10 @@
  */
 package spark.spi.util;
 
+import java.util.Calendar;
 import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.SimpleTimeZone;
 import java.util.TimeZone;
 
 /**
@@ -53,8 +56,8 @@ import java.util.TimeZone;
  *  as the date is converted but the timezone itself will be lost. When writing dates, the
  *  {@link #format(Date)} method assumes Zulu timezone ('Z' in the lexical form); all other timezone
  *  offsets will be lost. (The {@link #format(Date, TimeZone)} method allows you to include a
- *  timezone offset when converting to a lexical string, but there is no way of extracting the
- *  offset from the string.)</li>
+ *  timezone offset when converting to a lexical string, and {@link #parseCalendar(CharSequence)}
+ *  and {@link #format(Calendar)} keep the offset from the string.)</li>
  *  <li>If the lexical string omits the timezone offset, then it is considered to be relative to
  *  the local timezone and will be adjusted accordingly, but the fact that it is a local time will
  *  be lost.</li>
@@ -64,7 +67,8 @@ import java.util.TimeZone;
  *  day.</li>
  *  <li>The lexical form allows an unlimited number of decimal places for specifying fractional
  *  seconds; Java dates are limited to millisecond precision. Any decimal places after the first
- *  three will be truncated, and any trailing zeros will also be lost.</li>
+ *  three will be truncated, and any trailing zeros will also be lost. ({@link #parseNanos(CharSequence)}
+ *  keeps up to nine decimal places.)</li>
  * </ul>
  * Any string which meets the XSD <tt>dateTime</tt> lexical constraints, and to which
  * <strong>none</strong> of the above four situations apply (i.e. it specifies the Zulu timezone,
@@ -74,6 +78,13 @@ import java.util.TimeZone;
  * </p>
  * 
  * <p>
+ * For bulk processing, {@link #parseMillis(CharSequence)} and {@link #parseNanos(CharSequence)}
+ * return the instant as a number without creating any objects: parsing works directly on the
+ * given characters using per-thread scratch state. Time-series results tend to repeat the same
+ * timestamps, so the results of parsing recent lexical strings are also kept in a small cache.
+ * </p>
+ * 
+ * <p>
  * Conversion between XSD <tt>dateTime</tt> strings and Java dates is implemented by translating
  * between the ISO-8601 epoch (0001-01-01T00:00:00Z) and the Java epoch (1970-01-01T00:00:00Z) and
  * using the Time on Timeline algorithm described
@@ -117,6 +128,24 @@ public class DateTime {
   // Offset between the Java epoch (1970-01-01T00:00:00Z) and the ISO-8601 epoch (0001-01-01T00:00:00Z)
   private static final long EPOCH_OFFSET_MS = elapsedDays(1970) * MS_IN_DAY;
   
+  private static final int NS_IN_MS = 1000000;
+  private static final int FRACTION_DIGITS = 9;
+  
+  // Longest possible lexical form is -292277023-12-31T23:59:59.999+14:00
+  private static final int MAX_LEXICAL_LENGTH = 40;
+  
+  // Number of entries in the cache of recently parsed strings; a power of two.
+  private static final int RECENT_SIZE = 256;
+  private static final Recent[] RECENT = new Recent[RECENT_SIZE];
+  
+  // Per-thread scratch state, so parsing and formatting don't allocate intermediate objects.
+  private static final ThreadLocal<Input> INPUT = new ThreadLocal<Input>() {
+    @Override protected Input initialValue() { return new Input(); }
+  };
+  private static final ThreadLocal<char[]> FORMAT_BUFFER = new ThreadLocal<char[]>() {
+    @Override protected char[] initialValue() { return new char[MAX_LEXICAL_LENGTH]; }
+  };
+  
   // Separators in the lexical string.
   private static final char DATE_SEP = '-';
   private static final char DATE_TIME_SEP = 'T';
@@ -150,9 +179,26 @@ public class DateTime {
    */
   public static String format(Date d, TimeZone tz) {
     if (d == null) throw new IllegalArgumentException("Null date value");
-    
-    long offset = d.getTime();
-    int tzOffsetMs = (tz != null ? tz : LOCAL_TZ).getOffset(d.getTime());
+    long ms = d.getTime();
+    return format(ms, (tz != null ? tz : LOCAL_TZ).getOffset(ms), tz != null);
+  }
+  
+  /**
+   * Formats the given calendar as an XSD <tt>dateTime</tt> lexical string, using the offset of the
+   * calendar's timezone at that instant. This preserves the offset of calendars returned by
+   * {@link #parseCalendar(CharSequence)}.
+   * @param c A calendar.
+   * @return The corresponding lexical string.
+   */
+  public static String format(Calendar c) {
+    if (c == null) throw new IllegalArgumentException("Null calendar value");
+    long ms = c.getTimeInMillis();
+    return format(ms, c.getTimeZone().getOffset(ms), true);
+  }
+  
+  /** Format milliseconds since the Java epoch, shifted by the offset, optionally writing the offset. */
+  private static String format(long ms, int tzOffsetMs, boolean includeTz) {
+    long offset = ms;
     if (offset > Long.MAX_VALUE - EPOCH_OFFSET_MS - tzOffsetMs) throw new ArithmeticException("Cannot convert to ISO-8601 offset.");
     offset += EPOCH_OFFSET_MS + tzOffsetMs;
     
@@ -186,52 +232,62 @@ public class DateTime {
     int sec = millis / MS_IN_SEC;
     millis -= sec * MS_IN_SEC;
 
-    StringBuilder sb = new StringBuilder();
+    char[] buf = FORMAT_BUFFER.get();
+    int n = 0;
     if (year < 0) {
-      sb.append('-');
+      buf[n++] = '-';
       year = -year;
     }
     
-    append(sb, year, 4);
-    sb.append(DATE_SEP);
-    append(sb, month, 2);
-    sb.append(DATE_SEP);
-    append(sb, day, 2);
-    sb.append(DATE_TIME_SEP);
-    append(sb, hour, 2);
-    sb.append(TIME_SEP);
-    append(sb, min, 2);
-    sb.append(TIME_SEP);
-    append(sb, sec, 2);
+    n = append(buf, n, year, 4);
+    buf[n++] = DATE_SEP;
+    n = append(buf, n, month, 2);
+    buf[n++] = DATE_SEP;
+    n = append(buf, n, day, 2);
+    buf[n++] = DATE_TIME_SEP;
+    n = append(buf, n, hour, 2);
+    buf[n++] = TIME_SEP;
+    n = append(buf, n, min, 2);
+    buf[n++] = TIME_SEP;
+    n = append(buf, n, sec, 2);
     
     if (millis > 0) {
-      sb.append('.');
+      buf[n++] = '.';
       for (int i = 2; i >= 0 && millis > 0; i--) {
-        sb.append(millis / TENS[i]);
+        buf[n++] = (char)('0' + millis / TENS[i]);
         millis = millis % TENS[i];
       }
     }
     
-    if (tz != null) {
+    if (includeTz) {
       if (tzOffsetMs == 0) {
-        sb.append('Z');
+        buf[n++] = 'Z';
       } else {
         int tzOffset = tzOffsetMs / MS_IN_MIN; // XSD specifies minutes.
-        sb.append(tzOffset < 0 ? '-' : '+');
+        buf[n++] = tzOffset < 0 ? '-' : '+';
         tzOffset = Math.abs(tzOffset);
-        append(sb, tzOffset / MINS_IN_HOUR, 2);
-        sb.append(TIME_SEP);
-        append(sb, tzOffset % MINS_IN_HOUR, 2);
+        n = append(buf, n, tzOffset / MINS_IN_HOUR, 2);
+        buf[n++] = TIME_SEP;
+        n = append(buf, n, tzOffset % MINS_IN_HOUR, 2);
       }
     }
-    return sb.toString();
+    return new String(buf, 0, n);
   }
   
-  /** Append the given value to the string builder, with leading zeros to result in the given minimum width. */
-  private static void append(StringBuilder sb, int val, int width) {
-    String s = Integer.toString(val);
-    for (int i = s.length(); i < width; i++) sb.append('0');
-    sb.append(s);
+  /**
+   * Write the given non-negative value to the buffer, with leading zeros to result in the given
+   * minimum width.
+   * @return The buffer position after the value.
+   */
+  private static int append(char[] buf, int n, int val, int width) {
+    int digits = 1;
+    for (int v = val; v >= 10; v /= 10) digits++;
+    for (int i = digits; i < width; i++) buf[n++] = '0';
+    for (int i = n + digits - 1; i >= n; i--) {
+      buf[i] = (char)('0' + val % 10);
+      val /= 10;
+    }
+    return n + digits;
   }
   
   /**
@@ -258,10 +314,106 @@ public class DateTime {
    * @throws ArithmeticException if the date represented by the string will not fit into a Java date.
    */
   public static Date parse(String str, boolean strict) {
-    if (str != null) str = str.trim();
-    if (str == null || str.isEmpty()) throw new IllegalArgumentException("String must be non-empty");
-
-    Input s = new Input(str);
+    return new Date(parseInput(str, strict).millis);
+  }
+  
+  /**
+   * Parse an XSD <tt>dateTime</tt> lexical string to milliseconds since the Java epoch, using strict
+   * parsing. Apart from strings missing from the cache of recent values, this creates no objects.
+   * @param str The lexical string.
+   * @return Milliseconds since 1970-01-01T00:00:00Z, truncating any finer precision.
+   * @throws DateFormatException if the string could not be parsed as an XSD <tt>dateTime</tt>.
+   * @throws ArithmeticException if the date represented by the string will not fit into a Java date.
+   */
+  public static long parseMillis(CharSequence str) {
+    return parseInput(str, true).millis;
+  }
+  
+  /**
+   * Parse an XSD <tt>dateTime</tt> lexical string to nanoseconds since the Java epoch, using strict
+   * parsing. Up to nine decimal places of fractional seconds are kept.
+   * @param str The lexical string.
+   * @return Nanoseconds since 1970-01-01T00:00:00Z.
+   * @throws DateFormatException if the string could not be parsed as an XSD <tt>dateTime</tt>.
+   * @throws ArithmeticException if the date is not within about 292 years of 1970.
+   */
+  public static long parseNanos(CharSequence str) {
+    Input s = parseInput(str, true);
+    long secondMs = s.millis - (s.nanos / NS_IN_MS);
+    if (secondMs > Long.MAX_VALUE / NS_IN_MS || secondMs < Long.MIN_VALUE / NS_IN_MS) {
+      throw new ArithmeticException("The specified date is out of range for epoch nanoseconds: " + str);
+    }
+    return secondMs * NS_IN_MS + s.nanos;
+  }
+  
+  /**
+   * Parse an XSD <tt>dateTime</tt> lexical string to a calendar which keeps the timezone offset given
+   * in the string, using strict parsing. A string without an offset is a local time, and gets the
+   * system default timezone. The calendar uses the proleptic Gregorian calendar to agree with the
+   * ISO-8601 timeline. Calendars have millisecond precision, so further decimal places are truncated.
+   * @param str The lexical string.
+   * @return The corresponding calendar.
+   * @throws DateFormatException if the string could not be parsed as an XSD <tt>dateTime</tt>.
+   * @throws ArithmeticException if the date represented by the string will not fit into a Java date.
+   */
+  public static Calendar parseCalendar(CharSequence str) {
+    Input s = parseInput(str, true);
+    TimeZone tz = s.local ? (TimeZone)LOCAL_TZ.clone() : new SimpleTimeZone(s.tzOffsetMs, offsetId(s.tzOffsetMs));
+    GregorianCalendar c = new GregorianCalendar(tz);
+    c.setGregorianChange(new Date(Long.MIN_VALUE));
+    c.setTimeInMillis(s.millis);
+    return c;
+  }
+  
+  /** Timezone ID in the same form as the custom IDs accepted by {@link TimeZone#getTimeZone(String)}. */
+  private static String offsetId(int tzOffsetMs) {
+    int tzOffset = tzOffsetMs / MS_IN_MIN;
+    char[] buf = FORMAT_BUFFER.get();
+    int n = 0;
+    buf[n++] = 'G';
+    buf[n++] = 'M';
+    buf[n++] = 'T';
+    buf[n++] = tzOffset < 0 ? '-' : '+';
+    tzOffset = Math.abs(tzOffset);
+    n = append(buf, n, tzOffset / MINS_IN_HOUR, 2);
+    buf[n++] = TIME_SEP;
+    n = append(buf, n, tzOffset % MINS_IN_HOUR, 2);
+    return new String(buf, 0, n);
+  }
+  
+  /**
+   * Parse a lexical string into this thread's scratch input, which holds the result until the
+   * next call on the thread. Strictly parsed strings are looked up in, and added to, the cache of
+   * recent values.
+   */
+  private static Input parseInput(CharSequence str, boolean strict) {
+    if (str == null) throw new IllegalArgumentException("String must be non-empty");
+    Input s = INPUT.get();
+    
+    String key = (strict && str instanceof String) ? (String)str : null;
+    int slot = 0;
+    if (key != null) {
+      int h = key.hashCode();
+      slot = (h ^ (h >>> 16)) & (RECENT_SIZE - 1);
+      Recent r = RECENT[slot];
+      if (r != null && r.lexical.equals(key)) {
+        s.millis = r.millis;
+        s.nanos = r.nanos;
+        s.tzOffsetMs = r.tzOffsetMs;
+        s.local = r.local;
+        return s;
+      }
+    }
+    
+    s.reset(str);
+    if (s.len == 0) throw new IllegalArgumentException("String must be non-empty");
+    parse(s, strict);
+    if (key != null) RECENT[slot] = new Recent(key, s);
+    return s;
+  }
+  
+  /** Parse the input, leaving the result in its result fields. */
+  private static void parse(Input s, boolean strict) {
     boolean yrNeg = s.getChar() == '-';
     if (yrNeg) s.index++;
     
@@ -272,29 +424,29 @@ public class DateTime {
     
     int month = parseField("month", s, DATE_SEP, 2, 2, strict);
     // Always validate the month
-    if (month < FIRST_MONTH || month > LAST_MONTH) throw new DateFormatException("month out of range [1..12]", s.str, s.index - 2);
+    if (month < FIRST_MONTH || month > LAST_MONTH) throw new DateFormatException("month out of range [1..12]", s.text(), s.index - 2);
     
     int day = parseField("day", s, DATE_TIME_SEP, 2, 2, strict);
-    if (strict && (day < 0 || day > daysInMonth(year, month))) throw new DateFormatException("day out of range [1.." + daysInMonth(year, month) + "]", s.str, s.index - 2);
+    if (strict && (day < 0 || day > daysInMonth(year, month))) throw new DateFormatException("day out of range [1.." + daysInMonth(year, month) + "]", s.text(), s.index - 2);
     
     int hour = parseField("hour", s, TIME_SEP, 2, 2, strict);
-    if (strict && hour > 24) throw new DateFormatException("hour out of range [0..24]", s.str, s.index - 2);
+    if (strict && hour > 24) throw new DateFormatException("hour out of range [0..24]", s.text(), s.index - 2);
     
     int min = parseField("minute", s, TIME_SEP, 2, 2, strict);
-    if (strict && min > 59) throw new DateFormatException("minutes out of range [0..59]", s.str, s.index - 2);
+    if (strict && min > 59) throw new DateFormatException("minutes out of range [0..59]", s.text(), s.index - 2);
     
     int sec = parseField("second", s, null, 2, 2, strict);
-    if (strict && sec > 59) throw new DateFormatException("seconds out of range [0..59]", s.str, s.index - 1);
+    if (strict && sec > 59) throw new DateFormatException("seconds out of range [0..59]", s.text(), s.index - 1);
     
-    int millis = parseMillis(s);
-    if (strict && hour == 24 && (min > 0 || sec > 0 || millis > 0)) {
-      throw new DateFormatException("midnight indicator may not include non-zero minutes or seconds", s.str, s.index - 1);
+    int nanos = parseFraction(s);
+    int millis = nanos / NS_IN_MS;
+    if (strict && hour == 24 && (min > 0 || sec > 0 || nanos > 0)) {
+      throw new DateFormatException("midnight indicator may not include non-zero minutes or seconds", s.text(), s.index - 1);
     }
     
-    Integer tzOffsetMs = parseTzOffsetMs(s, strict);
-    boolean local = tzOffsetMs == null;
-    if (local) tzOffsetMs = 0;
-    if (strict && s.index < s.len) throw new DateFormatException("unexpected content, expected EOF", s.str, s.index);
+    boolean local = s.index >= s.len; // Reached the end of input with no timezone specified.
+    int tzOffsetMs = local ? 0 : parseTzOffsetMs(s, strict);
+    if (strict && s.index < s.len) throw new DateFormatException("unexpected content, expected EOF", s.text(), s.index);
     
     // Calculate the number of days elapsed between the epoch and the start of this day.
     long da = elapsedDays(year);
@@ -307,17 +459,20 @@ public class DateTime {
     long ms = da * MS_IN_DAY + hour * MS_IN_HOUR + min * MS_IN_MIN + sec * MS_IN_SEC + millis - tzOffsetMs;
     
     // Translate from ISO-8601 epoch to Java Date epoch.
-    if (ms < (Long.MIN_VALUE + EPOCH_OFFSET_MS)) throw new ArithmeticException("The specified date will not fit into java.util.Date: " + str);
+    if (ms < (Long.MIN_VALUE + EPOCH_OFFSET_MS)) throw new ArithmeticException("The specified date will not fit into java.util.Date: " + s.text());
     ms -= EPOCH_OFFSET_MS;
     
     // Handle local timezone.
     if (local) {
       tzOffsetMs = LOCAL_TZ.getOffset(ms);
-      if (tzOffsetMs > 0 && ms < (Long.MIN_VALUE + tzOffsetMs)) throw new ArithmeticException("The specified date will not fit into java.util.Date: " + str);
+      if (tzOffsetMs > 0 && ms < (Long.MIN_VALUE + tzOffsetMs)) throw new ArithmeticException("The specified date will not fit into java.util.Date: " + s.text());
       ms -= tzOffsetMs;
     }
     
-    return new Date(ms);
+    s.millis = ms;
+    s.nanos = nanos;
+    s.tzOffsetMs = tzOffsetMs;
+    s.local = local;
   }
   
   /** Find the number of elapsed days from the epoch to the beginning of the given year. */
@@ -355,60 +510,63 @@ public class DateTime {
     return (year % 400 == 0) || ((year % 4 == 0) && (year % 100 != 0));
   }
   
-  /** Parse the fractional seconds field from the input, returning the number of milliseconds and truncating extra places. */
-  private static int parseMillis(Input s) {
+  /** Parse the fractional seconds field from the input, returning the number of nanoseconds and truncating extra places. */
+  private static int parseFraction(Input s) {
     if (s.index < s.len && s.getChar() == '.') {
-      int startIndex = ++s.index;
-      int ms = parseInt(s);
-      int len = s.index - startIndex;
-      for (; len < 3; len++) ms *= 10;
-      for (; len > 3; len--) ms /= 10; // truncate because it's easier than rounding.
-      return ms;
+      s.index++;
+      if (s.index >= s.len) throw new DateFormatException("unexpected end of input", s.text(), s.index);
+      int ns = 0;
+      int len = 0;
+      for (char c; s.index < s.len && (c = s.getChar()) >= '0' && c <= '9'; s.index++) {
+        // truncate because it's easier than rounding.
+        if (len < FRACTION_DIGITS) {
+          ns = ns * 10 + ((int)c - (int)'0');
+          len++;
+        }
+      }
+      for (; len < FRACTION_DIGITS; len++) ns *= 10;
+      return ns;
     }
     return 0;
   }
   
   /** Parse the timezone offset from the input, returning its millisecond value. */
-  private static Integer parseTzOffsetMs(Input s, boolean strict) {
-    if (s.index < s.len) {
-      char c = s.getChar();
-      s.index++;
-      int sign;
-      if (c == 'Z') {
-        return 0;
-      } else if (c == '+') {
-        sign = 1;
-      } else if (c == '-') {
-        sign = -1;
-      } else {
-        throw new DateFormatException("unexpected character, expected one of [Z+-]", s.str, s.index - 1);
-      }
-      int tzHours = parseField("timezone hours", s, TIME_SEP, 2, 2, strict);
-      if (strict && tzHours > 14) throw new DateFormatException("timezone offset hours out of range [0..14]", s.str, s.index - 2);
-      
-      int tzMin = parseField("timezone minutes", s, null, 2, 2, strict);
-      if (strict && tzMin > 59) throw new DateFormatException("timezone offset hours out of range [0..59]", s.str, s.index - 1);
-      if (strict && tzHours == 14 && tzMin > 0) throw new DateFormatException("timezone offset may not be greater than 14 hours", s.str, s.index - 1);
-      
-      return sign * (tzHours * MINS_IN_HOUR + tzMin) * MS_IN_MIN;
+  private static int parseTzOffsetMs(Input s, boolean strict) {
+    char c = s.getChar();
+    s.index++;
+    int sign;
+    if (c == 'Z') {
+      return 0;
+    } else if (c == '+') {
+      sign = 1;
+    } else if (c == '-') {
+      sign = -1;
+    } else {
+      throw new DateFormatException("unexpected character, expected one of [Z+-]", s.text(), s.index - 1);
     }
-    // Reached the end of input with no timezone specified.
-    return null;
+    int tzHours = parseField("timezone hours", s, TIME_SEP, 2, 2, strict);
+    if (strict && tzHours > 14) throw new DateFormatException("timezone offset hours out of range [0..14]", s.text(), s.index - 2);
+    
+    int tzMin = parseField("timezone minutes", s, null, 2, 2, strict);
+    if (strict && tzMin > 59) throw new DateFormatException("timezone offset hours out of range [0..59]", s.text(), s.index - 1);
+    if (strict && tzHours == 14 && tzMin > 0) throw new DateFormatException("timezone offset may not be greater than 14 hours", s.text(), s.index - 1);
+    
+    return sign * (tzHours * MINS_IN_HOUR + tzMin) * MS_IN_MIN;
   }
   
   /** Parse a field from input, validating its delimiter and length if requested. */
   private static int parseField(String field, Input s, Character delim, int minLen, int maxLen, boolean strict) {
     int startIndex = s.index;
     int result = parseInt(s);
-    if (startIndex == s.index) throw new DateFormatException("missing value for field '" + field + "'", s.str, startIndex);
+    if (startIndex == s.index) throw new DateFormatException("missing value for field '" + field + "'", s.text(), startIndex);
     if (strict) {
       int len = s.index - startIndex;
-      if (len < minLen) throw new DateFormatException("field '" + field + "' must be at least " + minLen + " digits wide", s.str, startIndex);
-      if (maxLen > 0 && len > maxLen) throw new DateFormatException("field '" + field + "' must be no more than " + minLen + " digits wide", s.str, startIndex);
+      if (len < minLen) throw new DateFormatException("field '" + field + "' must be at least " + minLen + " digits wide", s.text(), startIndex);
+      if (maxLen > 0 && len > maxLen) throw new DateFormatException("field '" + field + "' must be no more than " + minLen + " digits wide", s.text(), startIndex);
     }
     if (delim != null) {
-      if (s.index >= s.len) throw new DateFormatException("unexpected end of input", s.str, s.index);
-      if (strict && s.getChar() != delim.charValue()) throw new DateFormatException("unexpected character, expected '" + delim + "'", s.str, s.index);
+      if (s.index >= s.len) throw new DateFormatException("unexpected end of input", s.text(), s.index);
+      if (strict && s.getChar() != delim.charValue()) throw new DateFormatException("unexpected character, expected '" + delim + "'", s.text(), s.index);
       s.index++;
     }
     return result;
@@ -416,7 +574,7 @@ public class DateTime {
   
   /** Parse an integer from the input, reading up to the first non-numeric character. */
   private static int parseInt(Input s) {
-    if (s.index >= s.len) throw new DateFormatException("unexpected end of input", s.str, s.index);
+    if (s.index >= s.len) throw new DateFormatException("unexpected end of input", s.text(), s.index);
     int result = 0;
     while (s.index < s.len) {
       char c = s.getChar();
@@ -431,16 +589,54 @@ public class DateTime {
     return result;
   }
   
-  /** Class to wrap the input string so that its index may be advanced by helper methods. */
+  /**
+   * Class to wrap the input string so that its index may be advanced by helper methods, and to
+   * hold the parse result. Reused by each thread; positions are relative to the trimmed input.
+   */
   private static class Input {
-    int index = 0;
-    final String str;
-    final int len;
-    Input(String s) {
+    int index;
+    CharSequence str;
+    int start;
+    int len;
+    
+    // Results
+    long millis;
+    int nanos;
+    int tzOffsetMs;
+    boolean local;
+    
+    /** Start on a new input, skipping whitespace as {@link String#trim()} does. */
+    void reset(CharSequence s) {
+      int begin = 0;
+      int end = s.length();
+      while (begin < end && s.charAt(begin) <= ' ') begin++;
+      while (end > begin && s.charAt(end - 1) <= ' ') end--;
       this.str = s;
-      this.len = s.length();
+      this.start = begin;
+      this.len = end - begin;
+      this.index = 0;
+    }
+    
+    char getChar() { return str.charAt(start + index); }
+    
+    /** The trimmed input, for error messages. */
+    String text() { return str.subSequence(start, start + len).toString(); }
+  }
+  
+  /** Parse result for a recently seen lexical string. */
+  private static class Recent {
+    final String lexical;
+    final long millis;
+    final int nanos;
+    final int tzOffsetMs;
+    final boolean local;
+    Recent(String lexical, Input s) {
+      this.lexical = lexical;
+      this.millis = s.millis;
+      this.nanos = s.nanos;
+      this.tzOffsetMs = s.tzOffsetMs;
+      this.local = s.local;
     }
-    char getChar() { return str.charAt(index); }
   }
   
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi.util;
+
+import java.util.concurrent.TimeUnit;
+
+import spark.api.Command;
+import spark.api.exception.SparqlException;
+
+/**
+ * A point in time by which an execution must be complete. Each stage of an execution, such as
+ * waiting for a connection, waiting for the response and reading the results, takes its wait
+ * from the time that is left rather than from a timeout of its own, so the stages together never
+ * run past the deadline. Measured with {@link System#nanoTime()}, so it is not affected by
+ * changes to the system clock once created.
+ */
+public final class Deadline {
+
+  /** No deadline: the remaining time is unbounded and it never expires. */
+  public static final Deadline NONE = new Deadline(0, false);
+
+  private final long nanos;
+  private final boolean bounded;
+
+  private Deadline(long nanos, boolean bounded) {
+    this.nanos = nanos;
+    this.bounded = bounded;
+  }
+
+  /**
+   * @param millis Time allowed from now, in milliseconds
+   * @return A deadline that time from now
+   */
+  public static Deadline after(long millis) {
+    return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), true);
+  }
+
+  /**
+   * @param millis Deadline in milliseconds since the epoch
+   * @return The deadline at that time
+   */
+  public static Deadline at(long millis) {
+    return after(millis - System.currentTimeMillis());
+  }
+
+  /**
+   * Get the deadline for an execution of a command that starts now: the sooner of the command's
+   * deadline and its timeout counted from now.
+   * @param command The command
+   * @return The deadline, or {@link #NONE} if the command has neither
+   */
+  public static Deadline forCommand(Command command) {
+    Deadline d = NONE;
+    if (command.getTimeout() != Command.NO_TIMEOUT) {
+      d = after(TimeUnit.SECONDS.toMillis(command.getTimeout()));
+    }
+    if (command.getDeadline() != Command.NO_DEADLINE) {
+      d = d.min(at(command.getDeadline()));
+    }
+    return d;
+  }
+
+  /** @return The sooner of this deadline and the other one. */
+  public Deadline min(Deadline other) {
+    if (!other.bounded) return this;
+    if (!bounded) return other;
+    return (other.nanos - nanos < 0) ? other : this;
+  }
+
+  /** @return true unless this is {@link #NONE}. */
+  public boolean isBounded() {
+    return bounded;
+  }
+
+  /** @return The time left in nanoseconds, 0 once expired, or Long.MAX_VALUE if unbounded. */
+  public long remainingNanos() {
+    if (!bounded) return Long.MAX_VALUE;
+    return Math.max(nanos - System.nanoTime(), 0);
+  }
+
+  /**
+   * @return The time left in milliseconds, rounded up so that it is only 0 once expired, or
+   *         Long.MAX_VALUE if unbounded.
+   */
+  public long remainingMillis() {
+    if (!bounded) return Long.MAX_VALUE;
+    long left = remainingNanos();
+    return (left + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /** @return true if the deadline has passed. */
+  public boolean isExpired() {
+    return bounded && nanos - System.nanoTime() <= 0;
+  }
+
+  /**
+   * Check that the deadline has not passed.
+   * @param activity What was about to be done, for the error message, e.g. "sending the query"
+   * @throws SparqlException If the deadline has passed
+   */
+  public void check(String activity) throws SparqlException {
+    if (isExpired()) throw new SparqlException("Deadline passed before " + activity);
+  }
+
+  @Override
+  public String toString() {
+    return bounded ? "Deadline in " + remainingMillis() + " ms" : "No deadline";
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi;
+
+import static spark.spi.TestCursor.AFTER_LAST;
+import static spark.spi.TestCursor.BEFORE_FIRST;
+import static spark.spi.TestCursor.FIRST;
+import static spark.spi.TestCursor.LAST;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import spark.api.exception.SparqlException;
+import spark.api.rdf.RDFNode;
+import spark.api.uris.XsdTypes;
+import spark.spi.rdf.BlankNodeImpl;
+import spark.spi.rdf.DoubleLiteral;
+import spark.spi.rdf.LongLiteral;
+import spark.spi.rdf.NamedNodeImpl;
+import spark.spi.rdf.PlainLiteralImpl;
+import spark.spi.rdf.TypedLiteralImpl;
+
+public class TestBinarySolutions extends TestCase {
+
+  private static final List<String> VARS = Arrays.asList("s", "p", "o");
+  private static final NamedNodeImpl P = new NamedNodeImpl(URI.create("http://example.org/p"));
+
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    file = File.createTempFile("spark-test", ".spkb");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+  }
+
+  private static List<Map<String,RDFNode>> data(int rows) {
+    List<Map<String,RDFNode>> data = new ArrayList<Map<String,RDFNode>>();
+    for (int i = 0; i < rows; i++) {
+      Map<String,RDFNode> row = new HashMap<String,RDFNode>();
+      row.put("s", new BlankNodeImpl("b" + (i % 100)));
+      if (i % 7 != 0) row.put("p", P);
+      switch (i % 5) {
+      case 0: row.put("o", new PlainLiteralImpl("v" + i, "en")); break;
+      case 1: row.put("o", new LongLiteral(i)); break;
+      case 2: row.put("o", new DoubleLiteral(i / 4.0)); break;
+      case 3: row.put("o", new TypedLiteralImpl("2011-07-28T12:00:00Z", XsdTypes.DATE_TIME)); break;
+      default: // ?o unbound
+      }
+      data.add(row);
+    }
+    return data;
+  }
+
+  private long write(List<Map<String,RDFNode>> data) throws IOException {
+    return new BinarySolutionsWriter(new FileOutputStream(file), VARS).writeAll(new SolutionSet(null, VARS, data));
+  }
+
+  public void testRoundTrip() throws Exception {
+    int rows = BinarySolutionsWriter.BLOCK_ROWS * 2 + 3;
+    List<Map<String,RDFNode>> expected = data(rows);
+    assertEquals(rows, write(expected));
+
+    BinarySolutions s = BinarySolutions.open(file);
+    assertEquals(VARS, s.getVariables());
+    TestCursor.assertCursor(s, BEFORE_FIRST);
+    RDFNode firstP = null;
+    for (int i = 0; i < rows; i++) {
+      assertTrue(s.next());
+      assertEquals(i + 1, s.getRow());
+      if (i == 0) TestCursor.assertCursor(s, FIRST);
+      if (i == rows - 1) TestCursor.assertCursor(s, LAST);
+      else assertFalse(s.isLast());
+      assertEquals(expected.get(i), s.getResult());
+      if (i % 5 == 1) assertEquals(i, s.getLong("o"));
+      if (firstP == null) firstP = s.getBinding("p");
+      else if (s.isBound("p")) assertSame(firstP, s.getBinding("p"));
+    }
+    assertFalse(s.next());
+    TestCursor.assertCursor(s, AFTER_LAST);
+    s.close();
+  }
+
+  public void testBoundedDictionary() throws Exception {
+    int rows = BinarySolutionsWriter.BLOCK_ROWS * 3;
+    List<Map<String,RDFNode>> expected = new ArrayList<Map<String,RDFNode>>();
+    for (int i = 0; i < rows; i++) {
+      Map<String,RDFNode> row = new HashMap<String,RDFNode>();
+      row.put("s", new NamedNodeImpl(URI.create("http://example.org/s" + i)));
+      row.put("p", P);
+      row.put("o", new LongLiteral(i % 10));
+      expected.add(row);
+    }
+    // The limit is reached in the first block, so each later block starts a new dictionary.
+    BinarySolutionsWriter w = new BinarySolutionsWriter(new FileOutputStream(file), VARS, 100);
+    assertEquals(rows, w.writeAll(new SolutionSet(null, VARS, expected)));
+
+    BinarySolutions s = BinarySolutions.open(file);
+    for (Map<String,RDFNode> row : expected) {
+      assertTrue(s.next());
+      assertEquals(row, s.getResult());
+    }
+    assertFalse(s.next());
+    s.close();
+  }
+
+  public void testEmpty() throws Exception {
+    assertEquals(0, write(data(0)));
+    BinarySolutions s = BinarySolutions.open(file);
+    assertEquals(VARS, s.getVariables());
+    assertFalse(s.next());
+    TestCursor.assertCursor(s, AFTER_LAST);
+    s.close();
+  }
+
+  public void testBadFile() throws Exception {
+    FileOutputStream out = new FileOutputStream(file);
+    out.write("<?xml version='1.0'?>".getBytes("UTF-8"));
+    out.close();
+    try {
+      BinarySolutions.open(file);
+      fail("Should reject a file that is not binary solutions");
+    } catch (SparqlException e) {
+      // expected
+    }
+
+    out = new FileOutputStream(file);
+    out.write(new byte[] { 'S', 'P', 'K', 'B', 99, 0 });
+    out.close();
+    try {
+      BinarySolutions.open(file);
+      fail("Should reject an unknown version");
+    } catch (SparqlException e) {
+      assertTrue(e.getMessage().contains("version 99"));
+    }
+  }
+}
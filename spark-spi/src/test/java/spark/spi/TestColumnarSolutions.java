@@ -0,0 +1,129 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi;
+
+import static spark.spi.TestCursor.AFTER_LAST;
+import static spark.spi.TestCursor.BEFORE_FIRST;
+import static spark.spi.TestCursor.FIRST;
+import static spark.spi.TestCursor.LAST;
+import static spark.spi.TestCursor.NONE;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import spark.api.rdf.RDFNode;
+import spark.spi.rdf.BlankNodeImpl;
+import spark.spi.rdf.NamedNodeImpl;
+import spark.spi.rdf.PlainLiteralImpl;
+
+public class TestColumnarSolutions extends TestCase {
+
+  private static final List<String> VARS = Arrays.asList("s", "o");
+  private static final NamedNodeImpl TYPE = new NamedNodeImpl(URI.create("http://example.org/type"));
+
+  private static SolutionSet source(int rows) {
+    List<Map<String,RDFNode>> data = new ArrayList<Map<String,RDFNode>>();
+    for (int i = 0; i < rows; i++) {
+      Map<String,RDFNode> row = new HashMap<String,RDFNode>();
+      row.put("s", new BlankNodeImpl("b" + i));
+      // Every third row leaves ?o unbound; the rest share a few terms.
+      if (i % 3 != 0) row.put("o", (i % 2 == 0) ? TYPE : new PlainLiteralImpl("v" + (i % 5)));
+      data.add(row);
+    }
+    return new SolutionSet(null, VARS, data);
+  }
+
+  public void testCursor() {
+    ColumnarSolutions s = new ColumnarSolutions(source(3));
+    assertEquals(VARS, s.getVariables());
+    assertEquals(3, s.size());
+    TestCursor.assertCursor(s, BEFORE_FIRST);
+
+    assertTrue(s.next());
+    TestCursor.assertCursor(s, FIRST);
+    assertEquals(new BlankNodeImpl("b0"), s.getBinding("s"));
+    assertFalse(s.isBound("o"));
+    assertNull(s.getBinding("o"));
+
+    assertTrue(s.next());
+    TestCursor.assertCursor(s, NONE);
+    assertEquals(new PlainLiteralImpl("v1"), s.getLiteral("o"));
+
+    assertTrue(s.next());
+    TestCursor.assertCursor(s, LAST);
+    assertEquals(TYPE, s.getNamedNode("o"));
+
+    assertFalse(s.next());
+    TestCursor.assertCursor(s, AFTER_LAST);
+    assertNull(s.getResult());
+  }
+
+  public void testEmpty() {
+    ColumnarSolutions s = new ColumnarSolutions(source(0));
+    TestCursor.assertCursor(s, BEFORE_FIRST);
+    assertFalse(s.next());
+    TestCursor.assertCursor(s, AFTER_LAST);
+    assertFalse(s.iterator().hasNext());
+  }
+
+  public void testRandomAccessAcrossChunks() {
+    int rows = ColumnarSolutions.CHUNK_ROWS * 2 + 7;
+    SolutionSet src = source(rows);
+    List<Map<String,RDFNode>> expected = new ArrayList<Map<String,RDFNode>>();
+    for (Map<String,RDFNode> row : src) expected.add(row);
+
+    ColumnarSolutions s = new ColumnarSolutions(source(rows));
+    assertEquals(rows, s.size());
+    // Blank nodes are all distinct; ?o has the shared type plus five literals.
+    assertEquals(rows + 6, s.getDictionary().size());
+
+    for (int row : new int[] { rows, 1, ColumnarSolutions.FIRST_CHUNK_ROWS + 1, ColumnarSolutions.CHUNK_ROWS,
+        ColumnarSolutions.CHUNK_ROWS + 1, 12345 }) {
+      assertTrue(s.absolute(row));
+      assertEquals(row, s.getRow());
+      assertEquals(expected.get(row - 1), s.getResult());
+      assertEquals(expected.get(row - 1), s.getResult(row));
+    }
+    assertTrue(s.absolute(rows));
+    TestCursor.assertCursor(s, LAST);
+    assertFalse(s.absolute(0));
+    TestCursor.assertCursor(s, BEFORE_FIRST);
+    assertFalse(s.absolute(rows + 10));
+    TestCursor.assertCursor(s, AFTER_LAST);
+
+    Iterator<Map<String,RDFNode>> it = s.iterator();
+    for (Map<String,RDFNode> row : expected) {
+      assertTrue(it.hasNext());
+      assertEquals(row, it.next());
+    }
+    assertFalse(it.hasNext());
+  }
+
+  public void testSharedDictionary() {
+    TermDictionary dict = new TermDictionary();
+    ColumnarSolutions a = new ColumnarSolutions(source(10), dict);
+    int terms = dict.size();
+    ColumnarSolutions b = new ColumnarSolutions(source(10), dict);
+    assertEquals(terms, dict.size());
+    assertSame(a.getResult(5).get("s"), b.getResult(5).get("s"));
+  }
+}
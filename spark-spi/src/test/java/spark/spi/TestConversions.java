@@ -7,6 +7,7 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.net.URI;
 import java.util.Date;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
@@ -135,6 +136,87 @@ public class TestConversions extends TestCase {
     invalid("1234", XsdTypes.UNSIGNED_INT);
   }
   
+  public void testIntBuffers() {
+    String s = "xx -2147483648 xx";
+    assertEquals(Integer.MIN_VALUE, Conversions.toInteger(s.toCharArray(), 2, 13));
+    assertEquals(Integer.MIN_VALUE, Conversions.toInteger(s.getBytes(), 2, 13));
+    assertEquals(Integer.MIN_VALUE, Conversions.toInteger(new StringBuilder(s).substring(3, 14)));
+    assertEquals(42, Conversions.toInteger(" +42\n"));
+    assertEquals(Long.MAX_VALUE, Conversions.toLong("9223372036854775807".getBytes(), 0, 19));
+    assertEquals(Long.MIN_VALUE, Conversions.toLong("-9223372036854775808".toCharArray(), 0, 20));
+    badNumber("2147483648", XsdTypes.INT);
+    badNumber("9223372036854775808", XsdTypes.LONG);
+    badNumber("", XsdTypes.INT);
+    badNumber("-", XsdTypes.INT);
+    badNumber("1 2", XsdTypes.INT);
+    badNumber("0x10", XsdTypes.LONG);
+  }
+
+  public void testIntegerBuffers() {
+    String s = "-156432418974561566571";
+    assertEquals(new BigInteger(s), Conversions.toBigInteger(s.getBytes(), 0, s.length()));
+    assertEquals(new BigInteger(s), Conversions.toBigInteger(s.toCharArray(), 0, s.length()));
+    assertEquals(BigInteger.valueOf(123), Conversions.toBigInteger("+123".getBytes(), 0, 4));
+    assertEquals(new BigInteger("156432418974561566571"), Conversions.toBigInteger("+156432418974561566571"));
+    badNumber("1564324189745615665.71", XsdTypes.INTEGER);
+  }
+
+  public void testDoubleBuffers() {
+    assertEquals(1.5e-3, Conversions.toDouble("x1.5E-3x".getBytes(), 1, 6));
+    assertEquals(-0.25, Conversions.toDouble("-.25".toCharArray(), 0, 4));
+    assertEquals(5.0, Conversions.toDouble("5."));
+    assertEquals(Double.POSITIVE_INFINITY, Conversions.toDouble("INF"));
+    assertEquals(Double.NEGATIVE_INFINITY, Conversions.toDouble("-INF"));
+    assertEquals(Double.POSITIVE_INFINITY, Conversions.toDouble(Double.toString(Double.POSITIVE_INFINITY)));
+    assertTrue(Double.isNaN(Conversions.toDouble("NaN")));
+    assertEquals(Double.doubleToLongBits(-0.0), Double.doubleToLongBits(Conversions.toDouble("-0.000")));
+    assertEquals(Double.MIN_VALUE, Conversions.toDouble(Double.toString(Double.MIN_VALUE)));
+    assertEquals(Double.MAX_VALUE, Conversions.toDouble(Double.toString(Double.MAX_VALUE)));
+    assertEquals(0.1, Conversions.toDouble("0.1000000000000000000000000001"));
+    badNumber("1e", XsdTypes.DOUBLE);
+    badNumber("1.0d", XsdTypes.DOUBLE);
+    badNumber(".", XsdTypes.DOUBLE);
+    badNumber("-NaN", XsdTypes.DOUBLE);
+    badNumber("0x1p3", XsdTypes.DOUBLE);
+
+    // The fast path must agree exactly with the JDK.
+    Random r = new Random(12345);
+    for (int i = 0; i < 10000; i++) {
+      double d = (r.nextInt(3) == 0) ? r.nextDouble() * Math.pow(10, r.nextInt(40) - 20) : r.nextLong() / 1000.0;
+      String lex = (i % 2 == 0) ? Double.toString(d) : String.format("%.6f", d);
+      assertEquals(lex, Double.parseDouble(lex), Conversions.toDouble(lex.getBytes(), 0, lex.length()));
+    }
+  }
+
+  public void testLiteralValue() {
+    TypedLiteral l = Conversions.toLiteral(1234L);
+    assertEquals(Long.valueOf(1234L), l.getValue());
+    assertSame(l.getValue(), l.getValue());
+
+    TypedLiteralImpl parsed = new TypedLiteralImpl("2.5", XsdTypes.DOUBLE);
+    assertEquals(Double.valueOf(2.5), parsed.getValue());
+    assertSame(parsed.getValue(), parsed.getValue());
+
+    Date d = new Date(1311805516812L);
+    TypedLiteral dl = Conversions.toLiteral(d);
+    d.setTime(0);
+    ((Date)dl.getValue()).setTime(0);
+    assertEquals(new Date(1311805516812L), dl.getValue());
+  }
+
+  private static void badNumber(String lexical, URI datatype) {
+    invalid(lexical, datatype);
+    try {
+      if (XsdTypes.DOUBLE.equals(datatype)) Conversions.toDouble(lexical.getBytes(), 0, lexical.length());
+      else if (XsdTypes.INTEGER.equals(datatype)) Conversions.toBigInteger(lexical.toCharArray(), 0, lexical.length());
+      else if (XsdTypes.INT.equals(datatype)) Conversions.toInteger(lexical.getBytes(), 0, lexical.length());
+      else Conversions.toLong(lexical.getBytes(), 0, lexical.length());
+      fail("Should have thrown exception converting " + lexical);
+    } catch (NumberFormatException e) {
+      logger.debug("Conversion exception, message: {}", e.getMessage());
+    }
+  }
+
   private static void roundTrip(Object val, TypedLiteral lit) {
     assertEquals(val, Conversions.toData(lit));
     assertEquals(lit, Conversions.toLiteral(val));
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import spark.api.Command;
+import spark.api.Completion;
+import spark.api.Completions;
+import spark.api.Result;
+import spark.api.ServiceDescription;
+import spark.api.Solutions;
+import spark.api.Triples;
+import spark.api.exception.SparqlException;
+import spark.api.rdf.RDFNode;
+
+public class TestFanOutCompletions extends TestCase {
+
+  /**
+   * Commands are a number of milliseconds to sleep, "fail" to fail, "block" to wait for a cancel,
+   * or "late" to finish 300 milliseconds later whatever happens.
+   */
+  public static class FakeConnection extends BaseConnection {
+    final AtomicInteger cancels = new AtomicInteger();
+    final List<Long> deadlines = Collections.synchronizedList(new ArrayList<Long>());
+    final List<Result> results = Collections.synchronizedList(new ArrayList<Result>());
+
+    public FakeConnection() {
+      super(null);
+    }
+
+    @Override
+    public ServiceDescription getDescription() {
+      return null;
+    }
+
+    @Override
+    public Command createCommand(String commandString) {
+      return new BaseCommand(this, commandString) {
+        private final CountDownLatch cancelled = new CountDownLatch(1);
+
+        @Override
+        public void cancel() {
+          cancels.incrementAndGet();
+          cancelled.countDown();
+        }
+
+        @Override
+        public Result execute() {
+          return executeQuery();
+        }
+
+        @Override
+        public Solutions executeQuery() {
+          deadlines.add(getDeadline());
+          try {
+            if (getCommand().equals("fail")) {
+              throw new SparqlException("Failed");
+            } else if (getCommand().equals("block")) {
+              cancelled.await(10, TimeUnit.SECONDS);
+              throw new SparqlException("Cancelled");
+            } else if (getCommand().equals("late")) {
+              long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+              for (long left; (left = end - System.nanoTime()) > 0; ) {
+                try {
+                  TimeUnit.NANOSECONDS.sleep(left);
+                } catch (InterruptedException ignored) {
+                  // can't be stopped
+                }
+              }
+            } else {
+              Thread.sleep(Long.parseLong(getCommand()));
+            }
+          } catch (InterruptedException e) {
+            throw new SparqlException(e);
+          }
+          Solutions s = new SolutionSet(this, Collections.singletonList("x"), new ArrayList<Map<String,RDFNode>>());
+          results.add(s);
+          return s;
+        }
+
+        @Override
+        public Triples executeGraph() {
+          throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean executeAsk() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  private FakeConnection conn;
+
+  @Override
+  protected void setUp() throws Exception {
+    conn = new FakeConnection();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    conn.close();
+  }
+
+  private List<Command> commands(String... strings) {
+    List<Command> commands = new ArrayList<Command>();
+    for (String s : strings) {
+      commands.add(conn.createCommand(s));
+    }
+    return commands;
+  }
+
+  public void testCompletionOrder() throws Exception {
+    List<Command> commands = commands("300", "0", "fail", "100");
+    long start = System.nanoTime();
+    Completions completions = conn.executeAll(commands, Command.NO_TIMEOUT);
+    assertEquals(4, completions.remaining());
+
+    List<String> order = new ArrayList<String>();
+    Set<Command> seen = new HashSet<Command>();
+    for (Completion c : completions) {
+      seen.add(c.getCommand());
+      order.add(c.getCommand().getCommand());
+      if (c.getCommand().getCommand().equals("fail")) {
+        try {
+          c.getResult();
+          fail("Should rethrow the command's error");
+        } catch (SparqlException e) {
+          assertEquals("Failed", e.getMessage());
+        }
+      } else {
+        Result r = c.getResult();
+        assertSame(c.getCommand(), r.getCommand());
+        r.close();
+      }
+    }
+    // The commands run concurrently, so the slowest one bounds the total.
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 400 + 1000);
+    assertEquals(new HashSet<Command>(commands), seen);
+    assertEquals("100", order.get(2));
+    assertEquals("300", order.get(3));
+    assertEquals(0, completions.remaining());
+    assertNull(completions.take());
+    assertEquals(Collections.nCopies(4, Command.NO_DEADLINE), conn.deadlines);
+  }
+
+  public void testDeadline() throws Exception {
+    List<Command> commands = commands("0", "block", "block");
+    long later = System.currentTimeMillis() + 60000;
+    commands.get(1).setDeadline(later);
+    long before = System.currentTimeMillis();
+    Completions completions = conn.executeAll(commands, 300);
+    Completion first = completions.take();
+    assertEquals("0", first.getCommand().getCommand());
+    first.getResult().close();
+    try {
+      completions.take();
+      fail("Should time out");
+    } catch (SparqlException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("2 of 3"));
+    }
+    assertEquals(2, conn.cancels.get());
+    assertNull(completions.take());
+    // Each command ran under the shared deadline.
+    assertEquals(3, conn.deadlines.size());
+    for (long d : conn.deadlines) {
+      assertTrue(d >= before + 300);
+      assertTrue(d < later);
+    }
+    // The commands keep their own deadlines, so they can be executed again.
+    assertEquals(Command.NO_DEADLINE, commands.get(0).getDeadline());
+    for (int i = 0; i < 100 && commands.get(1).getDeadline() != later; i++) Thread.sleep(10);
+    assertEquals(later, commands.get(1).getDeadline());
+  }
+
+  public void testLateResultClosed() throws Exception {
+    Completions completions = conn.executeAll(commands("late"), 50);
+    try {
+      completions.take();
+      fail("Should time out");
+    } catch (SparqlException e) {
+      // expected
+    }
+    for (int i = 0; i < 100 && conn.results.isEmpty(); i++) Thread.sleep(10);
+    Thread.sleep(50);
+    assertEquals(1, conn.results.size());
+    assertTrue(conn.results.get(0).isClosed());
+  }
+
+  public void testCloseAsCommandsFinish() throws Exception {
+    // Close while results are being handed over; none of them may be left open.
+    for (int i = 0; i < 200; i++) {
+      Completions completions = conn.executeAll(commands("0", "0", "0"), Command.NO_TIMEOUT);
+      if (i % 2 == 0) Thread.yield();
+      completions.close();
+    }
+    // Let any command still running finish.
+    Thread.sleep(100);
+    assertFalse(conn.results.isEmpty());
+    synchronized (conn.results) {
+      for (Result r : conn.results) assertTrue(r.isClosed());
+    }
+  }
+
+  public void testCloseCancels() throws Exception {
+    Completions completions = conn.executeAll(commands("block"), Command.NO_TIMEOUT);
+    while (conn.deadlines.isEmpty()) Thread.sleep(10);
+    completions.close();
+    assertEquals(1, conn.cancels.get());
+    assertEquals(0, completions.remaining());
+  }
+
+  public void testForeignCommand() throws Exception {
+    FakeConnection other = new FakeConnection();
+    try {
+      conn.executeAll(Collections.singletonList(other.createCommand("0")), Command.NO_TIMEOUT);
+      fail("Should reject a command from another connection");
+    } catch (IllegalArgumentException e) {
+      // expected
+    } finally {
+      other.close();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi;
+
+import static spark.spi.TestCursor.AFTER_LAST;
+import static spark.spi.TestCursor.BEFORE_FIRST;
+import static spark.spi.TestCursor.FIRST;
+import static spark.spi.TestCursor.LAST;
+import static spark.spi.TestCursor.NONE;
+
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import spark.api.rdf.RDFNode;
+import spark.api.uris.XsdTypes;
+import spark.spi.rdf.BlankNodeImpl;
+import spark.spi.rdf.IntLiteral;
+import spark.spi.rdf.NamedNodeImpl;
+import spark.spi.rdf.PlainLiteralImpl;
+import spark.spi.rdf.TypedLiteralImpl;
+
+public class TestScrollableSolutions extends TestCase {
+
+  private static final List<String> VARS = Arrays.asList("s", "o", "n");
+
+  private static List<Map<String,RDFNode>> data(int rows) {
+    List<Map<String,RDFNode>> data = new ArrayList<Map<String,RDFNode>>();
+    for (int i = 0; i < rows; i++) {
+      Map<String,RDFNode> row = new HashMap<String,RDFNode>();
+      row.put("s", (i % 2 == 0) ? new BlankNodeImpl("b" + i) : new NamedNodeImpl(URI.create("http://example.org/s" + i)));
+      switch (i % 4) {
+      case 0: break; // ?o unbound
+      case 1: row.put("o", new PlainLiteralImpl("v" + i)); break;
+      case 2: row.put("o", new PlainLiteralImpl("v" + i, "en")); break;
+      default: row.put("o", new TypedLiteralImpl(BigInteger.valueOf(i).toString(), XsdTypes.INTEGER));
+      }
+      row.put("n", new IntLiteral(i));
+      data.add(row);
+    }
+    return data;
+  }
+
+  public void testCursor() throws Exception {
+    ScrollableSolutions s = new ScrollableSolutions(new SolutionSet(null, VARS, data(3)), 1);
+    assertEquals(VARS, s.getVariables());
+    TestCursor.assertCursor(s, BEFORE_FIRST);
+    assertTrue(s.next());
+    TestCursor.assertCursor(s, FIRST);
+    assertTrue(s.next());
+    TestCursor.assertCursor(s, NONE);
+    assertTrue(s.next());
+    TestCursor.assertCursor(s, LAST);
+    assertEquals(2, s.getInt("n"));
+    assertFalse(s.next());
+    TestCursor.assertCursor(s, AFTER_LAST);
+    assertNull(s.getResult());
+
+    assertTrue(s.previous());
+    TestCursor.assertCursor(s, LAST);
+    assertTrue(s.previous());
+    assertTrue(s.previous());
+    TestCursor.assertCursor(s, FIRST);
+    assertFalse(s.previous());
+    TestCursor.assertCursor(s, BEFORE_FIRST);
+    s.close();
+  }
+
+  public void testEmpty() throws Exception {
+    ScrollableSolutions s = new ScrollableSolutions(new SolutionSet(null, VARS, data(0)), 0);
+    TestCursor.assertCursor(s, BEFORE_FIRST);
+    assertFalse(s.next());
+    TestCursor.assertCursor(s, AFTER_LAST);
+    assertFalse(s.iterator().hasNext());
+    assertFalse(s.absolute(-1));
+    s.close();
+  }
+
+  public void testSpilled() throws Exception {
+    int rows = 1000;
+    List<Map<String,RDFNode>> expected = data(rows);
+    ScrollableSolutions s = new ScrollableSolutions(new SolutionSet(null, VARS, expected), 100);
+
+    for (int row : new int[] { 50, 500, 101, 100, 1, rows }) {
+      assertTrue(s.absolute(row));
+      assertEquals(row, s.getRow());
+      assertEquals(expected.get(row - 1), s.getResult());
+    }
+    TestCursor.assertCursor(s, LAST);
+    assertEquals(rows - 1, s.getInt("n"));
+
+    assertTrue(s.absolute(-2));
+    assertEquals(rows - 1, s.getRow());
+    assertTrue(s.previous());
+    assertEquals(expected.get(rows - 3), s.getResult());
+    assertFalse(s.absolute(rows + 1));
+    TestCursor.assertCursor(s, AFTER_LAST);
+    assertFalse(s.absolute(0));
+    TestCursor.assertCursor(s, BEFORE_FIRST);
+
+    // Iterate twice, both times from the first row.
+    for (int pass = 0; pass < 2; pass++) {
+      Iterator<Map<String,RDFNode>> it = s.iterator();
+      for (Map<String,RDFNode> row : expected) {
+        assertTrue(it.hasNext());
+        assertEquals(row, it.next());
+      }
+      assertFalse(it.hasNext());
+    }
+    s.close();
+    assertTrue(s.isClosed());
+  }
+
+  public void testLazy() throws Exception {
+    SolutionSet source = new SolutionSet(null, VARS, data(10));
+    ScrollableSolutions s = new ScrollableSolutions(source, 2);
+    assertTrue(s.absolute(4));
+    assertEquals(4, source.getRow());
+    assertTrue(s.previous());
+    assertEquals(4, source.getRow());
+    s.close();
+  }
+}
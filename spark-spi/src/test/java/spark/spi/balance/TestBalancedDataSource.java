@@ -0,0 +1,285 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi.balance;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import spark.api.Command;
+import spark.api.Connection;
+import spark.api.Credentials;
+import spark.api.DataSource;
+import spark.api.Result;
+import spark.api.ServiceDescription;
+import spark.api.Solutions;
+import spark.api.Triples;
+import spark.api.exception.EndpointException;
+import spark.api.exception.SparqlException;
+import spark.api.rdf.RDFNode;
+import spark.spi.BaseCommand;
+import spark.spi.BaseConnection;
+import spark.spi.SolutionSet;
+
+public class TestBalancedDataSource extends TestCase {
+
+  /** A replica that answers queries with no results, after a delay, with an error, or when cancelled. */
+  static class FakeDataSource implements DataSource {
+    final String name;
+    final AtomicInteger executions = new AtomicInteger();
+    final AtomicInteger cancels = new AtomicInteger();
+    volatile long delay = 0;
+    volatile boolean failing = false;
+    volatile boolean rejecting = false;
+    volatile boolean blocking = false;
+
+    FakeDataSource(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Connection getConnection(Credentials creds) {
+      return new BaseConnection(this) {
+        @Override
+        public ServiceDescription getDescription() {
+          return null;
+        }
+
+        @Override
+        public Command createCommand(String commandString) {
+          return new BaseCommand(this, commandString) {
+            private volatile CountDownLatch cancelled = new CountDownLatch(1);
+
+            @Override
+            public void cancel() {
+              cancels.incrementAndGet();
+              cancelled.countDown();
+            }
+
+            @Override
+            public Result execute() {
+              return executeQuery();
+            }
+
+            @Override
+            public Solutions executeQuery() {
+              executions.incrementAndGet();
+              try {
+                if (delay > 0) Thread.sleep(delay);
+                if (blocking) {
+                  cancelled.await(10, TimeUnit.SECONDS);
+                  cancelled = new CountDownLatch(1);
+                  throw new SparqlException("Cancelled");
+                }
+              } catch (InterruptedException e) {
+                throw new SparqlException(e);
+              }
+              if (failing) throw new EndpointException("Replica " + name + " is down", 503);
+              if (rejecting) throw new EndpointException("Malformed query", 400);
+              return new SolutionSet(this, Collections.singletonList("x"), new ArrayList<Map<String,RDFNode>>());
+            }
+
+            @Override
+            public Triples executeGraph() {
+              throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public boolean executeAsk() {
+              executeQuery();
+              return true;
+            }
+          };
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private FakeDataSource a;
+  private FakeDataSource b;
+  private BalancedDataSource ds;
+
+  @Override
+  protected void setUp() throws Exception {
+    a = new FakeDataSource("a");
+    b = new FakeDataSource("b");
+    ds = new BalancedDataSource(a, b);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ds.close();
+  }
+
+  public void testLeastOutstanding() throws Exception {
+    ds.setPolicy(BalancedDataSource.Policy.LEAST_OUTSTANDING);
+    Connection conn = ds.getConnection(null);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(conn.createCommand("ASK {}").executeAsk());
+    }
+    // Nothing is outstanding between sequential calls, so ties spread the load.
+    assertEquals(10, a.executions.get() + b.executions.get());
+    assertTrue(a.executions.get() > 0);
+    assertTrue(b.executions.get() > 0);
+
+    // Hold a query on one replica: the next ones go to the other.
+    a.blocking = true;
+    b.blocking = true;
+    final Command held = conn.createCommand("ASK {}");
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          held.executeAsk();
+        } catch (SparqlException e) {
+          // cancelled
+        }
+      }
+    };
+    t.start();
+    while (ds.getReplicas().get(0).getOutstanding() + ds.getReplicas().get(1).getOutstanding() == 0) Thread.sleep(5);
+    FakeDataSource busy = (ds.getReplicas().get(0).getOutstanding() == 1) ? a : b;
+    FakeDataSource idle = (busy == a) ? b : a;
+    idle.blocking = false;
+    int before = idle.executions.get();
+    for (int i = 0; i < 5; i++) conn.createCommand("ASK {}").executeAsk();
+    assertEquals(before + 5, idle.executions.get());
+    held.cancel();
+    t.join();
+    conn.close();
+  }
+
+  public void testLatencyWeighted() throws Exception {
+    a.delay = 30;
+    Connection conn = ds.getConnection(null);
+    for (int i = 0; i < 10; i++) conn.createCommand("SELECT ?x {}").executeQuery().close();
+    // After the first call to each, the slow replica is avoided.
+    assertTrue(ds.getReplicas().get(0).getLatencyMillis() > ds.getReplicas().get(1).getLatencyMillis());
+    assertTrue("slow replica used " + a.executions.get() + " times", a.executions.get() <= 2);
+    conn.close();
+  }
+
+  public void testEjectionAndRetry() throws Exception {
+    ds.setFailureThreshold(2);
+    ds.setEjectionTime(200);
+    a.failing = true;
+    Connection conn = ds.getConnection(null);
+    for (int i = 0; i < 10; i++) {
+      // Failures on a are retried on b, so every query succeeds.
+      Solutions s = conn.createCommand("SELECT ?x {}").executeQuery();
+      assertSame(b, s.getCommand().getConnection().getDataSource());
+    }
+    Replica ra = ds.getReplicas().get(0);
+    assertFalse(ra.isHealthy());
+    assertEquals(2, a.executions.get());
+
+    // Once the ejection has passed, a is tried again.
+    a.failing = false;
+    Thread.sleep(250);
+    assertTrue(ra.isHealthy());
+    for (int i = 0; i < 4; i++) conn.createCommand("SELECT ?x {}").executeQuery();
+    assertTrue(a.executions.get() > 2);
+    conn.close();
+  }
+
+  public void testAllFailing() throws Exception {
+    a.failing = true;
+    b.failing = true;
+    Command cmd = ds.getConnection(null).createCommand("SELECT ?x {}");
+    try {
+      cmd.executeQuery();
+      fail("Should have failed");
+    } catch (SparqlException e) {
+      // expected
+    }
+    assertEquals(1, a.executions.get());
+    assertEquals(1, b.executions.get());
+  }
+
+  public void testBadQueryNotRetried() throws Exception {
+    ds.setFailureThreshold(1);
+    a.rejecting = true;
+    b.rejecting = true;
+    Connection conn = ds.getConnection(null);
+    for (int i = 0; i < 4; i++) {
+      try {
+        conn.createCommand("SELECT ?x {").executeQuery();
+        fail("Should have failed");
+      } catch (EndpointException e) {
+        assertEquals(400, e.getStatusCode());
+      }
+    }
+    // The query is at fault, not the replicas: no retries, and nothing ejected.
+    assertEquals(4, a.executions.get() + b.executions.get());
+    assertTrue(ds.getReplicas().get(0).isHealthy());
+    assertTrue(ds.getReplicas().get(1).isHealthy());
+
+    ds.setHedgeDelay(1000);
+    try {
+      conn.createCommand("SELECT ?x {").executeQuery();
+      fail("Should have failed");
+    } catch (EndpointException e) {
+      // expected
+    }
+    assertEquals(5, a.executions.get() + b.executions.get());
+    conn.close();
+  }
+
+  public void testUpdatesNotRetried() throws Exception {
+    a.failing = true;
+    b.failing = true;
+    Command cmd = ds.getConnection(null).createCommand("INSERT DATA {}");
+    try {
+      cmd.execute();
+      fail("Should have failed");
+    } catch (SparqlException e) {
+      // expected
+    }
+    assertEquals(1, a.executions.get() + b.executions.get());
+  }
+
+  public void testHedging() throws Exception {
+    ds.setPolicy(BalancedDataSource.Policy.LEAST_OUTSTANDING);
+    ds.setHedgeDelay(20);
+    a.blocking = true;
+    Connection conn = ds.getConnection(null);
+    List<Long> times = new ArrayList<Long>();
+    for (int i = 0; i < 4; i++) {
+      long start = System.nanoTime();
+      Solutions s = conn.createCommand("SELECT ?x {}").executeQuery();
+      times.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      assertSame(b, s.getCommand().getConnection().getDataSource());
+    }
+    // Each query stuck on a was hedged to b, and the stuck execution cancelled.
+    for (long t : times) assertTrue("took " + t + "ms", t < 5000);
+    assertEquals(4, b.executions.get());
+    assertEquals(a.executions.get(), a.cancels.get());
+    conn.close();
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2011 Revelytix, Inc.  All rights reserved.
+ */
+package spark.spi.rdf;
+
+import java.net.URI;
+
+import junit.framework.TestCase;
+import spark.api.rdf.TypedLiteral;
+import spark.api.uris.XsdTypes;
+import spark.spi.Conversions;
+
+public class TestNativeLiteral extends TestCase {
+
+  public void testInt() {
+    IntLiteral l = new IntLiteral(-42);
+    assertEquals(-42, l.intValue());
+    assertEquals(Integer.valueOf(-42), l.getValue());
+    matches(l, "-42", XsdTypes.INT);
+    assertEquals(l, Conversions.toLiteral(-42));
+    assertFalse(l.equals(new IntLiteral(42)));
+  }
+
+  public void testLong() {
+    LongLiteral l = new LongLiteral(126476513274L);
+    assertEquals(126476513274L, l.longValue());
+    matches(l, "126476513274", XsdTypes.LONG);
+    assertFalse(l.equals(new IntLiteral(5)));
+    assertFalse(new LongLiteral(5).equals(new IntLiteral(5)));
+  }
+
+  public void testDouble() {
+    DoubleLiteral l = new DoubleLiteral(8734539.39586345d);
+    assertEquals(8734539.39586345d, l.doubleValue());
+    matches(l, Double.toString(8734539.39586345d), XsdTypes.DOUBLE);
+    assertEquals(new DoubleLiteral(Double.NaN), new DoubleLiteral(Double.NaN));
+    assertFalse(new DoubleLiteral(0.0).equals(new DoubleLiteral(-0.0)));
+  }
+
+  public void testFloat() {
+    FloatLiteral l = new FloatLiteral(5643.475f);
+    assertEquals(5643.475f, l.floatValue());
+    matches(l, Float.toString(5643.475f), XsdTypes.FLOAT);
+  }
+
+  public void testBoolean() {
+    BooleanLiteral l = new BooleanLiteral(true);
+    assertTrue(l.booleanValue());
+    matches(l, "true", XsdTypes.BOOLEAN);
+    assertFalse(l.equals(new BooleanLiteral(false)));
+  }
+
+  /** Native literals must be interchangeable with lexical ones. */
+  private static void matches(TypedLiteral l, String lexical, URI dataType) {
+    TypedLiteralImpl impl = new TypedLiteralImpl(lexical, dataType);
+    assertEquals(dataType, l.getDataType());
+    assertEquals(lexical, l.getLexical());
+    assertEquals(impl, l);
+    assertEquals(l, impl);
+    assertEquals(impl.hashCode(), l.hashCode());
+    assertEquals(impl.toString(), l.toString());
+    assertEquals(impl.getValue(), l.getValue());
+  }
+}
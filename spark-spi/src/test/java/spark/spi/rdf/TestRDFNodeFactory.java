@@ -0,0 +1,78 @@
+/**
+ * Copyright 2011 Revelytix, Inc.  All rights reserved.
+ */
+package spark.spi.rdf;
+
+import java.net.URI;
+
+import junit.framework.TestCase;
+import spark.api.rdf.NamedNode;
+import spark.api.rdf.TypedLiteral;
+import spark.api.uris.RdfTypes;
+import spark.api.uris.XsdTypes;
+
+public class TestRDFNodeFactory extends TestCase {
+
+  public void testConstantUris() {
+    assertSame(XsdTypes.INT, RDFNodeFactory.uri(XsdTypes.INT.toString()));
+    assertSame(RdfTypes.RDF_TYPE, RDFNodeFactory.uri(URI.create(RdfTypes.RDF_TYPE.toString())));
+    assertSame(XsdTypes.STRING, RDFNodeFactory.typedLiteral("abc", XsdTypes.STRING.toString()).getDataType());
+    NamedNode n = RDFNodeFactory.namedNode(XsdTypes.INT.toString());
+    assertSame(XsdTypes.INT, n.getURI());
+    assertSame(n, RDFNodeFactory.namedNode(XsdTypes.INT));
+  }
+
+  public void testInterned() {
+    String iri = "http://example.org/interned";
+    NamedNode n = RDFNodeFactory.namedNode(iri);
+    assertSame(n, RDFNodeFactory.namedNode(new String(iri)));
+    assertSame(n.getURI(), RDFNodeFactory.uri(new String(iri)));
+    TypedLiteral l1 = RDFNodeFactory.typedLiteral("1", "http://example.org/type");
+    TypedLiteral l2 = RDFNodeFactory.typedLiteral("2", new String("http://example.org/type"));
+    assertSame(l1.getDataType(), l2.getDataType());
+  }
+
+  public void testEquality() {
+    URI u = URI.create("http://example.org/equality");
+    assertEquals(new NamedNodeImpl(u), RDFNodeFactory.namedNode(u.toString()));
+    assertEquals(new NamedNodeImpl(u).hashCode(), RDFNodeFactory.namedNode(u).hashCode());
+
+    TypedLiteralImpl tl = new TypedLiteralImpl("5", XsdTypes.INT);
+    assertEquals(tl, RDFNodeFactory.typedLiteral("5", XsdTypes.INT.toString()));
+    assertEquals(tl.hashCode(), RDFNodeFactory.typedLiteral("5", XsdTypes.INT).hashCode());
+    assertFalse(tl.equals(RDFNodeFactory.typedLiteral("6", XsdTypes.INT)));
+
+    PlainLiteralImpl pl = new PlainLiteralImpl("chat", "fr");
+    assertEquals(pl, RDFNodeFactory.plainLiteral("chat", "fr"));
+    assertEquals(pl.hashCode(), RDFNodeFactory.plainLiteral("chat", "fr").hashCode());
+    assertFalse(pl.equals(RDFNodeFactory.plainLiteral("chat", "en")));
+
+    assertEquals(new BlankNodeImpl("b0"), RDFNodeFactory.blankNode("b0"));
+  }
+
+  public void testBadUri() {
+    try {
+      RDFNodeFactory.namedNode("not a uri");
+      fail("Should reject invalid URI");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testBounded() {
+    InternCache<String> cache = new InternCache<String>(10);
+    for (int i = 0; i < 1000; i++) {
+      cache.put("k" + i, "v" + i);
+    }
+    int present = 0;
+    for (int i = 0; i < 1000; i++) {
+      String v = cache.get("k" + i);
+      if (v != null) {
+        assertEquals("v" + i, v);
+        present++;
+      }
+    }
+    assertTrue(present > 0);
+    assertTrue(present <= 16);
+  }
+}
@@ -3,6 +3,7 @@
  */
 package spark.spi.util;
 
+import java.util.Calendar;
 import java.util.Date;
 import java.util.Formatter;
 import java.util.TimeZone;
@@ -120,6 +121,52 @@ public class TestDateTime {
     roundTrip("-292275054-01-01T00:00:00Z");
   }
   
+  @Test
+  public void testEpochMillis() {
+    Assert.assertEquals(A_DATE, DateTime.parseMillis(A_NORMAL_STRING));
+    Assert.assertEquals(A_DATE, DateTime.parseMillis(new StringBuilder(A_TIMEZONE_STRING)));
+    Assert.assertEquals(A_DATE, DateTime.parseMillis("  " + A_NORMAL_STRING + "\n"));
+    // Cached and uncached parses agree.
+    Assert.assertEquals(DateTime.parseMillis(A_TIMEZONE_STRING), DateTime.parseMillis(A_TIMEZONE_STRING));
+  }
+  
+  @Test
+  public void testEpochNanos() {
+    Assert.assertEquals(A_DATE * 1000000L, DateTime.parseNanos(A_NORMAL_STRING));
+    Assert.assertEquals(1310685769478534950L, DateTime.parseNanos("2011-07-14T23:22:49.47853495Z"));
+    Assert.assertEquals(1310685769478534951L, DateTime.parseNanos("2011-07-14T23:22:49.4785349519999Z"));
+    Assert.assertEquals(-999999999L, DateTime.parseNanos("1969-12-31T23:59:59.000000001Z"));
+    Assert.assertEquals(A_DATE, DateTime.parse("2011-07-14T23:22:49.4785349519999Z").getTime());
+    overflowNanos("2263-01-01T00:00:00Z");
+    overflowNanos("1677-01-01T00:00:00Z");
+  }
+  
+  @Test
+  public void testCalendar() {
+    Calendar c = DateTime.parseCalendar(A_TIMEZONE_STRING);
+    Assert.assertEquals(A_DATE, c.getTimeInMillis());
+    Assert.assertEquals(-4 * 3600000, c.getTimeZone().getOffset(A_DATE));
+    Assert.assertEquals(19, c.get(Calendar.HOUR_OF_DAY));
+    Assert.assertEquals(A_TIMEZONE_STRING, DateTime.format(c));
+    
+    c = DateTime.parseCalendar(A_NORMAL_STRING);
+    Assert.assertEquals(A_NORMAL_STRING, DateTime.format(c));
+    
+    // Proleptic Gregorian, to match the ISO-8601 timeline.
+    c = DateTime.parseCalendar("1000-03-01T00:00:00Z");
+    Assert.assertEquals(Calendar.MARCH, c.get(Calendar.MONTH));
+    Assert.assertEquals(1, c.get(Calendar.DAY_OF_MONTH));
+  }
+  
+  private static void overflowNanos(String s) {
+    try {
+      DateTime.parseNanos(s);
+      Assert.fail("Should have thrown overflow exception for '" + s + "'.");
+    } catch (ArithmeticException e) {
+      logger.debug("Overflow exception parsing date, message: {}", e.getMessage());
+    }
+  }
+  
   private static final String YR_FORMAT = "%04d-01-01T00:00:00Z";
   private static final String LEAP_YR_FORMAT = "%04d-02-29T00:00:00Z";
   
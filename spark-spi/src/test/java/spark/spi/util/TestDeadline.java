@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 Revelytix Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spark.spi.util;
+
+import junit.framework.TestCase;
+import spark.api.Command;
+import spark.api.exception.SparqlException;
+import spark.spi.TestFanOutCompletions;
+
+public class TestDeadline extends TestCase {
+
+  public void testNone() {
+    assertFalse(Deadline.NONE.isBounded());
+    assertFalse(Deadline.NONE.isExpired());
+    assertEquals(Long.MAX_VALUE, Deadline.NONE.remainingMillis());
+    Deadline.NONE.check("anything");
+  }
+
+  public void testRemaining() throws Exception {
+    Deadline d = Deadline.after(200);
+    assertTrue(d.isBounded());
+    assertTrue(d.remainingMillis() > 0 && d.remainingMillis() <= 200);
+    assertSame(d, d.min(Deadline.NONE));
+    assertSame(d, Deadline.NONE.min(d));
+    assertSame(d, d.min(Deadline.after(10000)));
+    Thread.sleep(250);
+    assertTrue(d.isExpired());
+    assertEquals(0, d.remainingMillis());
+    try {
+      d.check("sending the query");
+      fail("Should have expired");
+    } catch (SparqlException e) {
+      assertEquals("Deadline passed before sending the query", e.getMessage());
+    }
+  }
+
+  public void testForCommand() throws Exception {
+    TestFanOutCompletions.FakeConnection conn = new TestFanOutCompletions.FakeConnection();
+    try {
+      Command c = conn.createCommand("0");
+      assertSame(Deadline.NONE, Deadline.forCommand(c));
+      c.setTimeout(10);
+      assertTrue(Deadline.forCommand(c).remainingMillis() > 9000);
+      // The sooner of the two applies.
+      c.setDeadline(System.currentTimeMillis() + 1000);
+      assertTrue(Deadline.forCommand(c).remainingMillis() <= 1000);
+      c.setTimeout(Command.NO_TIMEOUT);
+      assertTrue(Deadline.forCommand(c).remainingMillis() <= 1000);
+      c.setDeadline(System.currentTimeMillis() - 1000);
+      assertTrue(Deadline.forCommand(c).isExpired());
+    } finally {
+      conn.close();
+    }
+  }
+}